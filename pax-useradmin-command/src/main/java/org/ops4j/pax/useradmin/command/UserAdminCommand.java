@@ -17,6 +17,8 @@
 
 package org.ops4j.pax.useradmin.command;
 
+import java.io.PrintStream;
+
 /**
  * The public interface of the UserAdmin command.
  */
@@ -33,4 +35,23 @@ public interface UserAdminCommand {
      */
     public void copyData(String sourceUri, String targetUri)
             throws CommandException;
+
+    /**
+     * Re-encrypts the stored credentials of all users with the current
+     * encryption settings of a UserAdmin service. The progress is printed
+     * after each batch of users - a run may be resumed with the last printed
+     * checkpoint.
+     * 
+     * @param storageProviderType The type of the StorageProvider whose
+     *                            UserAdmin service is used.
+     * @param checkpoint The checkpoint of a previous run - maybe null.
+     * @param threads The number of users processed in parallel.
+     * @param rate The maximum number of credentials processed per second -
+     *             0 for no limit.
+     * @param out Receives the progress.
+     * @throws CommandException If no such UserAdmin service is available or
+     *                          the run was interrupted.
+     */
+    public void reencryptCredentials(String storageProviderType, String checkpoint, int threads, int rate, PrintStream out)
+            throws CommandException;
 }
@@ -48,6 +48,19 @@ public class FelixCommand implements Command {
                 err.println("CommandException caught: " + e.getMessage());
                 e.printStackTrace(err);
             }
+        } else if ("reencrypt".equals(arguments[1])) {
+            try {
+                new UserAdminCommandImpl(m_context).reencryptCredentials(arguments[2],
+                                                                         arguments.length > 3 && !"-".equals(arguments[3]) ? arguments[3] : null,
+                                                                         arguments.length > 4 ? Integer.parseInt(arguments[4]) : 1,
+                                                                         arguments.length > 5 ? Integer.parseInt(arguments[5]) : 0,
+                                                                         out);
+            } catch (NumberFormatException e) {
+                err.println("userAdmin reencrypt needs numeric threads and rate arguments: " + e.getMessage());
+            } catch (CommandException e) {
+                err.println("CommandException caught: " + e.getMessage());
+                e.printStackTrace(err);
+            }
         } else {
             err.println("Unknown function for userAdmin command: " + arguments[1] + " in command-line " + commandLine);
         }
@@ -62,6 +75,7 @@ public class FelixCommand implements Command {
     }
 
     public String getUsage() {
-        return "userAdmin copyData <source-uri> <target-uri>";
+        return "userAdmin copyData <source-uri> <target-uri>\n"
+               + "userAdmin reencrypt <storageprovider-type> [<checkpoint>|- [<threads> [<credentials-per-second>]]]";
     }
 }
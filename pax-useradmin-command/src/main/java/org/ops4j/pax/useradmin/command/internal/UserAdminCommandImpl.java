@@ -17,6 +17,8 @@
 
 package org.ops4j.pax.useradmin.command.internal;
 
+import java.io.PrintStream;
+
 import org.ops4j.pax.useradmin.command.CommandConstants;
 import org.ops4j.pax.useradmin.command.CommandException;
 import org.ops4j.pax.useradmin.command.UserAdminCommand;
@@ -26,7 +28,13 @@ import org.ops4j.pax.useradmin.command.internal.xml.XMLDataReader;
 import org.ops4j.pax.useradmin.command.internal.xml.XMLDataWriter;
 import org.ops4j.pax.useradmin.command.spi.UserAdminDataReader;
 import org.ops4j.pax.useradmin.command.spi.UserAdminDataWriter;
+import org.ops4j.pax.useradmin.service.CredentialReencryptor;
+import org.ops4j.pax.useradmin.service.CredentialReencryptor.Progress;
+import org.ops4j.pax.useradmin.service.CredentialReencryptor.ProgressListener;
+import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
 
 /**
  * Main UserAdmin command implementation. This should evolve to the main
@@ -72,4 +80,49 @@ public class UserAdminCommandImpl implements UserAdminCommand {
         reader.copy(sourceId, writer);
         writer.close();
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reencryptCredentials(String storageProviderType, String checkpoint, int threads, int rate, final PrintStream out)
+            throws CommandException {
+        ServiceReference[] refs;
+        try {
+            refs = m_context.getServiceReferences(CredentialReencryptor.class.getName(),
+                                                  "(" + PaxUserAdminConstants.STORAGEPROVIDER_TYPE + "=" + storageProviderType + ")");
+        } catch (InvalidSyntaxException e) {
+            throw new CommandException("Invalid StorageProvider type: " + storageProviderType, e);
+        }
+        if (null == refs) {
+            throw new CommandException("No UserAdmin service found for StorageProvider type: " + storageProviderType);
+        }
+        CredentialReencryptor reencryptor = (CredentialReencryptor) m_context.getService(refs[0]);
+        if (null == reencryptor) {
+            throw new CommandException("UserAdmin service not available anymore for StorageProvider type: " + storageProviderType);
+        }
+        try {
+            Progress progress = reencryptor.reencryptCredentials(checkpoint, threads, rate, new ProgressListener() {
+
+                public void progress(Progress progress) {
+                    out.println(format(progress));
+                }
+            });
+            out.println("Done - " + format(progress));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommandException("Re-encryption interrupted - resume with the last checkpoint", e);
+        } finally {
+            m_context.ungetService(refs[0]);
+        }
+    }
+
+    private static String format(Progress progress) {
+        return "users: " + progress.getUserCount()
+               + ", re-encrypted: " + progress.getReencryptedCount()
+               + ", current: " + progress.getCurrentCount()
+               + ", unrecoverable: " + progress.getUnrecoverableCount()
+               + ", failed: " + progress.getFailedCount()
+               + ", credentials/s: " + Math.round(progress.getThroughput())
+               + ", checkpoint: " + progress.getCheckpoint();
+    }
 }
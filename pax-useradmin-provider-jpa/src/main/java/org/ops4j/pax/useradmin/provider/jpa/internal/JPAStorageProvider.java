@@ -32,6 +32,8 @@ import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.Root;
 import org.ops4j.pax.useradmin.provider.jpa.ConfigurationConstants;
 import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBCredential;
 import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBGroup;
@@ -40,13 +42,18 @@ import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBRole;
 import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBUser;
 import org.ops4j.pax.useradmin.provider.jpa.internal.dao.DBVersionedObject;
 import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+import org.ops4j.pax.useradmin.service.spi.CredentialLookupProvider;
 import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
 import org.ops4j.pax.useradmin.service.spi.Decryptor;
 import org.ops4j.pax.useradmin.service.spi.EncryptedValue;
 import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.ParentGroupProvider;
+import org.ops4j.pax.useradmin.service.spi.RoleDataLoader;
+import org.ops4j.pax.useradmin.service.spi.RolePageProvider;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleReference;
 import org.osgi.framework.Filter;
@@ -67,7 +74,7 @@ import org.slf4j.LoggerFactory;
  * EclipseLink would help here in increasing performance.
  */
 public class JPAStorageProvider
-        implements StorageProvider, CredentialProvider {
+        implements StorageProvider, ParentGroupProvider, RolePageProvider, CredentialProvider, CredentialLookupProvider {
 
     private static final Logger                  LOG = LoggerFactory.getLogger(JPAStorageProvider.class);
 
@@ -75,6 +82,11 @@ public class JPAStorageProvider
     private ServiceRegistration<StorageProvider> serviceRegistration;
     private final Long                           trackedServiceID;
     private Map<String, DBRole>                  roleNames;
+    /**
+     * credential key -&gt; hex encoded lookup -&gt; user name, built on first
+     * use and updated in place on changes
+     */
+    private Map<String, Map<String, String>>     credentialLookups;
     private EntityManager                        entityManager;
 
     /**
@@ -184,6 +196,9 @@ public class JPAStorageProvider
         final Map<String, DBRole> map = getRoleNamesMap();
         final DBRole removedRole = map.remove(role.getName());
         if (removedRole != null) {
+            if (removedRole instanceof DBUser) {
+                removeCredentialLookups(removedRole.getName(), ((DBUser) removedRole).getCredentials());
+            }
             return accessTransaction(new TransactionAccess<Boolean>() {
 
                 @Override
@@ -251,6 +266,40 @@ public class JPAStorageProvider
         return loadMembers(factory, group, MemberType.REQUIRED);
     }
 
+    /**
+     * Retrieve the groups which have the given role as basic member. Eventually
+     * creates new Role objects via the given factory.
+     * 
+     * @see ParentGroupProvider#getParentGroups(UserAdminFactory, Role)
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create the groups.
+     * @param role
+     *            The <code>Role</code> whose parent groups are retrieved.
+     * @return A collection of <code>Group</code> objects which have the given
+     *         role as basic member.
+     */
+    @Override
+    public Collection<Group> getParentGroups(UserAdminFactory factory, Role role) throws StorageException {
+        return loadParentGroups(factory, role, MemberType.BASIC);
+    }
+
+    /**
+     * Retrieve the groups which have the given role as required member.
+     * Eventually creates new Role objects via the given factory.
+     * 
+     * @see ParentGroupProvider#getRequiredParentGroups(UserAdminFactory, Role)
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create the groups.
+     * @param role
+     *            The <code>Role</code> whose parent groups are retrieved.
+     * @return A collection of <code>Group</code> objects which have the given
+     *         role as required member.
+     */
+    @Override
+    public Collection<Group> getRequiredParentGroups(UserAdminFactory factory, Role role) throws StorageException {
+        return loadParentGroups(factory, role, MemberType.REQUIRED);
+    }
+
     /**
      * Adds a role as a basic member to a group.
      * 
@@ -541,6 +590,11 @@ public class JPAStorageProvider
             dbvalue.setSalt(encrypt.getSalt());
             dbvalue.setVerificationBytes(encrypt.getVerificationBytes());
             dbvalue.setData(encrypt.getEncryptedBytes());
+            // the lookup stays with the credential until it is replaced
+            DBCredential previous = dbUser.getCredentials().get(key);
+            if (previous != null) {
+                dbvalue.setLookup(previous.getLookup());
+            }
             accessTransaction(new TransactionAccess<Void>() {
 
                 @Override
@@ -573,9 +627,12 @@ public class JPAStorageProvider
                 @Override
                 public Void doWork(EntityManager manager, EntityTransaction transaction) {
                     DBUser refreshItem = refreshItem(manager, dbUser);
-                    refreshItem.getCredentials().remove(key);
+                    DBCredential removed = refreshItem.getCredentials().remove(key);
                     transaction.commit();
                     map.put(refreshItem.getName(), refreshItem);
+                    if (removed != null) {
+                        updateCredentialLookup(key, removed.getLookup(), null, refreshItem.getName());
+                    }
                     return null;
                 }
 
@@ -606,9 +663,11 @@ public class JPAStorageProvider
                 @Override
                 public Void doWork(EntityManager manager, EntityTransaction transaction) {
                     DBUser refreshItem = refreshItem(manager, dbUser);
+                    Map<String, DBCredential> removed = new HashMap<String, DBCredential>(refreshItem.getCredentials());
                     refreshItem.getCredentials().clear();
                     transaction.commit();
                     map.put(refreshItem.getName(), refreshItem);
+                    removeCredentialLookups(refreshItem.getName(), removed);
                     return null;
                 }
 
@@ -695,31 +754,76 @@ public class JPAStorageProvider
         return Collections.emptyList();
     }
 
+    @Override
+    public List<Role> findRolePage(UserAdminFactory factory, String after, int count) throws StorageException {
+        List<String> names;
+        synchronized (this) {
+            names = new ArrayList<String>(getRoleNamesMap().keySet());
+        }
+        Collections.sort(names);
+        int start = 0;
+        if (after != null) {
+            int index = Collections.binarySearch(names, after);
+            start = index >= 0 ? index + 1 : -index - 1;
+        }
+        List<Role> roles = new ArrayList<Role>();
+        for (int i = start; i < names.size() && roles.size() < count; i++) {
+            Role role = loadRole(factory, names.get(i), null);
+            if (role != null) {
+                roles.add(role);
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * Creates the role for the given database object - its data is copied
+     * when it is first accessed.
+     */
+    private Role createRole(UserAdminFactory factory, final DBRole dbRole) throws StorageException {
+        RoleDataLoader loader = new RoleDataLoader() {
+
+            @Override
+            public Map<String, Object> loadProperties() {
+                synchronized (JPAStorageProvider.this) {
+                    return getProperties(dbRole);
+                }
+            }
+
+            @Override
+            public Set<String> loadCredentialKeys() {
+                synchronized (JPAStorageProvider.this) {
+                    return getCredentialKeys(dbRole);
+                }
+            }
+        };
+        switch (dbRole.getType()) {
+            case User.USER:
+                return factory.createUser(dbRole.getName(), loader);
+            case User.GROUP:
+                return factory.createGroup(dbRole.getName(), loader);
+            default:
+                throw new StorageException("Invalid role type for role '" + dbRole.getName() + "': " + dbRole.getType() + " only USER and GROUP are allowed!");
+        }
+    }
+
     private Role loadRole(UserAdminFactory factory, String name, Filter filter) throws StorageException {
-        DBRole dbRole = getRoleFromMap(name);
+        final DBRole dbRole = getRoleFromMap(name);
         if (dbRole == null) {
             return null;
         }
-        Hashtable<String, Object> properties = new Hashtable<String, Object>();
-        for (Entry<String, DBProperty> entry : dbRole.getProperties().entrySet()) {
-            DBProperty value = entry.getValue();
-            properties.put(entry.getKey(), value.getType() == DBProperty.TYPE_STRING ? value.getDataAsString() : value.getData());
+        if (filter == null) {
+            // nothing to match: the data is copied when it is first accessed
+            return createRole(factory, dbRole);
         }
-        if (filter != null) {
-            if (properties.isEmpty()) {
-                return null;
-            }
-            if (!filter.match(properties)) {
-                return null;
-            }
+        Hashtable<String, Object> properties = getProperties(dbRole);
+        if (properties.isEmpty()) {
+            return null;
         }
-        Set<String> keySet = null;
-        if (dbRole instanceof DBUser) {
-            Map<String, DBCredential> credentials = ((DBUser) dbRole).getCredentials();
-            if (credentials != null) {
-                keySet = credentials.keySet();
-            }
+        if (!filter.match(properties)) {
+            return null;
         }
+        Set<String> keySet = getCredentialKeys(dbRole);
         Role role;
         switch (dbRole.getType()) {
             case User.USER:
@@ -734,6 +838,25 @@ public class JPAStorageProvider
         return role;
     }
 
+    private static Hashtable<String, Object> getProperties(DBRole dbRole) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        for (Entry<String, DBProperty> entry : dbRole.getProperties().entrySet()) {
+            DBProperty value = entry.getValue();
+            properties.put(entry.getKey(), value.getType() == DBProperty.TYPE_STRING ? value.getDataAsString() : value.getData());
+        }
+        return properties;
+    }
+
+    private static Set<String> getCredentialKeys(DBRole dbRole) {
+        if (dbRole instanceof DBUser) {
+            Map<String, DBCredential> credentials = ((DBUser) dbRole).getCredentials();
+            if (credentials != null) {
+                return credentials.keySet();
+            }
+        }
+        return null;
+    }
+
     /**
      * Fetch a given role by name in a syncronized fashion...
      */
@@ -781,6 +904,47 @@ public class JPAStorageProvider
         }
     }
 
+    private synchronized Collection<Group> loadParentGroups(UserAdminFactory factory, final Role role, MemberType memberType) throws StorageException {
+        final String memberAttribute;
+        switch (memberType) {
+            case BASIC:
+                memberAttribute = "basicMember";
+                break;
+            case REQUIRED:
+                memberAttribute = "requiredMember";
+                break;
+            default:
+                throw new StorageException("the MEMBER type " + memberType + " is not supported");
+        }
+        // query the join table instead of scanning the members of all groups
+        List<String> names = accessTransaction(new TransactionAccess<List<String>>() {
+
+            @Override
+            public List<String> doWork(EntityManager manager, EntityTransaction transaction) {
+                final CriteriaBuilder builder = manager.getCriteriaBuilder();
+                final CriteriaQuery<String> query = builder.createQuery(String.class);
+                Root<DBGroup> group = query.from(DBGroup.class);
+                Join<DBGroup, DBRole> member = group.join(memberAttribute);
+                query.select(group.<String> get("name")).where(builder.equal(member.get("name"), role.getName()));
+                return manager.createQuery(query).getResultList();
+            }
+
+            @Override
+            public String getProblemString() {
+                return "reading parent groups of role " + role.getName() + " failed!";
+            }
+        });
+        Map<String, DBRole> map = getRoleNamesMap();
+        Collection<Group> groups = new ArrayList<Group>(names.size());
+        for (String name : names) {
+            DBRole dbRole = map.get(name);
+            if (dbRole != null && Role.GROUP == dbRole.getType()) {
+                groups.add((Group) createRole(factory, dbRole));
+            }
+        }
+        return groups;
+    }
+
     private synchronized Map<String, DBRole> getRoleNamesMap() throws StorageException {
         if (roleNames == null) {
             //Initial load from the DB...
@@ -958,6 +1122,101 @@ public class JPAStorageProvider
         return false;
     }
 
+    @Override
+    public synchronized void setCredentialLookup(final User user, final String key, final byte[] lookup) throws StorageException {
+        final Map<String, DBRole> map = getRoleNamesMap();
+        final DBRole dbRole = map.get(user.getName());
+        if (dbRole instanceof DBUser) {
+            final DBUser dbUser = (DBUser) dbRole;
+            accessTransaction(new TransactionAccess<Void>() {
+
+                @Override
+                public Void doWork(EntityManager manager, EntityTransaction transaction) {
+                    DBUser refreshItem = refreshItem(manager, dbUser);
+                    DBCredential dbCredential = refreshItem.getCredentials().get(key);
+                    byte[] previousLookup = null;
+                    if (dbCredential != null) {
+                        previousLookup = dbCredential.getLookup();
+                        dbCredential.setLookup(lookup);
+                        // the embedded value is changed in place
+                        refreshItem.getCredentials().put(key, dbCredential);
+                    }
+                    transaction.commit();
+                    map.put(refreshItem.getName(), refreshItem);
+                    if (dbCredential != null) {
+                        updateCredentialLookup(key, previousLookup, lookup, refreshItem.getName());
+                    }
+                    return null;
+                }
+
+                @Override
+                public String getProblemString() {
+                    return "the credential lookup of user " + user.getName() + " can't be set";
+                }
+            });
+        } else {
+            throw new StorageException("invalid role specified as user: " + user.getName());
+        }
+    }
+
+    @Override
+    public synchronized String findCredentialLookup(String key, byte[] lookup) throws StorageException {
+        if (credentialLookups == null) {
+            credentialLookups = new HashMap<String, Map<String, String>>();
+            for (DBRole dbRole : getRoleNamesMap().values()) {
+                if (dbRole instanceof DBUser) {
+                    for (Entry<String, DBCredential> entry : ((DBUser) dbRole).getCredentials().entrySet()) {
+                        updateCredentialLookup(entry.getKey(), null, entry.getValue().getLookup(), dbRole.getName());
+                    }
+                }
+            }
+        }
+        Map<String, String> lookups = credentialLookups.get(key);
+        return lookups == null ? null : lookups.get(UserAdminTools.bytesToHex(lookup));
+    }
+
+    /**
+     * Replaces the previous lookup of a user credential by the new one in the
+     * lookup index - does nothing as long as the index was not built.
+     * 
+     * @param key
+     *            the credential key
+     * @param previousLookup
+     *            the lookup to remove, might be <code>null</code>
+     * @param lookup
+     *            the lookup to add, might be <code>null</code>
+     * @param userName
+     *            the name of the user owning the credential
+     */
+    private void updateCredentialLookup(String key, byte[] previousLookup, byte[] lookup, String userName) {
+        if (credentialLookups == null) {
+            return;
+        }
+        Map<String, String> lookups = credentialLookups.get(key);
+        if (previousLookup != null && lookups != null) {
+            String hex = UserAdminTools.bytesToHex(previousLookup);
+            if (userName.equals(lookups.get(hex))) {
+                lookups.remove(hex);
+            }
+        }
+        if (lookup != null) {
+            if (lookups == null) {
+                lookups = new HashMap<String, String>();
+                credentialLookups.put(key, lookups);
+            }
+            lookups.put(UserAdminTools.bytesToHex(lookup), userName);
+        }
+    }
+
+    /**
+     * Removes the lookups of the given credentials from the lookup index.
+     */
+    private void removeCredentialLookups(String userName, Map<String, DBCredential> credentials) {
+        for (Entry<String, DBCredential> entry : credentials.entrySet()) {
+            updateCredentialLookup(entry.getKey(), entry.getValue().getLookup(), null, userName);
+        }
+    }
+
     @Override
     public CredentialProvider getCredentialProvider() {
         return this;
@@ -39,6 +39,9 @@ public class DBCredential {
     private byte[] verificationBytes;
     private byte[] encryptedBytes;
 
+    @Column(name = "lookup")
+    private byte[] lookup;
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -121,4 +124,15 @@ public class DBCredential {
         return verificationBytes;
     }
 
+    public void setLookup(byte[] lookup) {
+        this.lookup = lookup;
+    }
+
+    /**
+     * @return the current value of lookup
+     */
+    public byte[] getLookup() {
+        return lookup;
+    }
+
 }
@@ -41,10 +41,24 @@ public interface ConfigurationConstants {
     String PROP_LDAP_ACCESS_USER           = "org.ops4j.pax.useradmin.ldap.access.user";
     String PROP_LDAP_ACCESS_PWD            = "org.ops4j.pax.useradmin.ldap.access.pwd";
 
+    String PROP_LDAP_POOL_MIN              = "org.ops4j.pax.useradmin.ldap.pool.min";
+    String PROP_LDAP_POOL_MAX              = "org.ops4j.pax.useradmin.ldap.pool.max";
+    String PROP_LDAP_POOL_IDLE_TIMEOUT     = "org.ops4j.pax.useradmin.ldap.pool.idle.timeout";          // seconds
+    String PROP_LDAP_POOL_VALIDATION       = "org.ops4j.pax.useradmin.ldap.pool.validation";            // seconds
+    String PROP_LDAP_POOL_MAX_WAIT         = "org.ops4j.pax.useradmin.ldap.pool.max.wait";              // milliseconds
+    String PROP_LDAP_PIPELINE              = "org.ops4j.pax.useradmin.ldap.pipeline";                   // outstanding reads per connection
+    String PROP_LDAP_MEMBER_CHUNK          = "org.ops4j.pax.useradmin.ldap.member.chunk";               // members resolved per search
+    String PROP_LDAP_CACHE_SIZE            = "org.ops4j.pax.useradmin.ldap.cache.size";                 // cached entries
+    String PROP_LDAP_CACHE_TTL             = "org.ops4j.pax.useradmin.ldap.cache.ttl";                  // seconds, 0 disables the cache
+    String PROP_LDAP_CACHE_LISTEN          = "org.ops4j.pax.useradmin.ldap.cache.listen";               // invalidate by persistent search - must be supported by the server
+    String PROP_LDAP_TYPE_CACHE_SIZE       = "org.ops4j.pax.useradmin.ldap.type.cache.size";            // cached role types by name, 0 disables
+    String PROP_LDAP_TYPE_CACHE_TTL        = "org.ops4j.pax.useradmin.ldap.type.cache.ttl";             // seconds, missing names only - 0 does not cache them
+
     String PROP_USER_OBJECTCLASS           = "org.ops4j.pax.useradmin.ldap.user.objectclass";
     String PROP_USER_ATTR_ID               = "org.ops4j.pax.useradmin.ldap.user.attr.id";
     String PROP_USER_ATTR_MANDATORY        = "org.ops4j.pax.useradmin.ldap.user.attr.mandatory";
     String PROP_USER_ATTR_CREDENTIAL       = "org.ops4j.pax.useradmin.ldap.user.attr.credential";
+    String PROP_USER_ATTR_LOOKUP           = "org.ops4j.pax.useradmin.ldap.user.attr.lookup";          // optional, no lookups if not given - should be indexed
 
     String PROP_GROUP_OBJECTCLASS          = "org.ops4j.pax.useradmin.ldap.group.objectclass";
     String PROP_GROUP_ATTR_ID              = "org.ops4j.pax.useradmin.ldap.group.attr.id";
@@ -63,6 +77,19 @@ public interface ConfigurationConstants {
     String DEFAULT_LDAP_ROOT_USERS         = "ou=people";
     String DEFAULT_LDAP_ROOT_GROUPS        = "ou=groups";
 
+    String DEFAULT_LDAP_POOL_MIN           = "1";
+    String DEFAULT_LDAP_POOL_MAX           = "8";
+    String DEFAULT_LDAP_POOL_IDLE_TIMEOUT  = "300";
+    String DEFAULT_LDAP_POOL_VALIDATION    = "30";
+    String DEFAULT_LDAP_POOL_MAX_WAIT      = "5000";
+    String DEFAULT_LDAP_PIPELINE           = "32";
+    String DEFAULT_LDAP_MEMBER_CHUNK       = "100";
+    String DEFAULT_LDAP_CACHE_SIZE         = "1000";
+    String DEFAULT_LDAP_CACHE_TTL          = "0";
+    String DEFAULT_LDAP_CACHE_LISTEN       = "false";
+    String DEFAULT_LDAP_TYPE_CACHE_SIZE    = "10000";
+    String DEFAULT_LDAP_TYPE_CACHE_TTL     = "0";
+
     String DEFAULT_USER_OBJECTCLASS        = "organizationalPerson, inetOrgPerson, person, top";
     String DEFAULT_USER_ATTR_ID            = "uid";
     String DEFAULT_USER_ATTR_MANDATORY     = "cn, sn";
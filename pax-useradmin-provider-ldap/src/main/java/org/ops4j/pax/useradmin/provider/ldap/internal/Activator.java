@@ -25,14 +25,16 @@ import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
-import com.novell.ldap.LDAPConnection;
-
 /**
  * Activator of the Pax UserAdmin LDAP StorageProvider bundle.
  */
 public class Activator
         implements BundleActivator {
 
+    private ConnectionPool      m_pool;
+
+    private StorageProviderImpl m_storageProvider;
+
     /**
      * Create and register the <code>StorageProvider</code> service.
      * 
@@ -41,9 +43,9 @@ public class Activator
     @Override
     public void start(BundleContext context) throws Exception {
         //
-        // create LDAP connection access object
+        // create LDAP connection pool
         //
-        LDAPConnection connection = new LDAPConnection();
+        m_pool = new ConnectionPool();
         //
         // set service properties
         //
@@ -52,10 +54,19 @@ public class Activator
         //
         // create & register service implementation
         //
-        context.registerService(StorageProvider.class, new StorageProviderImpl(connection), properties);
+        m_storageProvider = new StorageProviderImpl(m_pool);
+        context.registerService(StorageProvider.class, m_storageProvider, properties);
     }
 
     @Override
     public void stop(BundleContext context) throws Exception {
+        if (null != m_storageProvider) {
+            m_storageProvider.close();
+            m_storageProvider = null;
+        }
+        if (null != m_pool) {
+            m_pool.close();
+            m_pool = null;
+        }
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPControl;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchResults;
+import com.novell.ldap.controls.LDAPEntryChangeControl;
+import com.novell.ldap.controls.LDAPPersistSearchControl;
+
+/**
+ * Keeps the entry cache up to date with a persistent search on a dedicated
+ * connection: entries which are added, modified, renamed or deleted below
+ * the base DN are invalidated as soon as the server reports the change, so
+ * external changes are visible before the cached entries expire. As a change
+ * may create, delete or rename a role, the role types are dropped as well.
+ * <p>
+ * If the search fails or the server ends it, changes may have been missed:
+ * the caches are cleared and the search is restarted after a delay.
+ */
+@SuppressWarnings("PackageAccessibility")
+final class ChangeListener implements Runnable {
+
+    private final ConnectionPool m_pool;
+
+    private final EntryCache     m_cache;
+
+    private final RoleTypeCache  m_roleTypes;
+
+    private final String         m_baseDN;
+
+    private final long           m_retryDelay;
+
+    private final Thread         m_thread;
+
+    private volatile boolean     m_stopped;
+
+    /**
+     * The connection of the running search - guarded by this.
+     */
+    private LDAPConnection       m_connection;
+
+    /**
+     * Constructor.
+     * 
+     * @param pool
+     *            The pool which opens the connection.
+     * @param cache
+     *            The cache to invalidate.
+     * @param roleTypes
+     *            The role types to drop on changes.
+     * @param baseDN
+     *            The DN of the subtree to listen to.
+     * @param retryDelayMillis
+     *            The delay before a failed search is restarted.
+     */
+    ChangeListener(ConnectionPool pool, EntryCache cache, RoleTypeCache roleTypes, String baseDN, long retryDelayMillis) {
+        m_pool = pool;
+        m_cache = cache;
+        m_roleTypes = roleTypes;
+        m_baseDN = baseDN;
+        m_retryDelay = retryDelayMillis;
+        m_thread = new Thread(this, "Pax UserAdmin LDAP change listener");
+        m_thread.setDaemon(true);
+    }
+
+    /**
+     * Starts listening in a background thread.
+     */
+    void start() {
+        m_thread.start();
+    }
+
+    /**
+     * Stops listening - the search is abandoned by closing its connection.
+     */
+    void stop() {
+        m_stopped = true;
+        LDAPConnection connection;
+        synchronized (this) {
+            connection = m_connection;
+            m_connection = null;
+        }
+        if (null != connection) {
+            ConnectionPool.disconnect(connection);
+        }
+        m_thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (!m_stopped) {
+            try {
+                listen();
+            } catch (StorageException e) {
+                // retried below
+            } catch (LDAPException e) {
+                // retried below
+            }
+            // changes may have been missed meanwhile
+            m_cache.clear();
+            m_roleTypes.clear();
+            if (m_stopped) {
+                return;
+            }
+            try {
+                Thread.sleep(m_retryDelay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the persistent search until it ends or fails.
+     */
+    private void listen() throws StorageException, LDAPException {
+        LDAPConnection connection = m_pool.openDedicated();
+        synchronized (this) {
+            if (m_stopped) {
+                ConnectionPool.disconnect(connection);
+                return;
+            }
+            m_connection = connection;
+        }
+        try {
+            LDAPSearchConstraints constraints = connection.getSearchConstraints();
+            // only changes are returned, each with the kind of change
+            constraints.setControls(new LDAPPersistSearchControl(LDAPPersistSearchControl.ANY, true, true, true));
+            constraints.setBatchSize(1);
+            LDAPSearchResults results = connection.search(m_baseDN, LDAPConnection.SCOPE_SUB, "(objectClass=*)", new String[] { LDAPConnection.NO_ATTRS },
+                                                          false, constraints);
+            // entries read before the search was established may be outdated
+            m_cache.clear();
+            m_roleTypes.clear();
+            while (!m_stopped && results.hasMore()) {
+                LDAPEntry entry = results.next();
+                m_cache.invalidate(entry.getDN());
+                m_roleTypes.clear();
+                LDAPControl[] controls = results.getResponseControls();
+                if (null != controls) {
+                    for (LDAPControl control : controls) {
+                        // a renamed entry is still cached with its previous DN
+                        if (control instanceof LDAPEntryChangeControl && null != ((LDAPEntryChangeControl) control).getPreviousDN()) {
+                            m_cache.invalidate(((LDAPEntryChangeControl) control).getPreviousDN());
+                        }
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                m_connection = null;
+            }
+            ConnectionPool.disconnect(connection);
+        }
+    }
+}
@@ -0,0 +1,635 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+
+/**
+ * A pool of connections bound to the LDAP server. Connections are borrowed
+ * for the duration of a single provider operation and returned afterwards,
+ * so concurrent operations don't share or tear down a connection and each
+ * operation costs a single round trip instead of connect, bind and
+ * disconnect.
+ * <p>
+ * Idle connections are reused most recently used first. Connections which
+ * were idle longer than the validation interval are checked before they are
+ * handed out, connections idle longer than the idle timeout are closed down
+ * to the minimum size. A daemon thread does both for the idle connections
+ * periodically as well, so a quiet pool doesn't hold on to stale connections
+ * until the next borrow or release. If the maximum number of connections is
+ * in use, borrowers wait up to the borrow timeout.
+ */
+@SuppressWarnings("PackageAccessibility")
+public class ConnectionPool {
+
+    /**
+     * The shortest period of the idle connection maintenance.
+     */
+    private static final long                            MINIMUM_MAINTENANCE_INTERVAL = 1000;
+
+    /**
+     * The current settings - connections created with other settings are
+     * closed when they are returned.
+     */
+    private Settings                                     m_settings;
+
+    private final Deque<PooledConnection>                m_idle     = new ArrayDeque<PooledConnection>();
+
+    private final Map<LDAPConnection, PooledConnection> m_borrowed = new IdentityHashMap<LDAPConnection, PooledConnection>();
+
+    /**
+     * The number of idle, borrowed and connecting connections.
+     */
+    private int                                          m_open;
+
+    private boolean                                      m_closed;
+
+    private long                                         m_created;
+
+    private long                                         m_borrows;
+
+    private long                                         m_waits;
+
+    private long                                         m_timeouts;
+
+    private long                                         m_evicted;
+
+    private long                                         m_invalid;
+
+    /**
+     * Runs the idle connection maintenance - started by the first
+     * configuration, stopped on close.
+     */
+    private ScheduledExecutorService                     m_maintenance;
+
+    private ScheduledFuture<?>                           m_maintenanceTask;
+
+    /**
+     * The configuration of the pool and its connections.
+     */
+    private static final class Settings {
+
+        private final String m_host;
+
+        private final int    m_port;
+
+        private final String m_user;
+
+        private final byte[] m_password;
+
+        private final int    m_minSize;
+
+        private final int    m_maxSize;
+
+        private final long   m_idleTimeout;
+
+        private final long   m_validationInterval;
+
+        private final long   m_borrowTimeout;
+
+        Settings(String host, int port, String user, byte[] password, int minSize, int maxSize, long idleTimeout, long validationInterval,
+                 long borrowTimeout) {
+            m_host = host;
+            m_port = port;
+            m_user = user;
+            m_password = password;
+            m_maxSize = Math.max(1, maxSize);
+            m_minSize = Math.min(Math.max(0, minSize), m_maxSize);
+            m_idleTimeout = idleTimeout;
+            m_validationInterval = validationInterval;
+            m_borrowTimeout = borrowTimeout;
+        }
+    }
+
+    /**
+     * A connection with the settings it was created with.
+     */
+    private static final class PooledConnection {
+
+        private final LDAPConnection m_connection;
+
+        private final Settings       m_settings;
+
+        /**
+         * When the connection was returned last (System.nanoTime()).
+         */
+        private long                 m_lastUsed;
+
+        /**
+         * When the connection was known to be alive last (System.nanoTime()).
+         */
+        private long                 m_validated;
+
+        PooledConnection(LDAPConnection connection, Settings settings) {
+            m_connection = connection;
+            m_settings = settings;
+            m_lastUsed = System.nanoTime();
+            m_validated = m_lastUsed;
+        }
+    }
+
+    /**
+     * A snapshot of the pool counters.
+     */
+    public static final class Statistics {
+
+        private final int  m_open;
+
+        private final int  m_idle;
+
+        private final long m_created;
+
+        private final long m_borrows;
+
+        private final long m_waits;
+
+        private final long m_timeouts;
+
+        private final long m_evicted;
+
+        private final long m_invalid;
+
+        Statistics(int open, int idle, long created, long borrows, long waits, long timeouts, long evicted, long invalid) {
+            m_open = open;
+            m_idle = idle;
+            m_created = created;
+            m_borrows = borrows;
+            m_waits = waits;
+            m_timeouts = timeouts;
+            m_evicted = evicted;
+            m_invalid = invalid;
+        }
+
+        /**
+         * @return The number of open connections, including borrowed ones.
+         */
+        public int getOpenCount() {
+            return m_open;
+        }
+
+        /**
+         * @return The number of idle connections.
+         */
+        public int getIdleCount() {
+            return m_idle;
+        }
+
+        /**
+         * @return The number of connections created so far.
+         */
+        public long getCreatedCount() {
+            return m_created;
+        }
+
+        /**
+         * @return The number of borrowed connections so far.
+         */
+        public long getBorrowCount() {
+            return m_borrows;
+        }
+
+        /**
+         * @return The number of borrowers which had to wait for a connection.
+         */
+        public long getWaitCount() {
+            return m_waits;
+        }
+
+        /**
+         * @return The number of borrowers which didn't get a connection in
+         *         time.
+         */
+        public long getTimeoutCount() {
+            return m_timeouts;
+        }
+
+        /**
+         * @return The number of connections closed after the idle timeout.
+         */
+        public long getEvictedCount() {
+            return m_evicted;
+        }
+
+        /**
+         * @return The number of connections which failed the validation.
+         */
+        public long getInvalidCount() {
+            return m_invalid;
+        }
+
+        @Override
+        public String toString() {
+            return "open=" + m_open + ", idle=" + m_idle + ", created=" + m_created + ", borrows=" + m_borrows + ", waits=" + m_waits
+                    + ", timeouts=" + m_timeouts + ", evicted=" + m_evicted + ", invalid=" + m_invalid;
+        }
+    }
+
+    /**
+     * Configures the pool - idle connections with the previous settings are
+     * closed, borrowed ones when they are returned.
+     * 
+     * @param host
+     *            The LDAP server host.
+     * @param port
+     *            The LDAP server port.
+     * @param user
+     *            The DN to bind with.
+     * @param password
+     *            The password to bind with.
+     * @param minSize
+     *            The number of connections kept open when idle.
+     * @param maxSize
+     *            The maximum number of open connections.
+     * @param idleTimeoutMillis
+     *            The time after which idle connections above the minimum
+     *            size are closed.
+     * @param validationIntervalMillis
+     *            The idle time after which a connection is checked before it
+     *            is handed out.
+     * @param borrowTimeoutMillis
+     *            The maximum time to wait for a connection.
+     */
+    void configure(String host, int port, String user, String password, int minSize, int maxSize, long idleTimeoutMillis,
+                   long validationIntervalMillis, long borrowTimeoutMillis) {
+        byte[] passwordBytes;
+        try {
+            passwordBytes = password.getBytes("UTF8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF8 not supported", e);
+        }
+        Settings settings = new Settings(host, port, user, passwordBytes, minSize, maxSize, idleTimeoutMillis * 1000000,
+                                         validationIntervalMillis * 1000000, borrowTimeoutMillis);
+        List<PooledConnection> outdated;
+        synchronized (this) {
+            m_settings = settings;
+            outdated = new ArrayList<PooledConnection>(m_idle);
+            m_idle.clear();
+            m_open -= outdated.size();
+            scheduleMaintenance(Math.max(MINIMUM_MAINTENANCE_INTERVAL, Math.min(idleTimeoutMillis, validationIntervalMillis)));
+            notifyAll();
+        }
+        disconnect(outdated);
+    }
+
+    /**
+     * Borrows a bound connection which must be returned by
+     * {@link #release(LDAPConnection)}.
+     * 
+     * @return A connection bound to the configured server.
+     * @throws StorageException
+     *             if no connection is available within the borrow timeout or
+     *             a new connection could not be opened.
+     */
+    LDAPConnection borrow() throws StorageException {
+        while (true) {
+            PooledConnection pooled = takeIdle();
+            if (null == pooled) {
+                // a slot was reserved for a new connection
+                return open();
+            }
+            if (System.nanoTime() - pooled.m_validated < pooled.m_settings.m_validationInterval || pooled.m_connection.isConnectionAlive()) {
+                return pooled.m_connection;
+            }
+            synchronized (this) {
+                m_borrowed.remove(pooled.m_connection);
+                m_open--;
+                m_invalid++;
+                notifyAll();
+            }
+            disconnect(pooled.m_connection);
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. Connections which were
+     * disconnected meanwhile are closed.
+     * 
+     * @param connection
+     *            The borrowed connection.
+     */
+    void release(LDAPConnection connection) {
+        boolean keep;
+        List<PooledConnection> evicted;
+        synchronized (this) {
+            PooledConnection pooled = m_borrowed.remove(connection);
+            if (null == pooled) {
+                return;
+            }
+            keep = !m_closed && pooled.m_settings == m_settings && connection.isConnected();
+            if (keep) {
+                pooled.m_lastUsed = System.nanoTime();
+                pooled.m_validated = pooled.m_lastUsed;
+                m_idle.addFirst(pooled);
+            } else {
+                m_open--;
+            }
+            evicted = evictIdle();
+            notifyAll();
+        }
+        if (!keep) {
+            disconnect(connection);
+        }
+        disconnect(evicted);
+    }
+
+    /**
+     * Closes the idle connections - borrowed ones are closed when they are
+     * returned, further borrows fail.
+     */
+    void close() {
+        List<PooledConnection> idle;
+        ScheduledExecutorService maintenance;
+        synchronized (this) {
+            m_closed = true;
+            idle = new ArrayList<PooledConnection>(m_idle);
+            m_idle.clear();
+            m_open -= idle.size();
+            maintenance = m_maintenance;
+            m_maintenance = null;
+            m_maintenanceTask = null;
+            notifyAll();
+        }
+        if (null != maintenance) {
+            maintenance.shutdownNow();
+        }
+        disconnect(idle);
+    }
+
+    /**
+     * Closes the connections which were idle longer than the idle timeout and
+     * checks the ones which were idle longer than the validation interval -
+     * run periodically by the maintenance thread.
+     */
+    void maintain() {
+        List<PooledConnection> evicted;
+        List<PooledConnection> unchecked = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            if (m_closed || null == m_settings) {
+                return;
+            }
+            evicted = evictIdle();
+            long now = System.nanoTime();
+            // checked without the lock, so they are not handed out meanwhile
+            for (Iterator<PooledConnection> i = m_idle.iterator(); i.hasNext();) {
+                PooledConnection pooled = i.next();
+                if (now - pooled.m_validated >= pooled.m_settings.m_validationInterval) {
+                    i.remove();
+                    unchecked.add(pooled);
+                }
+            }
+        }
+        disconnect(evicted);
+        List<PooledConnection> alive = new ArrayList<PooledConnection>();
+        List<PooledConnection> dropped = new ArrayList<PooledConnection>();
+        for (PooledConnection pooled : unchecked) {
+            if (pooled.m_connection.isConnectionAlive()) {
+                pooled.m_validated = System.nanoTime();
+                alive.add(pooled);
+            } else {
+                dropped.add(pooled);
+            }
+        }
+        synchronized (this) {
+            m_open -= dropped.size();
+            m_invalid += dropped.size();
+            for (PooledConnection pooled : alive) {
+                if (!m_closed && pooled.m_settings == m_settings) {
+                    // they were the least recently used ones
+                    m_idle.addLast(pooled);
+                } else {
+                    m_open--;
+                    dropped.add(pooled);
+                }
+            }
+            notifyAll();
+        }
+        disconnect(dropped);
+    }
+
+    /**
+     * Opens a dedicated connection with the current settings which is not
+     * part of the pool - for long running operations like persistent
+     * searches. The caller must disconnect it.
+     * 
+     * @return A connection bound to the configured server.
+     * @throws StorageException
+     *             if the pool is closed or not configured or the connection
+     *             could not be opened.
+     */
+    LDAPConnection openDedicated() throws StorageException {
+        Settings settings;
+        synchronized (this) {
+            if (m_closed) {
+                throw new StorageException("LDAP connection pool is closed");
+            }
+            if (null == m_settings) {
+                throw new StorageException("LDAP connection pool is not configured");
+            }
+            settings = m_settings;
+        }
+        return connect(settings);
+    }
+
+    /**
+     * @return The current pool counters.
+     */
+    public synchronized Statistics getStatistics() {
+        return new Statistics(m_open, m_idle.size(), m_created, m_borrows, m_waits, m_timeouts, m_evicted, m_invalid);
+    }
+
+    /**
+     * Creates an unconnected connection - overridden by tests.
+     */
+    protected LDAPConnection createConnection() {
+        return new LDAPConnection();
+    }
+
+    /**
+     * Takes the most recently used idle connection or reserves a slot for a
+     * new one - waiting up to the borrow timeout if the pool is exhausted.
+     * 
+     * @return The idle connection - null if a slot was reserved.
+     */
+    private synchronized PooledConnection takeIdle() throws StorageException {
+        long deadline = 0;
+        boolean waited = false;
+        while (true) {
+            if (m_closed) {
+                throw new StorageException("LDAP connection pool is closed");
+            }
+            if (null == m_settings) {
+                throw new StorageException("LDAP connection pool is not configured");
+            }
+            PooledConnection pooled = m_idle.pollFirst();
+            if (null != pooled) {
+                m_borrowed.put(pooled.m_connection, pooled);
+                m_borrows++;
+                return pooled;
+            }
+            if (m_open < m_settings.m_maxSize) {
+                m_open++;
+                m_borrows++;
+                return null;
+            }
+            long now = System.nanoTime();
+            if (!waited) {
+                waited = true;
+                m_waits++;
+                deadline = now + m_settings.m_borrowTimeout * 1000000;
+            }
+            long remaining = (deadline - now) / 1000000;
+            if (remaining <= 0) {
+                m_timeouts++;
+                throw new StorageException("No LDAP connection available within " + m_settings.m_borrowTimeout + " ms - all "
+                        + m_settings.m_maxSize + " connections are in use");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted when waiting for an LDAP connection");
+            }
+        }
+    }
+
+    /**
+     * Opens a new connection in a reserved slot.
+     */
+    private LDAPConnection open() throws StorageException {
+        Settings settings;
+        synchronized (this) {
+            settings = m_settings;
+        }
+        LDAPConnection connection;
+        try {
+            connection = connect(settings);
+        } catch (StorageException e) {
+            synchronized (this) {
+                m_open--;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            m_created++;
+            m_borrowed.put(connection, new PooledConnection(connection, settings));
+        }
+        return connection;
+    }
+
+    /**
+     * Creates a connection and binds it with the given settings.
+     */
+    private LDAPConnection connect(Settings settings) throws StorageException {
+        LDAPConnection connection = createConnection();
+        try {
+            connection.connect(settings.m_host, settings.m_port);
+            connection.bind(LDAPConnection.LDAP_V3, settings.m_user, settings.m_password);
+        } catch (LDAPException e) {
+            disconnect(connection);
+            throw new StorageException("Error opening connection to LDAP server '" + settings.m_host + ":" + settings.m_port + "': " + e.getMessage()
+                    + " - " + e.getLDAPErrorMessage());
+        }
+        return connection;
+    }
+
+    /**
+     * (Re)schedules the idle connection maintenance with the given period.
+     * Must be called holding the lock.
+     */
+    private void scheduleMaintenance(long intervalMillis) {
+        if (m_closed) {
+            return;
+        }
+        if (null == m_maintenance) {
+            m_maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Pax UserAdmin LDAP connection pool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if (null != m_maintenanceTask) {
+            m_maintenanceTask.cancel(false);
+        }
+        m_maintenanceTask = m_maintenance.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the connections which were idle longer than the idle timeout,
+     * keeping the minimum size. Must be called holding the lock.
+     * 
+     * @return The removed connections - to be disconnected without holding
+     *         the lock.
+     */
+    private List<PooledConnection> evictIdle() {
+        List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+        long now = System.nanoTime();
+        // the least recently used connections are at the end
+        for (Iterator<PooledConnection> i = m_idle.descendingIterator(); i.hasNext() && m_open > m_settings.m_minSize;) {
+            PooledConnection pooled = i.next();
+            if (now - pooled.m_lastUsed < m_settings.m_idleTimeout) {
+                break;
+            }
+            i.remove();
+            m_open--;
+            m_evicted++;
+            evicted.add(pooled);
+        }
+        return evicted;
+    }
+
+    private static void disconnect(List<PooledConnection> connections) {
+        for (PooledConnection pooled : connections) {
+            disconnect(pooled.m_connection);
+        }
+    }
+
+    static void disconnect(LDAPConnection connection) {
+        try {
+            connection.disconnect();
+        } catch (LDAPException e) {
+            // ignore: the connection is dropped anyway
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.novell.ldap.LDAPEntry;
+
+/**
+ * A bounded cache of LDAP entries by DN. Entries expire after the configured
+ * time to live, the least recently used entries are evicted if the cache is
+ * full. Missing entries are cached as {@link #ABSENT}, so repeated lookups of
+ * unknown names don't hit the server either.
+ * <p>
+ * Cached entries must not be modified - entries which are changed are read
+ * from the server. Each change must invalidate the DN of the changed entry:
+ * the invalidation counts as a new generation, and entries read before it
+ * are not cached anymore.
+ */
+@SuppressWarnings("PackageAccessibility")
+public class EntryCache {
+
+    /**
+     * Marks an entry known to be missing.
+     */
+    static final LDAPEntry               ABSENT         = new LDAPEntry();
+
+    private static final Pattern         DN_SEPARATORS  = Pattern.compile(" *([,=+]) *");
+
+    /**
+     * Normalized DN -&gt; cached entry, least recently used first.
+     */
+    private final Map<String, Cached>    m_entries      = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+
+    private int                          m_maxSize;
+
+    /**
+     * The time to live in nanoseconds - nothing is cached if not positive.
+     */
+    private long                         m_timeToLive;
+
+    /**
+     * Incremented on each invalidation.
+     */
+    private long                         m_generation;
+
+    private long                         m_hits;
+
+    private long                         m_misses;
+
+    private long                         m_evictions;
+
+    private long                         m_expirations;
+
+    private long                         m_invalidations;
+
+    /**
+     * An entry with its expiry time.
+     */
+    private static final class Cached {
+
+        private final LDAPEntry m_entry;
+
+        /**
+         * When the entry expires (System.nanoTime()).
+         */
+        private final long      m_expires;
+
+        Cached(LDAPEntry entry, long expires) {
+            m_entry = entry;
+            m_expires = expires;
+        }
+    }
+
+    /**
+     * A snapshot of the cache counters.
+     */
+    public static final class Statistics {
+
+        private final int  m_size;
+
+        private final long m_hits;
+
+        private final long m_misses;
+
+        private final long m_evictions;
+
+        private final long m_expirations;
+
+        private final long m_invalidations;
+
+        Statistics(int size, long hits, long misses, long evictions, long expirations, long invalidations) {
+            m_size = size;
+            m_hits = hits;
+            m_misses = misses;
+            m_evictions = evictions;
+            m_expirations = expirations;
+            m_invalidations = invalidations;
+        }
+
+        /**
+         * @return The number of cached entries, including absent ones.
+         */
+        public int getSize() {
+            return m_size;
+        }
+
+        /**
+         * @return The number of lookups answered by the cache.
+         */
+        public long getHitCount() {
+            return m_hits;
+        }
+
+        /**
+         * @return The number of lookups which had to go to the server.
+         */
+        public long getMissCount() {
+            return m_misses;
+        }
+
+        /**
+         * @return The number of entries evicted because the cache was full.
+         */
+        public long getEvictionCount() {
+            return m_evictions;
+        }
+
+        /**
+         * @return The number of entries dropped after their time to live.
+         */
+        public long getExpirationCount() {
+            return m_expirations;
+        }
+
+        /**
+         * @return The number of entries dropped because they were changed.
+         */
+        public long getInvalidationCount() {
+            return m_invalidations;
+        }
+
+        @Override
+        public String toString() {
+            return "size=" + m_size + ", hits=" + m_hits + ", misses=" + m_misses + ", evictions=" + m_evictions + ", expirations=" + m_expirations
+                    + ", invalidations=" + m_invalidations;
+        }
+    }
+
+    /**
+     * Configures the cache - cached entries are dropped.
+     * 
+     * @param maxSize
+     *            The maximum number of cached entries.
+     * @param timeToLiveMillis
+     *            The time after which cached entries expire - nothing is
+     *            cached if not positive.
+     */
+    synchronized void configure(int maxSize, long timeToLiveMillis) {
+        m_maxSize = Math.max(0, maxSize);
+        m_timeToLive = timeToLiveMillis * 1000000;
+        clear();
+    }
+
+    /**
+     * @return True if entries are cached.
+     */
+    synchronized boolean isEnabled() {
+        return m_maxSize > 0 && m_timeToLive > 0;
+    }
+
+    /**
+     * @return The current generation - to be passed to
+     *         {@link #put(String, LDAPEntry, long)} for entries read
+     *         afterwards.
+     */
+    synchronized long getGeneration() {
+        return m_generation;
+    }
+
+    /**
+     * Returns the cached entry with the given DN.
+     * 
+     * @param dn
+     *            The DN of the entry.
+     * @return The cached entry, {@link #ABSENT} if the entry is known to be
+     *         missing - null if the entry is not cached.
+     */
+    synchronized LDAPEntry get(String dn) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = normalize(dn);
+        Cached cached = m_entries.get(key);
+        if (null != cached && System.nanoTime() - cached.m_expires >= 0) {
+            m_entries.remove(key);
+            m_expirations++;
+            cached = null;
+        }
+        if (null == cached) {
+            m_misses++;
+            return null;
+        }
+        m_hits++;
+        return cached.m_entry;
+    }
+
+    /**
+     * Caches an entry read from the server - unless an invalidation happened
+     * since the read started.
+     * 
+     * @param dn
+     *            The DN of the entry.
+     * @param entry
+     *            The entry - null if it is missing.
+     * @param generation
+     *            The generation before the entry was read.
+     */
+    synchronized void put(String dn, LDAPEntry entry, long generation) {
+        if (!isEnabled() || generation != m_generation) {
+            return;
+        }
+        m_entries.put(normalize(dn), new Cached(null != entry ? entry : ABSENT, System.nanoTime() + m_timeToLive));
+        // the least recently used entries are at the start
+        for (Iterator<Cached> i = m_entries.values().iterator(); m_entries.size() > m_maxSize && i.hasNext();) {
+            i.next();
+            i.remove();
+            m_evictions++;
+        }
+    }
+
+    /**
+     * Drops the entry with the given DN and all entries below it.
+     * 
+     * @param dn
+     *            The DN of the changed entry.
+     */
+    synchronized void invalidate(String dn) {
+        m_generation++;
+        String key = normalize(dn);
+        String suffix = "," + key;
+        for (Iterator<String> i = m_entries.keySet().iterator(); i.hasNext();) {
+            String cachedKey = i.next();
+            if (cachedKey.equals(key) || cachedKey.endsWith(suffix)) {
+                i.remove();
+                m_invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Drops all entries.
+     */
+    synchronized void clear() {
+        m_generation++;
+        m_invalidations += m_entries.size();
+        m_entries.clear();
+    }
+
+    /**
+     * @return The current cache counters.
+     */
+    public synchronized Statistics getStatistics() {
+        return new Statistics(m_entries.size(), m_hits, m_misses, m_evictions, m_expirations, m_invalidations);
+    }
+
+    /**
+     * Normalizes a DN for comparison: attribute names and values are
+     * compared case-insensitive and without spaces around the separators.
+     */
+    static String normalize(String dn) {
+        return DN_SEPARATORS.matcher(dn.trim()).replaceAll("$1").toLowerCase(Locale.ENGLISH);
+    }
+}
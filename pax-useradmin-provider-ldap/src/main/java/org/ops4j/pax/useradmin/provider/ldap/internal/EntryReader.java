@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPResponse;
+import com.novell.ldap.LDAPSearchQueue;
+import com.novell.ldap.LDAPSearchResult;
+
+/**
+ * Reads several entries over one connection without waiting for each
+ * response in turn: a base search per entry is sent as an asynchronous
+ * request, all of them share one message queue and the responses are
+ * collected as they arrive. Reading n entries then costs about one round
+ * trip instead of n.
+ */
+@SuppressWarnings("PackageAccessibility")
+final class EntryReader {
+
+    private static final String FILTER_ANY = "(objectClass=*)";
+
+    private EntryReader() {
+        // static helper
+    }
+
+    /**
+     * Reads the entries with the given DNs.
+     * 
+     * @param connection
+     *            The LDAP connection to use.
+     * @param dns
+     *            The DNs of the entries to read.
+     * @param window
+     *            The maximum number of outstanding requests.
+     * @return DN -&gt; entry for all entries that exist.
+     * @throws LDAPException
+     *             if a read fails for another reason than a missing entry -
+     *             the outstanding requests are abandoned then.
+     */
+    static Map<String, LDAPEntry> read(LDAPConnection connection, Collection<String> dns, int window) throws LDAPException {
+        Map<String, LDAPEntry> entries = new HashMap<String, LDAPEntry>();
+        // message ID -> DN
+        Map<Integer, String> pending = new HashMap<Integer, String>();
+        Iterator<String> toRead = new LinkedHashSet<String>(dns).iterator();
+        LDAPSearchQueue queue = null;
+        try {
+            while (toRead.hasNext() || !pending.isEmpty()) {
+                while (toRead.hasNext() && pending.size() < Math.max(1, window)) {
+                    String dn = toRead.next();
+                    LDAPSearchQueue request = connection.search(dn, LDAPConnection.SCOPE_BASE, FILTER_ANY, null, false, (LDAPSearchQueue) null);
+                    pending.put(request.getMessageIDs()[0], dn);
+                    if (null == queue) {
+                        queue = request;
+                    } else {
+                        queue.merge(request);
+                    }
+                }
+                LDAPMessage message = queue.getResponse();
+                if (null == message) {
+                    throw new LDAPException("no response for " + pending.size() + " outstanding reads", LDAPException.OTHER, null);
+                }
+                String dn = pending.get(message.getMessageID());
+                if (message instanceof LDAPSearchResult) {
+                    if (null != dn) {
+                        entries.put(dn, ((LDAPSearchResult) message).getEntry());
+                    }
+                } else if (message instanceof LDAPResponse) {
+                    pending.remove(message.getMessageID());
+                    LDAPResponse response = (LDAPResponse) message;
+                    // a missing entry is not an error here
+                    if (LDAPException.NO_SUCH_OBJECT != response.getResultCode()) {
+                        response.chkResultCode();
+                    }
+                }
+                // search result references are ignored like in read()
+            }
+            queue = null;
+        } finally {
+            if (null != queue && !pending.isEmpty()) {
+                abandon(connection, queue);
+            }
+        }
+        return entries;
+    }
+
+    private static void abandon(LDAPConnection connection, LDAPSearchQueue queue) {
+        try {
+            connection.abandon(queue);
+        } catch (LDAPException e) {
+            // ignore: the original error is reported
+        }
+    }
+}
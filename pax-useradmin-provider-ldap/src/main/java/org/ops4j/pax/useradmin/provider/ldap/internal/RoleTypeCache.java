@@ -0,0 +1,187 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.osgi.service.useradmin.Role;
+
+/**
+ * A bounded cache of the role type by name, so a role is read from the
+ * subtree of its type only instead of looking for a group and a user. The
+ * types are kept up to date when roles are created or deleted by this
+ * provider. A cached type is no proof of existence: if the role is not found
+ * below its subtree, the type is resolved again. Names known to be missing
+ * expire after the negative time to live, so roles created by others become
+ * visible.
+ */
+final class RoleTypeCache {
+
+    /**
+     * The type of an unknown name.
+     */
+    static final int                  UNKNOWN = -1;
+
+    /**
+     * The type of a name known to be missing.
+     */
+    static final int                  ABSENT  = -2;
+
+    /**
+     * Name -&gt; cached type, least recently used first.
+     */
+    private final Map<String, Cached> m_types = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+
+    private int                       m_maxSize;
+
+    /**
+     * The time to live of missing names in nanoseconds - missing names are
+     * not cached if not positive.
+     */
+    private long                      m_negativeTimeToLive;
+
+    /**
+     * Incremented on each change by this provider.
+     */
+    private long                      m_generation;
+
+    /**
+     * A type with its expiry time.
+     */
+    private static final class Cached {
+
+        private final int  m_type;
+
+        /**
+         * When a missing name expires (System.nanoTime()).
+         */
+        private final long m_expires;
+
+        Cached(int type, long expires) {
+            m_type = type;
+            m_expires = expires;
+        }
+    }
+
+    /**
+     * Configures the cache - cached types are dropped.
+     * 
+     * @param maxSize
+     *            The maximum number of cached names - nothing is cached if
+     *            not positive.
+     * @param negativeTimeToLiveMillis
+     *            The time after which missing names expire - missing names
+     *            are not cached if not positive.
+     */
+    synchronized void configure(int maxSize, long negativeTimeToLiveMillis) {
+        m_maxSize = Math.max(0, maxSize);
+        m_negativeTimeToLive = negativeTimeToLiveMillis * 1000000;
+        m_generation++;
+        m_types.clear();
+    }
+
+    /**
+     * @return The current generation - to be passed to
+     *         {@link #put(String, int, long)} for types resolved afterwards.
+     */
+    synchronized long getGeneration() {
+        return m_generation;
+    }
+
+    /**
+     * Returns the cached type of the given name.
+     * 
+     * @param name
+     *            The role name.
+     * @return <code>Role.USER</code>, <code>Role.GROUP</code>,
+     *         {@link #ABSENT} - or {@link #UNKNOWN} if the name is not cached.
+     */
+    synchronized int get(String name) {
+        Cached cached = m_types.get(name);
+        if (null == cached) {
+            return UNKNOWN;
+        }
+        if (ABSENT == cached.m_type && System.nanoTime() - cached.m_expires >= 0) {
+            m_types.remove(name);
+            return UNKNOWN;
+        }
+        return cached.m_type;
+    }
+
+    /**
+     * Caches a type resolved from the server - unless the provider changed a
+     * role since the resolution started.
+     * 
+     * @param name
+     *            The role name.
+     * @param type
+     *            <code>Role.USER</code>, <code>Role.GROUP</code> or
+     *            {@link #ABSENT}.
+     * @param generation
+     *            The generation before the type was resolved.
+     */
+    synchronized void put(String name, int type, long generation) {
+        if (generation != m_generation || (ABSENT == type && m_negativeTimeToLive <= 0)) {
+            return;
+        }
+        m_types.put(name, new Cached(type, System.nanoTime() + m_negativeTimeToLive));
+        // the least recently used names are at the start
+        for (Iterator<Cached> i = m_types.values().iterator(); m_types.size() > m_maxSize && i.hasNext();) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    /**
+     * Records a role created by this provider.
+     * 
+     * @param name
+     *            The role name.
+     * @param type
+     *            <code>Role.USER</code> or <code>Role.GROUP</code>.
+     */
+    synchronized void created(String name, int type) {
+        long generation = ++m_generation;
+        // a group takes precedence over a user with the same name
+        if (Role.GROUP == type || Role.GROUP != get(name)) {
+            put(name, type, generation);
+        }
+    }
+
+    /**
+     * Drops all cached types - e.g. when roles were changed by others.
+     */
+    synchronized void clear() {
+        m_generation++;
+        m_types.clear();
+    }
+
+    /**
+     * Records a role deleted by this provider - or a failed change which
+     * leaves the type unknown.
+     * 
+     * @param name
+     *            The role name.
+     */
+    synchronized void remove(String name) {
+        m_generation++;
+        m_types.remove(name);
+    }
+}
@@ -24,15 +24,27 @@ import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
 import com.novell.ldap.LDAPModification;
 import com.novell.ldap.LDAPSearchResults;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.ops4j.pax.useradmin.provider.ldap.ConfigurationConstants;
+import org.ops4j.pax.useradmin.service.spi.BatchMemberProvider;
+import org.ops4j.pax.useradmin.service.spi.CredentialLookupProvider;
 import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
 import org.ops4j.pax.useradmin.service.spi.Decryptor;
 import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.ParentGroupProvider;
+import org.ops4j.pax.useradmin.service.spi.RoleDataLoader;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
@@ -47,7 +59,7 @@ import org.osgi.service.useradmin.User;
  */
 @SuppressWarnings("PackageAccessibility")
 public class StorageProviderImpl
-        implements StorageProvider, CredentialProvider {
+        implements StorageProvider, ParentGroupProvider, BatchMemberProvider, CredentialProvider, CredentialLookupProvider {
 
     private static final String DEFAULT_CREDENTIAL_NAME     = "default";
     private static final int    CREDENTIAL_VALUE_ARRAY_SIZE = 3;
@@ -57,6 +69,8 @@ public class StorageProviderImpl
 
     private static final String PATTERN_SPLIT_LIST_VALUE    = "[;,] *";
 
+    private static final long   LISTENER_RETRY_DELAY        = 10000;
+
     // configuration
 
     private String              m_accessUser                = "";
@@ -72,6 +86,7 @@ public class StorageProviderImpl
     private String              m_userIdAttr                = ConfigurationConstants.DEFAULT_USER_ATTR_ID;
     private String              m_userMandatoryAttr         = ConfigurationConstants.DEFAULT_USER_ATTR_MANDATORY;
     private final String        m_userCredentialAttr        = ConfigurationConstants.DEFAULT_USER_ATTR_CREDENTIAL;
+    private String              m_userLookupAttr            = null;
 
     private String              m_groupObjectclass          = ConfigurationConstants.DEFAULT_GROUP_OBJECTCLASS;
     private String              m_groupIdAttr               = ConfigurationConstants.DEFAULT_GROUP_ATTR_ID;
@@ -83,21 +98,54 @@ public class StorageProviderImpl
     private String              m_groupEntryMemberAttr      = ConfigurationConstants.DEFAULT_GROUP_ENTRY_ATTR_MEMBER;
 
     /**
-     * The connection which is used for access.
+     * The maximum number of reads sent at once over a connection.
+     */
+    private int                 m_pipeline                  = new Integer(ConfigurationConstants.DEFAULT_LDAP_PIPELINE);
+
+    /**
+     * The maximum number of members resolved by one search.
      */
-    private LDAPConnection      m_connection                = null;
+    private int                 m_memberChunk               = new Integer(ConfigurationConstants.DEFAULT_LDAP_MEMBER_CHUNK);
+
+    /**
+     * The pool of connections which are used for access.
+     */
+    private final ConnectionPool m_pool;
+
+    /**
+     * The cache of entries read from the server.
+     */
+    private final EntryCache     m_cache                     = new EntryCache();
+
+    /**
+     * The cache of role types by name.
+     */
+    private final RoleTypeCache  m_roleTypes                 = new RoleTypeCache();
+
+    /**
+     * Invalidates cached entries on external changes - null if not
+     * configured.
+     */
+    private ChangeListener       m_changeListener;
 
     /**
      * Constructor.
      * 
-     * @param connection
-     *            The LDAP connection to be used by this provider.
+     * @param pool
+     *            The LDAP connection pool to be used by this provider.
      */
-    protected StorageProviderImpl(LDAPConnection connection) {
-        if (null == connection) {
-            throw new IllegalArgumentException("Internal error: no LDAPConnection object specified when constructing the StorageProvider instance.");
+    protected StorageProviderImpl(ConnectionPool pool) {
+        if (null == pool) {
+            throw new IllegalArgumentException("Internal error: no ConnectionPool object specified when constructing the StorageProvider instance.");
+        }
+        m_pool = pool;
+        try {
+            // use the defaults until configured
+            configurePool(new HashMap<String, Object>());
+            configureCache(new HashMap<String, Object>());
+        } catch (ConfigurationException e) {
+            throw new IllegalStateException("Internal error: invalid default connection pool or cache configuration", e);
         }
-        m_connection = connection;
     }
 
     // StorageProvider interface implementation
@@ -105,44 +153,30 @@ public class StorageProviderImpl
     // - private methods
 
     /**
-     * Opens a connection to the LDAP server. Each public method implementation
-     * of this <code>StorageProvider</code> must open and close a connection to
-     * the LDAP server.
+     * Borrows a bound connection to the LDAP server from the pool. Each public
+     * method implementation of this <code>StorageProvider</code> must borrow a
+     * connection for its duration and return it afterwards.
      * 
-     * @see StorageProviderImpl#closeConnection()
+     * @see StorageProviderImpl#closeConnection(LDAPConnection)
      * @return An initialized connection.
      * @throws StorageException
-     *             If the connection could not be initialized.
+     *             If no connection could be borrowed.
      */
     private LDAPConnection openConnection() throws StorageException {
-        try {
-            if (m_connection.isConnected() || m_connection.isBound()) {
-                m_connection.disconnect();
-            }
-            m_connection.connect(m_host, new Integer(m_port));
-            m_connection.bind(LDAPConnection.LDAP_V3, m_accessUser, m_accessPassword.getBytes("UTF8"));
-            return m_connection;
-        } catch (LDAPException e) {
-            throw new StorageException("Error opening connection to LDAP server '" + m_host + ":" + m_port + "': " + e.getMessage() + " - "
-                    + e.getLDAPErrorMessage());
-        } catch (UnsupportedEncodingException e) {
-            throw new StorageException("Unknown encoding when opening connection: " + e.getMessage());
-        }
+        return m_pool.borrow();
     }
 
     /**
-     * Closes the current connection. Each public method implementation of this
-     * <code>StorageProvider</code> must open and close a connection to the LDAP
-     * server.
+     * Returns a borrowed connection to the pool. Each public method
+     * implementation of this <code>StorageProvider</code> must borrow a
+     * connection for its duration and return it afterwards.
      * 
      * @see StorageProviderImpl#openConnection()
+     * @param connection
+     *            The borrowed connection.
      */
-    private void closeConnection() throws StorageException {
-        try {
-            m_connection.disconnect();
-        } catch (LDAPException e) {
-            throw new StorageException("Error closing connection: " + e.getMessage());
-        }
+    private void closeConnection(LDAPConnection connection) {
+        m_pool.release(connection);
     }
 
     /**
@@ -268,7 +302,8 @@ public class StorageProviderImpl
     }
 
     /**
-     * Creates a Role for the given LDAP entry.
+     * Creates a Role for the given LDAP entry. Only the type and the name are
+     * read here - the attributes and credentials are parsed on first access.
      * 
      * @param factory
      *            The factory to use for object creation.
@@ -278,51 +313,90 @@ public class StorageProviderImpl
      * @throws StorageException
      *             if the entry does not map to a role.
      */
-    @SuppressWarnings(value = "unchecked")
     private Role createRole(UserAdminFactory factory, LDAPEntry entry) throws StorageException {
-        Map<String, Object> properties = new HashMap<String, Object>();
-        Map<String, Object> credentials = new HashMap<String, Object>();
         // first determine the type from the objectclasses
         int type = getRoleType(entry);
-        // then read additional attributes
-        for (LDAPAttribute attribute : (Iterable<LDAPAttribute>) entry.getAttributeSet()) {
-            /* if (ConfigurationConstants.ATTR_OBJECTCLASS.equals(attribute.getName())) {
-                // ignore: we've read that already
-                // System.err.println("------------- ignore: " + attribute.getName());
-            } else */
-            if ((type == Role.GROUP && m_groupCredentialAttr.equals(attribute.getName()))
-                    || (type == Role.USER && m_userCredentialAttr.equals(attribute.getName()))) {
-                for (String value : attribute.getStringValueArray()) {
-                    String[] data = value.split(PATTERN_SPLIT_LIST_VALUE);
-                    if (CREDENTIAL_VALUE_ARRAY_SIZE != data.length) {
-                        throw new StorageException("Wrong credential format '" + value + "' found for entry: " + entry);
-                    }
-                    // ignore default credential for groups
-                    if (type != Role.GROUP || !DEFAULT_CREDENTIAL_NAME.equals(data[1])) {
-                        credentials.put(data[1], ("char".equals(data[0]) ? data[2] : data[2].getBytes()));
-                    }
-                }
-            } else {
-                // TODO: how to get the attribute type (String or byte[])?
-                //
-                // For now we always read string values ... see Jira issue PAXUSERADMIN-XXX
-                //
-//                boolean isByteArray = false;
-//                properties.put(attribute.getName(), isByteArray ? attribute.getByteValue() : attribute.getStringValue());
-                properties.put(attribute.getName(), attribute.getStringValue());
-            }
-        }
         switch (type) {
             case Role.USER:
-                return factory.createUser(entry.getAttribute(m_userIdAttr).getStringValue(), properties, credentials.keySet());
+                return factory.createUser(entry.getAttribute(m_userIdAttr).getStringValue(), new EntryLoader(entry, type));
             case Role.GROUP:
-                return factory.createGroup(entry.getAttribute(m_groupIdAttr).getStringValue(), properties, credentials.keySet());
+                return factory.createGroup(entry.getAttribute(m_groupIdAttr).getStringValue(), new EntryLoader(entry, type));
             default:
                 // should never happen: getRoleType() throws on this
                 throw new StorageException("Unexpected role type '" + type + "' (0==Role) detected.");
         }
     }
 
+    /**
+     * Parses the attributes and credentials of an LDAP entry when the role
+     * data is first accessed.
+     */
+    private final class EntryLoader implements RoleDataLoader {
+
+        private final LDAPEntry     m_entry;
+
+        private final int           m_type;
+
+        private Map<String, Object> m_properties;
+
+        private Map<String, Object> m_credentials;
+
+        EntryLoader(LDAPEntry entry, int type) {
+            m_entry = entry;
+            m_type = type;
+        }
+
+        @Override
+        public synchronized Map<String, Object> loadProperties() throws StorageException {
+            parse();
+            return m_properties;
+        }
+
+        @Override
+        public synchronized Set<String> loadCredentialKeys() throws StorageException {
+            parse();
+            return m_credentials.keySet();
+        }
+
+        @SuppressWarnings(value = "unchecked")
+        private void parse() throws StorageException {
+            if (null != m_properties) {
+                return;
+            }
+            Map<String, Object> properties = new HashMap<String, Object>();
+            Map<String, Object> credentials = new HashMap<String, Object>();
+            for (LDAPAttribute attribute : (Iterable<LDAPAttribute>) m_entry.getAttributeSet()) {
+                /* if (ConfigurationConstants.ATTR_OBJECTCLASS.equals(attribute.getName())) {
+                    // ignore: we've read that already
+                    // System.err.println("------------- ignore: " + attribute.getName());
+                } else */
+                if ((m_type == Role.GROUP && m_groupCredentialAttr.equals(attribute.getName()))
+                        || (m_type == Role.USER && m_userCredentialAttr.equals(attribute.getName()))) {
+                    for (String value : attribute.getStringValueArray()) {
+                        String[] data = value.split(PATTERN_SPLIT_LIST_VALUE);
+                        if (CREDENTIAL_VALUE_ARRAY_SIZE != data.length) {
+                            throw new StorageException("Wrong credential format '" + value + "' found for entry: " + m_entry);
+                        }
+                        // ignore default credential for groups
+                        if (m_type != Role.GROUP || !DEFAULT_CREDENTIAL_NAME.equals(data[1])) {
+                            credentials.put(data[1], ("char".equals(data[0]) ? data[2] : data[2].getBytes()));
+                        }
+                    }
+                } else {
+                    // TODO: how to get the attribute type (String or byte[])?
+                    //
+                    // For now we always read string values ... see Jira issue PAXUSERADMIN-XXX
+                    //
+//                    boolean isByteArray = false;
+//                    properties.put(attribute.getName(), isByteArray ? attribute.getByteValue() : attribute.getStringValue());
+                    properties.put(attribute.getName(), attribute.getStringValue());
+                }
+            }
+            m_credentials = credentials;
+            m_properties = properties;
+        }
+    }
+
     /**
      * Returns the entry with the given DN if it exists, null otherwise.
      * 
@@ -345,6 +419,55 @@ public class StorageProviderImpl
         return entry;
     }
 
+    /**
+     * Returns the entry with the given DN if it exists, null otherwise - the
+     * entry is taken from the cache if possible and must not be modified.
+     * 
+     * @param connection
+     *            The LDAP connection to use.
+     * @return The LDAP Entry that represents the given DN - null otherwise.
+     * @throws LDAPException
+     *             if an error occurs when accessing the LDAP server
+     */
+    private LDAPEntry getCachedEntry(LDAPConnection connection, String dn) throws LDAPException {
+        return getCachedEntries(connection, Collections.singletonList(dn)).get(dn);
+    }
+
+    /**
+     * Returns the existing entries with the given DNs - the entries are taken
+     * from the cache if possible, all others are read at once. The returned
+     * entries must not be modified.
+     * 
+     * @param connection
+     *            The LDAP connection to use.
+     * @param dns
+     *            The DNs of the entries.
+     * @return DN -&gt; entry for all existing entries.
+     * @throws LDAPException
+     *             if an error occurs when accessing the LDAP server
+     */
+    private Map<String, LDAPEntry> getCachedEntries(LDAPConnection connection, Collection<String> dns) throws LDAPException {
+        Map<String, LDAPEntry> entries = new HashMap<String, LDAPEntry>();
+        List<String> uncachedDNs = new ArrayList<String>();
+        for (String dn : dns) {
+            LDAPEntry entry = m_cache.get(dn);
+            if (null == entry) {
+                uncachedDNs.add(dn);
+            } else if (EntryCache.ABSENT != entry) {
+                entries.put(dn, entry);
+            }
+        }
+        if (!uncachedDNs.isEmpty()) {
+            long generation = m_cache.getGeneration();
+            Map<String, LDAPEntry> readEntries = EntryReader.read(connection, uncachedDNs, m_pipeline);
+            for (String dn : uncachedDNs) {
+                m_cache.put(dn, readEntries.get(dn), generation);
+            }
+            entries.putAll(readEntries);
+        }
+        return entries;
+    }
+
     /**
      * Retrieves an LDAP entry based on the given name.
      * 
@@ -357,15 +480,194 @@ public class StorageProviderImpl
      *             if an error occurs when accessing the LDAP server
      */
     private LDAPEntry getEntryForName(LDAPConnection connection, String name) throws LDAPException {
-        // first check if a group exists ...
-        LDAPEntry entry = getEntry(connection, getGroupDN(name));
-        if (null == entry) {
-            // check for a user ...
-            entry = getEntry(connection, getUserDN(name));
+        String groupDN = getGroupDN(name);
+        String userDN = getUserDN(name);
+        // read the entry of a known type only ...
+        int type = m_roleTypes.get(name);
+        if (RoleTypeCache.ABSENT == type) {
+            return null;
+        }
+        if (RoleTypeCache.UNKNOWN != type) {
+            LDAPEntry entry = getCachedEntry(connection, Role.USER == type ? userDN : groupDN);
+            if (null != entry) {
+                return entry;
+            }
+            // ... or resolve the type again if the role was deleted by others
         }
+        // look for a group and a user at once ...
+        long generation = m_roleTypes.getGeneration();
+        Map<String, LDAPEntry> entries = getCachedEntries(connection, Arrays.asList(groupDN, userDN));
+        // ... a group takes precedence
+        LDAPEntry entry = entries.get(groupDN);
+        if (null != entry) {
+            m_roleTypes.put(name, Role.GROUP, generation);
+            return entry;
+        }
+        entry = entries.get(userDN);
+        m_roleTypes.put(name, null != entry ? Role.USER : RoleTypeCache.ABSENT, generation);
         return entry;
     }
 
+    /**
+     * Creates the roles for the given member DNs. Members below the user and
+     * group roots which are not cached are found by searches for chunks of
+     * names, any other member entries are read at once.
+     * 
+     * @param connection
+     *            The LDAP connection to use.
+     * @param factory
+     *            The factory to use for object creation.
+     * @param memberDNs
+     *            The DNs of the members.
+     * @return DN -&gt; role for all given DNs.
+     * @throws StorageException
+     *             if a member could not be retrieved.
+     */
+    private Map<String, Role> getMemberRoles(LDAPConnection connection, UserAdminFactory factory, Collection<String> memberDNs) throws LDAPException,
+            StorageException {
+        // lower case name -> DNs, which may differ in case only
+        Map<String, List<String>> userNames = new LinkedHashMap<String, List<String>>();
+        Map<String, List<String>> groupNames = new LinkedHashMap<String, List<String>>();
+        List<String> otherDNs = new ArrayList<String>();
+        for (String memberDN : new LinkedHashSet<String>(memberDNs)) {
+            String name = getChildName(memberDN, m_userIdAttr, m_rootUsersDN);
+            if (null != name) {
+                addName(userNames, name, memberDN);
+                continue;
+            }
+            name = getChildName(memberDN, m_groupIdAttr, m_rootGroupsDN);
+            if (null != name) {
+                addName(groupNames, name, memberDN);
+            } else {
+                otherDNs.add(memberDN);
+            }
+        }
+        Map<String, LDAPEntry> entries = getCachedEntries(connection, otherDNs);
+        searchChildren(connection, m_rootUsersDN, m_userIdAttr, userNames, entries);
+        searchChildren(connection, m_rootGroupsDN, m_groupIdAttr, groupNames, entries);
+        Map<String, Role> roles = new HashMap<String, Role>();
+        for (String memberDN : memberDNs) {
+            LDAPEntry memberEntry = entries.get(memberDN);
+            if (null == memberEntry) {
+                throw new StorageException("Internal error: group member '" + memberDN + "' could not be retrieved.");
+            }
+            if (!roles.containsKey(memberDN)) {
+                roles.put(memberDN, createRole(factory, memberEntry));
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * @return The DNs of the members listed in the given sub-group entry.
+     */
+    @SuppressWarnings(value = "unchecked")
+    private List<String> getMemberDNs(LDAPEntry subGroupEntry) {
+        List<String> memberDNs = new ArrayList<String>();
+        for (LDAPAttribute attribute : (Iterable<LDAPAttribute>) subGroupEntry.getAttributeSet()) {
+            if (m_groupEntryMemberAttr.equals(attribute.getName())) {
+                memberDNs.addAll(Arrays.asList(attribute.getStringValueArray()));
+            }
+        }
+        return memberDNs;
+    }
+
+    private static void addName(Map<String, List<String>> names, String name, String dn) {
+        String key = name.toLowerCase(Locale.ENGLISH);
+        List<String> dns = names.get(key);
+        if (null == dns) {
+            dns = new ArrayList<String>(1);
+            names.put(key, dns);
+        }
+        dns.add(dn);
+    }
+
+    /**
+     * Returns the name of a direct child of the given parent if the given DN
+     * is named by the given attribute.
+     * 
+     * @param dn
+     *            The DN to check.
+     * @param idAttr
+     *            The naming attribute of the children.
+     * @param parentDN
+     *            The parent DN.
+     * @return The value of the naming attribute - null if the DN is no such
+     *         child or uses escaped or multi-valued names.
+     */
+    static String getChildName(String dn, String idAttr, String parentDN) {
+        String prefix = idAttr + "=";
+        String suffix = "," + parentDN;
+        if (dn.length() <= prefix.length() + suffix.length() || !dn.regionMatches(true, 0, prefix, 0, prefix.length())
+                || !dn.regionMatches(true, dn.length() - suffix.length(), suffix, 0, suffix.length())) {
+            return null;
+        }
+        String name = dn.substring(prefix.length(), dn.length() - suffix.length());
+        for (char c : name.toCharArray()) {
+            if ('\\' == c || ',' == c || '+' == c || '=' == c || '"' == c) {
+                return null;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Finds the children of the given parent with the given names in the
+     * cache or using one search per chunk of uncached names.
+     * 
+     * @param connection
+     *            The LDAP connection to use.
+     * @param parentDN
+     *            The parent DN.
+     * @param idAttr
+     *            The naming attribute of the children.
+     * @param names
+     *            Lower case name -&gt; DNs of the children to find - cached
+     *            children are removed.
+     * @param entries
+     *            Receives DN -&gt; entry for each found child.
+     */
+    private void searchChildren(LDAPConnection connection, String parentDN, String idAttr, Map<String, List<String>> names,
+            Map<String, LDAPEntry> entries) throws LDAPException {
+        for (Iterator<List<String>> i = names.values().iterator(); i.hasNext();) {
+            List<String> dns = i.next();
+            for (Iterator<String> j = dns.iterator(); j.hasNext();) {
+                String dn = j.next();
+                LDAPEntry entry = m_cache.get(dn);
+                if (null != entry && EntryCache.ABSENT != entry) {
+                    entries.put(dn, entry);
+                    j.remove();
+                }
+            }
+            if (dns.isEmpty()) {
+                i.remove();
+            }
+        }
+        long generation = m_cache.getGeneration();
+        Iterator<String> toFind = names.keySet().iterator();
+        while (toFind.hasNext()) {
+            StringBuilder filter = new StringBuilder("(|");
+            for (int i = 0; i < Math.max(1, m_memberChunk) && toFind.hasNext(); i++) {
+                filter.append('(').append(idAttr).append('=').append(escapeFilterValue(toFind.next())).append(')');
+            }
+            filter.append(')');
+            LDAPSearchResults result = connection.search(parentDN, LDAPConnection.SCOPE_ONE, filter.toString(), null, false);
+            while (result.hasMore()) {
+                LDAPEntry entry = result.next();
+                LDAPAttribute idAttribute = entry.getAttribute(idAttr);
+                if (null != idAttribute) {
+                    List<String> dns = names.get(idAttribute.getStringValue().toLowerCase(Locale.ENGLISH));
+                    if (null != dns) {
+                        for (String dn : dns) {
+                            entries.put(dn, entry);
+                            m_cache.put(dn, entry, generation);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Creates an sub-group entry for a group. Sub-group entries are stored in
      * two entries below the group node: the 'basic' or 'required' group
@@ -422,37 +724,208 @@ public class StorageProviderImpl
      * @param group
      *            The group to fetch from
      */
-    @SuppressWarnings(value = "unchecked")
     private Collection<Role> getMembers(LDAPConnection connection, UserAdminFactory factory, Group group, String ext) throws LDAPException, StorageException {
         Collection<Role> roles = new ArrayList<Role>();
-        //
-        // get the group main entry
-        //
-        LDAPEntry groupEntry = getEntry(connection, getGroupDN(group.getName()));
-        if (null == groupEntry) {
-            throw new StorageException("Internal error: entry for group '" + group.getName() + "' could not be retrieved.");
+        String groupDN = getGroupDN(group.getName());
+        LDAPEntry groupEntry = m_cache.get(groupDN);
+        LDAPEntry subGroupEntry = m_cache.get(getGroupDN(group.getName(), ext));
+        if (null != groupEntry && EntryCache.ABSENT != groupEntry && null != subGroupEntry) {
+            if (EntryCache.ABSENT == subGroupEntry) {
+                subGroupEntry = null;
+            }
+        } else {
+            //
+            // get the group main entry and its sub-group entries with one search
+            //
+            subGroupEntry = null;
+            long generation = m_cache.getGeneration();
+            try {
+                // normalized DN -> entry, missing sub-groups are cached as absent
+                Map<String, LDAPEntry> groupEntries = new HashMap<String, LDAPEntry>();
+                groupEntries.put(EntryCache.normalize(getGroupDN(group.getName(), BASIC_EXT)), null);
+                groupEntries.put(EntryCache.normalize(getGroupDN(group.getName(), REQUIRED_EXT)), null);
+                String subGroupDN = EntryCache.normalize(getGroupDN(group.getName(), ext));
+                LDAPSearchResults result = connection.search(groupDN, LDAPConnection.SCOPE_SUB, "(objectClass=*)", null, false);
+                while (result.hasMore()) {
+                    LDAPEntry entry = result.next();
+                    String entryDN = EntryCache.normalize(entry.getDN());
+                    if (subGroupDN.equals(entryDN)) {
+                        subGroupEntry = entry;
+                    }
+                    groupEntries.put(entryDN, entry);
+                }
+                for (Map.Entry<String, LDAPEntry> entry : groupEntries.entrySet()) {
+                    m_cache.put(entry.getKey(), entry.getValue(), generation);
+                }
+            } catch (LDAPException e) {
+                if (e.getResultCode() != LDAPException.NO_SUCH_OBJECT) {
+                    throw e;
+                }
+                m_cache.put(groupDN, null, generation);
+                throw new StorageException("Internal error: entry for group '" + group.getName() + "' could not be retrieved.");
+            }
         }
         //
         // if there is a <group-name>.<ext> group return its members
         //
-        LDAPEntry subGroupEntry = getEntry(connection, getGroupDN(group.getName(), ext));
         if (null != subGroupEntry) {
-            for (LDAPAttribute attribute : (Iterable<LDAPAttribute>) subGroupEntry.getAttributeSet()) {
-                if (m_groupEntryMemberAttr.equals(attribute.getName())) {
-                    for (String userDN : attribute.getStringValueArray()) {
-                        LDAPEntry userEntry = getEntry(connection, userDN);
-                        if (null == userEntry) {
-                            throw new StorageException("Internal error: group member '" + userDN + "' could not be retrieved.");
-                        }
-                        Role role = createRole(factory, userEntry);
-                        roles.add(role);
-                    }
-                }
+            List<String> memberDNs = getMemberDNs(subGroupEntry);
+            Map<String, Role> memberRoles = getMemberRoles(connection, factory, memberDNs);
+            for (String memberDN : memberDNs) {
+                roles.add(memberRoles.get(memberDN));
             }
         }
         return roles;
     }
 
+    /**
+     * Retrieves the members of the specified sub-groups of several groups -
+     * sub-group entries not in the cache are found using one search per
+     * chunk of groups.
+     * 
+     * @param connection
+     *            The LDAP connection to use.
+     * @param factory
+     *            The factory to use for object creation.
+     * @param groups
+     *            The groups to fetch from.
+     * @param ext
+     *            The extension that identifies the sub-group.
+     */
+    private Map<String, Collection<Role>> getMembers(LDAPConnection connection, UserAdminFactory factory, Collection<Group> groups, String ext)
+            throws LDAPException, StorageException {
+        Map<String, Collection<Role>> members = new HashMap<String, Collection<Role>>();
+        if (groups.isEmpty()) {
+            return members;
+        }
+        // group name -> member DNs
+        Map<String, List<String>> memberDNs = new HashMap<String, List<String>>();
+        List<String> uncachedNames = new ArrayList<String>();
+        for (Group group : groups) {
+            LDAPEntry subGroupEntry = m_cache.get(getGroupDN(group.getName(), ext));
+            if (null == subGroupEntry) {
+                uncachedNames.add(group.getName());
+            } else if (EntryCache.ABSENT != subGroupEntry) {
+                memberDNs.put(group.getName(), getMemberDNs(subGroupEntry));
+            }
+        }
+        Iterator<String> toFind = uncachedNames.iterator();
+        while (toFind.hasNext()) {
+            StringBuilder filter = new StringBuilder("(|");
+            for (int i = 0; i < Math.max(1, m_memberChunk) && toFind.hasNext(); i++) {
+                filter.append('(').append(m_groupEntryIdAttr).append('=').append(escapeFilterValue(toFind.next() + ext)).append(')');
+            }
+            filter.append(')');
+            LDAPSearchResults result = connection.search(m_rootGroupsDN, LDAPConnection.SCOPE_SUB, filter.toString(), new String[] { m_groupEntryIdAttr,
+                    m_groupEntryMemberAttr }, false);
+            while (result.hasMore()) {
+                LDAPEntry subGroupEntry = result.next();
+                LDAPAttribute idAttribute = subGroupEntry.getAttribute(m_groupEntryIdAttr);
+                if (null == idAttribute || !idAttribute.getStringValue().endsWith(ext)) {
+                    continue;
+                }
+                String entryName = idAttribute.getStringValue();
+                memberDNs.put(entryName.substring(0, entryName.length() - ext.length()), getMemberDNs(subGroupEntry));
+            }
+        }
+        // members shared by several groups are read once
+        Set<String> allMemberDNs = new LinkedHashSet<String>();
+        for (List<String> groupMemberDNs : memberDNs.values()) {
+            allMemberDNs.addAll(groupMemberDNs);
+        }
+        Map<String, Role> roles = getMemberRoles(connection, factory, allMemberDNs);
+        for (Map.Entry<String, List<String>> groupMemberDNs : memberDNs.entrySet()) {
+            Collection<Role> groupMembers = new ArrayList<Role>();
+            for (String memberDN : groupMemberDNs.getValue()) {
+                groupMembers.add(roles.get(memberDN));
+            }
+            members.put(groupMemberDNs.getKey(), groupMembers);
+        }
+        return members;
+    }
+
+    /**
+     * Retrieves the groups which have the given role as member of the
+     * specified sub-group. The sub-group entries are searched for the DN of
+     * the role, so only the matching groups are read.
+     * 
+     * @param connection
+     *            The LDAP connection to use.
+     * @param factory
+     *            The factory to use for object creation.
+     * @param role
+     *            The role whose parent groups are retrieved.
+     * @param ext
+     *            The extension that identifies the sub-group.
+     */
+    private Collection<Group> getParentGroups(LDAPConnection connection, UserAdminFactory factory, Role role, String ext) throws LDAPException,
+            StorageException {
+        List<String> groupDNs = new ArrayList<String>();
+        String filterString = "(&(" + m_groupEntryIdAttr + "=*" + escapeFilterValue(ext) + ")(" + m_groupEntryMemberAttr + "="
+                + escapeFilterValue(getRoleDN(role)) + "))";
+        LDAPSearchResults result = connection.search(m_rootGroupsDN, LDAPConnection.SCOPE_SUB, filterString, new String[] { m_groupEntryIdAttr }, false);
+        while (result.hasMore()) {
+            LDAPAttribute idAttribute = result.next().getAttribute(m_groupEntryIdAttr);
+            if (null == idAttribute) {
+                continue;
+            }
+            String entryName = idAttribute.getStringValue();
+            if (null == entryName || !entryName.endsWith(ext)) {
+                continue;
+            }
+            groupDNs.add(getGroupDN(entryName.substring(0, entryName.length() - ext.length())));
+        }
+        // read the group entries at once
+        Map<String, LDAPEntry> entries = getCachedEntries(connection, groupDNs);
+        Collection<Group> groups = new ArrayList<Group>();
+        for (String groupDN : groupDNs) {
+            LDAPEntry groupEntry = entries.get(groupDN);
+            if (null == groupEntry) {
+                throw new StorageException("Internal error: entry for group '" + groupDN + "' could not be retrieved.");
+            }
+            Role group = createRole(factory, groupEntry);
+            if (Role.GROUP == group.getType()) {
+                groups.add((Group) group);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Escapes the special characters of an LDAP search filter value as
+     * specified by RFC 4515.
+     * 
+     * @param value
+     *            The value to escape.
+     * @return The escaped value.
+     */
+    private static String escapeFilterValue(String value) {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    builder.append("\\5c");
+                    break;
+                case '*':
+                    builder.append("\\2a");
+                    break;
+                case '(':
+                    builder.append("\\28");
+                    break;
+                case ')':
+                    builder.append("\\29");
+                    break;
+                case '\0':
+                    builder.append("\\00");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
     @SuppressWarnings(value = "unchecked")
     private boolean addMember(LDAPConnection connection, Group group, String ext, Role member) throws LDAPException, StorageException {
         // get the group main entry
@@ -560,11 +1033,15 @@ public class StorageProviderImpl
         //
         try {
             connection.add(entry);
+            m_roleTypes.created(name, Role.USER);
             return factory.createUser(name, properties, null);
         } catch (LDAPException e) {
+            m_roleTypes.remove(name);
             throw new StorageException("Error creating user '" + name + "' " + entry + ": " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            // the user may be cached as absent
+            m_cache.invalidate(entry.getDN());
+            closeConnection(connection);
         }
     }
 
@@ -594,13 +1071,17 @@ public class StorageProviderImpl
         LDAPConnection connection = openConnection();
         try {
             connection.add(entry);
+            m_roleTypes.created(name, Role.GROUP);
             Map<String, Object> properties = new HashMap<String, Object>();
             properties.put(m_groupIdAttr, name);
             return factory.createGroup(name, properties, null);
         } catch (LDAPException e) {
+            m_roleTypes.remove(name);
             throw new StorageException("Error creating group '" + name + "' " + entry + ": " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            // the group may be cached as absent
+            m_cache.invalidate(entry.getDN());
+            closeConnection(connection);
         }
     }
 
@@ -615,7 +1096,10 @@ public class StorageProviderImpl
         } catch (LDAPException e) {
             throw new StorageException("Error deleting role with name '" + role.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            // a user and a group may have the same name: resolve the type again
+            m_roleTypes.remove(role.getName());
+            m_cache.invalidate(dn);
+            closeConnection(connection);
         }
     }
 
@@ -627,7 +1111,7 @@ public class StorageProviderImpl
         } catch (LDAPException e) {
             throw new StorageException("Error retrieving role with name '" + group.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            closeConnection(connection);
         }
     }
 
@@ -639,7 +1123,58 @@ public class StorageProviderImpl
         } catch (LDAPException e) {
             throw new StorageException("Error retrieving role with name '" + group.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            closeConnection(connection);
+        }
+    }
+
+    @Override
+    public Map<String, Collection<Role>> getMembers(UserAdminFactory factory, Collection<Group> groups) throws StorageException {
+        LDAPConnection connection = openConnection();
+        try {
+            return getMembers(connection, factory, groups, BASIC_EXT);
+        } catch (LDAPException e) {
+            throw new StorageException("Error retrieving members of " + groups.size() + " groups: " + e.getMessage() + " / " + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    @Override
+    public Map<String, Collection<Role>> getRequiredMembers(UserAdminFactory factory, Collection<Group> groups) throws StorageException {
+        LDAPConnection connection = openConnection();
+        try {
+            return getMembers(connection, factory, groups, REQUIRED_EXT);
+        } catch (LDAPException e) {
+            throw new StorageException("Error retrieving required members of " + groups.size() + " groups: " + e.getMessage() + " / "
+                    + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    @Override
+    public Collection<Group> getParentGroups(UserAdminFactory factory, Role role) throws StorageException {
+        LDAPConnection connection = openConnection();
+        try {
+            return getParentGroups(connection, factory, role, BASIC_EXT);
+        } catch (LDAPException e) {
+            throw new StorageException("Error retrieving parent groups of role with name '" + role.getName() + "': " + e.getMessage() + " / "
+                    + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    @Override
+    public Collection<Group> getRequiredParentGroups(UserAdminFactory factory, Role role) throws StorageException {
+        LDAPConnection connection = openConnection();
+        try {
+            return getParentGroups(connection, factory, role, REQUIRED_EXT);
+        } catch (LDAPException e) {
+            throw new StorageException("Error retrieving required parent groups of role with name '" + role.getName() + "': " + e.getMessage() + " / "
+                    + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection(connection);
         }
     }
 
@@ -653,7 +1188,9 @@ public class StorageProviderImpl
             throw new StorageException("Error adding member role with name '" + role.getName() + "' to group '" + group.getName() + "': " + e.getMessage()
                     + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            // invalidates the sub-group entries, too
+            m_cache.invalidate(getGroupDN(group.getName()));
+            closeConnection(connection);
         }
     }
 
@@ -666,7 +1203,8 @@ public class StorageProviderImpl
             throw new StorageException("Error adding required member role with name '" + role.getName() + "' to group '" + group.getName() + "': "
                     + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            m_cache.invalidate(getGroupDN(group.getName()));
+            closeConnection(connection);
         }
     }
 
@@ -689,7 +1227,8 @@ public class StorageProviderImpl
         } catch (LDAPException e) {
             throw new StorageException("Error deleting role with name '" + group.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            m_cache.invalidate(getGroupDN(group.getName()));
+            closeConnection(connection);
         }
     }
 
@@ -704,9 +1243,9 @@ public class StorageProviderImpl
         if (Role.GROUP == role.getType() && m_groupEntryIdAttr.equals(key)) {
             throw new StorageException("Cannot modify ID attribute '" + m_groupEntryIdAttr + "' - recreate the group instead.");
         }
+        String dn = getRoleDN(role);
         LDAPConnection connection = openConnection();
         try {
-            String dn = getRoleDN(role);
             if (value instanceof String) {
                 connection.modify(dn, new LDAPModification(LDAPModification.REPLACE, new LDAPAttribute(key, (String) value)));
             } else if (value instanceof byte[]) {
@@ -721,7 +1260,8 @@ public class StorageProviderImpl
             throw new StorageException("Error setting attribute '" + key + "' = '" + value + "' for role '" + role.getName() + "': " + e.getMessage() + " / "
                     + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            m_cache.invalidate(dn);
+            closeConnection(connection);
         }
     }
 
@@ -744,16 +1284,17 @@ public class StorageProviderImpl
                 throw new StorageException("Cannot remove mandatory attribute '" + key + "'.");
             }
         }
+        String dn = getRoleDN(role);
         LDAPConnection connection = openConnection();
         try {
-            String dn = getRoleDN(role);
             LDAPModification modification = new LDAPModification(LDAPModification.DELETE, new LDAPAttribute(key, ""));
             connection.modify(dn, modification);
         } catch (LDAPException e) {
             throw new StorageException("Error deleting attribute '" + key + "'of role '" + role.getName() + "': " + e.getMessage() + " / "
                     + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            m_cache.invalidate(dn);
+            closeConnection(connection);
         }
     }
 
@@ -765,9 +1306,10 @@ public class StorageProviderImpl
 
     @Override
     public void setUserCredential(Encryptor encryptor, User user, String key, Object value) throws StorageException {
+        String dn = getRoleDN(user);
         LDAPConnection connection = openConnection();
         try {
-            String dn = getRoleDN(user);
+            // read uncached: the entry is modified below
             LDAPEntry entry = getEntry(connection, dn);
             if (null == entry) {
                 throw new StorageException("Could not find user '" + user.getName() + "'");
@@ -797,15 +1339,17 @@ public class StorageProviderImpl
         } catch (LDAPException e) {
             throw new StorageException("Error setting credential for user '" + user.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            m_cache.invalidate(dn);
+            closeConnection(connection);
         }
     }
 
     @Override
     public void removeUserCredential(User user, String key) throws StorageException {
+        String dn = getRoleDN(user);
         LDAPConnection connection = openConnection();
         try {
-            String dn = getRoleDN(user);
+            // read uncached: the entry is modified below
             LDAPEntry entry = getEntry(connection, dn);
             if (null == entry) {
                 throw new StorageException("Could not find user '" + user.getName() + "'");
@@ -824,6 +1368,7 @@ public class StorageProviderImpl
                         attribute.removeValue(attrValue);
                         LDAPModification modification = new LDAPModification(LDAPModification.REPLACE, attribute);
                         connection.modify(dn, modification);
+                        removeCredentialLookup(connection, entry, key);
                         return;
                     }
                 }
@@ -831,7 +1376,8 @@ public class StorageProviderImpl
         } catch (LDAPException e) {
             throw new StorageException("Error setting credential for user '" + user.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            m_cache.invalidate(dn);
+            closeConnection(connection);
         }
     }
 
@@ -849,7 +1395,7 @@ public class StorageProviderImpl
         } catch (LDAPException e) {
             throw new StorageException("Error finding role with name '" + name + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            closeConnection(connection);
         }
     }
 
@@ -881,7 +1427,7 @@ public class StorageProviderImpl
         } catch (LDAPException e) {
             throw new StorageException("Error finding user with attribute '" + key + "=" + value + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            closeConnection(connection);
         }
     }
 
@@ -898,7 +1444,7 @@ public class StorageProviderImpl
         } catch (LDAPException e) {
             throw new StorageException("Error finding roles with filter '" + filterString + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            closeConnection(connection);
         }
     }
 
@@ -920,7 +1466,7 @@ public class StorageProviderImpl
         LDAPConnection connection = openConnection();
         try {
             String dn = getRoleDN(user);
-            LDAPEntry entry = getEntry(connection, dn);
+            LDAPEntry entry = getCachedEntry(connection, dn);
             if (null == entry) {
                 throw new StorageException("Could not find user '" + user.getName() + "'");
             }
@@ -944,7 +1490,7 @@ public class StorageProviderImpl
         } catch (LDAPException e) {
             throw new StorageException("Error getting credential for user '" + user.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
         } finally {
-            closeConnection();
+            closeConnection(connection);
         }
         return null;
     }
@@ -954,6 +1500,79 @@ public class StorageProviderImpl
         return value.equals(getUserCredential(null, user, key));
     }
 
+    /**
+     * Creates the value of the lookup attribute for the given credential key
+     * and lookup.
+     */
+    private static String createLookupValueString(String key, byte[] lookup) {
+        return key + ";" + UserAdminTools.bytesToHex(lookup);
+    }
+
+    /**
+     * Removes the lookup value of the given credential key from the given
+     * entry - if lookups are configured.
+     */
+    private void removeCredentialLookup(LDAPConnection connection, LDAPEntry entry, String key) throws LDAPException {
+        if (null == m_userLookupAttr) {
+            return;
+        }
+        LDAPAttribute attribute = entry.getAttribute(m_userLookupAttr);
+        if (null != attribute) {
+            for (String attrValue : attribute.getStringValueArray()) {
+                if (attrValue.startsWith(key + ";")) {
+                    connection.modify(entry.getDN(), new LDAPModification(LDAPModification.DELETE, new LDAPAttribute(m_userLookupAttr, attrValue)));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setCredentialLookup(User user, String key, byte[] lookup) throws StorageException {
+        if (null == m_userLookupAttr) {
+            throw new StorageException("Credential lookups need the attribute configured in " + ConfigurationConstants.PROP_USER_ATTR_LOOKUP);
+        }
+        String dn = getUserDN(user.getName());
+        LDAPConnection connection = openConnection();
+        try {
+            LDAPEntry entry = getEntry(connection, dn);
+            if (null == entry) {
+                throw new StorageException("Could not find user '" + user.getName() + "'");
+            }
+            removeCredentialLookup(connection, entry, key);
+            LDAPModification modification = new LDAPModification(LDAPModification.ADD, new LDAPAttribute(m_userLookupAttr, createLookupValueString(key, lookup)));
+            connection.modify(entry.getDN(), modification);
+        } catch (LDAPException e) {
+            throw new StorageException("Error setting credential lookup for user '" + user.getName() + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
+        } finally {
+            m_cache.invalidate(dn);
+            closeConnection(connection);
+        }
+    }
+
+    @Override
+    public String findCredentialLookup(String key, byte[] lookup) throws StorageException {
+        if (null == m_userLookupAttr) {
+            throw new StorageException("Credential lookups need the attribute configured in " + ConfigurationConstants.PROP_USER_ATTR_LOOKUP);
+        }
+        LDAPConnection connection = openConnection();
+        try {
+            // an equality match on the (indexed) lookup attribute
+            String filterString = "(" + m_userLookupAttr + "=" + escapeFilterValue(createLookupValueString(key, lookup)) + ")";
+            LDAPSearchResults result = connection.search(m_rootUsersDN, LDAPConnection.SCOPE_ONE, filterString, new String[] { m_userIdAttr }, false);
+            while (result.hasMore()) {
+                LDAPAttribute idAttribute = result.next().getAttribute(m_userIdAttr);
+                if (null != idAttribute) {
+                    return idAttribute.getStringValue();
+                }
+            }
+            return null;
+        } catch (LDAPException e) {
+            throw new StorageException("Error finding credential lookup for key '" + key + "': " + e.getMessage() + " / " + e.getLDAPErrorMessage());
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
     @Override
     public CredentialProvider getCredentialProvider() {
         return this;
@@ -972,6 +1591,8 @@ public class StorageProviderImpl
         m_host = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_LDAP_SERVER_URL, ConfigurationConstants.DEFAULT_LDAP_SERVER_URL);
         m_port = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_LDAP_SERVER_PORT, ConfigurationConstants.DEFAULT_LDAP_SERVER_PORT);
         //
+        configurePool(properties);
+        //
         m_rootDN = UserAdminTools.getMandatoryProperty(properties, ConfigurationConstants.PROP_LDAP_ROOT_DN);
         m_rootUsersDN = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_LDAP_ROOT_USERS, ConfigurationConstants.DEFAULT_LDAP_ROOT_USERS)
                 + "," + m_rootDN;
@@ -981,6 +1602,7 @@ public class StorageProviderImpl
         m_userObjectclass = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_USER_OBJECTCLASS, ConfigurationConstants.DEFAULT_USER_OBJECTCLASS);
         m_userIdAttr = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_USER_ATTR_ID, ConfigurationConstants.DEFAULT_USER_ATTR_ID);
         m_userMandatoryAttr = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_USER_ATTR_MANDATORY, ConfigurationConstants.DEFAULT_USER_ATTR_MANDATORY);
+        m_userLookupAttr = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_USER_ATTR_LOOKUP, null);
 
         m_groupObjectclass = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_GROUP_OBJECTCLASS, ConfigurationConstants.DEFAULT_GROUP_OBJECTCLASS);
         m_groupIdAttr = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_GROUP_ATTR_ID, ConfigurationConstants.DEFAULT_GROUP_ATTR_ID);
@@ -990,6 +1612,68 @@ public class StorageProviderImpl
         m_groupEntryObjectclass = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_GROUP_ENTRY_OBJECTCLASS, ConfigurationConstants.DEFAULT_GROUP_ENTRY_OBJECTCLASS);
         m_groupEntryIdAttr = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_GROUP_ENTRY_ATTR_ID, ConfigurationConstants.DEFAULT_GROUP_ENTRY_ATTR_ID);
         m_groupEntryMemberAttr = UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_GROUP_ENTRY_ATTR_MEMBER, ConfigurationConstants.DEFAULT_GROUP_ENTRY_ATTR_MEMBER);
+        //
+        configureCache(properties);
+    }
+
+    /**
+     * @return The current counters of the entry cache.
+     */
+    public EntryCache.Statistics getCacheStatistics() {
+        return m_cache.getStatistics();
+    }
+
+    /**
+     * Stops listening for changes - called when the bundle is stopped.
+     */
+    void close() {
+        setChangeListener(null);
+    }
 
+    private void configurePool(Map<String, ?> properties) throws ConfigurationException {
+        int port = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_SERVER_PORT, m_port);
+        int minSize = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_POOL_MIN, ConfigurationConstants.DEFAULT_LDAP_POOL_MIN);
+        int maxSize = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_POOL_MAX, ConfigurationConstants.DEFAULT_LDAP_POOL_MAX);
+        int idleTimeout = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_POOL_IDLE_TIMEOUT, ConfigurationConstants.DEFAULT_LDAP_POOL_IDLE_TIMEOUT);
+        int validation = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_POOL_VALIDATION, ConfigurationConstants.DEFAULT_LDAP_POOL_VALIDATION);
+        int borrowTimeout = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_POOL_MAX_WAIT,
+                                               ConfigurationConstants.DEFAULT_LDAP_POOL_MAX_WAIT);
+        m_memberChunk = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_MEMBER_CHUNK, ConfigurationConstants.DEFAULT_LDAP_MEMBER_CHUNK);
+        m_pipeline = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_PIPELINE, ConfigurationConstants.DEFAULT_LDAP_PIPELINE);
+        m_pool.configure(m_host, port, m_accessUser, m_accessPassword, minSize, maxSize, TimeUnit.SECONDS.toMillis(idleTimeout),
+                         TimeUnit.SECONDS.toMillis(validation), borrowTimeout);
+    }
+
+    private void configureCache(Map<String, ?> properties) throws ConfigurationException {
+        int size = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_CACHE_SIZE, ConfigurationConstants.DEFAULT_LDAP_CACHE_SIZE);
+        int timeToLive = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_CACHE_TTL, ConfigurationConstants.DEFAULT_LDAP_CACHE_TTL);
+        boolean listen = Boolean.parseBoolean(UserAdminTools.getOptionalProperty(properties, ConfigurationConstants.PROP_LDAP_CACHE_LISTEN,
+                                                                                  ConfigurationConstants.DEFAULT_LDAP_CACHE_LISTEN));
+        int typeCacheSize = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_TYPE_CACHE_SIZE, ConfigurationConstants.DEFAULT_LDAP_TYPE_CACHE_SIZE);
+        int typeTimeToLive = getIntegerProperty(properties, ConfigurationConstants.PROP_LDAP_TYPE_CACHE_TTL, ConfigurationConstants.DEFAULT_LDAP_TYPE_CACHE_TTL);
+        // entries and types cached with the previous configuration are dropped
+        m_cache.configure(size, TimeUnit.SECONDS.toMillis(timeToLive));
+        m_roleTypes.configure(typeCacheSize, TimeUnit.SECONDS.toMillis(typeTimeToLive));
+        boolean cached = m_cache.isEnabled() || typeCacheSize > 0;
+        setChangeListener(listen && cached ? new ChangeListener(m_pool, m_cache, m_roleTypes, m_rootDN, LISTENER_RETRY_DELAY) : null);
+    }
+
+    private synchronized void setChangeListener(ChangeListener listener) {
+        if (null != m_changeListener) {
+            m_changeListener.stop();
+        }
+        m_changeListener = listener;
+        if (null != listener) {
+            listener.start();
+        }
+    }
+
+    private static int getIntegerProperty(Map<String, ?> properties, String name, String defaultValue) throws ConfigurationException {
+        String value = UserAdminTools.getOptionalProperty(properties, name, defaultValue);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(name, "not a number: '" + value + "'", e);
+        }
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+
+/**
+ * Testing the ConnectionPool class.
+ */
+public class ConnectionPoolTest {
+
+    /**
+     * A connection which only records what was done with it.
+     */
+    private static final class StubConnection extends LDAPConnection {
+
+        private final boolean m_alive;
+
+        private int           m_binds;
+
+        private boolean       m_connected;
+
+        StubConnection(boolean alive) {
+            m_alive = alive;
+        }
+
+        @Override
+        public void connect(String host, int port) throws LDAPException {
+            Assert.assertEquals("Wrong host", "localhost", host);
+            Assert.assertEquals("Wrong port", 389, port);
+            m_connected = true;
+        }
+
+        @Override
+        public void bind(int version, String dn, byte[] password) throws LDAPException {
+            Assert.assertEquals("Wrong DN", "cn=admin", dn);
+            Assert.assertTrue("Wrong password", Arrays.equals("secret".getBytes(), password));
+            m_binds++;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return m_connected;
+        }
+
+        @Override
+        public boolean isConnectionAlive() {
+            return m_alive;
+        }
+
+        @Override
+        public void disconnect() throws LDAPException {
+            m_connected = false;
+        }
+    }
+
+    /**
+     * Creates stub connections which are alive unless told otherwise.
+     */
+    private static final class MockedPool extends ConnectionPool {
+
+        private volatile boolean m_alive = true;
+
+        @Override
+        protected LDAPConnection createConnection() {
+            return new StubConnection(m_alive);
+        }
+    }
+
+    private static MockedPool createPool(int minSize, int maxSize, long idleTimeout, long validation) {
+        MockedPool pool = new MockedPool();
+        pool.configure("localhost", 389, "cn=admin", "secret", minSize, maxSize, idleTimeout, validation, 50);
+        return pool;
+    }
+
+    @Test
+    public void connectionIsReused() throws Exception {
+        MockedPool pool = createPool(1, 2, 60000, 60000);
+        LDAPConnection connection = pool.borrow();
+        pool.release(connection);
+        Assert.assertSame("Connection not reused", connection, pool.borrow());
+        Assert.assertNotSame("Borrowed connection shared", connection, pool.borrow());
+        Assert.assertEquals("Wrong number of connections", 2, pool.getStatistics().getCreatedCount());
+        Assert.assertEquals("Wrong number of borrows", 3, pool.getStatistics().getBorrowCount());
+        Assert.assertEquals("Connection bound again", 1, ((StubConnection) connection).m_binds);
+    }
+
+    @Test
+    public void exhaustedPoolTimesOut() throws Exception {
+        MockedPool pool = createPool(1, 1, 60000, 60000);
+        pool.borrow();
+        try {
+            pool.borrow();
+            Assert.fail("Connection borrowed from exhausted pool");
+        } catch (StorageException e) {
+            // expected
+        }
+        Assert.assertEquals("Timeout not counted", 1, pool.getStatistics().getTimeoutCount());
+    }
+
+    @Test
+    public void waitingBorrowerGetsReleasedConnection() throws Exception {
+        final MockedPool pool = createPool(1, 1, 60000, 60000);
+        pool.configure("localhost", 389, "cn=admin", "secret", 1, 1, 60000, 60000, 5000);
+        final LDAPConnection connection = pool.borrow();
+        Thread releaser = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                pool.release(connection);
+            }
+        };
+        releaser.start();
+        Assert.assertSame("Released connection not handed over", connection, pool.borrow());
+        releaser.join();
+        Assert.assertEquals("Wait not counted", 1, pool.getStatistics().getWaitCount());
+    }
+
+    @Test
+    public void deadConnectionIsReplaced() throws Exception {
+        MockedPool pool = createPool(1, 1, 60000, 0);
+        pool.m_alive = false;
+        LDAPConnection connection = pool.borrow();
+        pool.release(connection);
+        pool.m_alive = true;
+        Assert.assertNotSame("Dead connection reused", connection, pool.borrow());
+        Assert.assertEquals("Invalid connection not counted", 1, pool.getStatistics().getInvalidCount());
+        Assert.assertFalse("Dead connection not closed", connection.isConnected());
+    }
+
+    @Test
+    public void idleConnectionsAreEvictedDownToMinimum() throws Exception {
+        MockedPool pool = createPool(1, 3, 0, 60000);
+        LDAPConnection first = pool.borrow();
+        LDAPConnection second = pool.borrow();
+        LDAPConnection third = pool.borrow();
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        Assert.assertEquals("Idle connections not evicted", 1, pool.getStatistics().getOpenCount());
+        Assert.assertEquals("Eviction not counted", 2, pool.getStatistics().getEvictedCount());
+        Assert.assertTrue("Most recently used connection evicted", third.isConnected());
+        Assert.assertFalse("Evicted connection not closed", first.isConnected());
+    }
+
+    @Test
+    public void maintenanceEvictsIdleConnections() throws Exception {
+        MockedPool pool = createPool(0, 2, 20, 60000);
+        LDAPConnection connection = pool.borrow();
+        pool.release(connection);
+        Assert.assertEquals("Connection evicted on release", 1, pool.getStatistics().getOpenCount());
+        Thread.sleep(50);
+        pool.maintain();
+        Assert.assertEquals("Idle connection not evicted", 0, pool.getStatistics().getOpenCount());
+        Assert.assertEquals("Eviction not counted", 1, pool.getStatistics().getEvictedCount());
+        Assert.assertFalse("Evicted connection not closed", connection.isConnected());
+    }
+
+    @Test
+    public void maintenanceDropsDeadConnections() throws Exception {
+        MockedPool pool = createPool(1, 2, 60000, 0);
+        pool.m_alive = false;
+        LDAPConnection dead = pool.borrow();
+        pool.m_alive = true;
+        LDAPConnection alive = pool.borrow();
+        pool.release(dead);
+        pool.release(alive);
+        pool.maintain();
+        Assert.assertEquals("Dead connection kept", 1, pool.getStatistics().getOpenCount());
+        Assert.assertEquals("Invalid connection not counted", 1, pool.getStatistics().getInvalidCount());
+        Assert.assertFalse("Dead connection not closed", dead.isConnected());
+        Assert.assertSame("Live connection not kept", alive, pool.borrow());
+    }
+
+    @Test
+    public void reconfigurationClosesIdleConnections() throws Exception {
+        MockedPool pool = createPool(1, 2, 60000, 60000);
+        LDAPConnection connection = pool.borrow();
+        pool.release(connection);
+        pool.configure("localhost", 389, "cn=admin", "secret", 1, 2, 60000, 60000, 50);
+        Assert.assertEquals("Idle connection kept", 0, pool.getStatistics().getOpenCount());
+        Assert.assertFalse("Idle connection not closed", connection.isConnected());
+        Assert.assertNotSame("Outdated connection reused", connection, pool.borrow());
+    }
+}
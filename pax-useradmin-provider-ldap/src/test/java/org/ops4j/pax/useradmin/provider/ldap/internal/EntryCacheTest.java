@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPControl;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchResults;
+
+/**
+ * Testing the EntryCache and ChangeListener classes.
+ */
+public class EntryCacheTest {
+
+    private static final String USER  = "uid=a,ou=people,dc=test";
+
+    private static final String GROUP = "ou=g,ou=groups,dc=test";
+
+    /**
+     * Answers the persistent search with prepared results.
+     */
+    private static final class StubConnection extends LDAPConnection {
+
+        private final LDAPSearchResults m_results;
+
+        private LDAPSearchConstraints   m_constraints;
+
+        StubConnection(LDAPSearchResults results) {
+            m_results = results;
+        }
+
+        @Override
+        public void connect(String host, int port) throws LDAPException {
+        }
+
+        @Override
+        public void bind(int version, String dn, byte[] password) throws LDAPException {
+        }
+
+        @Override
+        public void disconnect() throws LDAPException {
+        }
+
+        @Override
+        public LDAPSearchResults search(String base, int scope, String filter, String[] attrs, boolean typesOnly, LDAPSearchConstraints constraints)
+                throws LDAPException {
+            Assert.assertEquals("Wrong base", "dc=test", base);
+            m_constraints = constraints;
+            return m_results;
+        }
+    }
+
+    private static EntryCache createCache(int maxSize, long timeToLiveMillis) {
+        EntryCache cache = new EntryCache();
+        cache.configure(maxSize, timeToLiveMillis);
+        return cache;
+    }
+
+    @Test
+    public void entriesAreCachedUntilTheyExpire() throws Exception {
+        EntryCache cache = createCache(10, 50);
+        LDAPEntry entry = new LDAPEntry(USER);
+        Assert.assertNull("Entry cached", cache.get(USER));
+        cache.put(USER, entry, cache.getGeneration());
+        cache.put(GROUP, null, cache.getGeneration());
+        Assert.assertSame("Entry not cached", entry, cache.get("UID=a, ou=people, dc=test"));
+        Assert.assertSame("Missing entry not cached", EntryCache.ABSENT, cache.get(GROUP));
+        Thread.sleep(100);
+        Assert.assertNull("Entry not expired", cache.get(USER));
+        EntryCache.Statistics statistics = cache.getStatistics();
+        Assert.assertEquals("Wrong number of hits", 2, statistics.getHitCount());
+        Assert.assertEquals("Wrong number of misses", 2, statistics.getMissCount());
+        Assert.assertEquals("Wrong number of expirations", 1, statistics.getExpirationCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() {
+        EntryCache cache = createCache(2, 60000);
+        cache.put("uid=a", new LDAPEntry("uid=a"), cache.getGeneration());
+        cache.put("uid=b", new LDAPEntry("uid=b"), cache.getGeneration());
+        Assert.assertNotNull("Entry not cached", cache.get("uid=a"));
+        cache.put("uid=c", new LDAPEntry("uid=c"), cache.getGeneration());
+        Assert.assertNotNull("Recently used entry evicted", cache.get("uid=a"));
+        Assert.assertNull("Least recently used entry kept", cache.get("uid=b"));
+        Assert.assertEquals("Wrong number of evictions", 1, cache.getStatistics().getEvictionCount());
+        Assert.assertEquals("Wrong size", 2, cache.getStatistics().getSize());
+    }
+
+    @Test
+    public void invalidationDropsSubtreeAndEarlierReads() {
+        EntryCache cache = createCache(10, 60000);
+        long generation = cache.getGeneration();
+        cache.put(GROUP, new LDAPEntry(GROUP), generation);
+        cache.put("cn=g.basic," + GROUP, new LDAPEntry("cn=g.basic," + GROUP), generation);
+        cache.put(USER, new LDAPEntry(USER), generation);
+        cache.invalidate("OU=g,ou=groups,dc=test");
+        Assert.assertNull("Group kept", cache.get(GROUP));
+        Assert.assertNull("Sub-group kept", cache.get("cn=g.basic," + GROUP));
+        Assert.assertNotNull("Other entry dropped", cache.get(USER));
+        Assert.assertEquals("Wrong number of invalidations", 2, cache.getStatistics().getInvalidationCount());
+        // read before the invalidation
+        cache.put(GROUP, new LDAPEntry(GROUP), generation);
+        Assert.assertNull("Outdated entry cached", cache.get(GROUP));
+    }
+
+    @Test
+    public void nothingIsCachedWithoutTimeToLive() {
+        EntryCache cache = createCache(10, 0);
+        cache.put(USER, new LDAPEntry(USER), cache.getGeneration());
+        Assert.assertNull("Entry cached", cache.get(USER));
+    }
+
+    @Test
+    public void changedEntriesAreInvalidated() throws Exception {
+        final EntryCache cache = createCache(10, 60000);
+        final RoleTypeCache roleTypes = new RoleTypeCache();
+        roleTypes.configure(10, 60000);
+        final CountDownLatch changed = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        LDAPSearchResults results = EasyMock.createMock(LDAPSearchResults.class);
+        EasyMock.expect(results.hasMore()).andReturn(true);
+        EasyMock.expect(results.next()).andAnswer(new IAnswer<LDAPEntry>() {
+
+            @Override
+            public LDAPEntry answer() throws Throwable {
+                // cached while the search is running
+                cache.put(USER, new LDAPEntry(USER), cache.getGeneration());
+                cache.put(GROUP, new LDAPEntry(GROUP), cache.getGeneration());
+                roleTypes.put("b", RoleTypeCache.ABSENT, roleTypes.getGeneration());
+                return new LDAPEntry("UID=a,ou=people,dc=test");
+            }
+        });
+        EasyMock.expect(results.getResponseControls()).andReturn(null);
+        EasyMock.expect(results.hasMore()).andAnswer(new IAnswer<Boolean>() {
+
+            @Override
+            public Boolean answer() throws Throwable {
+                changed.countDown();
+                try {
+                    stopped.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+                return false;
+            }
+        });
+        EasyMock.replay(results);
+        final StubConnection connection = new StubConnection(results);
+        ConnectionPool pool = new ConnectionPool() {
+
+            @Override
+            protected LDAPConnection createConnection() {
+                return connection;
+            }
+        };
+        pool.configure("localhost", 389, "", "", 0, 1, 60000, 60000, 100);
+        ChangeListener listener = new ChangeListener(pool, cache, roleTypes, "dc=test", 60000);
+        listener.start();
+        try {
+            Assert.assertTrue("No change reported", changed.await(5, TimeUnit.SECONDS));
+            Assert.assertNull("Changed entry kept", cache.get(USER));
+            Assert.assertNotNull("Unchanged entry dropped", cache.get(GROUP));
+            Assert.assertEquals("Role type kept", RoleTypeCache.UNKNOWN, roleTypes.get("b"));
+            LDAPControl[] controls = connection.m_constraints.getControls();
+            Assert.assertEquals("Persistent search control not sent", "2.16.840.1.113730.3.4.3", controls[0].getID());
+        } finally {
+            listener.stop();
+            stopped.countDown();
+        }
+        Assert.assertEquals("Connection taken from the pool", 0, pool.getStatistics().getOpenCount());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPConstraints;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPMessageQueue;
+import com.novell.ldap.LDAPResponse;
+import com.novell.ldap.LDAPSearchQueue;
+import com.novell.ldap.LDAPSearchResult;
+
+/**
+ * Testing the EntryReader class.
+ */
+public class EntryReaderTest {
+
+    /**
+     * Hands out a mocked queue per request and records abandoned queues.
+     */
+    private static final class StubConnection extends LDAPConnection {
+
+        private final List<String>          m_searched  = new ArrayList<String>();
+
+        private final List<LDAPSearchQueue> m_queues;
+
+        private LDAPMessageQueue            m_abandoned;
+
+        StubConnection(LDAPSearchQueue... queues) {
+            m_queues = new ArrayList<LDAPSearchQueue>(Arrays.asList(queues));
+        }
+
+        @Override
+        public LDAPSearchQueue search(String base, int scope, String filter, String[] attrs, boolean typesOnly, LDAPSearchQueue queue)
+                throws LDAPException {
+            Assert.assertEquals("Wrong scope", LDAPConnection.SCOPE_BASE, scope);
+            Assert.assertNull("Queue reused", queue);
+            m_searched.add(base);
+            return m_queues.remove(0);
+        }
+
+        @Override
+        public void abandon(LDAPMessageQueue queue, LDAPConstraints constraints) throws LDAPException {
+            m_abandoned = queue;
+        }
+    }
+
+    private static LDAPSearchQueue createQueue(int messageID) {
+        LDAPSearchQueue queue = EasyMock.createMock(LDAPSearchQueue.class);
+        EasyMock.expect(queue.getMessageIDs()).andReturn(new int[] { messageID });
+        return queue;
+    }
+
+    private static LDAPSearchResult createResult(final int messageID, final LDAPEntry entry) {
+        return new LDAPSearchResult() {
+
+            @Override
+            public int getMessageID() {
+                return messageID;
+            }
+
+            @Override
+            public LDAPEntry getEntry() {
+                return entry;
+            }
+        };
+    }
+
+    private static LDAPResponse createResponse(final int messageID, final int resultCode) {
+        return new LDAPResponse() {
+
+            @Override
+            public int getMessageID() {
+                return messageID;
+            }
+
+            @Override
+            public int getResultCode() {
+                return resultCode;
+            }
+
+            @Override
+            public void chkResultCode() throws LDAPException {
+                if (LDAPException.SUCCESS != resultCode) {
+                    throw new LDAPException("failed", resultCode, null);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void entriesAreReadAtOnce() throws Exception {
+        LDAPSearchQueue first = createQueue(1);
+        LDAPSearchQueue second = createQueue(2);
+        LDAPEntry entry = new LDAPEntry("uid=a");
+        first.merge(second);
+        // the responses arrive in any order
+        EasyMock.expect(first.getResponse()).andReturn(createResponse(2, LDAPException.NO_SUCH_OBJECT));
+        EasyMock.expect(first.getResponse()).andReturn(createResult(1, entry));
+        EasyMock.expect(first.getResponse()).andReturn(createResponse(1, LDAPException.SUCCESS));
+        EasyMock.replay(first, second);
+        StubConnection connection = new StubConnection(first, second);
+        //
+        Map<String, LDAPEntry> entries = EntryReader.read(connection, Arrays.asList("uid=a", "uid=b", "uid=a"), 10);
+        Assert.assertEquals("Wrong reads", Arrays.asList("uid=a", "uid=b"), connection.m_searched);
+        Assert.assertSame("Entry not read", entry, entries.get("uid=a"));
+        Assert.assertFalse("Missing entry read", entries.containsKey("uid=b"));
+        EasyMock.verify(first, second);
+    }
+
+    @Test
+    public void outstandingReadsAreLimited() throws Exception {
+        LDAPSearchQueue first = createQueue(1);
+        LDAPSearchQueue second = createQueue(2);
+        EasyMock.expect(first.getResponse()).andReturn(createResponse(1, LDAPException.NO_SUCH_OBJECT));
+        // the second read is sent after the first one completed
+        first.merge(second);
+        EasyMock.expect(first.getResponse()).andReturn(createResponse(2, LDAPException.NO_SUCH_OBJECT));
+        EasyMock.checkOrder(first, true);
+        EasyMock.replay(first, second);
+        //
+        Assert.assertTrue("Missing entries read", EntryReader.read(new StubConnection(first, second), Arrays.asList("uid=a", "uid=b"), 1).isEmpty());
+        EasyMock.verify(first, second);
+    }
+
+    @Test
+    public void failedReadAbandonsOthers() throws Exception {
+        LDAPSearchQueue first = createQueue(1);
+        LDAPSearchQueue second = createQueue(2);
+        first.merge(second);
+        EasyMock.expect(first.getResponse()).andReturn(createResponse(1, LDAPException.BUSY));
+        EasyMock.replay(first, second);
+        StubConnection connection = new StubConnection(first, second);
+        //
+        try {
+            EntryReader.read(connection, Arrays.asList("uid=a", "uid=b"), 10);
+            Assert.fail("Error not reported");
+        } catch (LDAPException e) {
+            Assert.assertEquals("Wrong error", LDAPException.BUSY, e.getResultCode());
+        }
+        Assert.assertSame("Outstanding read not abandoned", first, connection.m_abandoned);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.provider.ldap.ConfigurationConstants;
+import org.ops4j.pax.useradmin.service.spi.RoleDataLoader;
+import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.User;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchResults;
+
+/**
+ * Testing the member resolution of the StorageProviderImpl class.
+ */
+public class MemberSearchTest {
+
+    private static final String USERS  = "ou=people,dc=test";
+
+    private static final String GROUPS = "ou=groups,dc=test";
+
+    /**
+     * Records the searches and answers them with prepared results.
+     */
+    private static final class StubConnection extends LDAPConnection {
+
+        private final List<String>            m_searches = new ArrayList<String>();
+
+        private final List<LDAPSearchResults> m_results  = new ArrayList<LDAPSearchResults>();
+
+        @Override
+        public void connect(String host, int port) throws LDAPException {
+        }
+
+        @Override
+        public void bind(int version, String dn, byte[] password) throws LDAPException {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public LDAPSearchResults search(String base, int scope, String filter, String[] attrs, boolean typesOnly) throws LDAPException {
+            m_searches.add(scope + ":" + base + ":" + filter);
+            return m_results.remove(0);
+        }
+
+        void addResults(LDAPEntry... entries) {
+            LDAPSearchResults results = EasyMock.createMock(LDAPSearchResults.class);
+            for (LDAPEntry entry : entries) {
+                EasyMock.expect(results.hasMore()).andReturn(true);
+                try {
+                    EasyMock.expect(results.next()).andReturn(entry);
+                } catch (LDAPException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            EasyMock.expect(results.hasMore()).andReturn(false);
+            EasyMock.replay(results);
+            m_results.add(results);
+        }
+    }
+
+    private static LDAPEntry createEntry(String dn, String objectClasses, String... attributes) {
+        LDAPAttributeSet attributeSet = new LDAPAttributeSet();
+        attributeSet.add(new LDAPAttribute(ConfigurationConstants.ATTR_OBJECTCLASS, objectClasses.split(", ")));
+        for (int i = 0; i < attributes.length; i += 2) {
+            LDAPAttribute attribute = attributeSet.getAttribute(attributes[i]);
+            if (null == attribute) {
+                attributeSet.add(new LDAPAttribute(attributes[i], attributes[i + 1]));
+            } else {
+                attribute.addValue(attributes[i + 1]);
+            }
+        }
+        return new LDAPEntry(dn, attributeSet);
+    }
+
+    private static LDAPEntry createUserEntry(String name) {
+        return createEntry("uid=" + name + "," + USERS, ConfigurationConstants.DEFAULT_USER_OBJECTCLASS, "uid", name);
+    }
+
+    private static LDAPEntry createGroupEntry(String name) {
+        return createEntry("ou=" + name + "," + GROUPS, ConfigurationConstants.DEFAULT_GROUP_OBJECTCLASS, "ou", name);
+    }
+
+    private static StorageProviderImpl createProvider(final StubConnection connection, String... configuration) throws Exception {
+        StorageProviderImpl provider = new StorageProviderImpl(new ConnectionPool() {
+
+            @Override
+            protected LDAPConnection createConnection() {
+                return connection;
+            }
+        });
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(ConfigurationConstants.PROP_LDAP_ROOT_DN, "dc=test");
+        properties.put(ConfigurationConstants.PROP_LDAP_MEMBER_CHUNK, "2");
+        for (int i = 0; i < configuration.length; i += 2) {
+            properties.put(configuration[i], configuration[i + 1]);
+        }
+        provider.configurationUpdated(properties);
+        return provider;
+    }
+
+    @Test
+    public void membersAreFoundByChunkedSearches() throws Exception {
+        StubConnection connection = new StubConnection();
+        // the group with its sub-groups
+        connection.addResults(createGroupEntry("g"), createEntry("cn=g.basic,ou=g," + GROUPS, ConfigurationConstants.DEFAULT_GROUP_ENTRY_OBJECTCLASS, "cn",
+                "g.basic", "member", "uid=a," + USERS, "member", "uid=b," + USERS, "member", "uid=c," + USERS, "member", "ou=h," + GROUPS),
+                createEntry("cn=g.required,ou=g," + GROUPS, ConfigurationConstants.DEFAULT_GROUP_ENTRY_OBJECTCLASS, "cn", "g.required", "member", "uid=a,"
+                        + USERS));
+        connection.addResults(createUserEntry("b"), createUserEntry("a"));
+        connection.addResults(createUserEntry("c"));
+        connection.addResults(createGroupEntry("h"));
+        StorageProviderImpl provider = createProvider(connection);
+        UserAdminFactory factory = EasyMock.createMock(UserAdminFactory.class);
+        Map<String, Role> roles = new HashMap<String, Role>();
+        for (String name : Arrays.asList("a", "b", "c")) {
+            User user = EasyMock.createMock(User.class);
+            EasyMock.expect(factory.createUser(EasyMock.eq(name), (RoleDataLoader) EasyMock.anyObject())).andReturn(user);
+            roles.put(name, user);
+        }
+        Group group = EasyMock.createMock(Group.class);
+        EasyMock.expect(group.getName()).andStubReturn("g");
+        Group member = EasyMock.createMock(Group.class);
+        EasyMock.expect(factory.createGroup(EasyMock.eq("h"), (RoleDataLoader) EasyMock.anyObject())).andReturn(member);
+        roles.put("h", member);
+        EasyMock.replay(factory, group);
+        //
+        Collection<Role> members = provider.getMembers(factory, group);
+        Assert.assertEquals("Wrong members", Arrays.asList(roles.get("a"), roles.get("b"), roles.get("c"), roles.get("h")), members);
+        Assert.assertEquals("Wrong searches", Arrays.asList(LDAPConnection.SCOPE_SUB + ":ou=g," + GROUPS + ":(objectClass=*)", LDAPConnection.SCOPE_ONE
+                + ":" + USERS + ":(|(uid=a)(uid=b))", LDAPConnection.SCOPE_ONE + ":" + USERS + ":(|(uid=c))", LDAPConnection.SCOPE_ONE + ":" + GROUPS
+                + ":(|(ou=h))"), connection.m_searches);
+        EasyMock.verify(factory);
+    }
+
+    @Test
+    public void cachedMembersAreNotSearchedAgain() throws Exception {
+        StubConnection connection = new StubConnection();
+        connection.addResults(createGroupEntry("g"), createEntry("cn=g.basic,ou=g," + GROUPS, ConfigurationConstants.DEFAULT_GROUP_ENTRY_OBJECTCLASS, "cn",
+                "g.basic", "member", "uid=a," + USERS));
+        connection.addResults(createUserEntry("a"));
+        StorageProviderImpl provider = createProvider(connection, ConfigurationConstants.PROP_LDAP_CACHE_TTL, "60");
+        UserAdminFactory factory = EasyMock.createMock(UserAdminFactory.class);
+        User user = EasyMock.createMock(User.class);
+        EasyMock.expect(factory.createUser(EasyMock.eq("a"), (RoleDataLoader) EasyMock.anyObject())).andReturn(user).times(2);
+        Group group = EasyMock.createMock(Group.class);
+        EasyMock.expect(group.getName()).andStubReturn("g");
+        EasyMock.replay(factory, group);
+        //
+        Assert.assertEquals("Wrong members", Arrays.asList(user), provider.getMembers(factory, group));
+        Assert.assertEquals("Wrong cached members", Arrays.asList(user), provider.getMembers(factory, group));
+        // the missing required sub-group is cached, too
+        Assert.assertTrue("Wrong required members", provider.getRequiredMembers(factory, group).isEmpty());
+        Assert.assertEquals("Wrong number of searches", 2, connection.m_searches.size());
+        Assert.assertEquals("Wrong number of cache hits", 5, provider.getCacheStatistics().getHitCount());
+        EasyMock.verify(factory);
+    }
+
+    @Test
+    public void membersDifferingInCaseAreFound() throws Exception {
+        StubConnection connection = new StubConnection();
+        connection.addResults(createGroupEntry("g"), createEntry("cn=g.basic,ou=g," + GROUPS, ConfigurationConstants.DEFAULT_GROUP_ENTRY_OBJECTCLASS, "cn",
+                "g.basic", "member", "uid=a," + USERS, "member", "uid=A," + USERS));
+        connection.addResults(createUserEntry("a"));
+        StorageProviderImpl provider = createProvider(connection);
+        UserAdminFactory factory = EasyMock.createMock(UserAdminFactory.class);
+        User user = EasyMock.createMock(User.class);
+        EasyMock.expect(factory.createUser(EasyMock.eq("a"), (RoleDataLoader) EasyMock.anyObject())).andReturn(user).times(2);
+        Group group = EasyMock.createMock(Group.class);
+        EasyMock.expect(group.getName()).andStubReturn("g");
+        EasyMock.replay(factory, group);
+        //
+        Assert.assertEquals("Wrong members", Arrays.asList(user, user), provider.getMembers(factory, group));
+        Assert.assertEquals("Wrong searches", Arrays.asList(LDAPConnection.SCOPE_SUB + ":ou=g," + GROUPS + ":(objectClass=*)", LDAPConnection.SCOPE_ONE
+                + ":" + USERS + ":(|(uid=a))"), connection.m_searches);
+        EasyMock.verify(factory);
+    }
+
+    @Test
+    public void subGroupDifferingInCaseIsFound() throws Exception {
+        StubConnection connection = new StubConnection();
+        connection.addResults(createGroupEntry("g"), createEntry("CN=G.Basic,ou=g," + GROUPS, ConfigurationConstants.DEFAULT_GROUP_ENTRY_OBJECTCLASS, "cn",
+                "G.Basic", "member", "uid=a," + USERS));
+        connection.addResults(createUserEntry("a"));
+        StorageProviderImpl provider = createProvider(connection);
+        UserAdminFactory factory = EasyMock.createMock(UserAdminFactory.class);
+        User user = EasyMock.createMock(User.class);
+        EasyMock.expect(factory.createUser(EasyMock.eq("a"), (RoleDataLoader) EasyMock.anyObject())).andReturn(user);
+        Group group = EasyMock.createMock(Group.class);
+        EasyMock.expect(group.getName()).andStubReturn("g");
+        EasyMock.replay(factory, group);
+        //
+        Assert.assertEquals("Wrong members", Arrays.asList(user), provider.getMembers(factory, group));
+        EasyMock.verify(factory);
+    }
+
+    @Test
+    public void subGroupsOfSeveralGroupsAreSearchedInChunks() throws Exception {
+        StubConnection connection = new StubConnection();
+        connection.addResults(createGroupEntry("g"), createEntry("cn=g.basic,ou=g," + GROUPS, ConfigurationConstants.DEFAULT_GROUP_ENTRY_OBJECTCLASS, "cn",
+                "g.basic", "member", "uid=a," + USERS));
+        connection.addResults(createUserEntry("a"));
+        connection.addResults(createEntry("cn=h.basic,ou=h," + GROUPS, ConfigurationConstants.DEFAULT_GROUP_ENTRY_OBJECTCLASS, "cn", "h.basic", "member",
+                "uid=a," + USERS));
+        connection.addResults();
+        StorageProviderImpl provider = createProvider(connection, ConfigurationConstants.PROP_LDAP_CACHE_TTL, "60");
+        UserAdminFactory factory = EasyMock.createMock(UserAdminFactory.class);
+        User user = EasyMock.createMock(User.class);
+        EasyMock.expect(factory.createUser(EasyMock.eq("a"), (RoleDataLoader) EasyMock.anyObject())).andReturn(user).times(2);
+        List<Group> groups = new ArrayList<Group>();
+        for (String name : Arrays.asList("g", "h", "k", "l")) {
+            Group group = EasyMock.createMock(Group.class);
+            EasyMock.expect(group.getName()).andStubReturn(name);
+            EasyMock.replay(group);
+            groups.add(group);
+        }
+        EasyMock.replay(factory);
+        // caches the sub-group entry of g
+        provider.getMembers(factory, groups.get(0));
+        //
+        Map<String, Collection<Role>> members = provider.getMembers(factory, groups);
+        Assert.assertEquals("Wrong members of g", Arrays.asList(user), members.get("g"));
+        Assert.assertEquals("Wrong members of h", Arrays.asList(user), members.get("h"));
+        Assert.assertEquals("Wrong number of groups with members", 2, members.size());
+        Assert.assertEquals("Wrong searches", Arrays.asList(LDAPConnection.SCOPE_SUB + ":" + GROUPS + ":(|(cn=h.basic)(cn=k.basic))",
+                LDAPConnection.SCOPE_SUB + ":" + GROUPS + ":(|(cn=l.basic))"), connection.m_searches.subList(2, 4));
+        EasyMock.verify(factory);
+    }
+
+    @Test
+    public void childNamesAreParsed() {
+        Assert.assertEquals("Wrong name", "a", StorageProviderImpl.getChildName("UID=a," + USERS, "uid", USERS));
+        Assert.assertNull("Other parent accepted", StorageProviderImpl.getChildName("uid=a," + GROUPS, "uid", USERS));
+        Assert.assertNull("Other attribute accepted", StorageProviderImpl.getChildName("cn=a," + USERS, "uid", USERS));
+        Assert.assertNull("Escaped name accepted", StorageProviderImpl.getChildName("uid=a\\,b," + USERS, "uid", USERS));
+        Assert.assertNull("Nested entry accepted", StorageProviderImpl.getChildName("uid=a,ou=x," + USERS, "uid", USERS));
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2009 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.provider.ldap.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.provider.ldap.ConfigurationConstants;
+import org.ops4j.pax.useradmin.service.spi.RoleDataLoader;
+import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPMessageQueue;
+import com.novell.ldap.LDAPResponse;
+import com.novell.ldap.LDAPSearchQueue;
+import com.novell.ldap.LDAPSearchResult;
+
+/**
+ * Testing the RoleTypeCache class and its use when roles are looked up.
+ */
+public class RoleTypeCacheTest {
+
+    private static final String USER  = "uid=a,ou=people,dc=test";
+
+    private static final String GROUP = "ou=g,ou=groups,dc=test";
+
+    /**
+     * Answers reads from a map of entries and records the read DNs.
+     */
+    private static final class StubConnection extends LDAPConnection {
+
+        private final Map<String, LDAPEntry>  m_entries  = new HashMap<String, LDAPEntry>();
+
+        private final List<String>            m_reads    = new ArrayList<String>();
+
+        private final LinkedList<LDAPMessage> m_messages = new LinkedList<LDAPMessage>();
+
+        private int                           m_messageID;
+
+        @Override
+        public void connect(String host, int port) throws LDAPException {
+        }
+
+        @Override
+        public void bind(int version, String dn, byte[] password) throws LDAPException {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void add(LDAPEntry entry) throws LDAPException {
+            m_entries.put(entry.getDN(), entry);
+        }
+
+        @Override
+        public void delete(String dn) throws LDAPException {
+            m_entries.remove(dn);
+        }
+
+        @Override
+        public LDAPSearchQueue search(String base, int scope, String filter, String[] attrs, boolean typesOnly, LDAPSearchQueue queue)
+                throws LDAPException {
+            m_reads.add(base);
+            int messageID = ++m_messageID;
+            LDAPEntry entry = m_entries.get(base);
+            if (null != entry) {
+                m_messages.add(createResult(messageID, entry));
+            }
+            m_messages.add(createResponse(messageID, null != entry ? LDAPException.SUCCESS : LDAPException.NO_SUCH_OBJECT));
+            LDAPSearchQueue request = EasyMock.createMock(LDAPSearchQueue.class);
+            EasyMock.expect(request.getMessageIDs()).andStubReturn(new int[] { messageID });
+            request.merge((LDAPMessageQueue) EasyMock.anyObject());
+            EasyMock.expectLastCall().anyTimes();
+            EasyMock.expect(request.getResponse()).andStubAnswer(new IAnswer<LDAPMessage>() {
+
+                @Override
+                public LDAPMessage answer() throws Throwable {
+                    return m_messages.poll();
+                }
+            });
+            EasyMock.replay(request);
+            return request;
+        }
+
+        List<String> takeReads() {
+            List<String> reads = new ArrayList<String>(m_reads);
+            m_reads.clear();
+            return reads;
+        }
+    }
+
+    private static LDAPSearchResult createResult(final int messageID, final LDAPEntry entry) {
+        return new LDAPSearchResult() {
+
+            @Override
+            public int getMessageID() {
+                return messageID;
+            }
+
+            @Override
+            public LDAPEntry getEntry() {
+                return entry;
+            }
+        };
+    }
+
+    private static LDAPResponse createResponse(final int messageID, final int resultCode) {
+        return new LDAPResponse() {
+
+            @Override
+            public int getMessageID() {
+                return messageID;
+            }
+
+            @Override
+            public int getResultCode() {
+                return resultCode;
+            }
+        };
+    }
+
+    private static StorageProviderImpl createProvider(final StubConnection connection, String... configuration) throws Exception {
+        StorageProviderImpl provider = new StorageProviderImpl(new ConnectionPool() {
+
+            @Override
+            protected LDAPConnection createConnection() {
+                return connection;
+            }
+        });
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(ConfigurationConstants.PROP_LDAP_ROOT_DN, "dc=test");
+        for (int i = 0; i < configuration.length; i += 2) {
+            properties.put(configuration[i], configuration[i + 1]);
+        }
+        provider.configurationUpdated(properties);
+        return provider;
+    }
+
+    @Test
+    public void knownTypesAreReadDirectly() throws Exception {
+        StubConnection connection = new StubConnection();
+        LDAPAttributeSet attributes = new LDAPAttributeSet();
+        attributes.add(new LDAPAttribute(ConfigurationConstants.ATTR_OBJECTCLASS, ConfigurationConstants.DEFAULT_USER_OBJECTCLASS.split(", ")));
+        attributes.add(new LDAPAttribute("uid", "a"));
+        connection.add(new LDAPEntry(USER, attributes));
+        StorageProviderImpl provider = createProvider(connection);
+        UserAdminFactory factory = EasyMock.createNiceMock(UserAdminFactory.class);
+        EasyMock.replay(factory);
+        //
+        provider.getRole(factory, "a");
+        Assert.assertEquals("Wrong reads", Arrays.asList("ou=a,ou=groups,dc=test", USER), connection.takeReads());
+        provider.getRole(factory, "a");
+        Assert.assertEquals("Known user not read directly", Arrays.asList(USER), connection.takeReads());
+        // deleted by others
+        connection.delete(USER);
+        Assert.assertNull("Deleted user found", provider.getRole(factory, "a"));
+        Assert.assertEquals("Type not resolved again", Arrays.asList(USER, "ou=a,ou=groups,dc=test", USER), connection.takeReads());
+    }
+
+    @Test
+    public void missingNamesAreCached() throws Exception {
+        StubConnection connection = new StubConnection();
+        StorageProviderImpl provider = createProvider(connection, ConfigurationConstants.PROP_LDAP_TYPE_CACHE_TTL, "60");
+        UserAdminFactory factory = EasyMock.createNiceMock(UserAdminFactory.class);
+        EasyMock.expect(factory.createGroup(EasyMock.eq("g"), (RoleDataLoader) EasyMock.anyObject())).andStubReturn(EasyMock.createMock(Group.class));
+        EasyMock.replay(factory);
+        //
+        Assert.assertNull("Missing role found", provider.getRole(factory, "g"));
+        Assert.assertNull("Missing role found", provider.getRole(factory, "g"));
+        Assert.assertEquals("Missing name read again", 2, connection.takeReads().size());
+        provider.createGroup(factory, "g");
+        Assert.assertNotNull("Created group not found", provider.getRole(factory, "g"));
+        Assert.assertEquals("Created group not read directly", Arrays.asList(GROUP), connection.takeReads());
+        Role group = EasyMock.createMock(Role.class);
+        EasyMock.expect(group.getType()).andStubReturn(Role.GROUP);
+        EasyMock.expect(group.getName()).andStubReturn("g");
+        EasyMock.replay(group);
+        provider.deleteRole(group);
+        Assert.assertNull("Deleted group found", provider.getRole(factory, "g"));
+        Assert.assertEquals("Deleted group not resolved again", 2, connection.takeReads().size());
+    }
+
+    @Test
+    public void missingNamesExpire() throws Exception {
+        RoleTypeCache cache = new RoleTypeCache();
+        cache.configure(10, 50);
+        cache.put("a", RoleTypeCache.ABSENT, cache.getGeneration());
+        cache.put("b", Role.USER, cache.getGeneration());
+        Assert.assertEquals("Missing name not cached", RoleTypeCache.ABSENT, cache.get("a"));
+        Thread.sleep(100);
+        Assert.assertEquals("Missing name not expired", RoleTypeCache.UNKNOWN, cache.get("a"));
+        Assert.assertEquals("Type expired", Role.USER, cache.get("b"));
+    }
+
+    @Test
+    public void resolutionsBeforeChangesAreIgnored() {
+        RoleTypeCache cache = new RoleTypeCache();
+        cache.configure(1, 60000);
+        long generation = cache.getGeneration();
+        cache.created("a", Role.USER);
+        cache.put("a", RoleTypeCache.ABSENT, generation);
+        Assert.assertEquals("Outdated type cached", Role.USER, cache.get("a"));
+        cache.created("b", Role.GROUP);
+        Assert.assertEquals("Type not evicted", RoleTypeCache.UNKNOWN, cache.get("a"));
+    }
+}
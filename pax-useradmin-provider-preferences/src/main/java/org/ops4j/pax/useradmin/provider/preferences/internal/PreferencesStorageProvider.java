@@ -24,18 +24,24 @@ import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.ops4j.pax.useradmin.provider.preferences.ConfigurationConstants;
 import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+import org.ops4j.pax.useradmin.service.spi.CredentialLookupProvider;
 import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
 import org.ops4j.pax.useradmin.service.spi.Decryptor;
 import org.ops4j.pax.useradmin.service.spi.EncryptedValue;
 import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.ParentGroupProvider;
+import org.ops4j.pax.useradmin.service.spi.RolePageProvider;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
@@ -51,7 +57,7 @@ import org.osgi.service.useradmin.User;
 /**
  * A PreferencesService based <code>StorageProvider</code> service.
  */
-public class PreferencesStorageProvider implements StorageProvider, CredentialProvider {
+public class PreferencesStorageProvider implements StorageProvider, ParentGroupProvider, RolePageProvider, CredentialProvider, CredentialLookupProvider {
 
     /**
      * 
@@ -73,6 +79,11 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
      */
     private static final String                  KEY_ALGORITHM_PARAMETER = "AlgorithmParameter";
 
+    /**
+     * Preferences key for credential lookups.
+     */
+    private static final String                  KEY_LOOKUP              = "Lookup";
+
     private static final String                  PATH_SEPARATOR          = "/";
 
     private static final String                  PREFERENCE_USER         = "Pax UserAdmin";
@@ -95,6 +106,19 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
 
     private ServiceRegistration<StorageProvider> serviceRegistration;
 
+    /**
+     * Reverse index of the memberships: maps member names to the names of
+     * their groups and the member type. Built on first use.
+     */
+    private Map<String, Map<String, String>>     m_parentGroups          = null;
+
+    /**
+     * Index of the credential lookups: maps credential keys to the hex encoded
+     * lookups and the names of their users. Built on first use and updated in
+     * place on changes.
+     */
+    private Map<String, Map<String, String>>     m_credentialLookups     = null;
+
     PreferencesStorageProvider(PreferencesService preferencesService, Long trackedServiceID) throws StorageException {
         m_preferencesService = preferencesService;
         this.trackedServiceID = trackedServiceID;
@@ -227,6 +251,91 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         return members;
     }
 
+    private Collection<Group> loadParentGroups(UserAdminFactory factory, Role role, String memberType) throws BackingStoreException,
+            StorageException {
+        Collection<String> groupNames = new ArrayList<String>();
+        synchronized (this) {
+            Map<String, String> parents = getParentGroupIndex().get(role.getName());
+            if (null != parents) {
+                for (Map.Entry<String, String> entry : parents.entrySet()) {
+                    if (memberType.equals(entry.getValue())) {
+                        groupNames.add(entry.getKey());
+                    }
+                }
+            }
+        }
+        Collection<Group> groups = new ArrayList<Group>();
+        for (String name : groupNames) {
+            Role group = loadRole(factory, name, null);
+            if (null != group && Role.GROUP == group.getType()) {
+                groups.add((Group) group);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * @return The reverse membership index - built from the stored members
+     *         nodes on first use.
+     */
+    private synchronized Map<String, Map<String, String>> getParentGroupIndex() throws BackingStoreException, StorageException {
+        if (null == m_parentGroups) {
+            Map<String, Map<String, String>> parentGroups = new HashMap<String, Map<String, String>>();
+            for (String name : getRootNode().childrenNames()) {
+                Preferences node = getRootNode().node(name);
+                if (node.nodeExists(MEMBERS_NODE)) {
+                    Preferences membersNode = node.node(MEMBERS_NODE);
+                    for (String memberName : membersNode.keys()) {
+                        addParentGroup(parentGroups, memberName, name, membersNode.get(memberName, ""));
+                    }
+                }
+            }
+            m_parentGroups = parentGroups;
+        }
+        return m_parentGroups;
+    }
+
+    private static void addParentGroup(Map<String, Map<String, String>> parentGroups, String memberName, String groupName, String memberType) {
+        Map<String, String> parents = parentGroups.get(memberName);
+        if (null == parents) {
+            parents = new HashMap<String, String>();
+            parentGroups.put(memberName, parents);
+        }
+        parents.put(groupName, memberType);
+    }
+
+    private synchronized void parentGroupAdded(String memberName, String groupName, String memberType) {
+        if (null != m_parentGroups) {
+            addParentGroup(m_parentGroups, memberName, groupName, memberType);
+        }
+    }
+
+    private synchronized void parentGroupRemoved(String memberName, String groupName) {
+        if (null != m_parentGroups) {
+            Map<String, String> parents = m_parentGroups.get(memberName);
+            if (null != parents) {
+                parents.remove(groupName);
+                if (parents.isEmpty()) {
+                    m_parentGroups.remove(memberName);
+                }
+            }
+        }
+    }
+
+    private synchronized void roleRemoved(String roleName) {
+        if (null != m_parentGroups) {
+            m_parentGroups.remove(roleName);
+            // the members of a removed group lose it as parent
+            for (Iterator<Map<String, String>> i = m_parentGroups.values().iterator(); i.hasNext();) {
+                Map<String, String> parents = i.next();
+                parents.remove(roleName);
+                if (parents.isEmpty()) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
     // TODO: use when removing users - check & test
     private void removeFromGroups(String memberName) throws BackingStoreException, StorageException {
         String[] roleNames = getRootNode().childrenNames();
@@ -277,9 +386,14 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
     public boolean deleteRole(Role role) throws StorageException {
         try {
             if (getRootNode().nodeExists(role.getName())) {
+                Map<String, byte[]> lookups = loadCredentialLookups(role.getName());
                 removeFromGroups(role.getName());
                 getRootNode().node(role.getName()).removeNode();
                 getRootNode().flush();
+                roleRemoved(role.getName());
+                for (Map.Entry<String, byte[]> entry : lookups.entrySet()) {
+                    updateCredentialLookup(entry.getKey(), entry.getValue(), null, role.getName());
+                }
                 return true;
             }
         } catch (BackingStoreException e) {
@@ -306,6 +420,24 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         }
     }
 
+    @Override
+    public Collection<Group> getParentGroups(UserAdminFactory factory, Role role) throws StorageException {
+        try {
+            return loadParentGroups(factory, role, BASIC_MEMBER_STRING);
+        } catch (BackingStoreException e) {
+            throw new StorageException("Error retrieving basic parent groups of role '" + role.getName(), e);
+        }
+    }
+
+    @Override
+    public Collection<Group> getRequiredParentGroups(UserAdminFactory factory, Role role) throws StorageException {
+        try {
+            return loadParentGroups(factory, role, REQUIRED_MEMBER_STRING);
+        } catch (BackingStoreException e) {
+            throw new StorageException("Error retrieving required parent groups of role '" + role.getName(), e);
+        }
+    }
+
     @Override
     public boolean addMember(Group group, Role role) throws StorageException {
         return addMember(group, role, BASIC_MEMBER_STRING);
@@ -329,6 +461,7 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         } catch (BackingStoreException e) {
             throw new StorageException("Error flush()ing node '" + node.name(), e);
         }
+        parentGroupAdded(role.getName(), group.getName(), memberString);
         return true;
     }
 
@@ -345,6 +478,7 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         } catch (BackingStoreException e) {
             throw new StorageException("Error flush()ing node '" + node.name(), e);
         }
+        parentGroupRemoved(role.getName(), group.getName());
         return true;
     }
 
@@ -438,6 +572,29 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         }
     }
 
+    @Override
+    public List<Role> findRolePage(UserAdminFactory factory, String after, int count) throws StorageException {
+        try {
+            String[] roleNames = getRootNode().childrenNames();
+            Arrays.sort(roleNames);
+            int start = 0;
+            if (null != after) {
+                int index = Arrays.binarySearch(roleNames, after);
+                start = index >= 0 ? index + 1 : -index - 1;
+            }
+            List<Role> roles = new ArrayList<Role>();
+            for (int i = start; i < roleNames.length && roles.size() < count; i++) {
+                Role role = loadRole(factory, roleNames[i], null);
+                if (null != role) {
+                    roles.add(role);
+                }
+            }
+            return roles;
+        } catch (BackingStoreException e) {
+            throw new StorageException("Error retrieving roles after '" + after + "'", e);
+        }
+    }
+
     synchronized void register(BundleContext context) {
         if (serviceRegistration != null) {
             throw new IllegalStateException("This object is already registered under another bundle context!");
@@ -486,8 +643,10 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         try {
             Preferences node = getRootNode().node(user.getName() + PATH_SEPARATOR + CREDENTIALS_NODE);
             if (node.nodeExists(key)) {
+                byte[] lookup = node.node(key).getByteArray(KEY_LOOKUP, null);
                 node.node(key).removeNode();
                 getRootNode().flush();
+                updateCredentialLookup(key, lookup, null, user.getName());
             }
         } catch (IllegalStateException e) {
             throw new StorageException("Error removing credential from user '" + user.getName(), e);
@@ -501,8 +660,12 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         try {
             Preferences node = getRootNode().node(user.getName());
             if (node.nodeExists(CREDENTIALS_NODE)) {
+                Map<String, byte[]> lookups = loadCredentialLookups(user.getName());
                 node.node(CREDENTIALS_NODE).removeNode();
                 node.flush();
+                for (Map.Entry<String, byte[]> entry : lookups.entrySet()) {
+                    updateCredentialLookup(entry.getKey(), entry.getValue(), null, user.getName());
+                }
             }
         } catch (BackingStoreException e) {
             throw new StorageException("Error clearing credentials of user '" + user.getName(), e);
@@ -544,6 +707,87 @@ public class PreferencesStorageProvider implements StorageProvider, CredentialPr
         return false;
     }
 
+    @Override
+    public void setCredentialLookup(User user, String key, byte[] lookup) throws StorageException {
+        try {
+            Preferences node = getRootNode().node(user.getName() + PATH_SEPARATOR + CREDENTIALS_NODE + PATH_SEPARATOR + key);
+            byte[] previousLookup = node.getByteArray(KEY_LOOKUP, null);
+            storeAttribute(node, KEY_LOOKUP, lookup);
+            updateCredentialLookup(key, previousLookup, lookup, user.getName());
+        } catch (BackingStoreException e) {
+            throw new StorageException("Error storing credential lookup for user '" + user.getName(), e);
+        }
+    }
+
+    @Override
+    public synchronized String findCredentialLookup(String key, byte[] lookup) throws StorageException {
+        try {
+            Map<String, String> lookups = getCredentialLookupIndex().get(key);
+            return null == lookups ? null : lookups.get(UserAdminTools.bytesToHex(lookup));
+        } catch (BackingStoreException e) {
+            throw new StorageException("loading credential lookups failed", e);
+        }
+    }
+
+    /**
+     * @return The credential lookup index - built from the stored credentials
+     *         nodes on first use.
+     */
+    private synchronized Map<String, Map<String, String>> getCredentialLookupIndex() throws BackingStoreException, StorageException {
+        if (null == m_credentialLookups) {
+            m_credentialLookups = new HashMap<String, Map<String, String>>();
+            for (String name : getRootNode().childrenNames()) {
+                for (Map.Entry<String, byte[]> entry : loadCredentialLookups(name).entrySet()) {
+                    updateCredentialLookup(entry.getKey(), null, entry.getValue(), name);
+                }
+            }
+        }
+        return m_credentialLookups;
+    }
+
+    /**
+     * @return The stored credential lookups of the given role, mapped by their
+     *         credential keys.
+     */
+    private Map<String, byte[]> loadCredentialLookups(String name) throws BackingStoreException {
+        Map<String, byte[]> lookups = new HashMap<String, byte[]>();
+        Preferences node = getRootNode().node(name);
+        if (node.nodeExists(CREDENTIALS_NODE)) {
+            Preferences credNode = node.node(CREDENTIALS_NODE);
+            for (String key : credNode.childrenNames()) {
+                byte[] lookup = credNode.node(key).getByteArray(KEY_LOOKUP, null);
+                if (null != lookup) {
+                    lookups.put(key, lookup);
+                }
+            }
+        }
+        return lookups;
+    }
+
+    /**
+     * Replaces the previous lookup of a user credential by the new one in the
+     * lookup index - does nothing as long as the index was not built.
+     */
+    private synchronized void updateCredentialLookup(String key, byte[] previousLookup, byte[] lookup, String userName) {
+        if (null == m_credentialLookups) {
+            return;
+        }
+        Map<String, String> lookups = m_credentialLookups.get(key);
+        if (null != previousLookup && null != lookups) {
+            String hex = UserAdminTools.bytesToHex(previousLookup);
+            if (userName.equals(lookups.get(hex))) {
+                lookups.remove(hex);
+            }
+        }
+        if (null != lookup) {
+            if (null == lookups) {
+                lookups = new HashMap<String, String>();
+                m_credentialLookups.put(key, lookups);
+            }
+            lookups.put(UserAdminTools.bytesToHex(lookup), userName);
+        }
+    }
+
     @Override
     public CredentialProvider getCredentialProvider() {
         return this;
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service;
+
+import java.util.Set;
+
+import org.osgi.service.useradmin.User;
+
+/**
+ * Issues signed tokens after a successful credential verification, so
+ * callers can prove a user's identity on subsequent requests without hashing
+ * the credential again. Validating a token costs one HMAC and a revocation
+ * lookup. Tokens are revoked when the user is changed or removed - tokens
+ * carrying the user's roles also when any group changes. Tokens are only
+ * valid for the service instance which issued them. An instance is registered
+ * as service for each <code>UserAdmin</code> service, using the same service
+ * properties.
+ */
+public interface AuthenticationTokenService {
+
+    /**
+     * The content of a valid token.
+     */
+    interface Token {
+
+        /**
+         * @return The name of the authenticated user.
+         */
+        String getUserName();
+
+        /**
+         * @return The time the token expires, in milliseconds since the
+         *         epoch.
+         */
+        long getExpiry();
+
+        /**
+         * @return The names of the roles implied by the user when the token
+         *         was issued - null if roles are not included, see
+         *         {@link PaxUserAdminConstants#PROPERTY_TOKEN_ROLES}.
+         */
+        Set<String> getRoles();
+    }
+
+    /**
+     * Verifies a credential like <code>User.hasCredential()</code> and issues
+     * a token for the user on success.
+     * 
+     * @param user
+     *            The user whose credential is verified.
+     * @param key
+     *            The credential key.
+     * @param value
+     *            The credential value - a <code>String</code> or
+     *            <code>byte[]</code>.
+     * @return The token - null if the credential was not verified.
+     * @throws SecurityException
+     *             if the caller is not allowed to verify the credential.
+     */
+    String issueToken(User user, String key, Object value);
+
+    /**
+     * @param token
+     *            A token issued by {@link #issueToken(User, String, Object)}.
+     * @return The content of the token - null if the token is malformed,
+     *         forged, expired or revoked.
+     */
+    Token validateToken(String token);
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+/**
+ * Statistics of the cache which keeps the results of
+ * <code>Authorization.hasRole()</code> decisions. An instance is registered as
+ * service for each <code>UserAdmin</code> service, using the same
+ * service properties.
+ */
+public interface AuthorizationCacheStatistics {
+
+    /**
+     * @return The number of cached decisions.
+     */
+    int getSize();
+
+    /**
+     * @return The maximum number of cached decisions - 0 if the cache is
+     *         disabled.
+     */
+    int getMaximumSize();
+
+    /**
+     * @return The number of lookups answered by the cache.
+     */
+    long getHitCount();
+
+    /**
+     * @return The number of lookups which needed an evaluation.
+     */
+    long getMissCount();
+
+    /**
+     * @return The ratio of hits to all lookups - 0 if no lookups were done.
+     */
+    double getHitRatio();
+
+    /**
+     * @return The number of decisions dropped to make room for new ones.
+     */
+    long getEvictionCount();
+
+    /**
+     * @return The number of decisions dropped because a role they depend on
+     *         was changed.
+     */
+    long getInvalidationCount();
+}
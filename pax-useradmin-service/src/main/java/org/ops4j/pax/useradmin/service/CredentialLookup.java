@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service;
+
+import org.osgi.service.useradmin.User;
+
+/**
+ * Finds the owner of a credential - e.g. an API key - without knowing the
+ * user first. Only credentials with the keys configured in
+ * {@link PaxUserAdminConstants#PROPERTY_CREDENTIAL_LOOKUP_KEYS} can be looked
+ * up, and only if the <code>CredentialProvider</code> supports lookups. An
+ * instance is registered as service for each <code>UserAdmin</code> service,
+ * using the same service properties.
+ */
+public interface CredentialLookup {
+
+    /**
+     * @param key
+     *            The credential key.
+     * @return True if credentials with the given key can be looked up.
+     */
+    boolean isLookupKey(String key);
+
+    /**
+     * Finds the user owning the given credential. The credential is verified
+     * by <code>User.hasCredential()</code> before the user is returned.
+     * 
+     * @param key
+     *            The credential key.
+     * @param value
+     *            The credential value - a <code>String</code> or
+     *            <code>byte[]</code>.
+     * @return The owner of the credential - null if there is none.
+     * @throws IllegalArgumentException
+     *             if the key can't be looked up.
+     * @throws UnsupportedOperationException
+     *             if the <code>CredentialProvider</code> doesn't support
+     *             lookups.
+     * @throws SecurityException
+     *             if the caller is not allowed to verify the credential.
+     */
+    User findUser(String key, Object value);
+}
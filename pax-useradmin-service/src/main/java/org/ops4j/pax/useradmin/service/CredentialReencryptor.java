@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service;
+
+/**
+ * Re-encrypts the stored credentials of all users with the current encryption
+ * settings, e.g. after the hash or cipher algorithm was changed. Only
+ * credentials which can be decrypted are re-encrypted - hash-only credentials
+ * are migrated on their next successful verification if
+ * {@link PaxUserAdminConstants#PROPERTY_ENCRYPTION_REHASH} is enabled. An
+ * instance is registered as service for each <code>UserAdmin</code> service,
+ * using the same service properties.
+ */
+public interface CredentialReencryptor {
+
+    /**
+     * The state of a re-encryption run.
+     */
+    interface Progress {
+
+        /**
+         * @return The number of users processed in this run.
+         */
+        int getUserCount();
+
+        /**
+         * @return The number of re-encrypted credentials.
+         */
+        long getReencryptedCount();
+
+        /**
+         * @return The number of credentials already using the current
+         *         settings.
+         */
+        long getCurrentCount();
+
+        /**
+         * @return The number of credentials which can't be decrypted or whose
+         *         stored algorithm parameters are unknown.
+         */
+        long getUnrecoverableCount();
+
+        /**
+         * @return The number of credentials which could not be read or
+         *         written.
+         */
+        long getFailedCount();
+
+        /**
+         * @return The checkpoint to pass to
+         *         {@link CredentialReencryptor#reencryptCredentials} to resume
+         *         after the users processed so far - null if no user was
+         *         processed yet.
+         */
+        String getCheckpoint();
+
+        /**
+         * @return The number of credentials processed per second.
+         */
+        double getThroughput();
+    }
+
+    /**
+     * Receives the progress of a re-encryption run after each batch of
+     * users.
+     */
+    interface ProgressListener {
+
+        /**
+         * @param progress
+         *            The current state of the run.
+         */
+        void progress(Progress progress);
+    }
+
+    /**
+     * Re-encrypts the credentials of all users in the order of their names.
+     * No events are fired, since the credential values don't change.
+     * 
+     * @param checkpoint
+     *            A checkpoint of a previous run - users up to it are skipped.
+     *            Maybe null to start from the beginning.
+     * @param threads
+     *            The number of users processed in parallel.
+     * @param rate
+     *            The maximum number of credentials processed per second - 0
+     *            for no limit.
+     * @param listener
+     *            Receives the progress - maybe null.
+     * @return The final state of the run.
+     * @throws InterruptedException
+     *             if the calling thread is interrupted - the progress
+     *             reported last contains the checkpoint to resume with.
+     * @throws SecurityException
+     *             if the caller is not allowed to administer the UserAdmin
+     *             service.
+     */
+    Progress reencryptCredentials(String checkpoint, int threads, int rate, ProgressListener listener) throws InterruptedException;
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.osgi.service.useradmin.User;
+
+/**
+ * Verifies credentials on a bounded pool of worker threads, so callers don't
+ * block while the credential is hashed. An instance is registered as service
+ * for each <code>UserAdmin</code> service, using the same service properties.
+ */
+public interface CredentialVerifier {
+
+    /**
+     * Asynchronous variant of <code>User.hasCredential()</code>. Permissions
+     * are checked against the caller's access control context.
+     * 
+     * @param user
+     *            The user whose credential is verified.
+     * @param key
+     *            The credential key.
+     * @param value
+     *            The credential value - a <code>String</code> or
+     *            <code>byte[]</code>.
+     * @return The future result of <code>User.hasCredential()</code>.
+     * @throws RejectedExecutionException
+     *             if the maximum number of pending verifications is reached.
+     */
+    Future<Boolean> verifyCredential(User user, String key, Object value) throws RejectedExecutionException;
+
+    /**
+     * @return The number of verifications waiting for a worker thread.
+     */
+    int getQueueSize();
+
+    /**
+     * @return The number of verifications currently running.
+     */
+    int getActiveCount();
+
+    /**
+     * @return The number of finished verifications.
+     */
+    long getCompletedCount();
+
+    /**
+     * @return The number of verifications rejected because the queue was
+     *         full.
+     */
+    long getRejectedCount();
+}
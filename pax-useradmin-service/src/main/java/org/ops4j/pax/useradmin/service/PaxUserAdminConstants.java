@@ -38,10 +38,28 @@ public interface PaxUserAdminConstants {
 
     /**
      * (optional) Property that controls which hash algorithm is used, if not
-     * given, an internal default is used
+     * given, an internal default is used. Either a
+     * <code>MessageDigest</code> algorithm or a PBKDF2
+     * <code>SecretKeyFactory</code> algorithm like
+     * <code>PBKDF2WithHmacSHA1</code>.
      */
     String PROPERTY_ENCRYPTION_HASH_ALGORITHM          = "org.ops4j.pax.useradmin.encryption.hash.algorithm";
 
+    /**
+     * (optional) property that controls how many iterations the hash
+     * algorithm runs for new credentials, if not given, a single iteration is
+     * used.
+     */
+    String PROPERTY_ENCRYPTION_HASH_ITERATIONS         = "org.ops4j.pax.useradmin.encryption.hash.iterations";
+
+    /**
+     * (optional) property that controls how many milliseconds a credential
+     * verification should take at most, disabled if not given. If set, the
+     * number of iterations is calibrated on startup to meet this time and
+     * {@link #PROPERTY_ENCRYPTION_HASH_ITERATIONS} is ignored.
+     */
+    String PROPERTY_ENCRYPTION_HASH_TARGETTIME         = "org.ops4j.pax.useradmin.encryption.hash.targettime";
+
     /**
      * (optional) Property that controls which cipher algorithm is used, if not
      * given, the values won't be stored and can't be retrived again, the same
@@ -50,6 +68,22 @@ public interface PaxUserAdminConstants {
      */
     String PROPERTY_ENCRYPTION_CIPHER_ALGORITHM        = "org.ops4j.pax.useradmin.encryption.cipher.algorithm";
 
+    /**
+     * (optional) property that holds the secret key of the cipher algorithm as
+     * hex string, required for all cipher algorithms but PAX_EMPTY and
+     * PAX_PLAIN, e.g. 32 hex digits for <code>AES/GCM/NoPadding</code> with a
+     * 128 bit key.
+     */
+    String PROPERTY_ENCRYPTION_CIPHER_KEY              = "org.ops4j.pax.useradmin.encryption.cipher.key";
+
+    /**
+     * (optional) property that holds a comma separated list of keys, as hex
+     * strings, which were used as {@link #PROPERTY_ENCRYPTION_CIPHER_KEY}
+     * before. They are only used to decrypt values stored with them, so the
+     * key can be changed without losing stored credentials.
+     */
+    String PROPERTY_ENCRYPTION_CIPHER_PREVIOUSKEYS     = "org.ops4j.pax.useradmin.encryption.cipher.previouskeys";
+
     /**
      * (optional) property that controls which random number algorithm is used,
      * if not given, an internal default is used for encryption.
@@ -62,4 +96,129 @@ public interface PaxUserAdminConstants {
      */
     String PROPERTY_ENCRYPTION_SECURERANDOM_SALTLENGTH = "org.ops4j.pax.useradmin.encryption.securerandom.saltlength";
 
+    /**
+     * (optional) property that controls how many salts are generated in
+     * advance by a background task, disabled if not given.
+     */
+    String PROPERTY_ENCRYPTION_SECURERANDOM_SALTPOOL   = "org.ops4j.pax.useradmin.encryption.securerandom.saltpool";
+
+    /**
+     * (optional) property that controls if credentials stored with other
+     * algorithm parameters than the current ones are re-encrypted in the
+     * background after a successful verification, disabled if not given.
+     */
+    String PROPERTY_ENCRYPTION_REHASH                  = "org.ops4j.pax.useradmin.encryption.rehash";
+
+    /**
+     * (optional) property that controls how many credentials are re-encrypted
+     * per second at most, if not given, an internal default is used.
+     */
+    String PROPERTY_ENCRYPTION_REHASH_RATE             = "org.ops4j.pax.useradmin.encryption.rehash.rate";
+
+    /**
+     * (optional) property that lists the keys of credentials - separated by
+     * commas - which can be looked up by {@link CredentialLookup}, disabled if
+     * not given. Requires {@link #PROPERTY_CREDENTIAL_LOOKUP_SECRET}.
+     */
+    String PROPERTY_CREDENTIAL_LOOKUP_KEYS             = "org.ops4j.pax.useradmin.credential.lookup.keys";
+
+    /**
+     * (optional) property that holds the secret key of the HMAC computing
+     * credential lookups as hex string, required if
+     * {@link #PROPERTY_CREDENTIAL_LOOKUP_KEYS} is given. Changing it
+     * invalidates all stored lookups.
+     */
+    String PROPERTY_CREDENTIAL_LOOKUP_SECRET           = "org.ops4j.pax.useradmin.credential.lookup.secret";
+
+    /**
+     * (optional) property that controls how many failed credential
+     * verifications of a single user within the throttling window block
+     * further verifications of that user, disabled if not given.
+     */
+    String PROPERTY_AUTHENTICATION_THROTTLE_USER       = "org.ops4j.pax.useradmin.authentication.throttle.user";
+
+    /**
+     * (optional) property that controls how many failed credential
+     * verifications of all users within the throttling window block all
+     * further verifications, disabled if not given.
+     */
+    String PROPERTY_AUTHENTICATION_THROTTLE_GLOBAL     = "org.ops4j.pax.useradmin.authentication.throttle.global";
+
+    /**
+     * (optional) property that controls the length of the throttling window
+     * in seconds, if not given, an internal default is used.
+     */
+    String PROPERTY_AUTHENTICATION_THROTTLE_WINDOW     = "org.ops4j.pax.useradmin.authentication.throttle.window";
+
+    /**
+     * (optional) property that controls how many users are expected to fail
+     * verifications within the throttling window, sizes the per-user
+     * counters, if not given, an internal default is used.
+     */
+    String PROPERTY_AUTHENTICATION_THROTTLE_USERS      = "org.ops4j.pax.useradmin.authentication.throttle.users";
+
+    /**
+     * (optional) property that controls how many seconds authentication
+     * tokens are valid, if not given, an internal default is used.
+     */
+    String PROPERTY_TOKEN_LIFETIME                     = "org.ops4j.pax.useradmin.token.lifetime";
+
+    /**
+     * (optional) property that controls if authentication tokens carry the
+     * names of the roles implied by the user, disabled if not given.
+     */
+    String PROPERTY_TOKEN_ROLES                        = "org.ops4j.pax.useradmin.token.roles";
+
+    /**
+     * (optional) property that controls how many threads verify credentials
+     * passed to the {@link CredentialVerifier} service, if not given, the
+     * number of available processors is used.
+     */
+    String PROPERTY_CREDENTIAL_VERIFIER_THREADS        = "org.ops4j.pax.useradmin.credential.verifier.threads";
+
+    /**
+     * (optional) property that controls how many credential verifications
+     * may wait for a thread before further ones are rejected, if not given,
+     * an internal default is used.
+     */
+    String PROPERTY_CREDENTIAL_VERIFIER_QUEUE_SIZE     = "org.ops4j.pax.useradmin.credential.verifier.queue.size";
+
+    /**
+     * (optional) property that controls if the roles implied by a user are
+     * kept in a materialized index, disabled if not given. Entries never
+     * expire, so only set to <code>true</code> if the underlying datastore
+     * is modified by this service alone.
+     */
+    String PROPERTY_AUTHORIZATION_INDEX                = "org.ops4j.pax.useradmin.authorization.index";
+
+    /**
+     * (optional) property that controls if the roles implied by a user are
+     * computed from the whole role graph compiled into a boolean circuit,
+     * disabled if not given. The circuit is kept up to date by this service,
+     * so it requires {@link #PROPERTY_AUTHORIZATION_INDEX} to be enabled.
+     */
+    String PROPERTY_AUTHORIZATION_CIRCUIT              = "org.ops4j.pax.useradmin.authorization.circuit";
+
+    /**
+     * (optional) property that controls how many <code>hasRole()</code>
+     * decisions are cached, disabled if not given. Cached decisions do not
+     * expire, so only set if the underlying datastore is modified by this
+     * service alone.
+     */
+    String PROPERTY_AUTHORIZATION_CACHE_SIZE           = "org.ops4j.pax.useradmin.authorization.cache.size";
+
+    /**
+     * (optional) property that controls if <code>getAuthorization()</code>
+     * returns a {@link RefreshableAuthorization} which answers all requests
+     * from a snapshot taken on creation, disabled if not given.
+     */
+    String PROPERTY_AUTHORIZATION_SNAPSHOT             = "org.ops4j.pax.useradmin.authorization.snapshot";
+
+    /**
+     * (optional) property that controls after how many milliseconds an
+     * authorization snapshot is refreshed on the next request, if not given
+     * snapshots are only refreshed on demand.
+     */
+    String PROPERTY_AUTHORIZATION_SNAPSHOT_MAXAGE      = "org.ops4j.pax.useradmin.authorization.snapshot.maxage";
+
 }
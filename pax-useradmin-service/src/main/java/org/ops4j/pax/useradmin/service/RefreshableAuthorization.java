@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service;
+
+import org.osgi.service.useradmin.Authorization;
+
+/**
+ * An <code>Authorization</code> that answers all requests from a snapshot of
+ * the roles implied by its user, taken when the authorization was created.
+ * Returned by <code>UserAdmin.getAuthorization()</code> if
+ * {@link PaxUserAdminConstants#PROPERTY_AUTHORIZATION_SNAPSHOT} is enabled.
+ */
+public interface RefreshableAuthorization extends Authorization {
+
+    /**
+     * Replaces the snapshot by the roles currently implied by the user.
+     */
+    void refresh();
+
+    /**
+     * @return The time the current snapshot was taken, in milliseconds as
+     *         returned by <code>System.currentTimeMillis()</code>.
+     */
+    long getTimestamp();
+}
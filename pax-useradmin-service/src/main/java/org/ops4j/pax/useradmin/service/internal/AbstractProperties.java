@@ -19,9 +19,11 @@ package org.ops4j.pax.useradmin.service.internal;
 
 import java.util.Dictionary;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
+import org.ops4j.pax.useradmin.service.spi.RoleDataLoader;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.osgi.service.log.LogService;
@@ -30,7 +32,8 @@ import org.osgi.service.useradmin.UserAdminEvent;
 
 /**
  * Abstract base class for properties that need to synchronize and communicate
- * changes.
+ * changes. Reads don't lock: the data is held in an immutable map which is
+ * replaced on every change, while changes are serialized per instance.
  */
 public abstract class AbstractProperties<R extends Role> extends Dictionary<String, Object> {
 
@@ -44,7 +47,16 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
      */
     private final UserAdminUtil             m_util;
 
-    private final Hashtable<String, Object> hashtable;
+    /**
+     * The current data. Never modified - writers replace it by a modified
+     * copy, so readers don't need to lock.
+     */
+    private volatile Map<String, Object>    m_data;
+
+    /**
+     * Reads the data on first access - null if the data is already loaded.
+     */
+    private volatile RoleDataLoader         m_loader;
 
     /**
      * @return The role these properties belong to.
@@ -102,13 +114,52 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
     AbstractProperties(R role, UserAdminUtil util, Map<String, Object> properties) {
         m_role = role;
         m_util = util;
-        if (properties != null) {
-            hashtable = new Hashtable<String, Object>(properties);
-        } else {
-            hashtable = new Hashtable<String, Object>();
+        m_data = copyOf(properties);
+    }
+
+    /**
+     * Reads the data from the given loader. Overridden by implementations
+     * that hold other data than the properties.
+     * 
+     * @param loader
+     *            The loader to use.
+     * @throws StorageException
+     *             if an error occurs when reading the data
+     */
+    protected void load(RoleDataLoader loader) throws StorageException {
+        replace(loader.loadProperties());
+    }
+
+    /**
+     * Loads the data if a loader is pending. If loading fails the error is
+     * logged and the loader is retried on next access.
+     */
+    protected void ensureLoaded() {
+        if (null != m_loader) {
+            synchronized (this) {
+                RoleDataLoader loader = m_loader;
+                if (null != loader) {
+                    try {
+                        load(loader);
+                        m_loader = null;
+                    } catch (StorageException e) {
+                        m_util.logMessage(this, LogService.LOG_ERROR, "error when loading data of role '" + m_role.getName() + "': " + e.getMessage());
+                    }
+                }
+            }
         }
     }
 
+    /**
+     * Replaces the data by a loader which is invoked on first access.
+     * 
+     * @param loader
+     *            The loader - null if the current data is up to date.
+     */
+    synchronized void setLoader(RoleDataLoader loader) {
+        m_loader = loader;
+    }
+
     /**
      * Optionally overridden by implementations that need security checks on the
      * get method(s), e.g. for access to credentials.
@@ -119,10 +170,11 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
     protected abstract void checkGetPermission(String key);
 
     @Override
-    public synchronized Object get(Object key) {
+    public Object get(Object key) {
         checkKeyValid(key);
         checkGetPermission((String) key);
-        return hashtable.get(key);
+        ensureLoaded();
+        return m_data.get(key);
     }
 
     void checkKeyValid(Object key) throws IllegalArgumentException {
@@ -154,6 +206,7 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
             } catch (RuntimeException e) {
                 //Ignore then..
             }
+            ensureLoaded();
             Object storedValue = store(storageProvider, key, value);
             m_util.fireEvent(UserAdminEvent.ROLE_CHANGED, m_role);
             return putInternal(key, storedValue, oldValue);
@@ -163,8 +216,44 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
         return null;
     }
 
+    /**
+     * Replaces the data by the given data as read by the StorageProvider -
+     * the storage is not updated and no events are fired.
+     * 
+     * @param properties
+     *            The current data - maybe null
+     */
+    synchronized void refresh(Map<String, Object> properties) {
+        m_loader = null;
+        replace(properties);
+    }
+
+    private void replace(Map<String, Object> properties) {
+        m_data = copyOf(properties);
+    }
+
     protected Object putInternal(String key, Object storedValue, Object oldValue) {
-        return hashtable.put(key, storedValue);
+        Map<String, Object> data = new HashMap<String, Object>(m_data);
+        Object previous = data.put(key, storedValue);
+        m_data = Collections.unmodifiableMap(data);
+        return previous;
+    }
+
+    private Object removeInternal(Object key) {
+        if (!m_data.containsKey(key)) {
+            return null;
+        }
+        Map<String, Object> data = new HashMap<String, Object>(m_data);
+        Object previous = data.remove(key);
+        m_data = Collections.unmodifiableMap(data);
+        return previous;
+    }
+
+    private static Map<String, Object> copyOf(Map<String, Object> properties) {
+        if (null == properties || properties.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(new HashMap<String, Object>(properties));
     }
 
     @Override
@@ -172,9 +261,10 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
         checkKeyValid(key);
         try {
             StorageProvider storageProvider = m_util.getStorageProvider();
+            ensureLoaded();
             remove(storageProvider, (String) key);
             m_util.fireEvent(UserAdminEvent.ROLE_CHANGED, m_role);
-            return hashtable.remove(key);
+            return removeInternal(key);
         } catch (StorageException e) {
             m_util.logMessage(this, LogService.LOG_ERROR, e.getMessage());
         }
@@ -183,22 +273,26 @@ public abstract class AbstractProperties<R extends Role> extends Dictionary<Stri
 
     @Override
     public boolean isEmpty() {
-        return hashtable.isEmpty();
+        ensureLoaded();
+        return m_data.isEmpty();
     }
 
     @Override
     public Enumeration<Object> elements() {
-        return hashtable.elements();
+        ensureLoaded();
+        return Collections.enumeration(m_data.values());
     }
 
     @Override
     public Enumeration<String> keys() {
-        return hashtable.keys();
+        ensureLoaded();
+        return Collections.enumeration(m_data.keySet());
     }
 
     @Override
     public int size() {
-        return hashtable.size();
+        ensureLoaded();
+        return m_data.size();
     }
 
 }
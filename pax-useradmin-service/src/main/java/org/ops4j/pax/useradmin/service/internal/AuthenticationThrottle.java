@@ -0,0 +1,391 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts failed credential verifications in a sliding window, per user and
+ * for all users, and blocks further verifications once a limit is reached.
+ * <p>
+ * The window is split into time buckets. The per-user counters are kept in a
+ * count-min sketch: each user name is hashed to one slot in each of two rows
+ * and the smaller count is taken, so colliding users can only be blocked too
+ * early, never too late. The rows are indexed by two unrelated hashes of the
+ * name and have four slots per expected user. A user the sketch would block
+ * is confirmed against exact counters of the most recently failed users,
+ * kept in preallocated open addressed tables - one per lock stripe, holding
+ * the expected number of users together.
+ * <p>
+ * As long as no more users fail within a window than expected, the exact
+ * counters decide and no user is blocked by a collision. Beyond that, a user
+ * evicted from the exact counters is judged by the sketch alone: with
+ * <i>F</i> users at the limit and <i>W</i> slots per row, an innocent user is
+ * blocked with a probability of about <i>(F/W)<sup>2</sup></i> - 1/16 if
+ * the expected number of users reach the limit.
+ */
+public class AuthenticationThrottle {
+
+    private static final int    BUCKETS = 10;
+
+    private static final int    MINIMUM_SLOTS = 64;
+
+    private static final int    STRIPES = 64;
+
+    /**
+     * The number of entries of an exact table looked at for a user.
+     */
+    private static final int    PROBES = 8;
+
+    /**
+     * The failures of the current configuration.
+     */
+    private volatile Counters   m_counters;
+
+    private final AtomicLong    m_blocked = new AtomicLong();
+
+    /**
+     * Time bucketed counters for a number of slots.
+     */
+    private static final class Window {
+
+        private final long[] m_epochs;
+
+        private final int[]  m_counts;
+
+        Window(int slots) {
+            m_epochs = new long[slots * BUCKETS];
+            m_counts = new int[slots * BUCKETS];
+        }
+
+        /**
+         * Must be called holding the lock of the slot.
+         */
+        void increment(int slot, long epoch) {
+            int index = slot * BUCKETS + (int) (epoch % BUCKETS);
+            if (m_epochs[index] != epoch) {
+                m_epochs[index] = epoch;
+                m_counts[index] = 0;
+            }
+            m_counts[index]++;
+        }
+
+        /**
+         * Must be called holding the lock of the slot.
+         * 
+         * @return The number of failures in the buckets of the window ending
+         *         with the given one.
+         */
+        int sum(int slot, long epoch) {
+            int sum = 0;
+            for (int index = slot * BUCKETS; index < (slot + 1) * BUCKETS; index++) {
+                if (m_epochs[index] > epoch - BUCKETS && m_epochs[index] <= epoch) {
+                    sum += m_counts[index];
+                }
+            }
+            return sum;
+        }
+
+        /**
+         * Must be called holding the lock of the slot.
+         */
+        void clear(int slot) {
+            for (int index = slot * BUCKETS; index < (slot + 1) * BUCKETS; index++) {
+                m_epochs[index] = 0;
+                m_counts[index] = 0;
+            }
+        }
+    }
+
+    /**
+     * The exact counters of the users of one lock stripe - an open addressed
+     * table which replaces the entry failed least recently when the probed
+     * entries are taken. Guarded by itself.
+     */
+    private static final class ExactTable {
+
+        private final String[] m_names;
+
+        /**
+         * The epoch of the last failure of each entry.
+         */
+        private final long[]   m_last;
+
+        private final Window   m_window;
+
+        private final int      m_probes;
+
+        /**
+         * The epoch an entry within the window was last replaced in.
+         */
+        private long           m_evicted = Long.MIN_VALUE;
+
+        ExactTable(int size) {
+            m_names = new String[size];
+            m_last = new long[size];
+            m_window = new Window(size);
+            m_probes = Math.min(size, PROBES);
+        }
+
+        /**
+         * @return The entry of the user - -1 if there is none.
+         */
+        int find(String userName, int hash) {
+            for (int i = 0; i < m_probes; i++) {
+                int index = (hash + i) & (m_names.length - 1);
+                if (null == m_names[index]) {
+                    return -1;
+                }
+                if (userName.equals(m_names[index])) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return The entry of the user, taken over if the user had none.
+         */
+        int claim(String userName, int hash, long epoch) {
+            int oldest = -1;
+            for (int i = 0; i < m_probes; i++) {
+                int index = (hash + i) & (m_names.length - 1);
+                if (null == m_names[index]) {
+                    m_names[index] = userName;
+                    return index;
+                }
+                if (userName.equals(m_names[index])) {
+                    return index;
+                }
+                if (oldest < 0 || m_last[index] < m_last[oldest]) {
+                    oldest = index;
+                }
+            }
+            if (m_last[oldest] > epoch - BUCKETS) {
+                m_evicted = epoch;
+            }
+            m_names[oldest] = userName;
+            m_window.clear(oldest);
+            return oldest;
+        }
+    }
+
+    /**
+     * The limits and counters of a configuration.
+     */
+    private static final class Counters {
+
+        private final int          m_slots;
+
+        private final int          m_userLimit;
+
+        private final int          m_globalLimit;
+
+        private final long         m_bucketNanos;
+
+        private final long         m_start  = System.nanoTime();
+
+        /**
+         * Two rows of the per-user sketch.
+         */
+        private final Window       m_users;
+
+        private final Window       m_global = new Window(1);
+
+        private final Object[]     m_locks  = new Object[STRIPES];
+
+        /**
+         * The exact counters of the most recently failed users.
+         */
+        private final ExactTable[] m_exact;
+
+        Counters(int userLimit, int globalLimit, long windowMillis, int users) {
+            m_userLimit = userLimit;
+            m_globalLimit = globalLimit;
+            m_bucketNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(windowMillis) / BUCKETS);
+            m_slots = slots(users);
+            m_users = new Window(userLimit > 0 ? 2 * m_slots : 0);
+            for (int i = 0; i < STRIPES; i++) {
+                m_locks[i] = new Object();
+            }
+            // at least PROBES entries per table, so probing rarely evicts
+            int size = users > 1 ? (int) Math.min(1 << 30, Long.highestOneBit(users - 1L) << 1) : 1;
+            int tables = userLimit > 0 ? Math.max(1, Math.min(STRIPES, size / PROBES)) : 0;
+            m_exact = new ExactTable[tables];
+            for (int i = 0; i < tables; i++) {
+                m_exact[i] = new ExactTable(size / tables);
+            }
+        }
+
+        long epoch() {
+            // shifted, so the first buckets are not mistaken for unused ones
+            return (System.nanoTime() - m_start) / m_bucketNanos + BUCKETS;
+        }
+
+        boolean isBlocked(String userName) {
+            long epoch = epoch();
+            if (m_globalLimit > 0) {
+                synchronized (m_global) {
+                    if (m_global.sum(0, epoch) >= m_globalLimit) {
+                        return true;
+                    }
+                }
+            }
+            if (m_userLimit > 0) {
+                int count = Integer.MAX_VALUE;
+                for (int row = 0; row < 2; row++) {
+                    int slot = slot(userName, row, m_slots);
+                    synchronized (m_locks[slot % STRIPES]) {
+                        count = Math.min(count, m_users.sum(slot, epoch));
+                    }
+                }
+                return count >= m_userLimit && confirm(userName, epoch);
+            }
+            return false;
+        }
+
+        /**
+         * @return False if the exact counters show that the user is not at
+         *         the limit.
+         */
+        private boolean confirm(String userName, long epoch) {
+            int hash = hash(userName, 0);
+            ExactTable table = m_exact[(hash(userName, 1) >>> 16) & (m_exact.length - 1)];
+            synchronized (table) {
+                int index = table.find(userName, hash);
+                if (index >= 0) {
+                    return table.m_window.sum(index, epoch) >= m_userLimit;
+                }
+                // the failures of the user might have been evicted
+                return table.m_evicted > epoch - BUCKETS;
+            }
+        }
+
+        void failed(String userName) {
+            long epoch = epoch();
+            if (m_globalLimit > 0) {
+                synchronized (m_global) {
+                    m_global.increment(0, epoch);
+                }
+            }
+            if (m_userLimit > 0) {
+                for (int row = 0; row < 2; row++) {
+                    int slot = slot(userName, row, m_slots);
+                    synchronized (m_locks[slot % STRIPES]) {
+                        m_users.increment(slot, epoch);
+                    }
+                }
+                int hash = hash(userName, 0);
+                ExactTable table = m_exact[(hash(userName, 1) >>> 16) & (m_exact.length - 1)];
+                synchronized (table) {
+                    int index = table.claim(userName, hash, epoch);
+                    table.m_window.increment(index, epoch);
+                    table.m_last[index] = epoch;
+                }
+            }
+        }
+    }
+
+    AuthenticationThrottle() {
+        configure(0, 0, 0, 1);
+    }
+
+    /**
+     * @return The number of slots per row of the sketch for the given number
+     *         of users - a power of two.
+     */
+    static int slots(int users) {
+        long slots = Math.max(MINIMUM_SLOTS, 4L * users);
+        return (int) Math.min(1 << 30, Long.highestOneBit(slots - 1) << 1);
+    }
+
+    /**
+     * @return The slot of the user name in the given row of a sketch with the
+     *         given number of slots per row.
+     */
+    static int slot(String userName, int row, int slots) {
+        return row * slots + (hash(userName, row) & (slots - 1));
+    }
+
+    /**
+     * @return The hash of the user name for the given row: row 0 uses
+     *         <code>String.hashCode()</code>, row 1 FNV-1a over the
+     *         characters, so names with equal hash codes are still told apart.
+     */
+    private static int hash(String userName, int row) {
+        int hash;
+        if (0 == row) {
+            hash = userName.hashCode();
+        } else {
+            hash = 0x811C9DC5;
+            for (int i = 0; i < userName.length(); i++) {
+                hash = (hash ^ userName.charAt(i)) * 0x01000193;
+            }
+        }
+        return hash ^ (hash >>> 16);
+    }
+    /**
+     * Replaces the limits, the counted failures are dropped.
+     * 
+     * @param userLimit
+     *            The number of failures of a single user within the window
+     *            which block the user - 0 for no limit.
+     * @param globalLimit
+     *            The number of failures of all users within the window which
+     *            block all users - 0 for no limit.
+     * @param windowMillis
+     *            The length of the window.
+     * @param users
+     *            The expected number of users failing within the window,
+     *            sizes the per-user counters.
+     */
+    void configure(int userLimit, int globalLimit, long windowMillis, int users) {
+        m_counters = userLimit > 0 || globalLimit > 0 ? new Counters(userLimit, globalLimit, windowMillis, users) : null;
+    }
+
+    /**
+     * @return True if the credentials of the given user must not be verified
+     *         now.
+     */
+    boolean isBlocked(String userName) {
+        Counters counters = m_counters;
+        if (null != counters && counters.isBlocked(userName)) {
+            m_blocked.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Counts a failed credential verification of the given user.
+     */
+    void failed(String userName) {
+        Counters counters = m_counters;
+        if (null != counters) {
+            counters.failed(userName);
+        }
+    }
+
+    /**
+     * @return The number of verifications blocked so far.
+     */
+    long getBlockedCount() {
+        return m_blocked.get();
+    }
+}
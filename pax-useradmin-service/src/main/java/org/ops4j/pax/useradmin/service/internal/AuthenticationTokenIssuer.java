@@ -0,0 +1,265 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.ops4j.pax.useradmin.service.AuthenticationTokenService;
+import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
+import org.osgi.service.useradmin.Authorization;
+import org.osgi.service.useradmin.User;
+
+/**
+ * Issues tokens of the form <code>payload.signature</code>, both hex encoded.
+ * The payload holds the issue time, the expiry, the user name and optionally
+ * the implied role names, the signature is a HMAC of the payload with a key
+ * generated when this instance is created.
+ * <p>
+ * A token is revoked if its user - or, for tokens carrying roles, any group -
+ * was changed at or after the time the token was issued. Revocation times are
+ * forgotten once all tokens issued before are expired.
+ */
+public class AuthenticationTokenIssuer implements AuthenticationTokenService {
+
+    private static final String     MAC_ALGORITHM = "HmacSHA256";
+
+    private static final int        KEY_LENGTH    = 32;
+
+    private final PaxUserAdmin      m_userAdmin;
+
+    private final SecretKey         m_key;
+
+    /**
+     * The MAC of each thread.
+     */
+    private final ThreadLocal<Mac>  m_mac;
+
+    /**
+     * user name -&gt; time the user was changed last.
+     */
+    private final Map<String, Long> m_revoked     = new HashMap<String, Long>();
+
+    /**
+     * The time any group was changed last.
+     */
+    private long                    m_rolesRevoked;
+
+    private volatile long           m_lifetime;
+
+    /**
+     * The longest lifetime configured so far - revocation times are kept at
+     * least this long.
+     */
+    private long                    m_maximumLifetime;
+
+    private volatile boolean        m_includeRoles;
+
+    /**
+     * The content of a valid token.
+     */
+    private static final class TokenImpl implements Token {
+
+        private final String      m_userName;
+
+        private final long        m_expiry;
+
+        private final Set<String> m_roles;
+
+        TokenImpl(String userName, long expiry, Set<String> roles) {
+            m_userName = userName;
+            m_expiry = expiry;
+            m_roles = roles;
+        }
+
+        @Override
+        public String getUserName() {
+            return m_userName;
+        }
+
+        @Override
+        public long getExpiry() {
+            return m_expiry;
+        }
+
+        @Override
+        public Set<String> getRoles() {
+            return m_roles;
+        }
+    }
+
+    AuthenticationTokenIssuer(PaxUserAdmin userAdmin) {
+        m_userAdmin = userAdmin;
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        m_key = new SecretKeySpec(key, MAC_ALGORITHM);
+        // fail early if the algorithm is not available
+        createMac(m_key);
+        m_mac = new ThreadLocal<Mac>() {
+
+            @Override
+            protected Mac initialValue() {
+                return createMac(m_key);
+            }
+        };
+    }
+
+    /**
+     * @param lifetimeSeconds
+     *            The number of seconds new tokens are valid.
+     * @param includeRoles
+     *            True if new tokens carry the implied role names.
+     */
+    synchronized void configure(long lifetimeSeconds, boolean includeRoles) {
+        m_lifetime = TimeUnit.SECONDS.toMillis(lifetimeSeconds);
+        m_maximumLifetime = Math.max(m_maximumLifetime, m_lifetime);
+        m_includeRoles = includeRoles;
+    }
+
+    @Override
+    public String issueToken(User user, String key, Object value) {
+        // taken before the verification, so a concurrent change revokes the token
+        long issued = System.currentTimeMillis();
+        if (!user.hasCredential(key, value)) {
+            return null;
+        }
+        Set<String> roles = null;
+        if (m_includeRoles) {
+            Authorization authorization = m_userAdmin.getAuthorization(user);
+            String[] names = authorization.getRoles();
+            roles = new HashSet<String>();
+            if (null != names) {
+                Collections.addAll(roles, names);
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(issued);
+            out.writeLong(issued + m_lifetime);
+            out.writeUTF(user.getName());
+            out.writeInt(null != roles ? roles.size() : -1);
+            if (null != roles) {
+                for (String role : roles) {
+                    out.writeUTF(role);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("token can't be written", e);
+        }
+        byte[] payload = bytes.toByteArray();
+        return UserAdminTools.bytesToHex(payload) + "." + UserAdminTools.bytesToHex(m_mac.get().doFinal(payload));
+    }
+
+    @Override
+    public Token validateToken(String token) {
+        int separator = token.indexOf('.');
+        if (separator < 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = UserAdminTools.hexToBytes(token.substring(0, separator));
+            signature = UserAdminTools.hexToBytes(token.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(m_mac.get().doFinal(payload), signature)) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            long issued = in.readLong();
+            long expiry = in.readLong();
+            String userName = in.readUTF();
+            int roleCount = in.readInt();
+            if (expiry <= System.currentTimeMillis() || isRevoked(userName, issued, roleCount >= 0)) {
+                return null;
+            }
+            Set<String> roles = null;
+            if (roleCount >= 0) {
+                roles = new HashSet<String>(roleCount);
+                for (int i = 0; i < roleCount; i++) {
+                    roles.add(in.readUTF());
+                }
+                roles = Collections.unmodifiableSet(roles);
+            }
+            return new TokenImpl(userName, expiry, roles);
+        } catch (IOException e) {
+            // signed by us, so this can't happen
+            throw new IllegalStateException("token can't be read", e);
+        }
+    }
+
+    /**
+     * Revokes the tokens of the given role.
+     * 
+     * @param roleName
+     *            The name of the changed or removed role.
+     * @param group
+     *            True if the role is a group, which revokes all tokens
+     *            carrying roles.
+     */
+    synchronized void revoke(String roleName, boolean group) {
+        long now = System.currentTimeMillis();
+        m_revoked.put(roleName, Long.valueOf(now));
+        if (group) {
+            m_rolesRevoked = now;
+        }
+        // tokens issued before this are expired
+        long expired = now - m_maximumLifetime;
+        for (Iterator<Long> i = m_revoked.values().iterator(); i.hasNext();) {
+            if (i.next().longValue() < expired) {
+                i.remove();
+            }
+        }
+    }
+
+    private synchronized boolean isRevoked(String userName, long issued, boolean withRoles) {
+        Long revoked = m_revoked.get(userName);
+        return (null != revoked && issued <= revoked.longValue()) || (withRoles && issued <= m_rolesRevoked);
+    }
+
+    private static Mac createMac(SecretKey key) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("MAC algorithm '" + MAC_ALGORITHM + "' not available", e);
+        }
+    }
+}
@@ -17,19 +17,15 @@
 
 package org.ops4j.pax.useradmin.service.internal;
 
-import java.util.ArrayList;
-import java.util.Collection;
-
 import org.ops4j.pax.useradmin.service.spi.SPIRole;
-import org.ops4j.pax.useradmin.service.spi.SPIRole.ImplicationResult;
-import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.log.LogService;
 import org.osgi.service.useradmin.Authorization;
-import org.osgi.service.useradmin.Role;
 import org.osgi.service.useradmin.User;
 
 /**
- * Implementation of the Authorization interface.
+ * Implementation of the Authorization interface. Role lookups are answered by
+ * the {@link MembershipIndex} of the <code>UserAdmin</code> service - single
+ * checks of users without a materialized entry by its {@link DecisionCache}.
  * 
  * @see <a href="http://www.osgi.org/javadoc/r4v42/org/osgi/service/useradmin/Authorization.html">http://www.osgi.org/javadoc/r4v42/org/osgi/service/useradmin/Authorization.html</a>
  */
@@ -74,34 +70,7 @@ public class AuthorizationImpl implements Authorization {
     @Override
     public String[] getRoles() {
         if (m_user instanceof SPIRole) {
-            SPIRole spiRoleUser = (SPIRole) m_user;
-            Collection<String> roleNames = new ArrayList<String>();
-            try {
-                Role[] roles = m_userAdmin.getRoles(null);
-                if (null != roles) {
-                    for (Role role : roles) {
-                        if (!Role.USER_ANYONE.equals(role.getName())) {
-                            if (role instanceof SPIRole) {
-                                ImplicationResult result = ((SPIRole) role).isImpliedBy(spiRoleUser, new ArrayList<String>());
-                                if (ImplicationResult.IMPLIEDBY_YES == result) {
-                                    String name = role.getName();
-                                    roleNames.add(name);
-                                }
-                            } else {
-                                getAdmin().logMessage(AuthorizationImpl.class.getSimpleName(), LogService.LOG_WARNING, "getRoles(): role " + role.getName()
-                                        + " is ignored because " + role.getClass().getName() + " does not implement the SPIRole interface");
-                            }
-                        }
-                    }
-                }
-                if (!roleNames.isEmpty()) {
-                    return roleNames.toArray(new String[0]);
-                }
-            } catch (InvalidSyntaxException e) {
-                // will never be reached because UserAdmin.getRoles() allows null filters
-                throw new IllegalStateException("Unexpected InvalidSyntaxException caught while using null filter: " + e.getMessage() + " for filter: "
-                        + e.getFilter(), e);
-            }
+            return getAdmin().getMembershipIndex().getImpliedRoles((SPIRole) m_user);
         } else {
             getAdmin().logMessage(AuthorizationImpl.class.getSimpleName(), LogService.LOG_WARNING, "getRoles(): denoted user is ignored because "
                     + m_user.getClass().getName() + " does not implement the SPIRole interface");
@@ -111,20 +80,17 @@ public class AuthorizationImpl implements Authorization {
 
     @Override
     public boolean hasRole(String name) {
-        Role roleToCheck = getAdmin().getRole(name);
-        if (null != roleToCheck) {
-            if (roleToCheck instanceof SPIRole) {
-                if (m_user instanceof SPIRole) {
-                    ImplicationResult result = ((SPIRole) roleToCheck).isImpliedBy((SPIRole) m_user, new ArrayList<String>());
-                    return ImplicationResult.IMPLIEDBY_YES == result;
-                } else {
-                    getAdmin().logMessage(AuthorizationImpl.class.getSimpleName(), LogService.LOG_WARNING, "hasRole(" + name
-                            + "): denoted user is ignored because " + m_user.getClass().getName() + " does not implement the SPIRole interface");
-                }
-            } else {
-                getAdmin().logMessage(AuthorizationImpl.class.getSimpleName(), LogService.LOG_WARNING, "hasRole(" + name
-                        + "): denoted role is ignored because " + roleToCheck.getClass().getName() + " does not implement the SPIRole interface");
+        if (m_user instanceof SPIRole) {
+            // answered by the index if the roles of the user are materialized,
+            // by the decision cache otherwise
+            Boolean implied = getAdmin().getMembershipIndex().findImplied((SPIRole) m_user, name);
+            if (null == implied) {
+                implied = getAdmin().getDecisionCache().isImplied((SPIRole) m_user, name);
             }
+            return implied;
+        } else {
+            getAdmin().logMessage(AuthorizationImpl.class.getSimpleName(), LogService.LOG_WARNING, "hasRole(" + name
+                    + "): denoted user is ignored because " + m_user.getClass().getName() + " does not implement the SPIRole interface");
         }
         return false;
     }
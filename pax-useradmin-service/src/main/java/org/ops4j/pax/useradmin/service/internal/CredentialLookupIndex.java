@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.ops4j.pax.useradmin.service.CredentialLookup;
+import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+import org.ops4j.pax.useradmin.service.spi.CredentialLookupProvider;
+import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.User;
+
+/**
+ * Computes the lookups of credentials with configured keys - a HMAC of key and
+ * value with a configured secret - and finds users by them with the help of a
+ * {@link CredentialLookupProvider}.
+ */
+public class CredentialLookupIndex implements CredentialLookup {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final PaxUserAdmin  m_userAdmin;
+
+    /**
+     * The current configuration - null if lookups are disabled.
+     */
+    private volatile Settings   m_settings;
+
+    /**
+     * The lookup keys and the MAC of each thread.
+     */
+    private static final class Settings {
+
+        private final Set<String>      m_keys;
+
+        private final ThreadLocal<Mac> m_mac;
+
+        Settings(Set<String> keys, final SecretKeySpec secret) {
+            m_keys = keys;
+            m_mac = new ThreadLocal<Mac>() {
+
+                @Override
+                protected Mac initialValue() {
+                    return createMac(secret);
+                }
+            };
+        }
+    }
+
+    CredentialLookupIndex(PaxUserAdmin userAdmin) {
+        m_userAdmin = userAdmin;
+    }
+
+    /**
+     * @param keys
+     *            The lookup keys, separated by commas - null to disable
+     *            lookups.
+     * @param secret
+     *            The HMAC secret as hex string.
+     * @throws IllegalArgumentException
+     *             if keys are given without a valid secret
+     */
+    void configure(String keys, String secret) {
+        if (null == keys || 0 == keys.trim().length()) {
+            m_settings = null;
+            return;
+        }
+        if (null == secret) {
+            throw new IllegalArgumentException("credential lookups need a secret");
+        }
+        Set<String> keySet = new HashSet<String>();
+        for (String key : keys.split(",")) {
+            if (key.trim().length() > 0) {
+                keySet.add(key.trim());
+            }
+        }
+        SecretKeySpec secretKey = new SecretKeySpec(UserAdminTools.hexToBytes(secret.trim()), MAC_ALGORITHM);
+        // fail early if the algorithm is not available
+        createMac(secretKey);
+        m_settings = new Settings(Collections.unmodifiableSet(keySet), secretKey);
+    }
+
+    @Override
+    public boolean isLookupKey(String key) {
+        Settings settings = m_settings;
+        return null != settings && settings.m_keys.contains(key);
+    }
+
+    @Override
+    public User findUser(String key, Object value) {
+        Settings settings = m_settings;
+        if (null == settings || !settings.m_keys.contains(key)) {
+            throw new IllegalArgumentException("credential key '" + key + "' is not configured for lookups, see "
+                    + PaxUserAdminConstants.PROPERTY_CREDENTIAL_LOOKUP_KEYS);
+        }
+        String name;
+        try {
+            CredentialProvider provider = m_userAdmin.getStorageProvider().getCredentialProvider();
+            if (!(provider instanceof CredentialLookupProvider)) {
+                throw new UnsupportedOperationException("the credential provider doesn't support lookups");
+            }
+            name = ((CredentialLookupProvider) provider).findCredentialLookup(key, getLookup(settings, key, value));
+        } catch (StorageException e) {
+            m_userAdmin.logMessage(this, LogService.LOG_ERROR, "error when looking up credential '" + key + "': " + e.getMessage());
+            return null;
+        }
+        if (null == name) {
+            return null;
+        }
+        Role role = m_userAdmin.getRole(name);
+        // the lookup may be outdated if the storage was changed by other means
+        if (role instanceof User && ((User) role).hasCredential(key, value)) {
+            return (User) role;
+        }
+        return null;
+    }
+
+    /**
+     * Stores the lookup of a credential which was just stored, if its key is
+     * configured for lookups.
+     */
+    void credentialStored(CredentialProvider provider, User user, String key, Object value) throws StorageException {
+        Settings settings = m_settings;
+        if (null == settings || !settings.m_keys.contains(key)) {
+            return;
+        }
+        if (provider instanceof CredentialLookupProvider) {
+            ((CredentialLookupProvider) provider).setCredentialLookup(user, key, getLookup(settings, key, value));
+        } else {
+            m_userAdmin.logMessage(this, LogService.LOG_WARNING, "credential '" + key + "' of user '" + user.getName()
+                    + "' can't be looked up - the credential provider doesn't support lookups");
+        }
+    }
+
+    private static byte[] getLookup(Settings settings, String key, Object value) {
+        Mac mac = settings.m_mac.get();
+        mac.update(UserAdminTools.stringToBytes(key));
+        // separates key and value, and tells strings from bytes
+        if (value instanceof String) {
+            mac.update((byte) 's');
+            return mac.doFinal(UserAdminTools.stringToBytes((String) value));
+        }
+        if (value instanceof byte[]) {
+            mac.update((byte) 'b');
+            return mac.doFinal((byte[]) value);
+        }
+        mac.reset();
+        throw new IllegalArgumentException("credential value must be a String or byte[]");
+    }
+
+    private static Mac createMac(SecretKeySpec secret) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("MAC algorithm '" + MAC_ALGORITHM + "' not available", e);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ops4j.pax.useradmin.service.CredentialReencryptor;
+import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
+import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.RolePageProvider;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.User;
+
+/**
+ * Re-encrypts the credentials of all users read from the
+ * <code>StorageProvider</code>. Users are processed in name-ordered batches -
+ * the users of a batch in parallel - and a checkpoint is reported after each
+ * batch.
+ */
+public class CredentialReencryptorImpl implements CredentialReencryptor {
+
+    private static final int   BATCH_SIZE = 100;
+
+    private final PaxUserAdmin m_userAdmin;
+
+    /**
+     * The counters of a run.
+     */
+    private static final class RunProgress implements Progress {
+
+        private final long       m_start        = System.nanoTime();
+
+        private final AtomicLong m_reencrypted  = new AtomicLong();
+
+        private final AtomicLong m_current      = new AtomicLong();
+
+        private final AtomicLong m_unrecoverable = new AtomicLong();
+
+        private final AtomicLong m_failed       = new AtomicLong();
+
+        private volatile int     m_users;
+
+        private volatile String  m_checkpoint;
+
+        RunProgress(String checkpoint) {
+            m_checkpoint = checkpoint;
+        }
+
+        @Override
+        public int getUserCount() {
+            return m_users;
+        }
+
+        @Override
+        public long getReencryptedCount() {
+            return m_reencrypted.get();
+        }
+
+        @Override
+        public long getCurrentCount() {
+            return m_current.get();
+        }
+
+        @Override
+        public long getUnrecoverableCount() {
+            return m_unrecoverable.get();
+        }
+
+        @Override
+        public long getFailedCount() {
+            return m_failed.get();
+        }
+
+        @Override
+        public String getCheckpoint() {
+            return m_checkpoint;
+        }
+
+        @Override
+        public double getThroughput() {
+            long credentials = m_reencrypted.get() + m_current.get() + m_unrecoverable.get() + m_failed.get();
+            long nanos = Math.max(1, System.nanoTime() - m_start);
+            return credentials * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "users: " + m_users + ", re-encrypted: " + m_reencrypted + ", current: " + m_current + ", unrecoverable: " + m_unrecoverable
+                    + ", failed: " + m_failed + ", credentials/s: " + Math.round(getThroughput()) + ", checkpoint: " + m_checkpoint;
+        }
+    }
+
+    /**
+     * Spaces the processed credentials evenly to stay below a rate.
+     */
+    private static final class RateLimiter {
+
+        private final long m_interval;
+
+        private long       m_next;
+
+        RateLimiter(int rate) {
+            m_interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+            m_next = System.nanoTime();
+        }
+
+        void acquire() throws InterruptedException {
+            if (0 == m_interval) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                wait = m_next - now;
+                m_next = Math.max(m_next, now) + m_interval;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    /**
+     * Reads the roles after a checkpoint in pages ordered by name - from the
+     * <code>RolePageProvider</code> if the storage implements it, else from
+     * all roles of the storage, read once and sorted.
+     */
+    private final class RolePages {
+
+        private final String m_checkpoint;
+
+        private List<Role>   m_roles;
+
+        private int          m_position;
+
+        RolePages(String checkpoint) {
+            m_checkpoint = checkpoint;
+        }
+
+        /**
+         * @return The roles following the given name, empty after the last
+         *         page.
+         */
+        List<Role> next(String after) throws StorageException {
+            StorageProvider storageProvider = m_userAdmin.getStorageProvider();
+            if (storageProvider instanceof RolePageProvider) {
+                return ((RolePageProvider) storageProvider).findRolePage(m_userAdmin, after, BATCH_SIZE);
+            }
+            if (null == m_roles) {
+                m_roles = new ArrayList<Role>();
+                for (Role role : storageProvider.findRoles(m_userAdmin, null)) {
+                    if (null == m_checkpoint || role.getName().compareTo(m_checkpoint) > 0) {
+                        m_roles.add(role);
+                    }
+                }
+                Collections.sort(m_roles, new Comparator<Role>() {
+
+                    @Override
+                    public int compare(Role role1, Role role2) {
+                        return role1.getName().compareTo(role2.getName());
+                    }
+                });
+            }
+            // the pages are read in sequence
+            int start = m_position;
+            m_position = Math.min(m_roles.size(), start + BATCH_SIZE);
+            return m_roles.subList(start, m_position);
+        }
+    }
+
+    CredentialReencryptorImpl(PaxUserAdmin userAdmin) {
+        m_userAdmin = userAdmin;
+    }
+
+    @Override
+    public Progress reencryptCredentials(String checkpoint, int threads, int rate, ProgressListener listener) throws InterruptedException {
+        m_userAdmin.checkAdminPermission();
+        final RunProgress progress = new RunProgress(checkpoint);
+        final RateLimiter limiter = new RateLimiter(rate);
+        RolePages pages = new RolePages(checkpoint);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            String after = checkpoint;
+            List<Role> batch;
+            while (!(batch = pages.next(after)).isEmpty()) {
+                List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(batch.size());
+                for (Role role : batch) {
+                    // groups have credentials too
+                    if (role instanceof User) {
+                        final User user = (User) role;
+                        tasks.add(new Callable<Object>() {
+
+                            @Override
+                            public Object call() throws InterruptedException {
+                                reencrypt(user, progress, limiter);
+                                return null;
+                            }
+                        });
+                    }
+                }
+                for (Future<Object> result : executor.invokeAll(tasks)) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        m_userAdmin.logMessage(this, LogService.LOG_ERROR, "error when re-encrypting credentials: " + e.getCause());
+                    }
+                }
+                after = batch.get(batch.size() - 1).getName();
+                progress.m_users += tasks.size();
+                progress.m_checkpoint = after;
+                if (null != listener) {
+                    listener.progress(progress);
+                }
+            }
+        } catch (StorageException e) {
+            m_userAdmin.logMessage(this, LogService.LOG_ERROR, "error when reading users: " + e.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+        m_userAdmin.logMessage(this, LogService.LOG_INFO, "credentials re-encrypted - " + progress);
+        return progress;
+    }
+
+    private void reencrypt(User user, RunProgress progress, RateLimiter limiter) throws InterruptedException {
+        // copy the keys: the credentials are changed while they are processed
+        List<String> keys = new ArrayList<String>();
+        Enumeration<?> enumeration = user.getCredentials().keys();
+        while (enumeration.hasMoreElements()) {
+            keys.add((String) enumeration.nextElement());
+        }
+        for (String key : keys) {
+            limiter.acquire();
+            try {
+                StorageProvider storageProvider = m_userAdmin.getStorageProvider();
+                CredentialProvider credentialProvider = storageProvider.getCredentialProvider();
+                CredentialRehasher.RecordingDecryptor decryptor = new CredentialRehasher.RecordingDecryptor(m_userAdmin.getDecryptor());
+                Object value;
+                try {
+                    value = credentialProvider.getUserCredential(decryptor, user, key);
+                } catch (UnsupportedOperationException e) {
+                    // only the hash is stored
+                    progress.m_unrecoverable.incrementAndGet();
+                    continue;
+                }
+                if (null != value && null == decryptor.getAlgorithmParameter()) {
+                    // the storage didn't decrypt: the stored parameters are unknown
+                    progress.m_unrecoverable.incrementAndGet();
+                    continue;
+                }
+                Encryptor encryptor = m_userAdmin.getEncryptor();
+                if (null == value || !CredentialRehasher.isOutdated(encryptor, decryptor.getAlgorithmParameter())) {
+                    progress.m_current.incrementAndGet();
+                } else {
+                    credentialProvider.setUserCredential(encryptor, user, key, value);
+                    progress.m_reencrypted.incrementAndGet();
+                }
+            } catch (StorageException e) {
+                progress.m_failed.incrementAndGet();
+                m_userAdmin.logMessage(this, LogService.LOG_WARNING, "error when re-encrypting credential '" + key + "' of user '" + user.getName()
+                        + "': " + e.getMessage());
+            } catch (RuntimeException e) {
+                progress.m_failed.incrementAndGet();
+                m_userAdmin.logMessage(this, LogService.LOG_WARNING, "error when re-encrypting credential '" + key + "' of user '" + user.getName()
+                        + "': " + e);
+            }
+        }
+    }
+}
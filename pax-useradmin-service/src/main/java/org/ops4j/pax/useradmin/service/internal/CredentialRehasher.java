@@ -0,0 +1,305 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.ops4j.pax.useradmin.service.internal.encryption.PaxUserAdminEncryptor;
+import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
+import org.ops4j.pax.useradmin.service.spi.Decryptor;
+import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.User;
+
+/**
+ * Re-encrypts credentials stored with outdated algorithm parameters after
+ * they were verified successfully - the plain value is only known then.
+ * Re-encryptions are queued and written in batches by a background task at a
+ * limited rate, so logins never wait for them. If the queue is full, further
+ * credentials are left as they are until their next verification.
+ * <p>
+ * The batches run on a thread of their own - the pause between them must not
+ * hold up event delivery.
+ */
+public class CredentialRehasher {
+
+    private static final int                                             MAXIMUM_PENDING = 1000;
+
+    private static final int                                             BATCH_SIZE      = 20;
+
+    private final PaxUserAdmin                                           m_userAdmin;
+
+    private final ScheduledExecutorService                               m_executor;
+
+    /**
+     * (user name, credential key) -&gt; pending re-encryption, oldest first.
+     */
+    private final Map<SimpleEntry<String, String>, Rehash>               m_pending       = new LinkedHashMap<SimpleEntry<String, String>, Rehash>();
+
+    /**
+     * True while the background task is scheduled or running - guarded by
+     * m_pending.
+     */
+    private boolean                                                      m_running;
+
+    private volatile boolean                                             m_enabled;
+
+    /**
+     * The maximum number of re-encryptions per second.
+     */
+    private volatile int                                                 m_rate;
+
+    /**
+     * A queued re-encryption.
+     */
+    private static final class Rehash {
+
+        private final User   m_user;
+
+        private final String m_key;
+
+        private final Object m_value;
+
+        Rehash(User user, String key, Object value) {
+            m_user = user;
+            m_key = key;
+            m_value = value instanceof byte[] ? ((byte[]) value).clone() : value;
+        }
+    }
+
+    /**
+     * A decryptor which remembers the algorithm parameters of a successfully
+     * verified or decrypted credential.
+     */
+    static final class RecordingDecryptor implements Decryptor {
+
+        private final Decryptor m_decryptor;
+
+        private byte[]          m_algorithmParameter;
+
+        RecordingDecryptor(Decryptor decryptor) {
+            m_decryptor = decryptor;
+        }
+
+        /**
+         * @return The algorithm parameters of the verified or decrypted
+         *         credential - null if no verification or decryption
+         *         succeeded.
+         */
+        byte[] getAlgorithmParameter() {
+            return m_algorithmParameter;
+        }
+
+        @Override
+        public Object decrypt(byte[] encryptedBytes, byte[] verificationBytes, byte[] salt, byte[] algorithmParameter) {
+            Object value = m_decryptor.decrypt(encryptedBytes, verificationBytes, salt, algorithmParameter);
+            record(true, algorithmParameter);
+            return value;
+        }
+
+        @Override
+        public boolean verify(String key, String value, byte[] verificationBytes, byte[] salt, byte[] algorithmParameter) {
+            return record(m_decryptor.verify(key, value, verificationBytes, salt, algorithmParameter), algorithmParameter);
+        }
+
+        @Override
+        public boolean verify(String key, byte[] value, byte[] verificationBytes, byte[] salt, byte[] algorithmParameter) {
+            return record(m_decryptor.verify(key, value, verificationBytes, salt, algorithmParameter), algorithmParameter);
+        }
+
+        private boolean record(boolean verified, byte[] algorithmParameter) {
+            if (verified) {
+                m_algorithmParameter = algorithmParameter;
+            }
+            return verified;
+        }
+    }
+
+    CredentialRehasher(PaxUserAdmin userAdmin) {
+        this(userAdmin, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PaxUserAdmin-CredentialRehasher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    CredentialRehasher(PaxUserAdmin userAdmin, ScheduledExecutorService executor) {
+        m_userAdmin = userAdmin;
+        m_executor = executor;
+    }
+
+    /**
+     * Enables or disables re-encryption - pending ones are dropped when
+     * disabled.
+     * 
+     * @param enabled
+     *            True to enable re-encryption.
+     * @param rate
+     *            The maximum number of re-encryptions per second.
+     */
+    void configure(boolean enabled, int rate) {
+        m_rate = Math.max(1, rate);
+        m_enabled = enabled;
+        if (!enabled) {
+            synchronized (m_pending) {
+                m_pending.clear();
+            }
+        }
+    }
+
+    /**
+     * Disables re-encryption for good and stops the background task.
+     */
+    void shutdown() {
+        configure(false, m_rate);
+        m_executor.shutdownNow();
+    }
+
+    /**
+     * @return True if re-encryption is enabled.
+     */
+    boolean isEnabled() {
+        return m_enabled;
+    }
+
+    /**
+     * Checks a credential after a successful verification and queues its
+     * re-encryption if the algorithm parameters are outdated.
+     * 
+     * @param user
+     *            The user the credential belongs to.
+     * @param key
+     *            The credential key.
+     * @param value
+     *            The verified plain value.
+     * @param algorithmParameter
+     *            The stored algorithm parameters.
+     */
+    void verified(User user, String key, Object value, byte[] algorithmParameter) {
+        if (!m_enabled || !isOutdated(algorithmParameter)) {
+            return;
+        }
+        synchronized (m_pending) {
+            if (m_pending.size() >= MAXIMUM_PENDING) {
+                return;
+            }
+            m_pending.put(new SimpleEntry<String, String>(user.getName(), key), new Rehash(user, key, value));
+            if (m_running) {
+                return;
+            }
+            m_running = true;
+        }
+        schedule(0);
+    }
+
+    /**
+     * @return The number of queued re-encryptions.
+     */
+    int getPendingCount() {
+        synchronized (m_pending) {
+            return m_pending.size();
+        }
+    }
+
+    private boolean isOutdated(byte[] algorithmParameter) {
+        return isOutdated(m_userAdmin.getEncryptor(), algorithmParameter);
+    }
+
+    /**
+     * @return True if the given algorithm parameters differ from the ones
+     *         the given encryptor writes - false if no parameters are known,
+     *         e.g. because the storage doesn't use the decryptor.
+     */
+    static boolean isOutdated(Encryptor encryptor, byte[] algorithmParameter) {
+        return null != algorithmParameter && encryptor instanceof PaxUserAdminEncryptor
+                && !Arrays.equals(((PaxUserAdminEncryptor) encryptor).getAlgorithmParameter(), algorithmParameter);
+    }
+
+    private void schedule(long delayNanos) {
+        try {
+            m_executor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            synchronized (m_pending) {
+                m_pending.clear();
+                m_running = false;
+            }
+        }
+    }
+
+    /**
+     * Writes one batch and schedules the next one, if any, so the configured
+     * rate is not exceeded.
+     */
+    private void drain() {
+        List<Rehash> batch = new ArrayList<Rehash>(BATCH_SIZE);
+        synchronized (m_pending) {
+            Iterator<Rehash> iterator = m_pending.values().iterator();
+            while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+                batch.add(iterator.next());
+                iterator.remove();
+            }
+            if (batch.isEmpty()) {
+                m_running = false;
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        for (Rehash rehash : batch) {
+            rehash(rehash);
+        }
+        schedule(Math.max(0, TimeUnit.SECONDS.toNanos(batch.size()) / m_rate - (System.nanoTime() - start)));
+    }
+
+    private void rehash(Rehash rehash) {
+        try {
+            CredentialProvider provider = m_userAdmin.getStorageProvider().getCredentialProvider();
+            // verify again: the credential may have been changed meanwhile
+            RecordingDecryptor decryptor = new RecordingDecryptor(m_userAdmin.getDecryptor());
+            if (provider.hasUserCredential(decryptor, rehash.m_user, rehash.m_key, rehash.m_value) && isOutdated(decryptor.getAlgorithmParameter())) {
+                provider.setUserCredential(m_userAdmin.getEncryptor(), rehash.m_user, rehash.m_key, rehash.m_value);
+            }
+        } catch (StorageException e) {
+            m_userAdmin.logMessage(this, LogService.LOG_WARNING, "error when re-encrypting credential '" + rehash.m_key + "' of user '"
+                    + rehash.m_user.getName() + "': " + e.getMessage());
+        } catch (RuntimeException e) {
+            m_userAdmin.logMessage(this, LogService.LOG_WARNING, "error when re-encrypting credential '" + rehash.m_key + "' of user '"
+                    + rehash.m_user.getName() + "': " + e);
+        }
+    }
+}
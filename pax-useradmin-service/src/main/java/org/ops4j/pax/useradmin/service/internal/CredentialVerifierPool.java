@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ops4j.pax.useradmin.service.CredentialVerifier;
+import org.osgi.service.useradmin.User;
+
+/**
+ * A {@link CredentialVerifier} running the verifications on its own pool of
+ * worker threads. The number of pending verifications is bounded, further
+ * requests are rejected.
+ */
+public class CredentialVerifierPool implements CredentialVerifier {
+
+    private static final long        KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadPoolExecutor m_executor;
+
+    /**
+     * The number of verifications submitted but not finished.
+     */
+    private final AtomicInteger      m_pending          = new AtomicInteger();
+
+    private final AtomicLong         m_completed        = new AtomicLong();
+
+    private final AtomicLong         m_rejected         = new AtomicLong();
+
+    private volatile int             m_maximumQueueSize;
+
+    /**
+     * A verification which updates the statistics if it is cancelled before
+     * it was run.
+     */
+    private final class Verification extends FutureTask<Boolean> {
+
+        private final AtomicBoolean m_finished;
+
+        Verification(Callable<Boolean> callable, AtomicBoolean finished) {
+            super(callable);
+            m_finished = finished;
+        }
+
+        @Override
+        protected void done() {
+            finish(m_finished);
+        }
+    }
+
+    /**
+     * @param threads
+     *            The number of worker threads.
+     * @param maximumQueueSize
+     *            The maximum number of verifications waiting for a worker.
+     */
+    public CredentialVerifierPool(int threads, int maximumQueueSize) {
+        m_executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            private final AtomicInteger m_count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PaxUserAdmin-CredentialVerifier-" + m_count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_executor.allowCoreThreadTimeOut(true);
+        m_maximumQueueSize = maximumQueueSize;
+    }
+
+    /**
+     * Changes the size of the pool.
+     */
+    void setLimits(int threads, int maximumQueueSize) {
+        if (threads > m_executor.getMaximumPoolSize()) {
+            m_executor.setMaximumPoolSize(threads);
+            m_executor.setCorePoolSize(threads);
+        } else {
+            m_executor.setCorePoolSize(threads);
+            m_executor.setMaximumPoolSize(threads);
+        }
+        m_maximumQueueSize = maximumQueueSize;
+    }
+
+    /**
+     * Stops the worker threads - pending verifications are still run.
+     */
+    void shutdown() {
+        m_executor.shutdown();
+    }
+
+    @Override
+    public Future<Boolean> verifyCredential(final User user, final String key, final Object value) throws RejectedExecutionException {
+        if (null == user) {
+            throw new IllegalArgumentException(UserAdminMessages.MSG_INVALID_USER);
+        }
+        // running verifications are not counted as queued
+        if (m_pending.incrementAndGet() > m_maximumQueueSize + m_executor.getMaximumPoolSize()) {
+            m_pending.decrementAndGet();
+            m_rejected.incrementAndGet();
+            throw new RejectedExecutionException("too many pending credential verifications");
+        }
+        final AccessControlContext context = AccessController.getContext();
+        final AtomicBoolean finished = new AtomicBoolean();
+        Verification verification = new Verification(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+                try {
+                    return AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
+
+                        @Override
+                        public Boolean run() {
+                            return user.hasCredential(key, value);
+                        }
+                    }, context);
+                } finally {
+                    // before the result is published
+                    finish(finished);
+                }
+            }
+        }, finished);
+        try {
+            m_executor.execute(verification);
+        } catch (RejectedExecutionException e) {
+            finished.set(true);
+            m_pending.decrementAndGet();
+            m_rejected.incrementAndGet();
+            throw e;
+        }
+        return verification;
+    }
+
+    private void finish(AtomicBoolean finished) {
+        if (finished.compareAndSet(false, true)) {
+            m_pending.decrementAndGet();
+            m_completed.incrementAndGet();
+        }
+    }
+
+    @Override
+    public int getQueueSize() {
+        return m_executor.getQueue().size();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return m_executor.getActiveCount();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return m_completed.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return m_rejected.get();
+    }
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.ops4j.pax.useradmin.service.AuthorizationCacheStatistics;
+import org.ops4j.pax.useradmin.service.spi.SPIRole;
+import org.ops4j.pax.useradmin.service.spi.SPIRole.ImplicationResult;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * A bounded cache of (user name, role name) -&gt; implied decisions.
+ * <p>
+ * Eviction follows the W-TinyLFU scheme: new decisions enter a small LRU
+ * window, decisions leaving the window compete with the eviction candidate of
+ * the main (segmented LRU) area and only the one used more often - as
+ * estimated by a count-min sketch - is kept.
+ * <p>
+ * Each decision records the names of the roles looked at while evaluating it.
+ * A change of one of these roles drops exactly the decisions depending on it.
+ * <p>
+ * Lookups do not block: a hit only reorders the queues if the lock is free,
+ * so under contention some accesses are not recorded for eviction.
+ */
+public class DecisionCache implements AuthorizationCacheStatistics {
+
+    private static final int     QUEUE_WINDOW    = 0;
+    private static final int     QUEUE_PROBATION = 1;
+    private static final int     QUEUE_PROTECTED = 2;
+
+    /**
+     * The <code>UserAdmin</code> service used to look up roles.
+     */
+    private final PaxUserAdmin   m_userAdmin;
+
+    /**
+     * Guards the queues, the dependents and the sketch - the nodes map is only
+     * modified while holding it.
+     */
+    private final ReentrantLock  m_lock          = new ReentrantLock();
+
+    private final Map<Key, Node> m_nodes         = new ConcurrentHashMap<Key, Node>();
+
+    /**
+     * role name -&gt; keys of the decisions depending on the role.
+     */
+    private final Map<String, Set<Key>> m_dependents = new HashMap<String, Set<Key>>();
+
+    private final Node           m_window        = new Node(null, false, null);
+    private final Node           m_probation     = new Node(null, false, null);
+    private final Node           m_protected     = new Node(null, false, null);
+
+    private int                  m_windowSize;
+    private int                  m_probationSize;
+    private int                  m_protectedSize;
+
+    private volatile int         m_maximumSize;
+    private int                  m_maximumWindowSize;
+    private int                  m_maximumProtectedSize;
+
+    private FrequencySketch      m_sketch;
+
+    /**
+     * Incremented on every invalidation - decisions evaluated concurrently
+     * with a change are not stored.
+     */
+    private long                 m_generation;
+
+    private final AtomicLong     m_hits          = new AtomicLong();
+    private final AtomicLong     m_misses        = new AtomicLong();
+    private volatile long        m_evictions;
+    private volatile long        m_invalidations;
+
+    /**
+     * The cache key.
+     */
+    static final class Key {
+
+        private final String m_user;
+
+        private final String m_role;
+
+        private final int    m_hash;
+
+        Key(String user, String role) {
+            m_user = user;
+            m_role = role;
+            m_hash = 31 * user.hashCode() + role.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return m_hash == other.m_hash && m_user.equals(other.m_user) && m_role.equals(other.m_role);
+        }
+    }
+
+    /**
+     * A cached decision - also used as list head of the queues.
+     */
+    private static final class Node {
+
+        private final Key      m_key;
+
+        private final boolean  m_implied;
+
+        private final String[] m_dependencies;
+
+        private int            m_queue;
+
+        private Node           m_prev = this;
+
+        private Node           m_next = this;
+
+        Node(Key key, boolean implied, String[] dependencies) {
+            m_key = key;
+            m_implied = implied;
+            m_dependencies = dependencies;
+        }
+    }
+
+    DecisionCache(PaxUserAdmin userAdmin, int maximumSize) {
+        m_userAdmin = userAdmin;
+        setMaximumSize(maximumSize);
+    }
+
+    /**
+     * Sets the maximum number of cached decisions - a changed size drops all
+     * cached decisions.
+     *
+     * @param maximumSize
+     *            The new maximum size - 0 disables the cache.
+     */
+    void setMaximumSize(int maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximum size must not be negative: " + maximumSize);
+        }
+        m_lock.lock();
+        try {
+            if (maximumSize == m_maximumSize && (null != m_sketch || 0 == maximumSize)) {
+                return;
+            }
+            clear();
+            m_maximumWindowSize = maximumSize > 0 ? Math.max(1, maximumSize / 100) : 0;
+            m_maximumProtectedSize = (maximumSize - m_maximumWindowSize) * 4 / 5;
+            m_sketch = maximumSize > 0 ? new FrequencySketch(maximumSize) : null;
+            m_maximumSize = maximumSize;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if the role with the given name is implied by the given user -
+     * using a cached decision if available.
+     */
+    boolean isImplied(SPIRole user, String name) {
+        String roleName = "".equals(name) ? Role.USER_ANYONE : name;
+        if (0 == m_maximumSize) {
+            return evaluate(user, roleName, null);
+        }
+        Key key = new Key(user.getName(), roleName);
+        Node node = m_nodes.get(key);
+        if (null != node) {
+            m_hits.incrementAndGet();
+            if (m_lock.tryLock()) {
+                try {
+                    // the node may have been dropped in the meantime
+                    if (node == m_nodes.get(key)) {
+                        m_sketch.increment(key.hashCode());
+                        touch(node);
+                    }
+                } finally {
+                    m_lock.unlock();
+                }
+            }
+            return node.m_implied;
+        }
+        m_misses.incrementAndGet();
+        long generation;
+        m_lock.lock();
+        try {
+            generation = m_generation;
+        } finally {
+            m_lock.unlock();
+        }
+        String[][] dependencies = new String[1][];
+        boolean implied = evaluate(user, roleName, dependencies);
+        m_lock.lock();
+        try {
+            if (null != m_sketch) {
+                m_sketch.increment(key.hashCode());
+                if (null != dependencies[0] && generation == m_generation && !m_nodes.containsKey(key)) {
+                    add(new Node(key, implied, dependencies[0]));
+                }
+            }
+        } finally {
+            m_lock.unlock();
+        }
+        return implied;
+    }
+
+    /**
+     * Drops all decisions depending on the role with the given name.
+     */
+    void invalidate(String roleName) {
+        m_lock.lock();
+        try {
+            m_generation++;
+            Set<Key> keys = m_dependents.remove(roleName);
+            if (null != keys) {
+                for (Key key : keys) {
+                    Node node = m_nodes.get(key);
+                    if (null != node) {
+                        remove(node);
+                        m_invalidations++;
+                    }
+                }
+            }
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all decisions.
+     */
+    void clear() {
+        m_lock.lock();
+        try {
+            m_generation++;
+            m_nodes.clear();
+            m_dependents.clear();
+            for (Node head : new Node[] { m_window, m_probation, m_protected }) {
+                head.m_prev = head;
+                head.m_next = head;
+            }
+            m_windowSize = 0;
+            m_probationSize = 0;
+            m_protectedSize = 0;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    // AuthorizationCacheStatistics interface
+
+    @Override
+    public int getSize() {
+        return m_nodes.size();
+    }
+
+    @Override
+    public int getMaximumSize() {
+        return m_maximumSize;
+    }
+
+    @Override
+    public long getHitCount() {
+        return m_hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return m_misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = m_hits.get();
+        long requests = hits + m_misses.get();
+        return 0 == requests ? 0.0 : (double) hits / requests;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return m_evictions;
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return m_invalidations;
+    }
+
+    // internal
+
+    /**
+     * Evaluates a decision.
+     *
+     * @param dependencies
+     *            Receives the names of the roles the decision depends on -
+     *            left empty if the decision must not be cached.
+     */
+    private boolean evaluate(SPIRole user, String roleName, String[][] dependencies) {
+        Role role = m_userAdmin.getRole(roleName);
+        if (null == role) {
+            if (null != dependencies) {
+                dependencies[0] = new String[] { user.getName(), roleName };
+            }
+            return false;
+        }
+        if (!(role instanceof SPIRole)) {
+            m_userAdmin.logMessage(DecisionCache.class.getSimpleName(), LogService.LOG_WARNING, "hasRole(" + roleName + "): role is ignored because "
+                    + role.getClass().getName() + " does not implement the SPIRole interface");
+            return false;
+        }
+        ImplicationEngine engine = ImplicationEngine.open(user, null);
+        try {
+            boolean implied = ImplicationResult.IMPLIEDBY_YES == engine.evaluate(role, null);
+            if (null != dependencies) {
+                String[] evaluated = engine.getEvaluatedRoles();
+                String[] result = new String[evaluated.length + 1];
+                System.arraycopy(evaluated, 0, result, 0, evaluated.length);
+                result[evaluated.length] = user.getName();
+                dependencies[0] = result;
+            }
+            return implied;
+        } finally {
+            engine.close();
+        }
+    }
+
+    private void add(Node node) {
+        m_nodes.put(node.m_key, node);
+        for (String dependency : node.m_dependencies) {
+            Set<Key> keys = m_dependents.get(dependency);
+            if (null == keys) {
+                keys = new HashSet<Key>();
+                m_dependents.put(dependency, keys);
+            }
+            keys.add(node.m_key);
+        }
+        node.m_queue = QUEUE_WINDOW;
+        link(m_window, node);
+        m_windowSize++;
+        if (m_windowSize > m_maximumWindowSize) {
+            // move the oldest window entry to the main area
+            Node candidate = m_window.m_next;
+            unlink(candidate);
+            m_windowSize--;
+            candidate.m_queue = QUEUE_PROBATION;
+            link(m_probation, candidate);
+            m_probationSize++;
+            if (m_probationSize + m_protectedSize > m_maximumSize - m_maximumWindowSize) {
+                evict(candidate);
+            }
+        }
+    }
+
+    /**
+     * Keeps either the candidate or the least recently used entry of the main
+     * area, whichever is used more often.
+     */
+    private void evict(Node candidate) {
+        Node victim = m_probation.m_next;
+        if (victim == m_probation) {
+            victim = m_protected.m_next;
+        }
+        Node evicted = candidate;
+        if (victim != candidate && m_sketch.frequency(candidate.m_key.hashCode()) > m_sketch.frequency(victim.m_key.hashCode())) {
+            evicted = victim;
+        }
+        remove(evicted);
+        m_evictions++;
+    }
+
+    /**
+     * Records an access of the given node.
+     */
+    private void touch(Node node) {
+        unlink(node);
+        switch (node.m_queue) {
+            case QUEUE_WINDOW:
+                link(m_window, node);
+                break;
+            case QUEUE_PROBATION:
+                // promote to the protected segment
+                m_probationSize--;
+                node.m_queue = QUEUE_PROTECTED;
+                link(m_protected, node);
+                m_protectedSize++;
+                if (m_protectedSize > m_maximumProtectedSize) {
+                    Node demoted = m_protected.m_next;
+                    unlink(demoted);
+                    m_protectedSize--;
+                    demoted.m_queue = QUEUE_PROBATION;
+                    link(m_probation, demoted);
+                    m_probationSize++;
+                }
+                break;
+            default:
+                link(m_protected, node);
+        }
+    }
+
+    private void remove(Node node) {
+        m_nodes.remove(node.m_key);
+        for (String dependency : node.m_dependencies) {
+            Set<Key> keys = m_dependents.get(dependency);
+            if (null != keys) {
+                keys.remove(node.m_key);
+                if (keys.isEmpty()) {
+                    m_dependents.remove(dependency);
+                }
+            }
+        }
+        unlink(node);
+        switch (node.m_queue) {
+            case QUEUE_WINDOW:
+                m_windowSize--;
+                break;
+            case QUEUE_PROBATION:
+                m_probationSize--;
+                break;
+            default:
+                m_protectedSize--;
+        }
+    }
+
+    private static void link(Node head, Node node) {
+        node.m_prev = head.m_prev;
+        node.m_next = head;
+        head.m_prev.m_next = node;
+        head.m_prev = node;
+    }
+
+    private static void unlink(Node node) {
+        node.m_prev.m_next = node.m_next;
+        node.m_next.m_prev = node.m_prev;
+        node.m_prev = node;
+        node.m_next = node;
+    }
+
+    /**
+     * A count-min sketch with four 4-bit counters per key. All counters are
+     * halved after a sample of accesses so old popularity fades out.
+     */
+    static final class FrequencySketch {
+
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+        private static final long   RESET_MASK = 0x7777777777777777L;
+
+        private final long[]        m_table;
+
+        private final int           m_sampleSize;
+
+        private int                 m_additions;
+
+        FrequencySketch(int maximumSize) {
+            int size = Integer.highestOneBit(Math.max(2, Math.min(maximumSize, 1 << 24)) - 1) << 1;
+            m_table = new long[size];
+            m_sampleSize = 10 * maximumSize;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                int shift = offsetOf(hash, i) << 2;
+                if (((m_table[index] >>> shift) & 0xfL) != 0xfL) {
+                    m_table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++m_additions >= m_sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int count = (int) ((m_table[indexOf(hash, i)] >>> (offsetOf(hash, i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (int i = 0; i < m_table.length; i++) {
+                m_table[i] = (m_table[i] >>> 1) & RESET_MASK;
+            }
+            m_additions /= 2;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & (m_table.length - 1);
+        }
+
+        private static int offsetOf(int hash, int i) {
+            // each row uses its own counter within the long
+            return ((hash >>> (i << 3)) & 3) + (i << 2);
+        }
+    }
+}
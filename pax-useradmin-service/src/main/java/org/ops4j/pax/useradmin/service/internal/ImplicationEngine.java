@@ -0,0 +1,658 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ops4j.pax.useradmin.service.spi.BatchMemberProvider;
+import org.ops4j.pax.useradmin.service.spi.SPIRole;
+import org.ops4j.pax.useradmin.service.spi.SPIRole.ImplicationResult;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Evaluates if roles are implied by a user.
+ * <p>
+ * The engine walks the group graph iteratively using an explicit frame stack,
+ * so deep hierarchies cannot overflow the call stack. Loops are detected like
+ * the recursive evaluation did: every role looked at is added to the checked
+ * roles, which are shared by the required - respectively the basic - members
+ * of a group, so a role reached a second time below the same member list is
+ * reported as a loop and doesn't imply its parent.
+ * <p>
+ * During one session roles get dense int IDs and the result of every evaluated
+ * group is memoized together with the roles looked at for it. A memoized
+ * result is reused only if none of these roles is checked at that point, so
+ * the evaluation would look the same. Results that depend on a role which was
+ * checked before the evaluation started are not memoized.
+ * <p>
+ * If the storage implements {@link BatchMemberProvider}, the members of a
+ * group and of all groups below it are fetched level by level before the group
+ * is expanded, so the number of storage requests depends on the depth of the
+ * hierarchy instead of the number of groups.
+ * <p>
+ * Engines are kept per thread and reused - use {@link #open(SPIRole, Collection)}
+ * and {@link #close()} to obtain and release one.
+ */
+final class ImplicationEngine {
+
+    private static final byte                              UNKNOWN    = 0;
+    private static final byte                              YES        = 1;
+    private static final byte                              NO         = 2;
+    private static final byte                              LOOP       = 3;
+
+    /**
+     * Marker for a child evaluation which pushed a new frame.
+     */
+    private static final byte                              PENDING    = 4;
+
+    private static final byte                              PHASE_REQUIRED = 0;
+    private static final byte                              PHASE_BASIC    = 1;
+
+    private static final Role[]                            EMPTY_ROLES = new Role[0];
+
+    private static final int                               NOT_CHECKED = Integer.MAX_VALUE;
+
+    /**
+     * The number of frames whose role sets are kept between sessions.
+     */
+    private static final int                               KEPT_FRAMES = 16;
+
+    private static final ThreadLocal<ImplicationEngine>    ENGINES    = new ThreadLocal<ImplicationEngine>() {
+
+                                                                          @Override
+                                                                          protected ImplicationEngine initialValue() {
+                                                                              return new ImplicationEngine();
+                                                                          }
+                                                                      };
+
+    // session state
+
+    private boolean                                        m_active;
+
+    private SPIRole                                        m_user;
+
+    private String                                         m_userName;
+
+    /**
+     * The checked roles given when the session was opened - may be null.
+     */
+    private Collection<String>                             m_checkedRoles;
+
+    /**
+     * role name -&gt; dense ID, valid for the current session.
+     */
+    private final Map<String, Integer>                     m_ids      = new HashMap<String, Integer>();
+
+    private String[]                                       m_names    = new String[64];
+
+    /**
+     * Memoized results, indexed by role ID.
+     */
+    private byte[]                                         m_memo     = new byte[64];
+
+    /**
+     * ID of the required member which blocked a memoized group - or -1.
+     */
+    private int[]                                          m_memoBlocker = new int[64];
+
+    /**
+     * The roles looked at for a memoized group, indexed by role ID - null for
+     * roles without members.
+     */
+    private BitSet[]                                       m_memoRoles = new BitSet[64];
+
+    /**
+     * Position of each checked role in <code>m_checked</code>, indexed by role
+     * ID.
+     */
+    private int[]                                          m_checkedIndex = new int[64];
+
+    /**
+     * The checked roles.
+     */
+    private final BitSet                                   m_checkedSet = new BitSet();
+
+    /**
+     * The IDs of the checked roles in the order they were checked - the seeds
+     * given as checked roles first.
+     */
+    private int[]                                          m_checked  = new int[64];
+
+    private int                                            m_checkedSize;
+
+    private int                                            m_seeds;
+
+    /**
+     * The blocking member of the group evaluated last - or -1.
+     */
+    private int                                            m_lastBlocker;
+
+    /**
+     * Prefetched basic members, by group name.
+     */
+    private final Map<String, Role[]>                      m_basicMembers    = new HashMap<String, Role[]>();
+
+    /**
+     * Prefetched required members, by group name.
+     */
+    private final Map<String, Role[]>                      m_requiredMembers = new HashMap<String, Role[]>();
+
+    // frame stack
+
+    private int                                            m_size;
+
+    private Group[]                                        m_group    = new Group[16];
+
+    private int[]                                          m_frameId  = new int[16];
+
+    private Role[][]                                       m_members  = new Role[16][];
+
+    private int[]                                          m_pos      = new int[16];
+
+    private byte[]                                         m_phase    = new byte[16];
+
+    /**
+     * Position of the role of the frame in <code>m_checked</code>.
+     */
+    private int[]                                          m_entry    = new int[16];
+
+    /**
+     * Number of checked roles when the current phase of the frame started.
+     */
+    private int[]                                          m_base     = new int[16];
+
+    /**
+     * The smallest position of a checked role that was reached again from
+     * within the frame.
+     */
+    private int[]                                          m_low      = new int[16];
+
+    private int[]                                          m_blocker  = new int[16];
+
+    /**
+     * The roles looked at within the frame.
+     */
+    private BitSet[]                                       m_roles    = new BitSet[16];
+
+    private ImplicationEngine() {
+    }
+
+    /**
+     * Opens an evaluation session for the given user.
+     *
+     * @param user
+     *            The role whose implications are evaluated.
+     * @param checkedRoles
+     *            Names of roles which are treated as already visited - may be
+     *            null. The evaluated roles are added like
+     *            {@link SPIRole#isImpliedBy(SPIRole, Collection)} does.
+     * @return An engine that must be released using {@link #close()}.
+     */
+    static ImplicationEngine open(SPIRole user, Collection<String> checkedRoles) {
+        ImplicationEngine engine = ENGINES.get();
+        if (engine.m_active) {
+            // nested evaluation started by a foreign SPIRole implementation
+            engine = new ImplicationEngine();
+        }
+        engine.begin(user, checkedRoles);
+        return engine;
+    }
+
+    /**
+     * Closes the session and releases all references to roles.
+     */
+    void close() {
+        Arrays.fill(m_memo, 0, m_ids.size(), UNKNOWN);
+        Arrays.fill(m_memoRoles, 0, m_ids.size(), null);
+        Arrays.fill(m_names, 0, m_ids.size(), null);
+        Arrays.fill(m_group, 0, m_size, null);
+        Arrays.fill(m_members, 0, m_size, null);
+        if (m_roles.length > KEPT_FRAMES) {
+            // don't keep the role sets of a deep hierarchy
+            Arrays.fill(m_roles, KEPT_FRAMES, m_roles.length, null);
+        }
+        m_ids.clear();
+        m_checkedSet.clear();
+        m_checkedSize = 0;
+        m_seeds = 0;
+        m_basicMembers.clear();
+        m_requiredMembers.clear();
+        m_size = 0;
+        m_user = null;
+        m_userName = null;
+        m_checkedRoles = null;
+        m_active = false;
+    }
+
+    /**
+     * Evaluates if the given role is implied by the user of this session.
+     *
+     * @param target
+     *            The role to check.
+     * @param blockingMembers
+     *            Receives the name of the required member of
+     *            <code>target</code> which is not implied - may be null.
+     * @return An <code>ImplicationResult</code>.
+     */
+    ImplicationResult evaluate(Role target, Collection<String> blockingMembers) {
+        // every evaluation starts with the given checked roles only
+        uncheck(m_seeds);
+        m_lastBlocker = -1;
+        int targetId = idOf(target.getName());
+        boolean checked = m_checkedSet.get(targetId);
+        byte result = enter(target, targetId);
+        if (PENDING == result) {
+            result = run();
+        }
+        if (!checked && null != m_checkedRoles) {
+            m_checkedRoles.add(target.getName());
+        }
+        if (null != blockingMembers && YES != result && m_lastBlocker >= 0) {
+            blockingMembers.add(m_names[m_lastBlocker]);
+        }
+        return toResult(result);
+    }
+
+    /**
+     * @return The names of all roles looked at during this session - the
+     *         result of every evaluation only depends on these roles.
+     */
+    String[] getEvaluatedRoles() {
+        return Arrays.copyOf(m_names, m_ids.size());
+    }
+
+    // internal
+
+    private void begin(SPIRole user, Collection<String> checkedRoles) {
+        m_active = true;
+        m_user = user;
+        m_userName = user.getName();
+        m_checkedRoles = checkedRoles;
+        if (null != checkedRoles) {
+            for (String name : checkedRoles) {
+                int id = idOf(name);
+                if (!m_checkedSet.get(id)) {
+                    check(id);
+                }
+            }
+        }
+        m_seeds = m_checkedSize;
+    }
+
+    /**
+     * Processes frames until the frame at the bottom of the stack is finished.
+     */
+    private byte run() {
+        byte childResult = PENDING;
+        while (true) {
+            int top = m_size - 1;
+            if (PENDING != childResult) {
+                Role member = m_members[top][m_pos[top]];
+                if (PHASE_REQUIRED == m_phase[top]) {
+                    if (YES != childResult) {
+                        // not implied because not all required members are
+                        // implied or a loop was detected
+                        m_blocker[top] = idOf(member.getName());
+                        childResult = finish(top, childResult);
+                        if (0 == m_size) {
+                            return childResult;
+                        }
+                        continue;
+                    }
+                } else if (YES == childResult) {
+                    // implied because one basic member is implied
+                    childResult = finish(top, YES);
+                    if (0 == m_size) {
+                        return childResult;
+                    }
+                    continue;
+                }
+                m_pos[top]++;
+                childResult = PENDING;
+            }
+            Group group = m_group[top];
+            if (null == m_members[top]) {
+                m_members[top] = fetchMembers(group, PHASE_REQUIRED == m_phase[top]);
+                m_pos[top] = 0;
+            }
+            Role[] members = m_members[top];
+            while (m_pos[top] < members.length) {
+                Role member = members[m_pos[top]];
+                if (member instanceof SPIRole) {
+                    childResult = enter(member, idOf(member.getName()));
+                    break;
+                }
+                if (null != member) {
+                    logIgnored(group, member);
+                }
+                m_pos[top]++;
+            }
+            if (PENDING != childResult) {
+                // result of an immediately evaluated member
+                continue;
+            }
+            if (m_size - 1 != top) {
+                // a new frame was pushed
+                continue;
+            }
+            if (m_pos[top] >= members.length) {
+                if (PHASE_REQUIRED == m_phase[top]) {
+                    // the basic members don't see the checked required ones
+                    m_phase[top] = PHASE_BASIC;
+                    m_members[top] = null;
+                    uncheck(m_base[top]);
+                } else {
+                    childResult = finish(top, NO);
+                    if (0 == m_size) {
+                        return childResult;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the evaluation of a role.
+     *
+     * @return The result or {@link #PENDING} if a frame was pushed.
+     */
+    private byte enter(Role role, int id) {
+        if (m_size > 0) {
+            m_roles[m_size - 1].set(id);
+        }
+        if (m_checkedSet.get(id)) {
+            int index = m_checkedIndex[id];
+            if (m_size > 0 && index < m_low[m_size - 1]) {
+                m_low[m_size - 1] = index;
+            }
+            return LOOP;
+        }
+        byte memo = m_memo[id];
+        if (UNKNOWN != memo) {
+            BitSet roles = m_memoRoles[id];
+            if (null == roles || !m_checkedSet.intersects(roles)) {
+                // evaluating again would look at the same roles
+                check(id);
+                if (null != roles && m_size > 0) {
+                    m_roles[m_size - 1].or(roles);
+                }
+                m_lastBlocker = m_memoBlocker[id];
+                return memo;
+            }
+        }
+        String name = m_names[id];
+        if (!(role instanceof RoleImpl)) {
+            // a foreign SPIRole implementation: delegate using the checked roles
+            byte result = fromResult(((SPIRole) role).isImpliedBy(m_user, checkedNames()));
+            if (LOOP != result) {
+                check(id);
+            }
+            if (m_size > 0) {
+                // the result may depend on all checked roles
+                m_low[m_size - 1] = -1;
+            }
+            return result;
+        }
+        check(id);
+        if (Role.USER_ANYONE.equals(name) || name.equals(m_userName)) {
+            memoize(id, YES, -1, null);
+            return YES;
+        }
+        if (role instanceof GroupImpl) {
+            push((Group) role, id);
+            return PENDING;
+        }
+        // users are only implied by themselves
+        memoize(id, NO, -1, null);
+        return NO;
+    }
+
+    private void push(Group group, int id) {
+        if (m_size == m_group.length) {
+            int capacity = m_size * 2;
+            m_group = Arrays.copyOf(m_group, capacity);
+            m_frameId = Arrays.copyOf(m_frameId, capacity);
+            m_members = Arrays.copyOf(m_members, capacity);
+            m_pos = Arrays.copyOf(m_pos, capacity);
+            m_phase = Arrays.copyOf(m_phase, capacity);
+            m_entry = Arrays.copyOf(m_entry, capacity);
+            m_base = Arrays.copyOf(m_base, capacity);
+            m_low = Arrays.copyOf(m_low, capacity);
+            m_blocker = Arrays.copyOf(m_blocker, capacity);
+            m_roles = Arrays.copyOf(m_roles, capacity);
+        }
+        int depth = m_size++;
+        m_group[depth] = group;
+        m_frameId[depth] = id;
+        m_members[depth] = null;
+        m_pos[depth] = 0;
+        m_phase[depth] = PHASE_REQUIRED;
+        m_entry[depth] = m_checkedIndex[id];
+        m_base[depth] = m_checkedSize;
+        m_low[depth] = NOT_CHECKED;
+        m_blocker[depth] = -1;
+        if (null == m_roles[depth]) {
+            m_roles[depth] = new BitSet();
+        } else {
+            m_roles[depth].clear();
+        }
+        m_roles[depth].set(id);
+    }
+
+    /**
+     * Pops the given (top) frame and memoizes its result if it does not depend
+     * on roles checked before the frame started. The role of the frame stays
+     * checked as member of its parent.
+     */
+    private byte finish(int depth, byte result) {
+        int id = m_frameId[depth];
+        int low = m_low[depth];
+        int blocker = YES == result ? -1 : m_blocker[depth];
+        uncheck(m_base[depth]);
+        m_group[depth] = null;
+        m_members[depth] = null;
+        m_size--;
+        if (low >= m_entry[depth]) {
+            memoize(id, result, blocker, (BitSet) m_roles[depth].clone());
+        }
+        if (depth > 0) {
+            m_roles[depth - 1].or(m_roles[depth]);
+            if (low < m_low[depth - 1]) {
+                m_low[depth - 1] = low;
+            }
+        }
+        m_lastBlocker = blocker;
+        return result;
+    }
+
+    private void memoize(int id, byte result, int blocker, BitSet roles) {
+        m_memo[id] = result;
+        m_memoBlocker[id] = blocker;
+        m_memoRoles[id] = roles;
+    }
+
+    /**
+     * Adds a role to the checked roles.
+     */
+    private void check(int id) {
+        if (m_checkedSize == m_checked.length) {
+            m_checked = Arrays.copyOf(m_checked, m_checkedSize * 2);
+        }
+        m_checkedIndex[id] = m_checkedSize;
+        m_checked[m_checkedSize++] = id;
+        m_checkedSet.set(id);
+    }
+
+    /**
+     * Removes the roles checked after the given number of checked roles.
+     */
+    private void uncheck(int size) {
+        while (m_checkedSize > size) {
+            m_checkedSet.clear(m_checked[--m_checkedSize]);
+        }
+    }
+
+    /**
+     * Retrieves the required or basic members of a group - from the prefetched
+     * members if available.
+     */
+    private Role[] fetchMembers(Group group, boolean required) {
+        if (!(group instanceof GroupImpl)) {
+            Role[] members = required ? group.getRequiredMembers() : group.getMembers();
+            return null != members ? members : EMPTY_ROLES;
+        }
+        Map<String, Role[]> prefetched = required ? m_requiredMembers : m_basicMembers;
+        Role[] members = prefetched.get(group.getName());
+        if (null != members) {
+            return members;
+        }
+        PaxUserAdmin admin = ((GroupImpl) group).getAdmin();
+        try {
+            StorageProvider storageProvider = admin.getStorageProvider();
+            if (storageProvider instanceof BatchMemberProvider) {
+                prefetchMembers(admin, (BatchMemberProvider) storageProvider, group);
+                members = prefetched.get(group.getName());
+                return null != members ? members : EMPTY_ROLES;
+            }
+            return toArray(required ? storageProvider.getRequiredMembers(admin, group) : storageProvider.getMembers(admin, group));
+        } catch (StorageException e) {
+            admin.logMessage(group, LogService.LOG_ERROR, "error when retrieving " + (required ? "required" : "basic") + " members of group '"
+                    + group.getName() + "':" + e.getMessage());
+        }
+        return EMPTY_ROLES;
+    }
+
+    /**
+     * Fetches the members of the given group and of all groups below it which
+     * have not been evaluated yet, using two requests per level.
+     */
+    private void prefetchMembers(PaxUserAdmin admin, BatchMemberProvider batchProvider, Group group) throws StorageException {
+        Set<String> queued = new HashSet<String>();
+        List<Group> level = new ArrayList<Group>();
+        level.add(group);
+        queued.add(group.getName());
+        while (!level.isEmpty()) {
+            Map<String, Collection<Role>> requiredMembers = batchProvider.getRequiredMembers(admin, level);
+            Map<String, Collection<Role>> basicMembers = batchProvider.getMembers(admin, level);
+            List<Group> nextLevel = new ArrayList<Group>();
+            for (Group current : level) {
+                Role[] required = toArray(null != requiredMembers ? requiredMembers.get(current.getName()) : null);
+                Role[] basic = toArray(null != basicMembers ? basicMembers.get(current.getName()) : null);
+                m_requiredMembers.put(current.getName(), required);
+                m_basicMembers.put(current.getName(), basic);
+                queueGroups(required, queued, nextLevel);
+                queueGroups(basic, queued, nextLevel);
+            }
+            level = nextLevel;
+        }
+    }
+
+    private void queueGroups(Role[] members, Set<String> queued, List<Group> nextLevel) {
+        for (Role member : members) {
+            if (!(member instanceof GroupImpl)) {
+                continue;
+            }
+            String name = member.getName();
+            if (m_basicMembers.containsKey(name) || !queued.add(name)) {
+                continue;
+            }
+            Integer id = m_ids.get(name);
+            if (null != id && UNKNOWN != m_memo[id]) {
+                // already evaluated in this session
+                continue;
+            }
+            nextLevel.add((Group) member);
+        }
+    }
+
+    private static Role[] toArray(Collection<Role> roles) {
+        if (null == roles || roles.isEmpty()) {
+            return EMPTY_ROLES;
+        }
+        return roles.toArray(new Role[roles.size()]);
+    }
+
+    private int idOf(String name) {
+        Integer id = m_ids.get(name);
+        if (null == id) {
+            int newId = m_ids.size();
+            if (newId == m_names.length) {
+                int capacity = newId * 2;
+                m_names = Arrays.copyOf(m_names, capacity);
+                m_memo = Arrays.copyOf(m_memo, capacity);
+                m_memoBlocker = Arrays.copyOf(m_memoBlocker, capacity);
+                m_memoRoles = Arrays.copyOf(m_memoRoles, capacity);
+                m_checkedIndex = Arrays.copyOf(m_checkedIndex, capacity);
+            }
+            m_names[newId] = name;
+            m_ids.put(name, newId);
+            return newId;
+        }
+        return id;
+    }
+
+    private Collection<String> checkedNames() {
+        Collection<String> names = new ArrayList<String>(m_checkedSize);
+        for (int i = 0; i < m_checkedSize; i++) {
+            names.add(m_names[m_checked[i]]);
+        }
+        return names;
+    }
+
+    private void logIgnored(Group group, Role member) {
+        if (group instanceof RoleImpl) {
+            String kind = PHASE_REQUIRED == m_phase[m_size - 1] ? "RequiredMember " : "BasicMember ";
+            ((RoleImpl) group).getAdmin().logMessage(GroupImpl.class.getSimpleName(), LogService.LOG_WARNING, kind + member.getName()
+                    + " is ignored because " + member.getClass().getName() + " does not implement the SPIRole interface");
+        }
+    }
+
+    private static byte fromResult(ImplicationResult result) {
+        switch (result) {
+            case IMPLIEDBY_YES:
+                return YES;
+            case IMPLIEDBY_LOOPDETECTED:
+                return LOOP;
+            default:
+                return NO;
+        }
+    }
+
+    private static ImplicationResult toResult(byte result) {
+        switch (result) {
+            case YES:
+                return ImplicationResult.IMPLIEDBY_YES;
+            case LOOP:
+                return ImplicationResult.IMPLIEDBY_LOOPDETECTED;
+            default:
+                return ImplicationResult.IMPLIEDBY_NO;
+        }
+    }
+}
@@ -0,0 +1,627 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ops4j.pax.useradmin.service.spi.BatchMemberProvider;
+import org.ops4j.pax.useradmin.service.spi.SPIRole;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * The role graph compiled into a boolean circuit: every group is a gate which
+ * is true if all of its required members and at least one of its basic members
+ * are true, users are inputs. The members of a gate are kept as bit masks over
+ * the role IDs, so a gate is evaluated with a few word operations and all roles
+ * implied by a user are computed in a single pass over the gates in dependency
+ * order. Gates on membership loops are iterated until nothing changes.
+ * <p>
+ * The {@link ImplicationEngine} shares the checked roles between the members
+ * of a list, so a role reached again is a loop even if it was implied. The
+ * circuit only yields the same result if that cannot matter: no loop may pass
+ * a group which depends on required members, the members of a required list
+ * must not reach a common role and neither may two members of a basic list if
+ * one of them depends on required members - otherwise requests are left to
+ * the engine.
+ * <p>
+ * The circuit is compiled from the storage on first use and updated in place
+ * on membership changes. It can only be compiled if all groups extend
+ * <code>GroupImpl</code> and all members implement <code>SPIRole</code> by
+ * extending <code>RoleImpl</code> - otherwise requests are left to the engine.
+ */
+public class MembershipCircuit {
+
+    private static final long[]       NO_BITS    = new long[0];
+
+    /**
+     * The <code>UserAdmin</code> service used to enumerate roles.
+     */
+    private final PaxUserAdmin        m_userAdmin;
+
+    private volatile boolean          m_enabled  = false;
+
+    /**
+     * True if the circuit reflects the storage.
+     */
+    private boolean                   m_compiled = false;
+
+    /**
+     * role name -&gt; dense ID.
+     */
+    private final Map<String, Integer> m_ids     = new HashMap<String, Integer>();
+
+    private String[]                  m_names    = new String[64];
+
+    /**
+     * The existing roles.
+     */
+    private long[]                    m_exists   = new long[1];
+
+    /**
+     * The roles which are gates.
+     */
+    private long[]                    m_groups   = new long[1];
+
+    /**
+     * Required members of each gate, indexed by role ID.
+     */
+    private long[][]                  m_required = new long[64][];
+
+    /**
+     * Basic members of each gate, indexed by role ID.
+     */
+    private long[][]                  m_basic    = new long[64][];
+
+    /**
+     * The gates in evaluation order - null if it must be recomputed.
+     */
+    private int[]                     m_order;
+
+    /**
+     * The number of gates at the start of {@link #m_order} which do not
+     * depend on a loop and are evaluated once.
+     */
+    private int                       m_acyclic;
+
+    /**
+     * True if the circuit yields the result of the engine - valid with
+     * {@link #m_order}.
+     */
+    private boolean                   m_exact;
+
+    MembershipCircuit(PaxUserAdmin userAdmin) {
+        m_userAdmin = userAdmin;
+    }
+
+    /**
+     * Enables or disables the circuit. A disabled circuit is dropped and
+     * compiled again when enabled.
+     */
+    synchronized void setEnabled(boolean enabled) {
+        m_enabled = enabled;
+        if (!enabled) {
+            reset();
+        }
+    }
+
+    boolean isEnabled() {
+        return m_enabled;
+    }
+
+    /**
+     * Computes the roles implied by the given user.
+     *
+     * @param roles
+     *            Receives the names of all implied roles, including
+     *            <code>user.anyone</code>.
+     * @param blockers
+     *            Receives the names of the required members which kept a
+     *            group with an implied basic member from being implied.
+     * @return False if the circuit cannot be used - the collections are left
+     *         unchanged then.
+     */
+    synchronized boolean evaluate(SPIRole user, Set<String> roles, Set<String> blockers) {
+        if (!m_enabled || (!m_compiled && !compile())) {
+            return false;
+        }
+        if (null == m_order) {
+            sort();
+        }
+        if (!m_exact) {
+            return false;
+        }
+        long[] values = new long[m_exists.length];
+        Integer anyoneId = m_ids.get(Role.USER_ANYONE);
+        if (null != anyoneId) {
+            set(values, anyoneId);
+        }
+        Integer userId = m_ids.get(user.getName());
+        if (null != userId) {
+            set(values, userId);
+        }
+        for (int i = 0; i < m_acyclic; i++) {
+            evaluateGate(m_order[i], values);
+        }
+        // gates on loops: iterate to the least fixpoint
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = m_acyclic; i < m_order.length; i++) {
+                changed |= evaluateGate(m_order[i], values);
+            }
+        }
+        for (int id = nextSetBit(values, 0); id >= 0; id = nextSetBit(values, id + 1)) {
+            if (isSet(m_exists, id)) {
+                roles.add(m_names[id]);
+            }
+        }
+        for (int id = nextSetBit(m_groups, 0); id >= 0; id = nextSetBit(m_groups, id + 1)) {
+            if (!isSet(values, id) && intersects(m_basic[id], values)) {
+                int blocker = firstMissing(m_required[id], values);
+                if (blocker >= 0) {
+                    blockers.add(m_names[blocker]);
+                }
+            }
+        }
+        return true;
+    }
+
+    // change notifications
+
+    /**
+     * Called after <code>member</code> was added to <code>group</code>.
+     */
+    synchronized void memberAdded(Group group, Role member, boolean required) {
+        if (!m_compiled) {
+            return;
+        }
+        Integer groupId = m_ids.get(group.getName());
+        if (null == groupId || !isSet(m_groups, groupId) || !(member instanceof RoleImpl)) {
+            reset();
+            return;
+        }
+        int memberId = idOf(member.getName());
+        if (required) {
+            m_required[groupId] = set(m_required[groupId], memberId);
+        } else {
+            m_basic[groupId] = set(m_basic[groupId], memberId);
+        }
+        m_order = null;
+    }
+
+    /**
+     * Called after <code>member</code> was removed from <code>group</code>.
+     */
+    synchronized void memberRemoved(Group group, Role member) {
+        if (!m_compiled) {
+            return;
+        }
+        Integer groupId = m_ids.get(group.getName());
+        Integer memberId = m_ids.get(member.getName());
+        if (null == groupId || null == memberId) {
+            return;
+        }
+        clear(m_required[groupId], memberId);
+        clear(m_basic[groupId], memberId);
+        m_order = null;
+    }
+
+    /**
+     * Called after a role was created.
+     */
+    synchronized void roleCreated(Role role) {
+        if (!m_compiled) {
+            return;
+        }
+        if (!(role instanceof RoleImpl)) {
+            reset();
+            return;
+        }
+        addRole(role);
+        m_order = null;
+    }
+
+    /**
+     * Called after a role was removed - the storage has removed it from all
+     * groups as well.
+     */
+    synchronized void roleRemoved(Role role) {
+        if (!m_compiled) {
+            return;
+        }
+        Integer id = m_ids.get(role.getName());
+        if (null == id) {
+            return;
+        }
+        clear(m_exists, id);
+        clear(m_groups, id);
+        m_required[id] = null;
+        m_basic[id] = null;
+        for (int groupId = nextSetBit(m_groups, 0); groupId >= 0; groupId = nextSetBit(m_groups, groupId + 1)) {
+            clear(m_required[groupId], id);
+            clear(m_basic[groupId], id);
+        }
+        m_order = null;
+    }
+
+    // internal
+
+    private void reset() {
+        m_compiled = false;
+        m_ids.clear();
+        Arrays.fill(m_names, null);
+        Arrays.fill(m_required, null);
+        Arrays.fill(m_basic, null);
+        m_exists = new long[1];
+        m_groups = new long[1];
+        m_order = null;
+    }
+
+    /**
+     * Reads all roles and memberships from the storage.
+     *
+     * @return False if the role graph cannot be compiled.
+     */
+    private boolean compile() {
+        reset();
+        try {
+            Role[] roles = m_userAdmin.getRoles(null);
+            List<Group> groups = new ArrayList<Group>();
+            for (Role role : null != roles ? roles : new Role[0]) {
+                if (!(role instanceof RoleImpl)) {
+                    return uncompilable(role);
+                }
+                addRole(role);
+                if (role instanceof GroupImpl) {
+                    groups.add((Group) role);
+                }
+            }
+            StorageProvider storageProvider = m_userAdmin.getStorageProvider();
+            if (storageProvider instanceof BatchMemberProvider && !groups.isEmpty()) {
+                BatchMemberProvider batchProvider = (BatchMemberProvider) storageProvider;
+                Map<String, Collection<Role>> requiredMembers = batchProvider.getRequiredMembers(m_userAdmin, groups);
+                Map<String, Collection<Role>> basicMembers = batchProvider.getMembers(m_userAdmin, groups);
+                for (Group group : groups) {
+                    if (!addMembers(group, requiredMembers, basicMembers)) {
+                        return uncompilable(group);
+                    }
+                }
+            } else {
+                for (Group group : groups) {
+                    if (!addMembers(group, storageProvider.getRequiredMembers(m_userAdmin, group), storageProvider.getMembers(m_userAdmin, group))) {
+                        return uncompilable(group);
+                    }
+                }
+            }
+        } catch (StorageException e) {
+            m_userAdmin.logMessage(this, LogService.LOG_ERROR, "error when compiling the role graph: " + e.getMessage());
+            reset();
+            return false;
+        } catch (InvalidSyntaxException e) {
+            // will never be reached because UserAdmin.getRoles() allows null filters
+            throw new IllegalStateException("Unexpected InvalidSyntaxException caught while using null filter: " + e.getMessage() + " for filter: "
+                    + e.getFilter(), e);
+        }
+        m_compiled = true;
+        return true;
+    }
+
+    private boolean uncompilable(Role role) {
+        m_userAdmin.logMessage(this, LogService.LOG_INFO, "role graph not compiled because of role " + role.getName() + " of "
+                + role.getClass().getName());
+        reset();
+        return false;
+    }
+
+    private boolean addMembers(Group group, Map<String, Collection<Role>> requiredMembers, Map<String, Collection<Role>> basicMembers) {
+        return addMembers(group, null != requiredMembers ? requiredMembers.get(group.getName()) : null,
+                null != basicMembers ? basicMembers.get(group.getName()) : null);
+    }
+
+    private boolean addMembers(Group group, Collection<Role> requiredMembers, Collection<Role> basicMembers) {
+        int groupId = m_ids.get(group.getName());
+        long[][] masks = { NO_BITS, NO_BITS };
+        Collection<?>[] members = { requiredMembers, basicMembers };
+        for (int i = 0; i < masks.length; i++) {
+            if (null == members[i]) {
+                continue;
+            }
+            for (Object member : members[i]) {
+                if (member instanceof RoleImpl) {
+                    masks[i] = set(masks[i], idOf(((Role) member).getName()));
+                } else if (member instanceof SPIRole) {
+                    // foreign implementations decide on their own
+                    return false;
+                }
+                // others are ignored like the engine does
+            }
+        }
+        m_required[groupId] = masks[0];
+        m_basic[groupId] = masks[1];
+        return true;
+    }
+
+    private void addRole(Role role) {
+        int id = idOf(role.getName());
+        m_exists = set(m_exists, id);
+        if (role instanceof GroupImpl) {
+            m_groups = set(m_groups, id);
+            if (null == m_required[id]) {
+                m_required[id] = NO_BITS;
+                m_basic[id] = NO_BITS;
+            }
+        } else {
+            clear(m_groups, id);
+            m_required[id] = null;
+            m_basic[id] = null;
+        }
+    }
+
+    /**
+     * Orders the gates so that every gate comes after the gates it depends on.
+     * Gates which depend on a loop are put at the end.
+     */
+    private void sort() {
+        int size = m_ids.size();
+        int[] pending = new int[size];
+        List<List<Integer>> dependents = new ArrayList<List<Integer>>(size);
+        for (int i = 0; i < size; i++) {
+            dependents.add(null);
+        }
+        int count = 0;
+        for (int id = nextSetBit(m_groups, 0); id >= 0; id = nextSetBit(m_groups, id + 1)) {
+            count++;
+            long[] inputs = or(m_required[id], m_basic[id]);
+            for (int member = nextSetBit(inputs, 0); member >= 0; member = nextSetBit(inputs, member + 1)) {
+                if (isSet(m_groups, member)) {
+                    pending[id]++;
+                    List<Integer> list = dependents.get(member);
+                    if (null == list) {
+                        list = new ArrayList<Integer>();
+                        dependents.set(member, list);
+                    }
+                    list.add(id);
+                }
+            }
+        }
+        int[] order = new int[count];
+        int head = 0;
+        int tail = 0;
+        for (int id = nextSetBit(m_groups, 0); id >= 0; id = nextSetBit(m_groups, id + 1)) {
+            if (0 == pending[id]) {
+                order[tail++] = id;
+            }
+        }
+        while (head < tail) {
+            List<Integer> list = dependents.get(order[head++]);
+            if (null != list) {
+                for (int dependent : list) {
+                    if (0 == --pending[dependent]) {
+                        order[tail++] = dependent;
+                    }
+                }
+            }
+        }
+        m_acyclic = tail;
+        for (int id = nextSetBit(m_groups, 0); id >= 0; id = nextSetBit(m_groups, id + 1)) {
+            if (pending[id] > 0) {
+                order[tail++] = id;
+            }
+        }
+        m_order = order;
+        m_exact = matchesEngine();
+    }
+
+    /**
+     * Checks the conditions under which the circuit and the engine agree (see
+     * class comment).
+     */
+    private boolean matchesEngine() {
+        long[][] reach = new long[m_required.length][];
+        long[] conjunctive = NO_BITS;
+        for (int id = nextSetBit(m_groups, 0); id >= 0; id = nextSetBit(m_groups, id + 1)) {
+            long[] bits = set(or(m_required[id], m_basic[id]), id);
+            long[] pending = or(m_required[id], m_basic[id]);
+            for (int member = nextSetBit(pending, 0); member >= 0; member = nextSetBit(pending, 0)) {
+                clear(pending, member);
+                if (isSet(m_groups, member)) {
+                    long[] inputs = or(m_required[member], m_basic[member]);
+                    for (int input = nextSetBit(inputs, 0); input >= 0; input = nextSetBit(inputs, input + 1)) {
+                        if (!isSet(bits, input)) {
+                            bits = set(bits, input);
+                            pending = set(pending, input);
+                        }
+                    }
+                }
+            }
+            reach[id] = bits;
+            if (nextSetBit(m_required[id], 0) >= 0) {
+                conjunctive = set(conjunctive, id);
+            }
+        }
+        for (int id = nextSetBit(m_groups, 0); id >= 0; id = nextSetBit(m_groups, id + 1)) {
+            boolean dependsOnRequired = intersects(reach[id], conjunctive);
+            int[] required = members(m_required[id]);
+            int[] basic = members(m_basic[id]);
+            for (int i = 0; i < required.length; i++) {
+                if (dependsOnRequired && reaches(reach, required[i], id)) {
+                    return false;
+                }
+                for (int j = i + 1; j < required.length; j++) {
+                    if (intersects(reachOf(reach, required[i]), reachOf(reach, required[j]))) {
+                        return false;
+                    }
+                }
+            }
+            for (int i = 0; i < basic.length; i++) {
+                if (dependsOnRequired && reaches(reach, basic[i], id)) {
+                    return false;
+                }
+                for (int j = i + 1; j < basic.length; j++) {
+                    long[] first = reachOf(reach, basic[i]);
+                    long[] second = reachOf(reach, basic[j]);
+                    if ((intersects(first, conjunctive) || intersects(second, conjunctive)) && intersects(first, second)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The role itself and all roles it depends on.
+     */
+    private static long[] reachOf(long[][] reach, int id) {
+        return null != reach[id] ? reach[id] : set(NO_BITS, id);
+    }
+
+    private static boolean reaches(long[][] reach, int from, int to) {
+        return null != reach[from] && isSet(reach[from], to);
+    }
+
+    private static int[] members(long[] bits) {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        int[] result = new int[count];
+        int i = 0;
+        for (int id = nextSetBit(bits, 0); id >= 0; id = nextSetBit(bits, id + 1)) {
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    /**
+     * @return True if the gate switched to true.
+     */
+    private boolean evaluateGate(int id, long[] values) {
+        if (isSet(values, id) || firstMissing(m_required[id], values) >= 0 || !intersects(m_basic[id], values)) {
+            return false;
+        }
+        set(values, id);
+        return true;
+    }
+
+    private int idOf(String name) {
+        Integer id = m_ids.get(name);
+        if (null == id) {
+            int newId = m_ids.size();
+            if (newId == m_names.length) {
+                int capacity = newId * 2;
+                m_names = Arrays.copyOf(m_names, capacity);
+                m_required = Arrays.copyOf(m_required, capacity);
+                m_basic = Arrays.copyOf(m_basic, capacity);
+            }
+            m_names[newId] = name;
+            m_ids.put(name, newId);
+            int words = (newId >> 6) + 1;
+            if (words > m_exists.length) {
+                m_exists = Arrays.copyOf(m_exists, words);
+                m_groups = Arrays.copyOf(m_groups, words);
+            }
+            return newId;
+        }
+        return id;
+    }
+
+    // bit operations - masks may be shorter than the value array, missing
+    // words are zero
+
+    private static long[] set(long[] bits, int index) {
+        int word = index >> 6;
+        if (word >= bits.length) {
+            bits = Arrays.copyOf(bits, word + 1);
+        }
+        bits[word] |= 1L << index;
+        return bits;
+    }
+
+    private static void clear(long[] bits, int index) {
+        int word = index >> 6;
+        if (null != bits && word < bits.length) {
+            bits[word] &= ~(1L << index);
+        }
+    }
+
+    private static boolean isSet(long[] bits, int index) {
+        int word = index >> 6;
+        return word < bits.length && 0 != (bits[word] & (1L << index));
+    }
+
+    private static boolean intersects(long[] mask, long[] values) {
+        int words = Math.min(mask.length, values.length);
+        for (int i = 0; i < words; i++) {
+            if (0 != (mask[i] & values[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The first bit of the mask which is not set in the values - or
+     *         -1.
+     */
+    private static int firstMissing(long[] mask, long[] values) {
+        for (int i = 0; i < mask.length; i++) {
+            long missing = mask[i] & ~(i < values.length ? values[i] : 0L);
+            if (0 != missing) {
+                return (i << 6) + Long.numberOfTrailingZeros(missing);
+            }
+        }
+        return -1;
+    }
+
+    private static long[] or(long[] a, long[] b) {
+        long[] result = Arrays.copyOf(a, Math.max(a.length, b.length));
+        for (int i = 0; i < b.length; i++) {
+            result[i] |= b[i];
+        }
+        return result;
+    }
+
+    private static int nextSetBit(long[] bits, int from) {
+        int word = from >> 6;
+        if (word >= bits.length) {
+            return -1;
+        }
+        long current = bits[word] & (-1L << from);
+        while (true) {
+            if (0 != current) {
+                return (word << 6) + Long.numberOfTrailingZeros(current);
+            }
+            if (++word == bits.length) {
+                return -1;
+            }
+            current = bits[word];
+        }
+    }
+}
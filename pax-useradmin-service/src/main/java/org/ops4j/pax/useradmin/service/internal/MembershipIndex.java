@@ -0,0 +1,426 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ops4j.pax.useradmin.service.spi.ParentGroupProvider;
+import org.ops4j.pax.useradmin.service.spi.SPIRole;
+import org.ops4j.pax.useradmin.service.spi.SPIRole.ImplicationResult;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * A materialized index which maps users to the names of all roles they imply.
+ * <p>
+ * An entry is computed once per user by evaluating every role of the store -
+ * or only the groups reachable from the user if the storage implements
+ * {@link ParentGroupProvider} - and then kept until a membership change could
+ * affect it. To decide which entries are affected two reverse maps are
+ * maintained:
+ * <ul>
+ * <li><em>holders</em>: role name -&gt; users whose entry contains the role.
+ * These users may lose roles when the role (or one of its members) changes.</li>
+ * <li><em>blocked</em>: role name -&gt; users for which the role was the
+ * required member that kept a group from being implied. These users may gain
+ * roles when the role is removed from a group or deleted.</li>
+ * </ul>
+ * Entries are dropped for the affected users only and rebuilt lazily on the
+ * next lookup. If enabled, entries are computed by a {@link MembershipCircuit}
+ * compiled from the whole role graph.
+ */
+public class MembershipIndex {
+
+    private static final String[]                     EMPTY_NAMES = new String[0];
+
+    /**
+     * The <code>UserAdmin</code> service used to enumerate roles.
+     */
+    private final PaxUserAdmin                        m_userAdmin;
+
+    /**
+     * The materialized entries, keyed by user name.
+     */
+    private final ConcurrentMap<String, Entry>        m_entries   = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * role name -&gt; names of the users whose entry contains the role.
+     */
+    private final ConcurrentMap<String, Set<String>>  m_holders   = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * role name -&gt; names of the users for which the role blocked a group.
+     */
+    private final ConcurrentMap<String, Set<String>>  m_blocked   = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Names of the users whose entry was built without knowing all blocking
+     * members, e.g. because a group does not extend <code>GroupImpl</code>.
+     */
+    private final Set<String>                         m_opaque    = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Incremented on every change - entries computed concurrently with a change
+     * are not stored.
+     */
+    private final AtomicLong                          m_generation = new AtomicLong();
+
+    private volatile boolean                          m_enabled;
+
+    private final MembershipCircuit                   m_circuit;
+
+    /**
+     * The implied roles of a single user.
+     */
+    static final class Entry {
+
+        /**
+         * All implied role names including <code>user.anyone</code>.
+         */
+        private final Set<String> m_roles;
+
+        /**
+         * The implied role names as returned by
+         * <code>Authorization.getRoles()</code>.
+         */
+        private final String[]    m_names;
+
+        private final Set<String> m_blockers;
+
+        private final boolean     m_opaque;
+
+        Entry(Set<String> roles, Set<String> blockers, boolean opaque) {
+            m_roles = roles;
+            m_blockers = blockers;
+            m_opaque = opaque;
+            Collection<String> names = new ArrayList<String>(roles);
+            names.remove(Role.USER_ANYONE);
+            m_names = names.isEmpty() ? EMPTY_NAMES : names.toArray(new String[names.size()]);
+        }
+
+        boolean contains(String name) {
+            return m_roles.contains(name);
+        }
+
+        /**
+         * @return All implied role names including <code>user.anyone</code>.
+         */
+        Set<String> getRoles() {
+            return m_roles;
+        }
+
+        String[] getNames() {
+            return m_names.length == 0 ? m_names : m_names.clone();
+        }
+    }
+
+    MembershipIndex(PaxUserAdmin userAdmin) {
+        m_userAdmin = userAdmin;
+        m_circuit = new MembershipCircuit(userAdmin);
+    }
+
+    /**
+     * Enables or disables the materialization of entries. A disabled index
+     * computes each request from scratch.
+     */
+    void setEnabled(boolean enabled) {
+        m_enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    /**
+     * Enables or disables the computation of entries by a compiled
+     * {@link MembershipCircuit}.
+     */
+    void setCircuitEnabled(boolean enabled) {
+        m_circuit.setEnabled(enabled);
+        clear();
+    }
+
+    boolean isEnabled() {
+        return m_enabled;
+    }
+
+    /**
+     * @return The names of all roles implied by the given user - excluding
+     *         <code>user.anyone</code>.
+     */
+    String[] getImpliedRoles(SPIRole user) {
+        return getEntry(user).getNames();
+    }
+
+    /**
+     * @return True if the role with the given name is implied by the user.
+     */
+    boolean isImplied(SPIRole user, String name) {
+        return getEntry(user).contains("".equals(name) ? Role.USER_ANYONE : name);
+    }
+
+    /**
+     * Checks if the role with the given name is implied by the user without
+     * computing an entry.
+     *
+     * @return The result if an entry of the user is materialized - null
+     *         otherwise.
+     */
+    Boolean findImplied(SPIRole user, String name) {
+        Entry entry = m_entries.get(user.getName());
+        if (null == entry) {
+            return null;
+        }
+        return entry.contains("".equals(name) ? Role.USER_ANYONE : name);
+    }
+
+    /**
+     * @return The number of materialized entries.
+     */
+    int size() {
+        return m_entries.size();
+    }
+
+    // change notifications
+
+    /**
+     * Called after <code>member</code> was added to <code>group</code>.
+     */
+    void memberAdded(Group group, Role member, boolean required) {
+        m_generation.incrementAndGet();
+        m_circuit.memberAdded(group, member, required);
+        if (required) {
+            // required members can only narrow the users implying the group
+            invalidate(m_holders.get(group.getName()));
+        } else if (Role.USER_ANYONE.equals(member.getName())) {
+            clear();
+        } else {
+            invalidate(m_holders.get(member.getName()));
+        }
+    }
+
+    /**
+     * Called after <code>member</code> was removed from <code>group</code>.
+     */
+    void memberRemoved(Group group, Role member) {
+        m_generation.incrementAndGet();
+        m_circuit.memberRemoved(group, member);
+        invalidate(m_holders.get(group.getName()));
+        invalidate(m_blocked.get(member.getName()));
+        invalidate(m_opaque);
+    }
+
+    /**
+     * Called after a role was created.
+     */
+    void roleCreated(Role role) {
+        m_generation.incrementAndGet();
+        m_circuit.roleCreated(role);
+        invalidate(role.getName());
+    }
+
+    /**
+     * Called after a role was removed - the storage has removed it from all
+     * groups as well.
+     */
+    void roleRemoved(Role role) {
+        m_generation.incrementAndGet();
+        m_circuit.roleRemoved(role);
+        invalidate(m_holders.get(role.getName()));
+        invalidate(m_blocked.get(role.getName()));
+        invalidate(m_opaque);
+        invalidate(role.getName());
+    }
+
+    /**
+     * Drops all entries.
+     */
+    synchronized void clear() {
+        m_generation.incrementAndGet();
+        m_entries.clear();
+        m_holders.clear();
+        m_blocked.clear();
+        m_opaque.clear();
+    }
+
+    /**
+     * @return The entry of the given user - computed if not materialized.
+     */
+    Entry getEntry(SPIRole user) {
+        String userName = user.getName();
+        Entry entry = m_entries.get(userName);
+        if (null == entry) {
+            long generation = m_generation.get();
+            entry = computeEntry(user);
+            if (m_enabled) {
+                synchronized (this) {
+                    if (generation == m_generation.get()) {
+                        store(userName, entry);
+                    }
+                }
+            }
+        }
+        return entry;
+    }
+
+    // internal
+
+    /**
+     * Evaluates all roles which may be implied by the given user.
+     */
+    private Entry computeEntry(SPIRole user) {
+        Set<String> roles = new HashSet<String>();
+        Set<String> blockers = new HashSet<String>();
+        if (m_enabled && m_circuit.isEnabled() && m_circuit.evaluate(user, roles, blockers)) {
+            return new Entry(Collections.unmodifiableSet(roles), blockers, false);
+        }
+        boolean opaque = false;
+        ImplicationEngine engine = ImplicationEngine.open(user, null);
+        try {
+            Collection<Role> candidates = getCandidates(user);
+            if (null != candidates) {
+                // one session for all roles, so shared groups are evaluated once
+                for (Role role : candidates) {
+                    if (!(role instanceof SPIRole)) {
+                        m_userAdmin.logMessage(MembershipIndex.class.getSimpleName(), LogService.LOG_WARNING, "getRoles(): role " + role.getName()
+                                + " is ignored because " + role.getClass().getName() + " does not implement the SPIRole interface");
+                        continue;
+                    }
+                    ImplicationResult result = engine.evaluate(role, role instanceof GroupImpl ? blockers : null);
+                    opaque |= !(role instanceof RoleImpl) && role.getType() == Role.GROUP;
+                    if (ImplicationResult.IMPLIEDBY_YES == result) {
+                        roles.add(role.getName());
+                    }
+                }
+            }
+        } catch (InvalidSyntaxException e) {
+            // will never be reached because UserAdmin.getRoles() allows null filters
+            throw new IllegalStateException("Unexpected InvalidSyntaxException caught while using null filter: " + e.getMessage() + " for filter: "
+                    + e.getFilter(), e);
+        } finally {
+            engine.close();
+        }
+        return new Entry(Collections.unmodifiableSet(roles), blockers, opaque);
+    }
+
+    /**
+     * Collects the roles which may be implied by the given user. A group can
+     * only be implied if one of its basic members is implied, so if the
+     * storage can look up parent groups only the roles reachable from the user
+     * and <code>user.anyone</code> via basic memberships are returned - all
+     * roles of the store otherwise.
+     */
+    private Collection<Role> getCandidates(SPIRole user) throws InvalidSyntaxException {
+        StorageProvider storage = null;
+        try {
+            storage = m_userAdmin.getStorageProvider();
+        } catch (StorageException e) {
+            m_userAdmin.logMessage(this, LogService.LOG_ERROR, "error when retrieving the storage provider: " + e.getMessage());
+        }
+        if (storage instanceof ParentGroupProvider) {
+            ParentGroupProvider parentGroupProvider = (ParentGroupProvider) storage;
+            Map<String, Role> candidates = new LinkedHashMap<String, Role>();
+            List<Role> pending = new ArrayList<Role>();
+            pending.add(user);
+            Role anyone = m_userAdmin.getRole(Role.USER_ANYONE);
+            if (null != anyone) {
+                pending.add(anyone);
+            }
+            try {
+                while (!pending.isEmpty()) {
+                    Role role = pending.remove(pending.size() - 1);
+                    if (null == candidates.put(role.getName(), role)) {
+                        pending.addAll(parentGroupProvider.getParentGroups(m_userAdmin, role));
+                    }
+                }
+                return candidates.values();
+            } catch (StorageException e) {
+                m_userAdmin.logMessage(this, LogService.LOG_ERROR, "error when retrieving parent groups - evaluating all roles: " + e.getMessage());
+            }
+        }
+        Role[] allRoles = m_userAdmin.getRoles(null);
+        return null != allRoles ? Arrays.asList(allRoles) : null;
+    }
+
+    private void store(String userName, Entry entry) {
+        m_entries.put(userName, entry);
+        for (String role : entry.m_roles) {
+            register(m_holders, role, userName);
+        }
+        for (String blocker : entry.m_blockers) {
+            register(m_blocked, blocker, userName);
+        }
+        if (entry.m_opaque) {
+            m_opaque.add(userName);
+        }
+    }
+
+    private static void register(ConcurrentMap<String, Set<String>> map, String key, String userName) {
+        Set<String> users = map.get(key);
+        if (null == users) {
+            Set<String> newUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            users = map.putIfAbsent(key, newUsers);
+            if (null == users) {
+                users = newUsers;
+            }
+        }
+        users.add(userName);
+    }
+
+    private void invalidate(Collection<String> userNames) {
+        if (null != userNames) {
+            for (String userName : userNames.toArray(new String[userNames.size()])) {
+                invalidate(userName);
+            }
+        }
+    }
+
+    private synchronized void invalidate(String userName) {
+        Entry entry = m_entries.remove(userName);
+        if (null != entry) {
+            for (String role : entry.m_roles) {
+                unregister(m_holders, role, userName);
+            }
+            for (String blocker : entry.m_blockers) {
+                unregister(m_blocked, blocker, userName);
+            }
+            m_opaque.remove(userName);
+        }
+    }
+
+    private static void unregister(ConcurrentMap<String, Set<String>> map, String key, String userName) {
+        Set<String> users = map.get(key);
+        if (null != users) {
+            users.remove(userName);
+        }
+    }
+}
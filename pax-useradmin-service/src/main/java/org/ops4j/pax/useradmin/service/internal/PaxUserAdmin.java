@@ -25,18 +25,30 @@ import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.NoSuchPaddingException;
 
+import org.ops4j.pax.useradmin.service.AuthorizationCacheStatistics;
+import org.ops4j.pax.useradmin.service.AuthenticationTokenService;
+import org.ops4j.pax.useradmin.service.CredentialLookup;
+import org.ops4j.pax.useradmin.service.CredentialReencryptor;
+import org.ops4j.pax.useradmin.service.CredentialVerifier;
 import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
 import org.ops4j.pax.useradmin.service.internal.encryption.EncryptorContext;
 import org.ops4j.pax.useradmin.service.internal.encryption.PaxUserAdminDecryptor;
 import org.ops4j.pax.useradmin.service.internal.encryption.PaxUserAdminEncryptor;
 import org.ops4j.pax.useradmin.service.spi.Decryptor;
 import org.ops4j.pax.useradmin.service.spi.Encryptor;
+import org.ops4j.pax.useradmin.service.spi.RoleDataLoader;
+import org.ops4j.pax.useradmin.service.spi.SPIRole;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.ops4j.pax.useradmin.service.spi.UserAdminFactory;
+import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
@@ -66,6 +78,20 @@ import org.osgi.util.tracker.ServiceTracker;
 public class PaxUserAdmin
         implements UserAdmin, UserAdminUtil, UserAdminFactory {
 
+    private static final String                                        DEFAULT_AUTHORIZATION_CACHE_SIZE = "0";
+
+    private static final String                                        DEFAULT_CREDENTIAL_VERIFIER_QUEUE_SIZE = "1000";
+
+    private static final String                                        DEFAULT_ENCRYPTION_REHASH_RATE = "10";
+
+    private static final String                                        DEFAULT_TOKEN_LIFETIME = "300";
+
+    private static final String                                        DEFAULT_AUTHENTICATION_THROTTLE_WINDOW = "60";
+
+    private static final String                                        DEFAULT_AUTHENTICATION_THROTTLE_USERS = "1024";
+
+    private static final int                                           AVAILABLE_PROCESSORS = Runtime.getRuntime().availableProcessors();
+
     /**
      * The administrative permission used to verify access to restricted
      * functionality.
@@ -90,12 +116,88 @@ public class PaxUserAdmin
 
     private Map<String, ?>                                             properties;
 
-    private Encryptor                                                  encryptor;
+    private volatile Encryptor                                         encryptor;
 
-    private final PaxUserAdminDecryptor                                decryptor = new PaxUserAdminDecryptor();
+    private volatile PaxUserAdminDecryptor                             decryptor = new PaxUserAdminDecryptor();
 
     private final ExecutorService                                      eventExecutor;
 
+    /**
+     * Refills the salt pool of the encryptor - kept apart from the event
+     * executor so listeners are not delayed by salt generation.
+     */
+    private final ExecutorService                                      m_saltExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                                                                                          @Override
+                                                                                          public Thread newThread(Runnable runnable) {
+                                                                                              Thread thread = new Thread(runnable, "PaxUserAdmin-SaltPool");
+                                                                                              thread.setDaemon(true);
+                                                                                              return thread;
+                                                                                          }
+                                                                                      });
+
+    private final MembershipIndex                                      m_membershipIndex = new MembershipIndex(this);
+
+    private final DecisionCache                                        m_decisionCache   = new DecisionCache(this, Integer.parseInt(DEFAULT_AUTHORIZATION_CACHE_SIZE));
+
+    private ServiceRegistration<?>                                     m_decisionCacheRegistration;
+
+    /**
+     * Runs asynchronous credential verifications.
+     */
+    private final CredentialVerifierPool                               m_credentialVerifier = new CredentialVerifierPool(AVAILABLE_PROCESSORS,
+                                                                                                    Integer.parseInt(DEFAULT_CREDENTIAL_VERIFIER_QUEUE_SIZE));
+
+    private ServiceRegistration<?>                                     m_credentialVerifierRegistration;
+
+    /**
+     * Re-encrypts the credentials of all users on request.
+     */
+    private final CredentialReencryptorImpl                            m_credentialReencryptor = new CredentialReencryptorImpl(this);
+
+    private ServiceRegistration<?>                                     m_credentialReencryptorRegistration;
+
+    /**
+     * Issues and validates authentication tokens.
+     */
+    private final AuthenticationTokenIssuer                            m_tokenIssuer = new AuthenticationTokenIssuer(this);
+
+    private ServiceRegistration<?>                                     m_tokenIssuerRegistration;
+
+    /**
+     * Finds users by credentials configured for lookups.
+     */
+    private final CredentialLookupIndex                                m_credentialLookup = new CredentialLookupIndex(this);
+
+    private ServiceRegistration<?>                                     m_credentialLookupRegistration;
+
+    /**
+     * Blocks credential verifications after too many failures.
+     */
+    private final AuthenticationThrottle                               m_authenticationThrottle = new AuthenticationThrottle();
+
+    /**
+     * Re-encrypts credentials with outdated algorithm parameters.
+     */
+    private final CredentialRehasher                                   m_credentialRehasher;
+
+    private final RoleNameRegistry                                     m_roleNameRegistry = new RoleNameRegistry();
+
+    /**
+     * The canonical role instances created by the factory methods.
+     */
+    private final RoleCache                                            m_roleCache = new RoleCache();
+
+    /**
+     * True if <code>getAuthorization()</code> returns snapshots.
+     */
+    private volatile boolean                                           m_snapshotAuthorization;
+
+    /**
+     * The maximum age of authorization snapshots in milliseconds.
+     */
+    private volatile long                                              m_snapshotMaximumAge;
+
     /**
      * Constructor - creates and initializes a <code>UserAdminImpl</code>
      * instance.
@@ -117,6 +219,8 @@ public class PaxUserAdmin
                            ExecutorService eventExecutor) {
 
         this.eventExecutor = eventExecutor;
+        m_credentialRehasher = new CredentialRehasher(this);
+        m_tokenIssuer.configure(Long.parseLong(DEFAULT_TOKEN_LIFETIME), false);
         if (null == storageProvider) {
             throw new IllegalArgumentException("No StorageProvider ServiceTracker specified.");
         }
@@ -177,13 +281,71 @@ public class PaxUserAdmin
 
     @SuppressWarnings("WeakerAccess")
     public void configurationUpdated(Map<String, ?> properties) throws ConfigurationException {
+        Map<String, ?> p = properties != null ? properties : new HashMap<String, Object>();
+        // numbers are checked before anything is changed
+        int cacheSize = getIntegerProperty(p, PaxUserAdminConstants.PROPERTY_AUTHORIZATION_CACHE_SIZE, DEFAULT_AUTHORIZATION_CACHE_SIZE, 0);
+        long snapshotMaximumAge = getLongProperty(p, PaxUserAdminConstants.PROPERTY_AUTHORIZATION_SNAPSHOT_MAXAGE, "0", 0);
+        int rehashRate = getIntegerProperty(p, PaxUserAdminConstants.PROPERTY_ENCRYPTION_REHASH_RATE, DEFAULT_ENCRYPTION_REHASH_RATE, 1);
+        int throttleUser = getIntegerProperty(p, PaxUserAdminConstants.PROPERTY_AUTHENTICATION_THROTTLE_USER, "0", 0);
+        int throttleGlobal = getIntegerProperty(p, PaxUserAdminConstants.PROPERTY_AUTHENTICATION_THROTTLE_GLOBAL, "0", 0);
+        long throttleWindow = getLongProperty(p, PaxUserAdminConstants.PROPERTY_AUTHENTICATION_THROTTLE_WINDOW, DEFAULT_AUTHENTICATION_THROTTLE_WINDOW, 1);
+        int throttleUsers = getIntegerProperty(p, PaxUserAdminConstants.PROPERTY_AUTHENTICATION_THROTTLE_USERS, DEFAULT_AUTHENTICATION_THROTTLE_USERS, 1);
+        long tokenLifetime = getLongProperty(p, PaxUserAdminConstants.PROPERTY_TOKEN_LIFETIME, DEFAULT_TOKEN_LIFETIME, 1);
+        int verifierThreads = getIntegerProperty(p, PaxUserAdminConstants.PROPERTY_CREDENTIAL_VERIFIER_THREADS, String.valueOf(AVAILABLE_PROCESSORS), 1);
+        int verifierQueueSize = getIntegerProperty(p, PaxUserAdminConstants.PROPERTY_CREDENTIAL_VERIFIER_QUEUE_SIZE, DEFAULT_CREDENTIAL_VERIFIER_QUEUE_SIZE, 0);
         synchronized (this) {
             this.properties = properties;
             encryptor = null;
         }
+        // the storage may have been changed
+        m_roleCache.invalidateAll();
+        try {
+            decryptor = new PaxUserAdminDecryptor(p);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_KEY, e.getMessage(), e);
+        }
+        try {
+            m_credentialLookup.configure(UserAdminTools.getOptionalProperty(p, PaxUserAdminConstants.PROPERTY_CREDENTIAL_LOOKUP_KEYS, null),
+                    UserAdminTools.getOptionalProperty(p, PaxUserAdminConstants.PROPERTY_CREDENTIAL_LOOKUP_SECRET, null));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(PaxUserAdminConstants.PROPERTY_CREDENTIAL_LOOKUP_SECRET, e.getMessage(), e);
+        }
+        m_membershipIndex.setEnabled(Boolean.parseBoolean(UserAdminTools.getOptionalProperty(p, PaxUserAdminConstants.PROPERTY_AUTHORIZATION_INDEX, "false")));
+        m_membershipIndex.setCircuitEnabled(Boolean.parseBoolean(UserAdminTools.getOptionalProperty(p, PaxUserAdminConstants.PROPERTY_AUTHORIZATION_CIRCUIT,
+                "false")));
+        m_decisionCache.setMaximumSize(cacheSize);
+        m_snapshotAuthorization = Boolean.parseBoolean(UserAdminTools.getOptionalProperty(p, PaxUserAdminConstants.PROPERTY_AUTHORIZATION_SNAPSHOT, "false"));
+        m_snapshotMaximumAge = snapshotMaximumAge;
+        m_credentialRehasher.configure(Boolean.parseBoolean(UserAdminTools.getOptionalProperty(p, PaxUserAdminConstants.PROPERTY_ENCRYPTION_REHASH, "false")),
+                rehashRate);
+        m_authenticationThrottle.configure(throttleUser, throttleGlobal, TimeUnit.SECONDS.toMillis(throttleWindow), throttleUsers);
+        m_tokenIssuer.configure(tokenLifetime, Boolean.parseBoolean(UserAdminTools.getOptionalProperty(p, PaxUserAdminConstants.PROPERTY_TOKEN_ROLES, "false")));
+        m_credentialVerifier.setLimits(verifierThreads, verifierQueueSize);
         getStorageProvider().configurationUpdated(properties);
     }
 
+    private static int getIntegerProperty(Map<String, ?> properties, String name, String defaultValue, int minimum) throws ConfigurationException {
+        long value = getLongProperty(properties, name, defaultValue, minimum);
+        if (value > Integer.MAX_VALUE) {
+            throw new ConfigurationException(name, "must not be greater than " + Integer.MAX_VALUE + ": '" + value + "'");
+        }
+        return (int) value;
+    }
+
+    private static long getLongProperty(Map<String, ?> properties, String name, String defaultValue, long minimum) throws ConfigurationException {
+        String value = UserAdminTools.getOptionalProperty(properties, name, defaultValue);
+        long result;
+        try {
+            result = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(name, "not a number: '" + value + "'", e);
+        }
+        if (result < minimum) {
+            throw new ConfigurationException(name, "must not be less than " + minimum + ": '" + value + "'");
+        }
+        return result;
+    }
+
     // UserAdmin interface
 
     @Override
@@ -219,6 +381,9 @@ public class PaxUserAdmin
                 default:
                     // never reached b/o previous checks
             }
+            if (null != role) {
+                m_membershipIndex.roleCreated(role);
+            }
             fireEvent(UserAdminEvent.ROLE_CREATED, role);
             logMessage(this, LogService.LOG_INFO, "role created: " + name + " - " + role);
         } catch (StorageException e) {
@@ -232,6 +397,9 @@ public class PaxUserAdmin
         if (null == user) {
             throw (new IllegalArgumentException(UserAdminMessages.MSG_INVALID_USER));
         }
+        if (m_snapshotAuthorization && user instanceof SPIRole) {
+            return new SnapshotAuthorization(this, (SPIRole) user, m_snapshotMaximumAge);
+        }
         return new AuthorizationImpl(this, user);
     }
 
@@ -296,6 +464,8 @@ public class PaxUserAdmin
                 try {
                     StorageProvider storageProvider = getStorageProvider();
                     if (storageProvider.deleteRole(role)) {
+                        m_roleCache.remove(role.getName());
+                        m_membershipIndex.roleRemoved(role);
                         fireEvent(UserAdminEvent.ROLE_REMOVED, role);
                         return true;
                     } else {
@@ -333,6 +503,15 @@ public class PaxUserAdmin
         if (null == role) {
             throw new IllegalArgumentException("parameter role must not be null");
         }
+        String roleName = role.getName();
+        m_decisionCache.invalidate(roleName);
+        if (UserAdminEvent.ROLE_CHANGED == type) {
+            // also announces changes made to the storage by others
+            m_roleCache.invalidate(roleName);
+        }
+        if (UserAdminEvent.ROLE_CHANGED == type || UserAdminEvent.ROLE_REMOVED == type) {
+            m_tokenIssuer.revoke(roleName, role instanceof Group);
+        }
         ServiceReference<?> reference = userAdminRegistration.getReference();
         final UserAdminEvent uaEvent = new UserAdminEvent(reference, type, role);
         //
@@ -360,7 +539,7 @@ public class PaxUserAdmin
             Dictionary<String, Object> properties = new Hashtable<String, Object>();
             properties.put("event", uaEvent);
             properties.put("role", role);
-            properties.put("role.name", role.getName());
+            properties.put("role.name", roleName);
             properties.put("role.type", role.getType());
             properties.put("service", reference);
             properties.put("service.id", reference.getProperty(Constants.SERVICE_ID));
@@ -370,7 +549,7 @@ public class PaxUserAdmin
             Event event = new Event(PaxUserAdminConstants.EVENT_TOPIC_PREFIX + name, properties);
             eventAdmin.postEvent(event);
         } else {
-            String message = "No event service available or incompatible type - cannot send event of type '" + name + "' for role '" + role.getName() + "'";
+            String message = "No event service available or incompatible type - cannot send event of type '" + name + "' for role '" + roleName + "'";
             logMessage(this, LogService.LOG_DEBUG, message);
         }
     }
@@ -383,16 +562,113 @@ public class PaxUserAdmin
         }
     }
 
+    // membership index
+
+    /**
+     * @return The index of the roles implied by users.
+     */
+    MembershipIndex getMembershipIndex() {
+        return m_membershipIndex;
+    }
+
+    /**
+     * @return The cache of <code>hasRole()</code> decisions.
+     */
+    DecisionCache getDecisionCache() {
+        return m_decisionCache;
+    }
+
+    /**
+     * @return The registry of role IDs used by authorization snapshots.
+     */
+    RoleNameRegistry getRoleNameRegistry() {
+        return m_roleNameRegistry;
+    }
+
+    /**
+     * Called by groups after a member was added.
+     * 
+     * @param group
+     *            The group that was changed.
+     * @param member
+     *            The new member.
+     * @param required
+     *            True if the member was added as required member.
+     */
+    void memberAdded(Group group, Role member, boolean required) {
+        m_membershipIndex.memberAdded(group, member, required);
+        m_decisionCache.invalidate(group.getName());
+        m_tokenIssuer.revoke(group.getName(), true);
+    }
+
+    /**
+     * Called by groups after a member was removed.
+     * 
+     * @param group
+     *            The group that was changed.
+     * @param member
+     *            The removed member.
+     */
+    void memberRemoved(Group group, Role member) {
+        m_membershipIndex.memberRemoved(group, member);
+        m_decisionCache.invalidate(group.getName());
+        m_tokenIssuer.revoke(group.getName(), true);
+    }
+
     // UserAdminFactory interface
 
     @Override
     public User createUser(String name, Map<String, Object> properties, Set<String> initialCredentialKeys) {
-        return new UserImpl(name, this, properties, initialCredentialKeys);
+        RoleImpl role = m_roleCache.get(name);
+        if (null == role || Role.USER != role.getType()) {
+            role = m_roleCache.add(new UserImpl(name, this, properties, initialCredentialKeys));
+        }
+        // the data of the canonical instance is kept unless it was invalidated
+        if (role.isStale()) {
+            role.refresh(properties, initialCredentialKeys);
+        }
+        return (User) role;
     }
 
     @Override
     public Group createGroup(String name, Map<String, Object> properties, Set<String> initialCredentialKeys) {
-        return new GroupImpl(name, this, properties, initialCredentialKeys);
+        RoleImpl role = m_roleCache.get(name);
+        if (null == role || Role.GROUP != role.getType()) {
+            role = m_roleCache.add(new GroupImpl(name, this, properties, initialCredentialKeys));
+        }
+        if (role.isStale()) {
+            role.refresh(properties, initialCredentialKeys);
+        }
+        return (Group) role;
+    }
+
+    @Override
+    public User createUser(String name, RoleDataLoader loader) {
+        RoleImpl role = m_roleCache.get(name);
+        if (null == role || Role.USER != role.getType()) {
+            RoleImpl created = new UserImpl(name, this, null, null);
+            // has no data until the loader is set
+            created.invalidate();
+            role = m_roleCache.add(created);
+        }
+        if (role.isStale()) {
+            role.refresh(loader);
+        }
+        return (User) role;
+    }
+
+    @Override
+    public Group createGroup(String name, RoleDataLoader loader) {
+        RoleImpl role = m_roleCache.get(name);
+        if (null == role || Role.GROUP != role.getType()) {
+            RoleImpl created = new GroupImpl(name, this, null, null);
+            created.invalidate();
+            role = m_roleCache.add(created);
+        }
+        if (role.isStale()) {
+            role.refresh(loader);
+        }
+        return (Group) role;
     }
 
     synchronized void register(BundleContext context, String type, Long spi_service_id) {
@@ -403,6 +679,11 @@ public class PaxUserAdmin
         properties.put(PaxUserAdminConstants.STORAGEPROVIDER_TYPE, type);
         properties.put(PaxUserAdminConstants.STORAGEPROVIDER_SPI_SERVICE_ID, spi_service_id);
         userAdminRegistration = context.registerService(UserAdmin.class, this, properties);
+        m_decisionCacheRegistration = context.registerService(AuthorizationCacheStatistics.class, m_decisionCache, properties);
+        m_credentialVerifierRegistration = context.registerService(CredentialVerifier.class, m_credentialVerifier, properties);
+        m_credentialReencryptorRegistration = context.registerService(CredentialReencryptor.class, m_credentialReencryptor, properties);
+        m_tokenIssuerRegistration = context.registerService(AuthenticationTokenService.class, m_tokenIssuer, properties);
+        m_credentialLookupRegistration = context.registerService(CredentialLookup.class, m_credentialLookup, properties);
     }
 
     synchronized void unregister() {
@@ -410,7 +691,53 @@ public class PaxUserAdmin
             throw new IllegalStateException("This object is not registered!");
         }
         userAdminRegistration.unregister();
+        if (m_decisionCacheRegistration != null) {
+            m_decisionCacheRegistration.unregister();
+            m_decisionCacheRegistration = null;
+        }
+        if (m_credentialVerifierRegistration != null) {
+            m_credentialVerifierRegistration.unregister();
+            m_credentialVerifierRegistration = null;
+        }
+        if (m_credentialReencryptorRegistration != null) {
+            m_credentialReencryptorRegistration.unregister();
+            m_credentialReencryptorRegistration = null;
+        }
+        if (m_tokenIssuerRegistration != null) {
+            m_tokenIssuerRegistration.unregister();
+            m_tokenIssuerRegistration = null;
+        }
+        if (m_credentialLookupRegistration != null) {
+            m_credentialLookupRegistration.unregister();
+            m_credentialLookupRegistration = null;
+        }
+        m_credentialVerifier.shutdown();
+        m_credentialRehasher.shutdown();
+        m_saltExecutor.shutdownNow();
+    }
+
+    /**
+     * Verifies a credential on the pool of credential verification threads.
+     * 
+     * @see CredentialVerifier#verifyCredential(User, String, Object)
+     */
+    public Future<Boolean> verifyCredentialAsync(User user, String key, Object value) {
+        return m_credentialVerifier.verifyCredential(user, key, value);
+    }
+
+    @Override
+    public CredentialRehasher getCredentialRehasher() {
+        return m_credentialRehasher;
+    }
+
+    @Override
+    public AuthenticationThrottle getAuthenticationThrottle() {
+        return m_authenticationThrottle;
+    }
 
+    @Override
+    public CredentialLookupIndex getCredentialLookup() {
+        return m_credentialLookup;
     }
 
     @Override
@@ -420,23 +747,37 @@ public class PaxUserAdmin
 
     @Override
     public Encryptor getEncryptor() {
+        Encryptor current = encryptor;
+        if (current != null) {
+            return current;
+        }
+        Map<String, ?> p;
         synchronized (this) {
-            if (encryptor == null) {
-                Map<String, ?> p = properties;
-                if (p == null) {
-                    p = new HashMap<String, Object>();
-                }
-                try {
-                    encryptor = new PaxUserAdminEncryptor(new EncryptorContext(p));
-                } catch (NoSuchAlgorithmException e) {
-                    throw new IllegalStateException("an algorithm needed for encryption is not avaiable", e);
-                } catch (NumberFormatException e) {
-                    throw new IllegalArgumentException("a number parameter can't be parsed", e);
-                } catch (NoSuchPaddingException e) {
-                    throw new IllegalStateException("a padding algorithm needed for encryption is not avaiable", e);
-                }
+            if (encryptor != null) {
+                return encryptor;
+            }
+            p = properties;
+        }
+        // built outside the lock - calibrating the iterations takes a while
+        Encryptor created;
+        try {
+            created = new PaxUserAdminEncryptor(new EncryptorContext(p != null ? p : new HashMap<String, Object>(), m_saltExecutor));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("an algorithm needed for encryption is not avaiable", e);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("a number parameter can't be parsed", e);
+        } catch (NoSuchPaddingException e) {
+            throw new IllegalStateException("a padding algorithm needed for encryption is not avaiable", e);
+        }
+        synchronized (this) {
+            if (encryptor != null) {
+                return encryptor;
+            }
+            // not kept if the configuration changed meanwhile
+            if (p == properties) {
+                encryptor = created;
             }
-            return encryptor;
+            return created;
         }
     }
 
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The canonical role instances handed out by the <code>UserAdmin</code>
+ * service, keyed by role name. Instances are softly referenced, so roles which
+ * are not used anymore are reclaimed when memory gets short.
+ */
+public class RoleCache {
+
+    private final ConcurrentMap<String, RoleReference> m_roles = new ConcurrentHashMap<String, RoleReference>();
+
+    /**
+     * Receives the references of reclaimed roles.
+     */
+    private final ReferenceQueue<RoleImpl>             m_queue = new ReferenceQueue<RoleImpl>();
+
+    /**
+     * A reference which remembers the name it is stored under.
+     */
+    private static final class RoleReference extends SoftReference<RoleImpl> {
+
+        private final String m_name;
+
+        RoleReference(RoleImpl role, ReferenceQueue<RoleImpl> queue) {
+            super(role, queue);
+            m_name = role.getName();
+        }
+    }
+
+    /**
+     * @return The canonical instance of the role with the given name - null if
+     *         there is none.
+     */
+    RoleImpl get(String name) {
+        purge();
+        RoleReference reference = m_roles.get(name);
+        return null != reference ? reference.get() : null;
+    }
+
+    /**
+     * Makes the given role the canonical instance unless an instance of the
+     * same type was added concurrently.
+     *
+     * @return The canonical instance.
+     */
+    RoleImpl add(RoleImpl role) {
+        purge();
+        RoleReference reference = new RoleReference(role, m_queue);
+        while (true) {
+            RoleReference existing = m_roles.putIfAbsent(role.getName(), reference);
+            if (null == existing) {
+                return role;
+            }
+            RoleImpl current = existing.get();
+            if (null != current && current.getType() == role.getType()) {
+                return current;
+            }
+            if (m_roles.replace(role.getName(), existing, reference)) {
+                return role;
+            }
+        }
+    }
+
+    /**
+     * Drops the canonical instance of the role with the given name.
+     */
+    void remove(String name) {
+        m_roles.remove(name);
+    }
+
+    /**
+     * Marks the canonical instance of the role with the given name as
+     * outdated.
+     */
+    void invalidate(String name) {
+        RoleImpl role = get(name);
+        if (null != role) {
+            role.invalidate();
+        }
+    }
+
+    /**
+     * Marks all canonical instances as outdated.
+     */
+    void invalidateAll() {
+        purge();
+        for (RoleReference reference : m_roles.values()) {
+            RoleImpl role = reference.get();
+            if (null != role) {
+                role.invalidate();
+            }
+        }
+    }
+
+    /**
+     * @return The number of cached roles.
+     */
+    int size() {
+        purge();
+        return m_roles.size();
+    }
+
+    // internal
+
+    private void purge() {
+        Reference<? extends RoleImpl> reference;
+        while (null != (reference = m_queue.poll())) {
+            RoleReference roleReference = (RoleReference) reference;
+            m_roles.remove(roleReference.m_name, roleReference);
+        }
+    }
+}
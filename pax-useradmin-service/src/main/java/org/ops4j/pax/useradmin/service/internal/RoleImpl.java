@@ -19,7 +19,9 @@ package org.ops4j.pax.useradmin.service.internal;
 
 import java.util.Dictionary;
 import java.util.Map;
+import java.util.Set;
 
+import org.ops4j.pax.useradmin.service.spi.RoleDataLoader;
 import org.ops4j.pax.useradmin.service.spi.SPIRole;
 import org.osgi.service.useradmin.Role;
 
@@ -47,6 +49,11 @@ public abstract class RoleImpl
      */
     private final RoleProperties m_properties;
 
+    /**
+     * True if the data may be outdated and is replaced on the next lookup.
+     */
+    private volatile boolean     m_stale;
+
     /**
      * Constructor.
      * 
@@ -84,6 +91,47 @@ public abstract class RoleImpl
     @Override
     public abstract int getType();
 
+    /**
+     * Updates this canonical instance with the data read by the
+     * StorageProvider.
+     * 
+     * @param properties
+     *            A map containing the raw properties of this role.
+     * @param credentialKeys
+     *            The keys of the credentials of this role.
+     */
+    void refresh(Map<String, Object> properties, Set<String> credentialKeys) {
+        m_stale = false;
+        m_properties.refresh(properties);
+    }
+
+    /**
+     * Updates this canonical instance with data which is read by the given
+     * loader on first access.
+     * 
+     * @param loader
+     *            Reads the properties and credential keys of this role.
+     */
+    void refresh(RoleDataLoader loader) {
+        m_stale = false;
+        m_properties.setLoader(loader);
+    }
+
+    /**
+     * Marks the data of this canonical instance as outdated - it is replaced
+     * on the next lookup.
+     */
+    void invalidate() {
+        m_stale = true;
+    }
+
+    /**
+     * @return True if the data must be replaced on the next lookup.
+     */
+    boolean isStale() {
+        return m_stale;
+    }
+
     PaxUserAdmin getAdmin() {
         return m_admin;
     }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns role names as dense int IDs which stay valid for the lifetime of the
+ * <code>UserAdmin</code> service. IDs of removed roles are not reused.
+ */
+public class RoleNameRegistry {
+
+    /**
+     * Returned by {@link #find(String)} for names without an ID.
+     */
+    static final int                             UNKNOWN = -1;
+
+    private final ConcurrentMap<String, Integer> m_ids = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * @return The ID of the given name - a new one if the name has none yet.
+     */
+    int intern(String name) {
+        Integer id = m_ids.get(name);
+        if (null == id) {
+            synchronized (this) {
+                id = m_ids.get(name);
+                if (null == id) {
+                    id = m_ids.size();
+                    m_ids.put(name, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return The ID of the given name or {@link #UNKNOWN}.
+     */
+    int find(String name) {
+        Integer id = m_ids.get(name);
+        return null == id ? UNKNOWN : id;
+    }
+
+    /**
+     * @return The number of interned names.
+     */
+    int size() {
+        return m_ids.size();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.ops4j.pax.useradmin.service.RefreshableAuthorization;
+import org.ops4j.pax.useradmin.service.spi.SPIRole;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * An <code>Authorization</code> answered from an immutable snapshot of the
+ * roles implied by the user: the interned IDs of the roles as sorted int
+ * array, so <code>hasRole()</code> is a binary search, and the role names as
+ * pre-built array which is returned by <code>getRoles()</code>.
+ * <p>
+ * Snapshots older than the configured maximum age are refreshed on the next
+ * request.
+ */
+public class SnapshotAuthorization implements RefreshableAuthorization {
+
+    /**
+     * The user <code>Role</code> we are managing.
+     */
+    private final SPIRole      m_user;
+
+    /**
+     * The <code>UserAdmin</code> service used.
+     */
+    private final PaxUserAdmin m_userAdmin;
+
+    /**
+     * The maximum age of a snapshot in milliseconds - 0 if snapshots never
+     * expire.
+     */
+    private final long         m_maximumAge;
+
+    private volatile Snapshot  m_snapshot;
+
+    /**
+     * The implied roles at a point in time.
+     */
+    private static final class Snapshot {
+
+        /**
+         * Sorted IDs of all implied roles including <code>user.anyone</code>.
+         */
+        private final int[]    m_ids;
+
+        /**
+         * The role names as returned by <code>getRoles()</code>.
+         */
+        private final String[] m_names;
+
+        private final long     m_timestamp;
+
+        Snapshot(int[] ids, String[] names, long timestamp) {
+            m_ids = ids;
+            m_names = names;
+            m_timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Initializing constructor - takes the first snapshot.
+     *
+     * @param userAdmin
+     *            The <code>UserAdmin</code> service to use authorization.
+     * @param user
+     *            The <code>User</code> instance whose authorization is managed.
+     * @param maximumAge
+     *            The maximum age of a snapshot in milliseconds - 0 if
+     *            snapshots never expire.
+     */
+    SnapshotAuthorization(PaxUserAdmin userAdmin, SPIRole user, long maximumAge) {
+        m_userAdmin = userAdmin;
+        m_user = user;
+        m_maximumAge = maximumAge;
+        m_snapshot = takeSnapshot();
+    }
+
+    @Override
+    public String getName() {
+        return m_user.getName();
+    }
+
+    @Override
+    public boolean hasRole(String name) {
+        int id = m_userAdmin.getRoleNameRegistry().find("".equals(name) ? Role.USER_ANYONE : name);
+        return RoleNameRegistry.UNKNOWN != id && Arrays.binarySearch(getSnapshot().m_ids, id) >= 0;
+    }
+
+    /**
+     * @return The names of the implied roles - the returned array is shared
+     *         and must not be modified.
+     */
+    @Override
+    public String[] getRoles() {
+        return getSnapshot().m_names;
+    }
+
+    @Override
+    public void refresh() {
+        m_snapshot = takeSnapshot();
+    }
+
+    @Override
+    public long getTimestamp() {
+        return m_snapshot.m_timestamp;
+    }
+
+    // internal
+
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = m_snapshot;
+        if (m_maximumAge > 0 && System.currentTimeMillis() - snapshot.m_timestamp > m_maximumAge) {
+            snapshot = takeSnapshot();
+            m_snapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    private Snapshot takeSnapshot() {
+        long timestamp = System.currentTimeMillis();
+        MembershipIndex.Entry entry = m_userAdmin.getMembershipIndex().getEntry(m_user);
+        Collection<String> roles = entry.getRoles();
+        RoleNameRegistry registry = m_userAdmin.getRoleNameRegistry();
+        int[] ids = new int[roles.size()];
+        int i = 0;
+        for (String role : roles) {
+            ids[i++] = registry.intern(role);
+        }
+        Arrays.sort(ids);
+        return new Snapshot(ids, entry.getNames(), timestamp);
+    }
+}
@@ -85,4 +85,22 @@ public interface UserAdminUtil {
      */
     Encryptor getEncryptor();
 
+    /**
+     * @return The {@link CredentialRehasher} to notify about verified
+     *         credentials.
+     */
+    CredentialRehasher getCredentialRehasher();
+
+    /**
+     * @return The {@link AuthenticationThrottle} to consult before verifying
+     *         credentials.
+     */
+    AuthenticationThrottle getAuthenticationThrottle();
+
+    /**
+     * @return The {@link CredentialLookupIndex} to notify about stored
+     *         credentials.
+     */
+    CredentialLookupIndex getCredentialLookup();
+
 }
@@ -24,6 +24,8 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
+import org.ops4j.pax.useradmin.service.spi.RoleDataLoader;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.osgi.service.useradmin.Role;
@@ -35,15 +37,20 @@ import org.osgi.service.useradmin.UserAdminPermission;
  */
 public class UserCredentials extends AbstractProperties<User> {
 
-    private final Set<String> credentialKeys;
+    /**
+     * The keys of the credentials. Never modified - replaced by a modified
+     * copy on changes.
+     */
+    private volatile Set<String> credentialKeys;
 
     protected UserCredentials(User user, UserAdminUtil util, Set<String> initialCredentialKeys) {
         super(user, util, null);
-        if (initialCredentialKeys != null) {
-            this.credentialKeys = new HashSet<String>(initialCredentialKeys);
-        } else {
-            this.credentialKeys = new HashSet<String>();
-        }
+        this.credentialKeys = copyOf(initialCredentialKeys);
+    }
+
+    @Override
+    protected void load(RoleDataLoader loader) throws StorageException {
+        replaceKeys(loader.loadCredentialKeys());
     }
 
     @Override
@@ -55,8 +62,17 @@ public class UserCredentials extends AbstractProperties<User> {
     protected synchronized Object store(StorageProvider storageProvider, String key, Object plainValue) throws StorageException {
         UserAdminUtil util = getUtil();
         util.checkPermission(key, UserAdminPermission.CHANGE_CREDENTIAL);
-        storageProvider.getCredentialProvider().setUserCredential(util.getEncryptor(), getRole(), key, plainValue);
-        credentialKeys.add(key);
+        CredentialProvider credentialProvider = storageProvider.getCredentialProvider();
+        credentialProvider.setUserCredential(util.getEncryptor(), getRole(), key, plainValue);
+        CredentialLookupIndex lookup = util.getCredentialLookup();
+        if (null != lookup) {
+            lookup.credentialStored(credentialProvider, getRole(), key, plainValue);
+        }
+        if (!credentialKeys.contains(key)) {
+            Set<String> keys = new HashSet<String>(credentialKeys);
+            keys.add(key);
+            credentialKeys = Collections.unmodifiableSet(keys);
+        }
         return plainValue;
     }
 
@@ -64,11 +80,15 @@ public class UserCredentials extends AbstractProperties<User> {
     protected synchronized void remove(StorageProvider storageProvider, String key) throws StorageException {
         getUtil().checkPermission(key, UserAdminPermission.CHANGE_CREDENTIAL);
         storageProvider.getCredentialProvider().removeUserCredential(getRole(), key);
-        credentialKeys.remove(key);
+        if (credentialKeys.contains(key)) {
+            Set<String> keys = new HashSet<String>(credentialKeys);
+            keys.remove(key);
+            credentialKeys = Collections.unmodifiableSet(keys);
+        }
     }
 
     @Override
-    public synchronized Object get(Object key) {
+    public Object get(Object key) {
         //call super for security and param checks...
         super.get(key);
         UserAdminUtil util = getUtil();
@@ -82,33 +102,81 @@ public class UserCredentials extends AbstractProperties<User> {
 
     @Override
     public Enumeration<String> keys() {
+        ensureLoaded();
         return Collections.enumeration(credentialKeys);
     }
 
     @Override
     public boolean isEmpty() {
+        ensureLoaded();
         return credentialKeys.isEmpty();
     }
 
     @Override
     public int size() {
+        ensureLoaded();
         return credentialKeys.size();
     }
 
     @Override
     public Enumeration<Object> elements() {
+        ensureLoaded();
         ArrayList<Object> list = new ArrayList<Object>();
-        String[] keys = credentialKeys.toArray(new String[0]);
-        for (String key : keys) {
+        for (String key : credentialKeys) {
             list.add(get(key));
         }
         return Collections.enumeration(list);
     }
 
+    /**
+     * Replaces the known credential keys by the given keys as read by the
+     * StorageProvider.
+     * 
+     * @param keys
+     *            The current credential keys - maybe null
+     */
+    synchronized void refreshKeys(Set<String> keys) {
+        setLoader(null);
+        replaceKeys(keys);
+    }
+
+    private void replaceKeys(Set<String> keys) {
+        credentialKeys = copyOf(keys);
+    }
+
+    private static Set<String> copyOf(Set<String> keys) {
+        if (null == keys || keys.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(new HashSet<String>(keys));
+    }
+
     boolean hasCredential(String key, Object value) {
         checkKeyValid(key);
         checkGetPermission(key);
         UserAdminUtil util = getUtil();
-        return util.getStorageProvider().getCredentialProvider().hasUserCredential(util.getDecryptor(), getRole(), key, value);
+        AuthenticationThrottle throttle = util.getAuthenticationThrottle();
+        if (null != throttle && throttle.isBlocked(getRole().getName())) {
+            // too many failures, don't spend a verification on it
+            return false;
+        }
+        boolean verified = verifyCredential(util, key, value);
+        if (!verified && null != throttle) {
+            throttle.failed(getRole().getName());
+        }
+        return verified;
+    }
+
+    private boolean verifyCredential(UserAdminUtil util, String key, Object value) {
+        CredentialRehasher rehasher = util.getCredentialRehasher();
+        if (null == rehasher || !rehasher.isEnabled()) {
+            return util.getStorageProvider().getCredentialProvider().hasUserCredential(util.getDecryptor(), getRole(), key, value);
+        }
+        CredentialRehasher.RecordingDecryptor decryptor = new CredentialRehasher.RecordingDecryptor(util.getDecryptor());
+        boolean verified = util.getStorageProvider().getCredentialProvider().hasUserCredential(decryptor, getRole(), key, value);
+        if (verified && null != decryptor.getAlgorithmParameter()) {
+            rehasher.verified(getRole(), key, value, decryptor.getAlgorithmParameter());
+        }
+        return verified;
     }
 }
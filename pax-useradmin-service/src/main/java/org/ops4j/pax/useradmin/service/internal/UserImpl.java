@@ -22,6 +22,7 @@ import java.util.Dictionary;
 import java.util.Map;
 import java.util.Set;
 
+import org.ops4j.pax.useradmin.service.spi.RoleDataLoader;
 import org.ops4j.pax.useradmin.service.spi.SPIRole;
 import org.osgi.service.useradmin.Role;
 import org.osgi.service.useradmin.User;
@@ -63,6 +64,18 @@ public class UserImpl extends RoleImpl
         return (value instanceof String || value instanceof byte[]) && m_credentials.hasCredential(key, value);
     }
 
+    @Override
+    void refresh(Map<String, Object> properties, Set<String> credentialKeys) {
+        super.refresh(properties, credentialKeys);
+        m_credentials.refreshKeys(credentialKeys);
+    }
+
+    @Override
+    void refresh(RoleDataLoader loader) {
+        super.refresh(loader);
+        m_credentials.setLoader(loader);
+    }
+
     @Override
     public int getType() {
         return Role.USER;
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.internal.encryption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes key, salt and value with a <code>MessageDigest</code> and hashes the
+ * result again for each further iteration. A single iteration gives the
+ * verification bytes of credentials stored before iterations were supported.
+ */
+class DigestHashScheme extends HashScheme {
+
+    /**
+     * The digest of each thread - digests are not thread safe.
+     */
+    private final ThreadLocal<MessageDigest> m_digest;
+
+    DigestHashScheme(final String algorithm, int iterations) throws NoSuchAlgorithmException {
+        super(algorithm, iterations);
+        // fail early if the algorithm is not available
+        MessageDigest.getInstance(algorithm);
+        m_digest = new ThreadLocal<MessageDigest>() {
+
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("hash algorithm '" + algorithm + "' not available anymore", e);
+                }
+            }
+        };
+    }
+
+    @Override
+    byte[] hash(byte[] key, byte[] salt, byte[] value) {
+        MessageDigest digest = m_digest.get();
+        digest.reset();
+        digest.update(key);
+        digest.update(salt);
+        digest.update(value);
+        byte[] hash = digest.digest();
+        for (int i = 1; i < getIterations(); i++) {
+            hash = digest.digest(hash);
+        }
+        return hash;
+    }
+}
@@ -16,14 +16,25 @@
  */
 package org.ops4j.pax.useradmin.service.internal.encryption;
 
+import java.io.IOException;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.NullCipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
 import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
@@ -45,51 +56,251 @@ public class EncryptorContext {
 
     private final static String DEFAULT_ENCRYPTION_CIPHER_ALGORITHM  = CIPHER_PAX_EMPTY;
 
+    private final static String DEFAULT_ENCRYPTION_HASH_ITERATIONS   = "1";
+
     /**
      * The default salt length to use by the random number algorithm.
      */
     private final static String DEFAULT_ENCRYPTION_RANDOM_SALTLENGTH = "32";
 
-    private final int           saltLength;
+    /**
+     * "algorithm##salt length##target time" -&gt; calibrated number of
+     * iterations, so each configuration is calibrated only once.
+     */
+    private static final Map<String, Integer> CALIBRATED_ITERATIONS = new HashMap<String, Integer>();
+
+    private final int                       saltLength;
+
+    /**
+     * Computes the verification bytes.
+     */
+    private final HashScheme                hashScheme;
+
+    private final String                    cipherAlgorithm;
 
-    private final SecureRandom  secureRandom;
+    private final String                    secureRandomAlgorithm;
 
-    private final MessageDigest messageDigest;
+    /**
+     * The random number generator of each thread.
+     */
+    private final ThreadLocal<SecureRandom> secureRandom;
 
-    private final Cipher        cipher;
+    /**
+     * Salts generated in advance - null if salts are generated on demand.
+     */
+    private final SaltPool                  saltPool;
+
+    /**
+     * The cipher of each thread - null if no cipher is used.
+     */
+    private final ThreadLocal<CipherState>  cipher;
+
+    /**
+     * The key of the cipher - null if the cipher doesn't use a key.
+     */
+    private final SecretKey                 cipherKey;
+
+    /**
+     * The algorithm of the parameters (e.g. the IV) the cipher generates for
+     * each value - null if the cipher has no parameters.
+     */
+    private final String                    cipherParameterAlgorithm;
+
+    /**
+     * Identifies the key of the cipher in the algorithm parameters, so values
+     * can still be decrypted after the key was changed - null if the cipher
+     * doesn't use a key.
+     */
+    private final String                    cipherKeyId;
+
+    /**
+     * A cipher and the mode it was initialized for last.
+     */
+    private static final class CipherState {
+
+        private final Cipher cipher;
+
+        /**
+         * 0 if the cipher is not initialized.
+         */
+        private int          mode;
+
+        CipherState(Cipher cipher) {
+            this.cipher = cipher;
+        }
+    }
 
     public EncryptorContext(Map<String, ?> properties) throws NoSuchAlgorithmException, NumberFormatException, NoSuchPaddingException {
+        this(properties, null);
+    }
+
+    /**
+     * @param properties
+     *            The configuration.
+     * @param executor
+     *            Runs the task which fills the salt pool - maybe null, if
+     *            salts are always generated on demand.
+     */
+    public EncryptorContext(Map<String, ?> properties, Executor executor) throws NoSuchAlgorithmException, NumberFormatException, NoSuchPaddingException {
         this(UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_HASH_ALGORITHM, DEFAULT_ENCRYPTION_HASH_ALGORITHM),//
         UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_SECURERANDOM_ALGORITHM, DEFAULT_ENCRYPTION_RANDOM_ALGORITHM), //
         Integer.parseInt(UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_SECURERANDOM_SALTLENGTH, DEFAULT_ENCRYPTION_RANDOM_SALTLENGTH)),//
-        UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_ALGORITHM, DEFAULT_ENCRYPTION_CIPHER_ALGORITHM));
+        UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_ALGORITHM, DEFAULT_ENCRYPTION_CIPHER_ALGORITHM),//
+        getIterations(properties),//
+        null != executor ? Integer.parseInt(UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_SECURERANDOM_SALTPOOL, "0")) : 0, executor,//
+        getCipherKey(properties));
     }
 
-    private EncryptorContext(String hashAlgorith, String secureRandomAlgorith, int saltLength, String cipherAlgorithm) throws NoSuchAlgorithmException,
-            NoSuchPaddingException {
+    private EncryptorContext(String hashAlgorith, final String secureRandomAlgorith, int saltLength, final String cipherAlgorithm, int iterations,
+            int saltPoolSize, Executor executor, byte[] cipherKey) throws NoSuchAlgorithmException, NoSuchPaddingException {
         this.saltLength = saltLength;
-        secureRandom = SecureRandom.getInstance(secureRandomAlgorith);
-        messageDigest = MessageDigest.getInstance(hashAlgorith);
+        this.hashScheme = HashScheme.forAlgorithm(hashAlgorith, iterations);
+        this.secureRandomAlgorithm = secureRandomAlgorith;
+        this.cipherAlgorithm = cipherAlgorithm;
+        // fail early if an algorithm is not available
+        SecureRandom random = SecureRandom.getInstance(secureRandomAlgorith);
+        secureRandom = new ThreadLocal<SecureRandom>() {
+
+            @Override
+            protected SecureRandom initialValue() {
+                try {
+                    return SecureRandom.getInstance(secureRandomAlgorith);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("random algorithm '" + secureRandomAlgorith + "' not available anymore", e);
+                }
+            }
+        };
+        saltPool = saltPoolSize > 0 ? new SaltPool(saltPoolSize, saltLength, random, executor) : null;
         if (CIPHER_PAX_EMPTY.equals(cipherAlgorithm)) {
             cipher = null;
+            this.cipherKey = null;
+            cipherParameterAlgorithm = null;
+            cipherKeyId = null;
         } else if (CIPHER_PAX_PLAIN.equals(cipherAlgorithm) || "null".equals(cipherAlgorithm)) {
-            cipher = new NullCipher();
+            cipher = new ThreadLocal<CipherState>() {
+
+                @Override
+                protected CipherState initialValue() {
+                    return new CipherState(new NullCipher());
+                }
+            };
+            this.cipherKey = null;
+            cipherParameterAlgorithm = null;
+            cipherKeyId = null;
         } else {
-            //Fetch a default one
-            cipher = Cipher.getInstance(cipherAlgorithm);
+            if (null == cipherKey) {
+                throw new IllegalArgumentException("cipher algorithm '" + cipherAlgorithm + "' needs a key, see "
+                        + PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_KEY);
+            }
+            // the key algorithm is the first part of the transformation, e.g. AES/GCM/NoPadding
+            this.cipherKey = new SecretKeySpec(cipherKey, cipherAlgorithm.split("/")[0]);
+            cipherKeyId = getKeyId(cipherKey);
+            // fail early if the key doesn't fit, and find out which parameters are generated
+            Cipher probe = Cipher.getInstance(cipherAlgorithm);
+            try {
+                probe.init(Cipher.ENCRYPT_MODE, this.cipherKey, random);
+            } catch (InvalidKeyException e) {
+                throw new IllegalArgumentException("the key can't be used with cipher algorithm '" + cipherAlgorithm + "'", e);
+            }
+            AlgorithmParameters parameters = probe.getParameters();
+            cipherParameterAlgorithm = null != parameters ? parameters.getAlgorithm() : null;
+            cipher = new ThreadLocal<CipherState>() {
+
+                @Override
+                protected CipherState initialValue() {
+                    try {
+                        return new CipherState(Cipher.getInstance(cipherAlgorithm));
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException("cipher algorithm '" + cipherAlgorithm + "' not available anymore", e);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Encrypts a value with the cipher of the current thread. A keyed cipher
+     * gets fresh parameters (e.g. an IV) for each value, they are stored in
+     * front of the encrypted bytes, prefixed by their length.
+     * 
+     * @return the encrypted value - null if values are not stored for
+     *         retrieval
+     */
+    byte[] encrypt(byte[] value) throws GeneralSecurityException {
+        if (null == cipher) {
+            return null;
         }
+        CipherState state = cipher.get();
+        if (null == cipherKey) {
+            return state.cipher.doFinal(value);
+        }
+        if (null != cipherParameterAlgorithm || Cipher.ENCRYPT_MODE != state.mode) {
+            initCipher(state, Cipher.ENCRYPT_MODE, null);
+        }
+        byte[] encrypted = state.cipher.doFinal(value);
+        byte[] parameters;
+        try {
+            parameters = null != cipherParameterAlgorithm ? state.cipher.getParameters().getEncoded() : new byte[0];
+        } catch (IOException e) {
+            throw new IllegalStateException("the cipher parameters can't be encoded", e);
+        }
+        byte[] result = new byte[2 + parameters.length + encrypted.length];
+        result[0] = (byte) (parameters.length >> 8);
+        result[1] = (byte) parameters.length;
+        System.arraycopy(parameters, 0, result, 2, parameters.length);
+        System.arraycopy(encrypted, 0, result, 2 + parameters.length, encrypted.length);
+        return result;
     }
 
     /**
-     * @return the current value of cipher
+     * Decrypts a value encrypted by {@link #encrypt(byte[])} with the cipher
+     * of the current thread.
+     * 
+     * @throws UnsupportedOperationException
+     *             if values are not stored for retrieval
      */
-    Cipher getCipher(int encryptMode) {
-        //FIXME: we need to init the cypher!
-        //This depend on the choosen algorithm...
-        //        SecretKeySpec key = new SecretKeySpec(keyBytes, "DES");
-        //        IvParameterSpec ivSpec = new IvParameterSpec(ivBytes);
-        //        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
-        return cipher;
+    byte[] decrypt(byte[] encrypted) throws GeneralSecurityException {
+        if (null == cipher) {
+            throw new UnsupportedOperationException("credential can't be decrypted, it was not stored for retrival");
+        }
+        CipherState state = cipher.get();
+        if (null == cipherKey) {
+            return state.cipher.doFinal(encrypted);
+        }
+        if (encrypted.length < 2) {
+            throw new IllegalArgumentException("the encrypted value is too short: " + encrypted.length + " bytes");
+        }
+        int length = ((encrypted[0] & 0xff) << 8) | (encrypted[1] & 0xff);
+        if (2 + length > encrypted.length) {
+            throw new IllegalArgumentException("the cipher parameters of the value are truncated");
+        }
+        if (null != cipherParameterAlgorithm) {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance(cipherParameterAlgorithm);
+            try {
+                parameters.init(Arrays.copyOfRange(encrypted, 2, 2 + length));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("the cipher parameters of the value can't be decoded", e);
+            }
+            initCipher(state, Cipher.DECRYPT_MODE, parameters);
+        } else if (Cipher.DECRYPT_MODE != state.mode) {
+            initCipher(state, Cipher.DECRYPT_MODE, null);
+        }
+        return state.cipher.doFinal(encrypted, 2 + length, encrypted.length - 2 - length);
+    }
+
+    /**
+     * A cipher without parameters stays initialized after
+     * <code>doFinal</code>, so it is only initialized again when the mode
+     * changes.
+     */
+    private void initCipher(CipherState state, int mode, AlgorithmParameters parameters) throws GeneralSecurityException {
+        state.mode = 0;
+        if (null != parameters) {
+            state.cipher.init(mode, cipherKey, parameters);
+        } else {
+            state.cipher.init(mode, cipherKey, secureRandom.get());
+        }
+        state.mode = mode;
     }
 
     /**
@@ -97,32 +308,141 @@ public class EncryptorContext {
      */
     String toStringValue() {
         StringBuilder sb = new StringBuilder();
-        sb.append(messageDigest.getAlgorithm());
+        sb.append(hashScheme.getAlgorithm());
         sb.append("##");
-        sb.append(secureRandom.getAlgorithm());
+        sb.append(secureRandomAlgorithm);
         sb.append("##");
         sb.append(saltLength);
         sb.append("##");
-        sb.append(cipher == null ? CIPHER_PAX_EMPTY : ((cipher instanceof NullCipher) ? CIPHER_PAX_PLAIN : cipher.getAlgorithm()));
+        sb.append(cipher == null ? CIPHER_PAX_EMPTY : ("null".equals(cipherAlgorithm) ? CIPHER_PAX_PLAIN : cipherAlgorithm));
+        // omitted for a single iteration, so the parameters read as before
+        if (hashScheme.getIterations() != 1 || null != cipherKeyId) {
+            sb.append("##");
+            sb.append(hashScheme.getIterations());
+        }
+        if (null != cipherKeyId) {
+            sb.append("##");
+            sb.append(cipherKeyId);
+        }
         return sb.toString();
     }
 
-    synchronized byte[] generateRandomSalt() {
+    byte[] generateRandomSalt() {
+        if (null != saltPool) {
+            byte[] bytes = saltPool.take();
+            if (null != bytes) {
+                return bytes;
+            }
+        }
         byte[] bytes = new byte[saltLength];
-        secureRandom.nextBytes(bytes);
+        secureRandom.get().nextBytes(bytes);
         return bytes;
     }
 
-    synchronized byte[] hashValues(byte[]... byteArray) {
-        messageDigest.reset();
-        for (byte[] bs : byteArray) {
-            messageDigest.update(bs);
+    byte[] hashValues(byte[] key, byte[] salt, byte[] value) {
+        return hashScheme.hash(key, salt, value);
+    }
+
+    /**
+     * @return The number of hash iterations - calibrated on this host the
+     *         first time a target time is configured.
+     */
+    private static int getIterations(Map<String, ?> properties) throws NoSuchAlgorithmException {
+        String targetMillis = UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_HASH_TARGETTIME, null);
+        if (null != targetMillis) {
+            String algorithm = UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_HASH_ALGORITHM,
+                    DEFAULT_ENCRYPTION_HASH_ALGORITHM);
+            int saltLength = Integer.parseInt(UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_SECURERANDOM_SALTLENGTH,
+                    DEFAULT_ENCRYPTION_RANDOM_SALTLENGTH));
+            long target = Long.parseLong(targetMillis.trim());
+            String key = algorithm + "##" + saltLength + "##" + target;
+            // a changed result would mark all credentials as outdated
+            synchronized (CALIBRATED_ITERATIONS) {
+                Integer iterations = CALIBRATED_ITERATIONS.get(key);
+                if (null == iterations) {
+                    iterations = HashScheme.calibrate(algorithm, saltLength, target);
+                    CALIBRATED_ITERATIONS.put(key, iterations);
+                }
+                return iterations;
+            }
         }
-        return messageDigest.digest();
+        return Integer.parseInt(UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_HASH_ITERATIONS,
+                DEFAULT_ENCRYPTION_HASH_ITERATIONS));
     }
 
-    static EncryptorContext fromParams(String[] params) throws NumberFormatException, NoSuchAlgorithmException, NoSuchPaddingException {
-        return new EncryptorContext(params[0], params[1], Integer.parseInt(params[2]), params[3]);
+    /**
+     * @return The configured cipher key - null if none is configured.
+     * @throws IllegalArgumentException
+     *             if the key is not a hex string
+     */
+    static byte[] getCipherKey(Map<String, ?> properties) {
+        String hex = UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_KEY, null);
+        if (null == hex) {
+            return null;
+        }
+        try {
+            return UserAdminTools.hexToBytes(hex.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("the cipher key must be a hex string", e);
+        }
+    }
+
+    /**
+     * @return The keys only used to decrypt values encrypted before the
+     *         current key was configured - empty if none are configured.
+     * @throws IllegalArgumentException
+     *             if a key is not a hex string
+     */
+    static List<byte[]> getPreviousCipherKeys(Map<String, ?> properties) {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        String value = UserAdminTools.getOptionalProperty(properties, PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_PREVIOUSKEYS, null);
+        if (null != value) {
+            for (String hex : value.split(",")) {
+                if (hex.trim().length() > 0) {
+                    try {
+                        keys.add(UserAdminTools.hexToBytes(hex.trim()));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("the previous cipher keys must be hex strings, see "
+                                + PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_PREVIOUSKEYS, e);
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return The id of the given key stored in the algorithm parameters - a
+     *         prefix of its SHA-256 digest, which doesn't reveal the key.
+     */
+    static String getKeyId(byte[] cipherKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(cipherKey);
+            return UserAdminTools.bytesToHex(Arrays.copyOf(digest, 4));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @return The id of the key stored in the given algorithm parameters -
+     *         null for values encrypted without a key or before key ids were
+     *         stored.
+     */
+    static String getKeyId(String[] params) {
+        return params.length > 5 ? params[5] : null;
+    }
+
+    /**
+     * Parameters written before iterations were supported have four fields
+     * and denote a single iteration.
+     * 
+     * @param cipherKey
+     *            The key of the cipher - maybe null if the cipher has no key.
+     */
+    static EncryptorContext fromParams(String[] params, byte[] cipherKey) throws NumberFormatException, NoSuchAlgorithmException, NoSuchPaddingException {
+        int iterations = params.length > 4 ? Integer.parseInt(params[4]) : 1;
+        return new EncryptorContext(params[0], params[1], Integer.parseInt(params[2]), params[3], iterations, 0, null, cipherKey);
     }
 
 }
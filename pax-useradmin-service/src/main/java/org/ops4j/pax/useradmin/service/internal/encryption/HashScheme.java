@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.internal.encryption;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Computes the verification bytes of a credential. The cost of a scheme is
+ * controlled by its number of iterations, which is stored with the algorithm
+ * parameters of each credential.
+ */
+abstract class HashScheme {
+
+    /**
+     * Prefix of the algorithm names handled by {@link PBKDF2HashScheme} - all
+     * other names denote <code>MessageDigest</code> algorithms.
+     */
+    private static final String PBKDF2_PREFIX       = "PBKDF2";
+
+    /**
+     * Calibration runs are repeated until one takes at least this long, so
+     * the timer resolution doesn't matter.
+     */
+    private static final long   MINIMUM_PROBE_NANOS = 10000000L;
+
+    private static final int    PROBE_ITERATIONS    = 1000;
+
+    private static final int    MAXIMUM_ITERATIONS  = 1 << 24;
+
+    /**
+     * Number of timed runs - the slowest one is taken as the 99th
+     * percentile.
+     */
+    private static final int    SAMPLES             = 20;
+
+    private final String        m_algorithm;
+
+    private final int           m_iterations;
+
+    HashScheme(String algorithm, int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("at least one hash iteration is needed, got " + iterations);
+        }
+        m_algorithm = algorithm;
+        m_iterations = iterations;
+    }
+
+    /**
+     * @return The name of the algorithm.
+     */
+    String getAlgorithm() {
+        return m_algorithm;
+    }
+
+    /**
+     * @return The number of iterations.
+     */
+    int getIterations() {
+        return m_iterations;
+    }
+
+    /**
+     * Computes the verification bytes of a credential.
+     * 
+     * @param key
+     *            The credential key.
+     * @param salt
+     *            The salt.
+     * @param value
+     *            The credential value.
+     * @return The verification bytes.
+     */
+    abstract byte[] hash(byte[] key, byte[] salt, byte[] value);
+
+    /**
+     * Creates the scheme for the given algorithm.
+     * 
+     * @throws NoSuchAlgorithmException
+     *             if the algorithm is not available
+     */
+    static HashScheme forAlgorithm(String algorithm, int iterations) throws NoSuchAlgorithmException {
+        if (algorithm.startsWith(PBKDF2_PREFIX)) {
+            return new PBKDF2HashScheme(algorithm, iterations);
+        }
+        return new DigestHashScheme(algorithm, iterations);
+    }
+
+    /**
+     * Measures how many iterations of the given algorithm this host computes
+     * within the given time.
+     * 
+     * @param algorithm
+     *            The hash algorithm.
+     * @param saltLength
+     *            The length of the salts used.
+     * @param targetMillis
+     *            The time a verification should take at the 99th percentile.
+     * @return The number of iterations - at least one, rounded down to a
+     *         power of two so repeated calibrations on the same host agree.
+     * @throws NoSuchAlgorithmException
+     *             if the algorithm is not available
+     */
+    static int calibrate(String algorithm, int saltLength, long targetMillis) throws NoSuchAlgorithmException {
+        byte[] key = "calibration".getBytes();
+        byte[] salt = new byte[saltLength];
+        byte[] value = "some password".getBytes();
+        int probe = PROBE_ITERATIONS;
+        HashScheme scheme = forAlgorithm(algorithm, probe);
+        while (time(scheme, key, salt, value) < MINIMUM_PROBE_NANOS && probe < MAXIMUM_ITERATIONS) {
+            probe *= 2;
+            scheme = forAlgorithm(algorithm, probe);
+        }
+        long[] samples = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = time(scheme, key, salt, value);
+        }
+        Arrays.sort(samples);
+        long slowest = Math.max(1, samples[SAMPLES - 1]);
+        long iterations = probe * (targetMillis * 1000000L) / slowest;
+        return Integer.highestOneBit((int) Math.max(1, Math.min(MAXIMUM_ITERATIONS, iterations)));
+    }
+
+    private static long time(HashScheme scheme, byte[] key, byte[] salt, byte[] value) {
+        long start = System.nanoTime();
+        scheme.hash(key, salt, value);
+        return System.nanoTime() - start;
+    }
+}
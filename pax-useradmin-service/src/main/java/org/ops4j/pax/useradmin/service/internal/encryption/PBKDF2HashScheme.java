@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.internal.encryption;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Derives the verification bytes with a PBKDF2 <code>SecretKeyFactory</code>
+ * of the JDK, e.g. <code>PBKDF2WithHmacSHA1</code>. Key and value form the
+ * password.
+ */
+class PBKDF2HashScheme extends HashScheme {
+
+    /**
+     * The length of the derived key in bits.
+     */
+    private static final int                    KEY_LENGTH = 256;
+
+    /**
+     * The factory of each thread.
+     */
+    private final ThreadLocal<SecretKeyFactory> m_factory;
+
+    PBKDF2HashScheme(final String algorithm, int iterations) throws NoSuchAlgorithmException {
+        super(algorithm, iterations);
+        // fail early if the algorithm is not available
+        SecretKeyFactory.getInstance(algorithm);
+        m_factory = new ThreadLocal<SecretKeyFactory>() {
+
+            @Override
+            protected SecretKeyFactory initialValue() {
+                try {
+                    return SecretKeyFactory.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("hash algorithm '" + algorithm + "' not available anymore", e);
+                }
+            }
+        };
+    }
+
+    @Override
+    byte[] hash(byte[] key, byte[] salt, byte[] value) {
+        // every byte maps to one char, so arbitrary binary values are kept
+        char[] password = new char[key.length + 1 + value.length];
+        for (int i = 0; i < key.length; i++) {
+            password[i] = (char) (key[i] & 0xff);
+        }
+        // separates key and value, so moving bytes between them changes the hash
+        password[key.length] = 0;
+        for (int i = 0; i < value.length; i++) {
+            password[key.length + 1 + i] = (char) (value[i] & 0xff);
+        }
+        PBEKeySpec spec = new PBEKeySpec(password, salt, getIterations(), KEY_LENGTH);
+        try {
+            return m_factory.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException("hashing the value failed", e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(password, (char) 0);
+        }
+    }
+}
@@ -16,28 +16,112 @@
  */
 package org.ops4j.pax.useradmin.service.internal.encryption;
 
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
+import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
 import org.ops4j.pax.useradmin.service.spi.Decryptor;
 import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
 
 public class PaxUserAdminDecryptor implements Decryptor {
 
+    /**
+     * The maximum number of cached contexts - usually there are only a few
+     * distinct algorithm parameters in a storage.
+     */
+    private static final int                       MAX_CONTEXTS = 16;
+
+    /**
+     * The contexts parsed from algorithm parameters, least recently used
+     * first.
+     */
+    private final Map<ParameterKey, EncryptorContext> m_contexts  = new LinkedHashMap<ParameterKey, EncryptorContext>(MAX_CONTEXTS, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ParameterKey, EncryptorContext> eldest) {
+            return size() > MAX_CONTEXTS;
+        }
+    };
+
+    /**
+     * The key of keyed ciphers - null if none is configured.
+     */
+    private final byte[]                           m_cipherKey;
+
+    /**
+     * key id -&gt; key, for the current and the previous keys.
+     */
+    private final Map<String, byte[]>              m_cipherKeys = new HashMap<String, byte[]>();
+
+    /**
+     * The algorithm parameter bytes as a map key.
+     */
+    private static final class ParameterKey {
+
+        private final byte[] m_bytes;
+
+        private final int    m_hash;
+
+        ParameterKey(byte[] bytes) {
+            m_bytes = bytes.clone();
+            m_hash = Arrays.hashCode(m_bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ParameterKey && Arrays.equals(m_bytes, ((ParameterKey) obj).m_bytes);
+        }
+    }
+
+    public PaxUserAdminDecryptor() {
+        m_cipherKey = null;
+    }
+
+    /**
+     * @param properties
+     *            The configuration, which provides the cipher key.
+     * @throws IllegalArgumentException
+     *             if the configured cipher key is invalid
+     */
+    public PaxUserAdminDecryptor(Map<String, ?> properties) {
+        m_cipherKey = EncryptorContext.getCipherKey(properties);
+        for (byte[] key : EncryptorContext.getPreviousCipherKeys(properties)) {
+            m_cipherKeys.put(EncryptorContext.getKeyId(key), key);
+        }
+        if (null != m_cipherKey) {
+            m_cipherKeys.put(EncryptorContext.getKeyId(m_cipherKey), m_cipherKey);
+        }
+    }
+
     @Override
     public Object decrypt(byte[] encryptedBytes, byte[] verificationBytes, byte[] salt, byte[] algorithmParameter) {
-        EncryptorContext context = createContext(algorithmParameter);
-        Cipher cipher = context.getCipher(Cipher.DECRYPT_MODE);
-        if (cipher == null) {
-            throw new UnsupportedOperationException("credential can't be decrypted, it was not stored for retrival");
+        String keyId = EncryptorContext.getKeyId(UserAdminTools.bytesToString(algorithmParameter).split("##"));
+        if (null != keyId && !m_cipherKeys.containsKey(keyId)) {
+            throw new IllegalStateException("the key '" + keyId + "' the value was encrypted with is not configured, see "
+                    + PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_PREVIOUSKEYS);
         }
+        EncryptorContext context = getContext(algorithmParameter);
         try {
-            byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
+            byte[] decryptedBytes = context.decrypt(encryptedBytes);
+            if (decryptedBytes.length == 0) {
+                throw new IllegalArgumentException("the decrypted value has no type indicator");
+            }
             byte[] finalBytes = new byte[decryptedBytes.length - 1];
             System.arraycopy(decryptedBytes, 1, finalBytes, 0, finalBytes.length);
             boolean isString = decryptedBytes[0] == PaxUserAdminEncryptedValue.STRING_INDICATOR;
@@ -50,6 +134,8 @@ public class PaxUserAdminDecryptor implements Decryptor {
             throw new IllegalStateException("An illegal blocksize was detected while decrypting the value", e);
         } catch (BadPaddingException e) {
             throw new IllegalStateException("bad padding was detected while decrypting the value", e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("the cipher can't be initialized for decrypting the value", e);
         }
 
     }
@@ -67,15 +153,40 @@ public class PaxUserAdminDecryptor implements Decryptor {
     }
 
     private PaxUserAdminEncryptor createEncryptor(byte[] algorithmParameter) {
+        return new PaxUserAdminEncryptor(getContext(algorithmParameter));
+    }
+
+    /**
+     * @return The cached context for the given algorithm parameter - a new
+     *         one is created on a cache miss.
+     */
+    EncryptorContext getContext(byte[] algorithmParameter) {
+        ParameterKey key = new ParameterKey(algorithmParameter);
+        synchronized (m_contexts) {
+            EncryptorContext context = m_contexts.get(key);
+            if (null != context) {
+                return context;
+            }
+        }
+        // parsing is done outside the lock - a concurrent miss only costs time
         EncryptorContext context = createContext(algorithmParameter);
-        return new PaxUserAdminEncryptor(context);
+        synchronized (m_contexts) {
+            m_contexts.put(key, context);
+        }
+        return context;
     }
 
     private EncryptorContext createContext(byte[] algorithmParameter) {
         String[] param = UserAdminTools.bytesToString(algorithmParameter).split("##");
+        // an unknown key is only rejected on decryption, hashes can be verified without it
+        byte[] cipherKey = m_cipherKey;
+        String keyId = EncryptorContext.getKeyId(param);
+        if (null != keyId && m_cipherKeys.containsKey(keyId)) {
+            cipherKey = m_cipherKeys.get(keyId);
+        }
         EncryptorContext context;
         try {
-            context = EncryptorContext.fromParams(param);
+            context = EncryptorContext.fromParams(param, cipherKey);
         } catch (NoSuchAlgorithmException e) {
             throw new IllegalStateException("one of the algorithms used to encrypt the value can't be recovered", e);
         } catch (NumberFormatException e) {
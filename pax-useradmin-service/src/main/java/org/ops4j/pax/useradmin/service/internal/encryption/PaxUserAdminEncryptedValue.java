@@ -18,8 +18,6 @@ package org.ops4j.pax.useradmin.service.internal.encryption;
 
 import java.security.GeneralSecurityException;
 
-import javax.crypto.Cipher;
-
 import org.ops4j.pax.useradmin.service.spi.EncryptedValue;
 import org.ops4j.pax.useradmin.service.spi.UserAdminTools;
 
@@ -58,18 +56,13 @@ public class PaxUserAdminEncryptedValue implements EncryptedValue {
     @Override
     public synchronized byte[] getEncryptedBytes() {
         if (encrypted == null) {
-            Cipher cipher = context.getCipher(Cipher.ENCRYPT_MODE);
-            if (cipher == null) {
-                return null;
-            } else {
-                try {
-                    byte[] toEncrypt = new byte[bytes.length + 1];
-                    System.arraycopy(bytes, 0, toEncrypt, 1, bytes.length);
-                    toEncrypt[0] = isString ? STRING_INDICATOR : BYTE_INDICATOR;
-                    encrypted = cipher.doFinal(toEncrypt);
-                } catch (GeneralSecurityException e) {
-                    throw new IllegalStateException("cipher value failed", e);
-                }
+            try {
+                byte[] toEncrypt = new byte[bytes.length + 1];
+                System.arraycopy(bytes, 0, toEncrypt, 1, bytes.length);
+                toEncrypt[0] = isString ? STRING_INDICATOR : BYTE_INDICATOR;
+                encrypted = context.encrypt(toEncrypt);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("cipher value failed", e);
             }
         }
         return encrypted;
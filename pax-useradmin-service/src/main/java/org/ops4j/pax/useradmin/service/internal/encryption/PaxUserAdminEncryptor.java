@@ -23,8 +23,18 @@ public class PaxUserAdminEncryptor implements Encryptor {
 
     private final EncryptorContext context;
 
+    private final byte[]           algorithmParameter;
+
     public PaxUserAdminEncryptor(EncryptorContext context) {
         this.context = context;
+        this.algorithmParameter = UserAdminTools.stringToBytes(context.toStringValue());
+    }
+
+    /**
+     * @return the algorithm parameters stored with the values encrypted here
+     */
+    public byte[] getAlgorithmParameter() {
+        return algorithmParameter.clone();
     }
 
     @Override
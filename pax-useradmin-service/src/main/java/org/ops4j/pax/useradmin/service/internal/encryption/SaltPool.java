@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal.encryption;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Salts generated in advance by a background task, so callers creating
+ * credentials don't wait for the random number generator. The pool is
+ * refilled once it is drained below half of its capacity.
+ */
+class SaltPool {
+
+    private final BlockingQueue<byte[]> m_salts;
+
+    private final int                   m_lowWater;
+
+    private final int                   m_saltLength;
+
+    /**
+     * Only used by the refill task - never by two threads at once.
+     */
+    private final SecureRandom          m_random;
+
+    private final Executor              m_executor;
+
+    /**
+     * True while a refill task is scheduled or running.
+     */
+    private final AtomicBoolean         m_refilling = new AtomicBoolean();
+
+    SaltPool(int capacity, int saltLength, SecureRandom random, Executor executor) {
+        m_salts = new ArrayBlockingQueue<byte[]>(capacity);
+        m_lowWater = capacity / 2;
+        m_saltLength = saltLength;
+        m_random = random;
+        m_executor = executor;
+        refill();
+    }
+
+    /**
+     * @return A salt from the pool - null if the pool is empty.
+     */
+    byte[] take() {
+        byte[] salt = m_salts.poll();
+        if (m_salts.size() <= m_lowWater) {
+            refill();
+        }
+        return salt;
+    }
+
+    private void refill() {
+        if (m_refilling.compareAndSet(false, true)) {
+            try {
+                m_executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            fill();
+                        } finally {
+                            m_refilling.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // executor is shut down: callers generate their salts themselves
+                m_refilling.set(false);
+            }
+        }
+    }
+
+    private void fill() {
+        while (m_salts.remainingCapacity() > 0) {
+            byte[] salt = new byte[m_saltLength];
+            m_random.nextBytes(salt);
+            m_salts.offer(salt);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.spi;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Optional interface for <code>StorageProvider</code> implementations which
+ * can retrieve the members of several groups in one request. If the
+ * <code>StorageProvider</code> service implements this interface, the
+ * UserAdmin service fetches the members of all groups at the same depth of the
+ * group hierarchy at once when evaluating authorizations - the members of
+ * each group are retrieved separately otherwise.
+ */
+public interface BatchMemberProvider {
+
+    /**
+     * Retrieve the basic members of the given groups. Eventually creates new
+     * Role objects via the given factory.
+     *
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create member roles.
+     * @param groups
+     *            The <code>Group</code>s whose members are retrieved.
+     * @return A map of group names to the collection of <code>Role</code>
+     *         objects that are basic members of the group - groups without
+     *         members may be omitted.
+     */
+    Map<String, Collection<Role>> getMembers(UserAdminFactory factory, Collection<Group> groups) throws StorageException;
+
+    /**
+     * Retrieve the required members of the given groups. Eventually creates
+     * new Role objects via the given factory.
+     *
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create member roles.
+     * @param groups
+     *            The <code>Group</code>s whose members are retrieved.
+     * @return A map of group names to the collection of <code>Role</code>
+     *         objects that are required members of the group - groups without
+     *         members may be omitted.
+     */
+    Map<String, Collection<Role>> getRequiredMembers(UserAdminFactory factory, Collection<Group> groups) throws StorageException;
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.spi;
+
+import org.osgi.service.useradmin.User;
+
+/**
+ * Optionally implemented by a {@link CredentialProvider} to find the owner of
+ * a credential without knowing the user first. Since stored credentials are
+ * salted, the service passes a deterministic digest of the value (a lookup)
+ * which the provider keeps with the credential and indexes by key and
+ * lookup.
+ * <p>
+ * A lookup stays with its credential until it is replaced by
+ * {@link #setCredentialLookup(User, String, byte[])} or the credential is
+ * removed - by <code>removeUserCredential()</code>,
+ * <code>clearUserCredentials()</code> or by deleting the user.
+ */
+public interface CredentialLookupProvider {
+
+    /**
+     * Stores the lookup of a credential, replacing a previous one.
+     * 
+     * @param user
+     *            The <code>User</code> owning the credential.
+     * @param key
+     *            The key of the credential.
+     * @param lookup
+     *            The digest of the credential value.
+     */
+    void setCredentialLookup(User user, String key, byte[] lookup) throws StorageException;
+
+    /**
+     * @param key
+     *            The key of the credential.
+     * @param lookup
+     *            The digest of the credential value.
+     * @return The name of the user owning a credential with the given key and
+     *         lookup - null if there is none.
+     */
+    String findCredentialLookup(String key, byte[] lookup) throws StorageException;
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.spi;
+
+import java.util.Collection;
+
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Optional interface for <code>StorageProvider</code> implementations which
+ * can look up the groups a role is a direct member of. If the
+ * <code>StorageProvider</code> service implements this interface, the
+ * UserAdmin service evaluates authorizations by walking upward from the user
+ * instead of testing every role of the store.
+ */
+public interface ParentGroupProvider {
+
+    /**
+     * Retrieve the groups which have the given role as basic member. Eventually
+     * creates new Role objects via the given factory.
+     *
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create the groups.
+     * @param role
+     *            The <code>Role</code> whose parent groups are retrieved.
+     * @return A collection of <code>Group</code> objects which have the given
+     *         role as basic member.
+     */
+    Collection<Group> getParentGroups(UserAdminFactory factory, Role role) throws StorageException;
+
+    /**
+     * Retrieve the groups which have the given role as required member.
+     * Eventually creates new Role objects via the given factory.
+     *
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create the groups.
+     * @param role
+     *            The <code>Role</code> whose parent groups are retrieved.
+     * @return A collection of <code>Group</code> objects which have the given
+     *         role as required member.
+     */
+    Collection<Group> getRequiredParentGroups(UserAdminFactory factory, Role role) throws StorageException;
+}
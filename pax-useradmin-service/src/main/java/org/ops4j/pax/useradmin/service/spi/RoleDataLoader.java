@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.spi;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the properties and credential keys of a role on demand. Passed to the
+ * lazy factory methods of {@link UserAdminFactory} by
+ * <code>StorageProvider</code> implementations, so the data is only read and
+ * decoded when a caller actually accesses it.
+ */
+public interface RoleDataLoader {
+
+    /**
+     * @return The properties of the role - maybe null.
+     * @throws StorageException
+     *             if the properties could not be read.
+     */
+    Map<String, Object> loadProperties() throws StorageException;
+
+    /**
+     * @return The keys of the credentials of the role - maybe null.
+     * @throws StorageException
+     *             if the credential keys could not be read.
+     */
+    Set<String> loadCredentialKeys() throws StorageException;
+}
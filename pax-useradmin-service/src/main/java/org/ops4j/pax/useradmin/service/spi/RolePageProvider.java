@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.spi;
+
+import java.util.List;
+
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Optional interface for <code>StorageProvider</code> implementations which
+ * can read the roles of the store page by page in the order of their names.
+ * If the <code>StorageProvider</code> service implements this interface, bulk
+ * jobs like the credential re-encryption hold one page of roles at a time
+ * instead of all roles of the store.
+ */
+public interface RolePageProvider {
+
+    /**
+     * Retrieve the roles whose names sort after the given name, ordered by
+     * name. Eventually creates new Role objects via the given factory.
+     *
+     * @param factory
+     *            The <code>UserAdminFactory</code> used to create the roles.
+     * @param after
+     *            The name of the last role of the previous page or
+     *            <code>null</code> to start with the first role.
+     * @param count
+     *            The maximum number of roles to return.
+     * @return Up to <code>count</code> roles, an empty list after the last
+     *         page.
+     */
+    List<Role> findRolePage(UserAdminFactory factory, String after, int count) throws StorageException;
+}
@@ -57,6 +57,30 @@ public interface UserAdminFactory {
      */
     Group createGroup(String name, Map<String, Object> properties, Set<String> initialCredentialKeys);
 
+    /**
+     * Create a <code>User</code> instance whose properties and credential keys
+     * are read on first access.
+     * 
+     * @param name
+     *            The name of the user.
+     * @param loader
+     *            Reads the properties and credential keys of the user.
+     * @return A new <code>User</code> instance.
+     */
+    User createUser(String name, RoleDataLoader loader);
+
+    /**
+     * Create a <code>Group</code> instance whose properties and credential
+     * keys are read on first access.
+     * 
+     * @param name
+     *            The name of the group.
+     * @param loader
+     *            Reads the properties and credential keys of the group.
+     * @return A new <code>Group</code> instance.
+     */
+    Group createGroup(String name, RoleDataLoader loader);
+
     /**
      * Publish an event of the given type related to the role specified.
      * 
@@ -128,4 +128,44 @@ public final class UserAdminTools {
             return new String(input, Charset.defaultCharset());
         }
     }
+
+    /**
+     * @return The lower case hex representation of the given bytes.
+     */
+    public static String bytesToHex(byte[] input) {
+        if (input == null) {
+            return null;
+        }
+        char[] chars = new char[2 * input.length];
+        for (int i = 0; i < input.length; i++) {
+            chars[2 * i] = Character.forDigit((input[i] >> 4) & 0xf, 16);
+            chars[2 * i + 1] = Character.forDigit(input[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return The bytes represented by the given hex string.
+     * @throws IllegalArgumentException
+     *             if the input is not a hex string
+     */
+    public static byte[] hexToBytes(String input) {
+        if (input == null) {
+            return null;
+        }
+        if (input.length() % 2 != 0) {
+            throw new IllegalArgumentException("hex string must have an even number of digits, got " + input.length());
+        }
+        byte[] bytes = new byte[input.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(input.charAt(2 * i), 16);
+            int low = Character.digit(input.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                // the input may be a secret - report the position only
+                throw new IllegalArgumentException("invalid hex digit at position " + (high < 0 ? 2 * i : 2 * i + 1));
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
 }
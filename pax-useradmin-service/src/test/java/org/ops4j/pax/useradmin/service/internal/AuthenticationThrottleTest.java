@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Testing the AuthenticationThrottle class.
+ */
+public class AuthenticationThrottleTest {
+
+    @Test
+    public void nothingIsBlockedByDefault() {
+        AuthenticationThrottle throttle = new AuthenticationThrottle();
+        for (int i = 0; i < 100; i++) {
+            throttle.failed("user");
+        }
+        Assert.assertFalse("User blocked", throttle.isBlocked("user"));
+    }
+
+    @Test
+    public void userIsBlockedAfterFailures() {
+        AuthenticationThrottle throttle = new AuthenticationThrottle();
+        throttle.configure(3, 0, 60000, 1024);
+        for (int i = 0; i < 2; i++) {
+            throttle.failed("user");
+        }
+        Assert.assertFalse("User blocked too early", throttle.isBlocked("user"));
+        throttle.failed("user");
+        Assert.assertTrue("User not blocked", throttle.isBlocked("user"));
+        Assert.assertFalse("Other user blocked", throttle.isBlocked("other"));
+        Assert.assertEquals("Wrong number of blocked verifications", 1, throttle.getBlockedCount());
+    }
+
+    @Test
+    public void allUsersAreBlockedAfterGlobalFailures() {
+        AuthenticationThrottle throttle = new AuthenticationThrottle();
+        throttle.configure(0, 10, 60000, 1024);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertFalse("User blocked too early", throttle.isBlocked("user" + i));
+            throttle.failed("user" + i);
+        }
+        Assert.assertTrue("Other user not blocked", throttle.isBlocked("other"));
+    }
+
+    /**
+     * @return A user name hashed to the same slots as the given one.
+     */
+    private static String collidingName(String userName, int slots) {
+        for (int i = 0;; i++) {
+            String name = "other" + i;
+            if (AuthenticationThrottle.slot(name, 0, slots) == AuthenticationThrottle.slot(userName, 0, slots)
+                    && AuthenticationThrottle.slot(name, 1, slots) == AuthenticationThrottle.slot(userName, 1, slots)) {
+                return name;
+            }
+        }
+    }
+
+    @Test
+    public void slotsAreSizedFromUsers() {
+        Assert.assertEquals("Wrong minimum number of slots", 64, AuthenticationThrottle.slots(1));
+        Assert.assertEquals("Wrong number of slots", 4096, AuthenticationThrottle.slots(1024));
+        Assert.assertEquals("Wrong number of slots", 8192, AuthenticationThrottle.slots(1025));
+    }
+
+    @Test
+    public void rowsUseIndependentHashes() {
+        int slots = AuthenticationThrottle.slots(1024);
+        // equal hash codes
+        Assert.assertEquals("Wrong first row", AuthenticationThrottle.slot("Aa", 0, slots), AuthenticationThrottle.slot("BB", 0, slots));
+        Assert.assertFalse("Same second row", AuthenticationThrottle.slot("Aa", 1, slots) == AuthenticationThrottle.slot("BB", 1, slots));
+    }
+
+    @Test
+    public void collidingUserIsNotBlocked() {
+        AuthenticationThrottle throttle = new AuthenticationThrottle();
+        throttle.configure(3, 0, 60000, 1);
+        String other = collidingName("user", AuthenticationThrottle.slots(1));
+        for (int i = 0; i < 3; i++) {
+            throttle.failed("user");
+        }
+        Assert.assertTrue("User not blocked", throttle.isBlocked("user"));
+        Assert.assertFalse("Colliding user blocked", throttle.isBlocked(other));
+    }
+
+    @Test
+    public void expectedUsersAreCountedExactly() {
+        AuthenticationThrottle throttle = new AuthenticationThrottle();
+        throttle.configure(2, 0, 60000, 256);
+        for (int i = 0; i < 128; i++) {
+            throttle.failed("user" + i);
+            throttle.failed("user" + i);
+        }
+        for (int i = 0; i < 128; i++) {
+            Assert.assertTrue("User not blocked", throttle.isBlocked("user" + i));
+            Assert.assertFalse("Other user blocked", throttle.isBlocked("other" + i));
+        }
+    }
+
+    @Test
+    public void evictedUserIsJudgedBySketch() {
+        AuthenticationThrottle throttle = new AuthenticationThrottle();
+        throttle.configure(3, 0, 60000, 1);
+        for (int i = 0; i < 3; i++) {
+            throttle.failed("user");
+        }
+        // pushes the user out of the exact counters
+        throttle.failed("next");
+        Assert.assertTrue("Evicted user not blocked", throttle.isBlocked("user"));
+        Assert.assertFalse("Other user blocked", throttle.isBlocked("next"));
+    }
+
+    @Test
+    public void failuresExpireWithWindow() throws InterruptedException {
+        AuthenticationThrottle throttle = new AuthenticationThrottle();
+        throttle.configure(1, 0, 50, 1024);
+        throttle.failed("user");
+        Assert.assertTrue("User not blocked", throttle.isBlocked("user"));
+        Thread.sleep(100);
+        Assert.assertFalse("User still blocked", throttle.isBlocked("user"));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.AuthenticationTokenService.Token;
+import org.osgi.service.useradmin.Authorization;
+import org.osgi.service.useradmin.User;
+
+/**
+ * Testing the AuthenticationTokenIssuer class.
+ */
+public class AuthenticationTokenIssuerTest {
+
+    private static final String KEY   = "password";
+    private static final String VALUE = "secret";
+
+    private PaxUserAdmin        m_userAdmin;
+
+    private AuthenticationTokenIssuer createIssuer(long lifetimeSeconds, boolean includeRoles) {
+        m_userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        AuthenticationTokenIssuer issuer = new AuthenticationTokenIssuer(m_userAdmin);
+        issuer.configure(lifetimeSeconds, includeRoles);
+        return issuer;
+    }
+
+    private static User createUser(String name) {
+        User user = EasyMock.createMock(User.class);
+        EasyMock.expect(user.getName()).andStubReturn(name);
+        EasyMock.expect(user.hasCredential(KEY, VALUE)).andStubReturn(true);
+        EasyMock.expect(user.hasCredential(KEY, "wrong")).andStubReturn(false);
+        EasyMock.replay(user);
+        return user;
+    }
+
+    @Test
+    public void tokenIsIssuedForValidCredential() {
+        AuthenticationTokenIssuer issuer = createIssuer(60, false);
+        EasyMock.replay(m_userAdmin);
+        User user = createUser("user");
+        //
+        Assert.assertNull("Token issued for wrong credential", issuer.issueToken(user, KEY, "wrong"));
+        String token = issuer.issueToken(user, KEY, VALUE);
+        Token content = issuer.validateToken(token);
+        Assert.assertNotNull("Token not valid", content);
+        Assert.assertEquals("Wrong user", "user", content.getUserName());
+        Assert.assertTrue("Wrong expiry", content.getExpiry() > System.currentTimeMillis());
+        Assert.assertNull("Roles included", content.getRoles());
+        EasyMock.verify(m_userAdmin);
+    }
+
+    @Test
+    public void forgedTokenIsRejected() {
+        AuthenticationTokenIssuer issuer = createIssuer(60, false);
+        EasyMock.replay(m_userAdmin);
+        String token = issuer.issueToken(createUser("user"), KEY, VALUE);
+        String other = createIssuer(60, false).issueToken(createUser("admin"), KEY, VALUE);
+        //
+        Assert.assertNull("Token of other issuer accepted", issuer.validateToken(other));
+        Assert.assertNull("Payload of other token accepted", issuer.validateToken(other.substring(0, other.indexOf('.'))
+                + token.substring(token.indexOf('.'))));
+        Assert.assertNull("Malformed token accepted", issuer.validateToken("xyz"));
+    }
+
+    @Test
+    public void expiredTokenIsRejected() {
+        AuthenticationTokenIssuer issuer = createIssuer(0, false);
+        EasyMock.replay(m_userAdmin);
+        //
+        Assert.assertNull("Expired token accepted", issuer.validateToken(issuer.issueToken(createUser("user"), KEY, VALUE)));
+    }
+
+    @Test
+    public void changedUserRevokesToken() {
+        AuthenticationTokenIssuer issuer = createIssuer(60, false);
+        EasyMock.replay(m_userAdmin);
+        String token = issuer.issueToken(createUser("user"), KEY, VALUE);
+        //
+        issuer.revoke("other", false);
+        issuer.revoke("group", true);
+        Assert.assertNotNull("Token revoked by other role", issuer.validateToken(token));
+        issuer.revoke("user", false);
+        Assert.assertNull("Token not revoked", issuer.validateToken(token));
+    }
+
+    @Test
+    public void changedGroupRevokesTokenWithRoles() {
+        AuthenticationTokenIssuer issuer = createIssuer(60, true);
+        User user = createUser("user");
+        Authorization authorization = EasyMock.createMock(Authorization.class);
+        EasyMock.expect(authorization.getRoles()).andReturn(new String[] { "user", "group" });
+        EasyMock.expect(m_userAdmin.getAuthorization(user)).andReturn(authorization);
+        EasyMock.replay(m_userAdmin, authorization);
+        String token = issuer.issueToken(user, KEY, VALUE);
+        //
+        Assert.assertEquals("Wrong roles", new HashSet<String>(Arrays.asList("user", "group")), issuer.validateToken(token).getRoles());
+        issuer.revoke("group", true);
+        Assert.assertNull("Token not revoked", issuer.validateToken(token));
+        EasyMock.verify(m_userAdmin);
+    }
+}
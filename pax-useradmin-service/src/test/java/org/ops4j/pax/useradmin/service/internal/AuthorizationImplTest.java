@@ -63,6 +63,8 @@ public class AuthorizationImplTest {
         UserImpl user = new UserImpl(USER_NAME1, userAdmin, null, null);
 
         StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getMembershipIndex()).andStubReturn(enabledIndex(userAdmin));
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
         try {
             EasyMock.expect(userAdmin.getRoles(null)).andThrow(new InvalidSyntaxException("", null));
         } catch (InvalidSyntaxException e) {
@@ -94,20 +96,24 @@ public class AuthorizationImplTest {
         GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
         GroupImpl group2 = new GroupImpl(GROUP_NAME2, userAdmin, null, null);
         GroupImpl group3 = new GroupImpl(GROUP_NAME3, userAdmin, null, null);
+        EasyMock.expect(userAdmin.getMembershipIndex()).andStubReturn(enabledIndex(userAdmin));
         try {
             // 1st addMember()
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group1, user1)).andReturn(true);
+            userAdmin.memberAdded(group1, user1, false);
             EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { user1, group1, group2 });
             //
             // 2nd addMember()
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group3, userAnyone)).andReturn(true);
+            userAdmin.memberAdded(group3, userAnyone, false);
             //
             // 1st getRoles()
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(new ArrayList<Role>());
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             Collection<Role> group1Members = new ArrayList<Role>();
@@ -121,9 +127,11 @@ public class AuthorizationImplTest {
             EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(group2Members);
             //
             // 2nd getRoles()
+            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(userAdmin.getRoles(null)).andReturn(null);
             //
             // 3rd getRoles()
+            EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { userAnyone });
             //
         } catch (StorageException e) {
@@ -151,7 +159,54 @@ public class AuthorizationImplTest {
     }
 
     @Test
-    public void hasRoleOk() {
-        // TODO: implement test
+    public void hasRoleOk() throws StorageException, InvalidSyntaxException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl userAnyone = new UserImpl(Role.USER_ANYONE, userAdmin, null, null);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl(GROUP_NAME2, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        DecisionCache decisionCache = new DecisionCache(userAdmin, 100);
+        EasyMock.expect(userAdmin.getMembershipIndex()).andStubReturn(enabledIndex(userAdmin));
+        EasyMock.expect(userAdmin.getDecisionCache()).andStubReturn(decisionCache);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        // single checks are evaluated once - further checks are answered by the cache
+        EasyMock.expect(userAdmin.getRole(USER_NAME1)).andReturn(user1);
+        EasyMock.expect(userAdmin.getRole(GROUP_NAME1)).andReturn(group1);
+        EasyMock.expect(userAdmin.getRole(GROUP_NAME2)).andReturn(group2);
+        EasyMock.expect(userAdmin.getRole(GROUP_NAME3)).andReturn(null);
+        EasyMock.expect(userAdmin.getRole(Role.USER_ANYONE)).andReturn(userAnyone);
+        // roles are evaluated once by getRoles() - further checks are answered by the index
+        EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { userAnyone, user1, group1, group2 });
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(new ArrayList<Role>()).times(2);
+        Collection<Role> group1Members = new ArrayList<Role>();
+        group1Members.add(user1);
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(group1Members).times(2);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(new ArrayList<Role>()).times(2);
+        EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(new ArrayList<Role>()).times(2);
+        EasyMock.replay(userAdmin, sp);
+        //
+        Authorization authorization = new AuthorizationImpl(userAdmin, user1);
+        Assert.assertTrue("User does not imply itself", authorization.hasRole(USER_NAME1));
+        Assert.assertTrue("Group 1 not implied", authorization.hasRole(GROUP_NAME1));
+        Assert.assertFalse("Group 2 implied", authorization.hasRole(GROUP_NAME2));
+        Assert.assertFalse("Unknown role implied", authorization.hasRole(GROUP_NAME3));
+        Assert.assertTrue("user.anyone not implied", authorization.hasRole(Role.USER_ANYONE));
+        Assert.assertTrue("user.anyone not implied", authorization.hasRole(""));
+        Assert.assertTrue("Group 1 not implied", authorization.hasRole(GROUP_NAME1));
+        Assert.assertEquals("Wrong number of cached decisions", 5, decisionCache.getSize());
+        Assert.assertEquals("Wrong number of cache hits", 2, decisionCache.getHitCount());
+        //
+        assertThat(authorization.getRoles().length, equalTo(2));
+        Assert.assertFalse("Group 2 implied", authorization.hasRole(GROUP_NAME2));
+        Assert.assertEquals("Index not used", 7, decisionCache.getHitCount() + decisionCache.getMissCount());
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    private static MembershipIndex enabledIndex(PaxUserAdmin userAdmin) {
+        MembershipIndex index = new MembershipIndex(userAdmin);
+        index.setEnabled(true);
+        return index;
     }
 }
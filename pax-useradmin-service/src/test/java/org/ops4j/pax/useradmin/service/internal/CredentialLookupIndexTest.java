@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Arrays;
+
+import org.easymock.Capture;
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.spi.CredentialLookupProvider;
+import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.service.useradmin.User;
+
+/**
+ * Testing the CredentialLookupIndex class.
+ */
+public class CredentialLookupIndexTest {
+
+    private static final String SECRET = "000102030405060708090a0b0c0d0e0f";
+
+    /**
+     * A credential provider supporting lookups.
+     */
+    private interface LookupCredentialProvider extends CredentialProvider, CredentialLookupProvider {
+    }
+
+    private static User createUser(String name) {
+        User user = EasyMock.createMock(User.class);
+        EasyMock.expect(user.getName()).andStubReturn(name);
+        EasyMock.expect(user.hasCredential("apikey", "value")).andStubReturn(true);
+        EasyMock.expect(user.hasCredential("apikey", "changed")).andStubReturn(false);
+        EasyMock.replay(user);
+        return user;
+    }
+
+    private static byte[] storeLookup(CredentialLookupIndex index, Object value) throws Exception {
+        LookupCredentialProvider credentialProvider = EasyMock.createMock(LookupCredentialProvider.class);
+        User user = createUser("user");
+        Capture<byte[]> lookup = new Capture<byte[]>();
+        credentialProvider.setCredentialLookup(EasyMock.same(user), EasyMock.eq("apikey"), EasyMock.capture(lookup));
+        EasyMock.replay(credentialProvider);
+        index.credentialStored(credentialProvider, user, "apikey", value);
+        EasyMock.verify(credentialProvider);
+        return lookup.getValue();
+    }
+
+    @Test
+    public void onlyConfiguredKeysAreLookupKeys() {
+        CredentialLookupIndex index = new CredentialLookupIndex(EasyMock.createMock(PaxUserAdmin.class));
+        Assert.assertFalse("Lookups enabled without keys", index.isLookupKey("apikey"));
+        index.configure(" apikey , token", SECRET);
+        Assert.assertTrue("Key not configured", index.isLookupKey("apikey"));
+        Assert.assertTrue("Key not configured", index.isLookupKey("token"));
+        Assert.assertFalse("Other key configured", index.isLookupKey("password"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keysWithoutSecretAreRejected() {
+        new CredentialLookupIndex(EasyMock.createMock(PaxUserAdmin.class)).configure("apikey", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void otherKeyIsRejected() {
+        CredentialLookupIndex index = new CredentialLookupIndex(EasyMock.createMock(PaxUserAdmin.class));
+        index.configure("apikey", SECRET);
+        index.findUser("password", "value");
+    }
+
+    @Test
+    public void storedCredentialIsFound() throws Exception {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        StorageProvider storageProvider = EasyMock.createMock(StorageProvider.class);
+        LookupCredentialProvider credentialProvider = EasyMock.createMock(LookupCredentialProvider.class);
+        User user = createUser("user");
+        Capture<byte[]> lookup = new Capture<byte[]>();
+        credentialProvider.setCredentialLookup(EasyMock.same(user), EasyMock.eq("apikey"), EasyMock.capture(lookup));
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(storageProvider);
+        EasyMock.expect(storageProvider.getCredentialProvider()).andStubReturn(credentialProvider);
+        EasyMock.replay(userAdmin, storageProvider, credentialProvider);
+        CredentialLookupIndex index = new CredentialLookupIndex(userAdmin);
+        index.configure("apikey", SECRET);
+        index.credentialStored(credentialProvider, user, "apikey", "value");
+        // ignored: not configured for lookups
+        index.credentialStored(credentialProvider, user, "password", "value");
+        EasyMock.verify(credentialProvider);
+        //
+        EasyMock.reset(userAdmin, credentialProvider);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(storageProvider);
+        EasyMock.expect(credentialProvider.findCredentialLookup(EasyMock.eq("apikey"), EasyMock.aryEq(lookup.getValue()))).andReturn("user");
+        EasyMock.expect(userAdmin.getRole("user")).andReturn(user);
+        EasyMock.replay(userAdmin, credentialProvider);
+        Assert.assertSame("User not found", user, index.findUser("apikey", "value"));
+        EasyMock.verify(userAdmin, credentialProvider);
+    }
+
+    @Test
+    public void lookupDependsOnValueAndType() throws Exception {
+        CredentialLookupIndex index = new CredentialLookupIndex(EasyMock.createMock(PaxUserAdmin.class));
+        index.configure("apikey", SECRET);
+        byte[] lookup = storeLookup(index, "value");
+        Assert.assertTrue("Lookup not deterministic", Arrays.equals(lookup, storeLookup(index, "value")));
+        Assert.assertFalse("Same lookup for other value", Arrays.equals(lookup, storeLookup(index, "other")));
+        Assert.assertFalse("Same lookup for bytes", Arrays.equals(lookup, storeLookup(index, "value".getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void outdatedLookupIsNotReturned() throws Exception {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        StorageProvider storageProvider = EasyMock.createMock(StorageProvider.class);
+        LookupCredentialProvider credentialProvider = EasyMock.createMock(LookupCredentialProvider.class);
+        User user = createUser("user");
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(storageProvider);
+        EasyMock.expect(storageProvider.getCredentialProvider()).andStubReturn(credentialProvider);
+        EasyMock.expect(credentialProvider.findCredentialLookup(EasyMock.eq("apikey"), (byte[]) EasyMock.anyObject())).andReturn("user");
+        EasyMock.expect(userAdmin.getRole("user")).andReturn(user);
+        EasyMock.replay(userAdmin, storageProvider, credentialProvider);
+        CredentialLookupIndex index = new CredentialLookupIndex(userAdmin);
+        index.configure("apikey", SECRET);
+        //
+        Assert.assertNull("Wrong user found", index.findUser("apikey", "changed"));
+        EasyMock.verify(userAdmin, credentialProvider);
+    }
+}
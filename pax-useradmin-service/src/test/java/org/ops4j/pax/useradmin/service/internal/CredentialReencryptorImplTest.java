@@ -0,0 +1,197 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.CredentialReencryptor.Progress;
+import org.ops4j.pax.useradmin.service.internal.encryption.EncryptorContext;
+import org.ops4j.pax.useradmin.service.internal.encryption.PaxUserAdminEncryptor;
+import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
+import org.ops4j.pax.useradmin.service.spi.Decryptor;
+import org.ops4j.pax.useradmin.service.spi.RolePageProvider;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.service.useradmin.Role;
+import org.osgi.service.useradmin.User;
+
+/**
+ * Testing the CredentialReencryptorImpl class.
+ */
+public class CredentialReencryptorImplTest {
+
+    private static final String KEY      = "password";
+    private static final String VALUE    = "secret";
+    private static final byte[] OUTDATED = "MD5##SHA1PRNG##16##PAX_PLAIN".getBytes();
+
+    private PaxUserAdminEncryptor m_encryptor;
+    private PaxUserAdmin          m_userAdmin;
+    private StorageProvider       m_storageProvider;
+    private CredentialProvider    m_credentialProvider;
+
+    private void createUserAdmin(List<Role> roles) throws Exception {
+        m_encryptor = new PaxUserAdminEncryptor(new EncryptorContext(new HashMap<String, Object>()));
+        m_userAdmin = EasyMock.createNiceMock(PaxUserAdmin.class);
+        m_storageProvider = EasyMock.createMock(StorageProvider.class);
+        m_credentialProvider = EasyMock.createMock(CredentialProvider.class);
+        Decryptor decryptor = EasyMock.createMock(Decryptor.class);
+        // users are processed in parallel
+        makeThreadSafe(m_userAdmin, m_storageProvider, m_credentialProvider, decryptor);
+        EasyMock.expect(m_userAdmin.getEncryptor()).andStubReturn(m_encryptor);
+        EasyMock.expect(m_userAdmin.getDecryptor()).andStubReturn(decryptor);
+        EasyMock.expect(m_userAdmin.getStorageProvider()).andStubReturn(m_storageProvider);
+        EasyMock.expect(m_storageProvider.getCredentialProvider()).andStubReturn(m_credentialProvider);
+        EasyMock.expect(m_storageProvider.findRoles(m_userAdmin, null)).andReturn(roles);
+        EasyMock.expect(decryptor.decrypt((byte[]) EasyMock.isNull(), (byte[]) EasyMock.isNull(), (byte[]) EasyMock.isNull(), EasyMock.aryEq(OUTDATED))).andStubReturn(VALUE);
+        EasyMock.expect(decryptor.decrypt((byte[]) EasyMock.isNull(), (byte[]) EasyMock.isNull(), (byte[]) EasyMock.isNull(), EasyMock.aryEq(m_encryptor.getAlgorithmParameter()))).andStubReturn(VALUE);
+        EasyMock.replay(m_userAdmin, m_storageProvider, decryptor);
+    }
+
+    private static User createUser(String name) {
+        User user = EasyMock.createMock(User.class);
+        Hashtable<String, Object> credentials = new Hashtable<String, Object>();
+        credentials.put(KEY, VALUE);
+        EasyMock.expect(user.getName()).andStubReturn(name);
+        EasyMock.expect(user.getCredentials()).andStubReturn(credentials);
+        makeThreadSafe(user);
+        EasyMock.replay(user);
+        return user;
+    }
+
+    private static void makeThreadSafe(Object... mocks) {
+        for (Object mock : mocks) {
+            EasyMock.makeThreadSafe(mock, true);
+        }
+    }
+
+    private void expectStoredCredential(User user, final byte[] algorithmParameter) throws Exception {
+        EasyMock.expect(m_credentialProvider.getUserCredential(EasyMock.isA(Decryptor.class), EasyMock.eq(user), EasyMock.eq(KEY))).andAnswer(
+                new IAnswer<Object>() {
+
+                    @Override
+                    public Object answer() throws Throwable {
+                        Decryptor decryptor = (Decryptor) EasyMock.getCurrentArguments()[0];
+                        return decryptor.decrypt(null, null, null, algorithmParameter);
+                    }
+                });
+    }
+
+    @Test
+    public void outdatedCredentialsAreReencrypted() throws Exception {
+        User outdated = createUser("a");
+        User current = createUser("b");
+        User hashOnly = createUser("c");
+        createUserAdmin(Arrays.<Role> asList(hashOnly, current, outdated));
+        expectStoredCredential(outdated, OUTDATED);
+        m_credentialProvider.setUserCredential(m_encryptor, outdated, KEY, VALUE);
+        expectStoredCredential(current, m_encryptor.getAlgorithmParameter());
+        EasyMock.expect(m_credentialProvider.getUserCredential(EasyMock.isA(Decryptor.class), EasyMock.eq(hashOnly), EasyMock.eq(KEY))).andThrow(
+                new UnsupportedOperationException("only the hash is stored"));
+        EasyMock.replay(m_credentialProvider);
+        //
+        Progress progress = new CredentialReencryptorImpl(m_userAdmin).reencryptCredentials(null, 2, 0, null);
+        Assert.assertEquals("Wrong number of users", 3, progress.getUserCount());
+        Assert.assertEquals("Wrong number of re-encrypted credentials", 1, progress.getReencryptedCount());
+        Assert.assertEquals("Wrong number of current credentials", 1, progress.getCurrentCount());
+        Assert.assertEquals("Wrong number of unrecoverable credentials", 1, progress.getUnrecoverableCount());
+        Assert.assertEquals("Wrong number of failed credentials", 0, progress.getFailedCount());
+        Assert.assertEquals("Wrong checkpoint", "c", progress.getCheckpoint());
+        EasyMock.verify(m_credentialProvider);
+    }
+
+    @Test
+    public void usersUpToCheckpointAreSkipped() throws Exception {
+        User done = createUser("a");
+        User pending = createUser("b");
+        createUserAdmin(Arrays.<Role> asList(done, pending));
+        expectStoredCredential(pending, OUTDATED);
+        m_credentialProvider.setUserCredential(m_encryptor, pending, KEY, VALUE);
+        EasyMock.replay(m_credentialProvider);
+        //
+        Progress progress = new CredentialReencryptorImpl(m_userAdmin).reencryptCredentials("a", 1, 1000, null);
+        Assert.assertEquals("Wrong number of users", 1, progress.getUserCount());
+        Assert.assertEquals("Wrong number of re-encrypted credentials", 1, progress.getReencryptedCount());
+        Assert.assertEquals("Wrong checkpoint", "b", progress.getCheckpoint());
+        EasyMock.verify(m_credentialProvider);
+    }
+
+    @Test
+    public void credentialsNotDecryptedByStorageAreKept() throws Exception {
+        User user = EasyMock.createMock(User.class);
+        Hashtable<String, Object> credentials = new Hashtable<String, Object>();
+        credentials.put(KEY, VALUE);
+        credentials.put("apikey", "key");
+        EasyMock.expect(user.getName()).andStubReturn("a");
+        EasyMock.expect(user.getCredentials()).andStubReturn(credentials);
+        makeThreadSafe(user);
+        EasyMock.replay(user);
+        createUserAdmin(Arrays.<Role> asList(user));
+        // the storage bypasses the decryptor and ignores the key
+        EasyMock.expect(m_credentialProvider.getUserCredential(EasyMock.isA(Decryptor.class), EasyMock.eq(user), EasyMock.isA(String.class))).andReturn(VALUE)
+                .times(2);
+        EasyMock.replay(m_credentialProvider);
+        //
+        Progress progress = new CredentialReencryptorImpl(m_userAdmin).reencryptCredentials(null, 1, 0, null);
+        Assert.assertEquals("Wrong number of re-encrypted credentials", 0, progress.getReencryptedCount());
+        Assert.assertEquals("Wrong number of unrecoverable credentials", 2, progress.getUnrecoverableCount());
+        // no setUserCredential() call
+        EasyMock.verify(m_credentialProvider);
+    }
+
+    /**
+     * A storage which can read the roles page by page.
+     */
+    public abstract static class PagedStorageProvider implements StorageProvider, RolePageProvider {
+    }
+
+    @Test
+    public void usersArePagedFromTheStorage() throws Exception {
+        User pending = createUser("b");
+        m_encryptor = new PaxUserAdminEncryptor(new EncryptorContext(new HashMap<String, Object>()));
+        m_userAdmin = EasyMock.createNiceMock(PaxUserAdmin.class);
+        m_credentialProvider = EasyMock.createMock(CredentialProvider.class);
+        PagedStorageProvider storageProvider = EasyMock.createMock(PagedStorageProvider.class);
+        Decryptor decryptor = EasyMock.createMock(Decryptor.class);
+        makeThreadSafe(m_userAdmin, storageProvider, m_credentialProvider, decryptor);
+        EasyMock.expect(m_userAdmin.getEncryptor()).andStubReturn(m_encryptor);
+        EasyMock.expect(m_userAdmin.getDecryptor()).andStubReturn(decryptor);
+        EasyMock.expect(m_userAdmin.getStorageProvider()).andStubReturn(storageProvider);
+        EasyMock.expect(storageProvider.getCredentialProvider()).andStubReturn(m_credentialProvider);
+        // all roles are never read at once
+        EasyMock.expect(storageProvider.findRolePage(m_userAdmin, "a", 100)).andReturn(Arrays.<Role> asList(pending));
+        EasyMock.expect(storageProvider.findRolePage(m_userAdmin, "b", 100)).andReturn(Collections.<Role> emptyList());
+        EasyMock.expect(decryptor.decrypt((byte[]) EasyMock.isNull(), (byte[]) EasyMock.isNull(), (byte[]) EasyMock.isNull(), EasyMock.aryEq(OUTDATED))).andStubReturn(VALUE);
+        EasyMock.replay(m_userAdmin, storageProvider, decryptor);
+        expectStoredCredential(pending, OUTDATED);
+        m_credentialProvider.setUserCredential(m_encryptor, pending, KEY, VALUE);
+        EasyMock.replay(m_credentialProvider);
+        //
+        Progress progress = new CredentialReencryptorImpl(m_userAdmin).reencryptCredentials("a", 1, 0, null);
+        Assert.assertEquals("Wrong number of users", 1, progress.getUserCount());
+        Assert.assertEquals("Wrong number of re-encrypted credentials", 1, progress.getReencryptedCount());
+        Assert.assertEquals("Wrong checkpoint", "b", progress.getCheckpoint());
+        EasyMock.verify(storageProvider, m_credentialProvider);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.internal.encryption.EncryptorContext;
+import org.ops4j.pax.useradmin.service.internal.encryption.PaxUserAdminEncryptor;
+import org.ops4j.pax.useradmin.service.spi.CredentialProvider;
+import org.ops4j.pax.useradmin.service.spi.Decryptor;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.service.useradmin.User;
+
+/**
+ * Testing the CredentialRehasher class.
+ */
+public class CredentialRehasherTest {
+
+    private static final String KEY      = "password";
+    private static final String VALUE    = "secret";
+    private static final byte[] OUTDATED = "MD5##SHA1PRNG##16##PAX_EMPTY".getBytes();
+
+    /**
+     * Runs the scheduled tasks immediately - the mocks must not be called
+     * from another thread.
+     */
+    private static final class DirectExecutor extends ScheduledThreadPoolExecutor {
+
+        DirectExecutor() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            command.run();
+            return null;
+        }
+    }
+
+    private PaxUserAdmin                m_userAdmin;
+    private CredentialProvider          m_credentialProvider;
+    private User                        m_user;
+    private DirectExecutor              m_executor;
+
+    private CredentialRehasher createRehasher(PaxUserAdminEncryptor encryptor) throws StorageException {
+        m_userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        StorageProvider storageProvider = EasyMock.createMock(StorageProvider.class);
+        m_credentialProvider = EasyMock.createMock(CredentialProvider.class);
+        Decryptor decryptor = EasyMock.createMock(Decryptor.class);
+        m_user = EasyMock.createMock(User.class);
+        EasyMock.expect(m_userAdmin.getEncryptor()).andStubReturn(encryptor);
+        EasyMock.expect(m_userAdmin.getDecryptor()).andStubReturn(decryptor);
+        EasyMock.expect(m_userAdmin.getStorageProvider()).andStubReturn(storageProvider);
+        EasyMock.expect(storageProvider.getCredentialProvider()).andStubReturn(m_credentialProvider);
+        EasyMock.expect(decryptor.verify(KEY, VALUE, null, null, OUTDATED)).andStubReturn(true);
+        EasyMock.expect(m_user.getName()).andStubReturn("user");
+        EasyMock.replay(m_userAdmin, storageProvider, decryptor, m_user);
+        //
+        m_executor = new DirectExecutor();
+        CredentialRehasher rehasher = new CredentialRehasher(m_userAdmin, m_executor);
+        rehasher.configure(true, 1000);
+        return rehasher;
+    }
+
+    @Test
+    public void outdatedCredentialIsReencrypted() throws Exception {
+        PaxUserAdminEncryptor encryptor = new PaxUserAdminEncryptor(new EncryptorContext(new HashMap<String, Object>()));
+        CredentialRehasher rehasher = createRehasher(encryptor);
+        EasyMock.expect(m_credentialProvider.hasUserCredential(EasyMock.isA(Decryptor.class), EasyMock.eq(m_user), EasyMock.eq(KEY), EasyMock.eq(VALUE)))
+                .andAnswer(new IAnswer<Boolean>() {
+
+                    @Override
+                    public Boolean answer() throws Throwable {
+                        Decryptor decryptor = (Decryptor) EasyMock.getCurrentArguments()[0];
+                        return decryptor.verify(KEY, VALUE, null, null, OUTDATED);
+                    }
+                });
+        m_credentialProvider.setUserCredential(encryptor, m_user, KEY, VALUE);
+        EasyMock.replay(m_credentialProvider);
+        //
+        rehasher.verified(m_user, KEY, VALUE, OUTDATED);
+        Assert.assertEquals("Re-encryption still pending", 0, rehasher.getPendingCount());
+        EasyMock.verify(m_credentialProvider);
+    }
+
+    @Test
+    public void shutdownStopsReencryption() throws Exception {
+        PaxUserAdminEncryptor encryptor = new PaxUserAdminEncryptor(new EncryptorContext(new HashMap<String, Object>()));
+        CredentialRehasher rehasher = createRehasher(encryptor);
+        EasyMock.replay(m_credentialProvider);
+        //
+        rehasher.shutdown();
+        Assert.assertTrue("Executor not shut down", m_executor.isShutdown());
+        rehasher.verified(m_user, KEY, VALUE, OUTDATED);
+        Assert.assertEquals("Re-encryption queued", 0, rehasher.getPendingCount());
+        EasyMock.verify(m_credentialProvider);
+    }
+
+    @Test
+    public void currentCredentialIsKept() throws Exception {
+        PaxUserAdminEncryptor encryptor = new PaxUserAdminEncryptor(new EncryptorContext(new HashMap<String, Object>()));
+        CredentialRehasher rehasher = createRehasher(encryptor);
+        EasyMock.replay(m_credentialProvider);
+        //
+        rehasher.verified(m_user, KEY, VALUE, encryptor.getAlgorithmParameter());
+        rehasher.configure(false, 1000);
+        rehasher.verified(m_user, KEY, VALUE, OUTDATED);
+        EasyMock.verify(m_credentialProvider);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.service.useradmin.User;
+
+/**
+ * Testing the CredentialVerifierPool class.
+ */
+public class CredentialVerifierPoolTest {
+
+    private static final String KEY   = "password";
+    private static final String VALUE = "secret";
+
+    @Test
+    public void credentialIsVerified() throws Exception {
+        User user = EasyMock.createMock(User.class);
+        EasyMock.expect(user.hasCredential(KEY, VALUE)).andReturn(true);
+        EasyMock.replay(user);
+        //
+        CredentialVerifierPool pool = new CredentialVerifierPool(1, 1);
+        Assert.assertTrue("Credential not verified", pool.verifyCredential(user, KEY, VALUE).get());
+        Assert.assertEquals("Wrong completed count", 1, pool.getCompletedCount());
+        pool.shutdown();
+        EasyMock.verify(user);
+    }
+
+    @Test
+    public void verificationsAreRejectedIfQueueIsFull() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        User user = EasyMock.createMock(User.class);
+        EasyMock.expect(user.hasCredential(KEY, VALUE)).andAnswer(new IAnswer<Boolean>() {
+
+            @Override
+            public Boolean answer() throws Throwable {
+                started.countDown();
+                release.await();
+                return false;
+            }
+        }).times(2);
+        EasyMock.replay(user);
+        //
+        CredentialVerifierPool pool = new CredentialVerifierPool(1, 1);
+        Future<Boolean> running = pool.verifyCredential(user, KEY, VALUE);
+        started.await();
+        Future<Boolean> queued = pool.verifyCredential(user, KEY, VALUE);
+        Assert.assertEquals("Wrong queue size", 1, pool.getQueueSize());
+        try {
+            pool.verifyCredential(user, KEY, VALUE);
+            Assert.fail("Verification not rejected");
+        } catch (RejectedExecutionException e) {
+            Assert.assertEquals("Wrong rejected count", 1, pool.getRejectedCount());
+        }
+        release.countDown();
+        Assert.assertFalse("Wrong result", running.get());
+        Assert.assertFalse("Wrong result", queued.get());
+        pool.shutdown();
+        EasyMock.verify(user);
+    }
+}
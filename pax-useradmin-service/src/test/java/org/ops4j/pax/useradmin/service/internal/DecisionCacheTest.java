@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Testing the DecisionCache class.
+ */
+public class DecisionCacheTest {
+
+    private static final String USER_NAME1  = "user1";
+    private static final String USER_NAME2  = "user2";
+    private static final String GROUP_NAME1 = "someGroup1";
+    private static final String GROUP_NAME2 = "someGroup2";
+
+    private static Collection<Role> roles(Role... roles) {
+        Collection<Role> result = new ArrayList<Role>();
+        for (Role role : roles) {
+            result.add(role);
+        }
+        return result;
+    }
+
+    @Test
+    public void invalidationDropsDependentDecisionsOnly() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        UserImpl user2 = new UserImpl(USER_NAME2, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl(GROUP_NAME2, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(userAdmin.getRole(GROUP_NAME1)).andReturn(group1);
+        EasyMock.expect(userAdmin.getRole(GROUP_NAME2)).andReturn(group2).times(2);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(roles(user1));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(roles()).times(2);
+        EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(roles(user2)).times(2);
+        EasyMock.replay(userAdmin, sp);
+        //
+        DecisionCache cache = new DecisionCache(userAdmin, 100);
+        Assert.assertTrue("Group 1 not implied", cache.isImplied(user1, GROUP_NAME1));
+        Assert.assertFalse("Group 2 implied", cache.isImplied(user1, GROUP_NAME2));
+        Assert.assertEquals("Decisions not cached", 2, cache.getSize());
+        //
+        cache.invalidate(GROUP_NAME2);
+        Assert.assertEquals("Wrong number of cached decisions", 1, cache.getSize());
+        Assert.assertEquals("Wrong number of invalidations", 1, cache.getInvalidationCount());
+        Assert.assertTrue("Group 1 not implied", cache.isImplied(user1, GROUP_NAME1));
+        Assert.assertFalse("Group 2 implied", cache.isImplied(user1, GROUP_NAME2));
+        //
+        // all decisions of user 1 depend on the user itself
+        cache.invalidate(USER_NAME1);
+        Assert.assertEquals("Decisions of removed user kept", 0, cache.getSize());
+        Assert.assertEquals("Wrong number of hits", 1, cache.getHitCount());
+        Assert.assertEquals("Wrong number of misses", 3, cache.getMissCount());
+        Assert.assertEquals("Wrong hit ratio", 0.25, cache.getHitRatio(), 0.0001);
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void frequentDecisionsSurvive() {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        EasyMock.expect(userAdmin.getRole((String) EasyMock.anyObject())).andStubReturn(null);
+        EasyMock.replay(userAdmin);
+        //
+        DecisionCache cache = new DecisionCache(userAdmin, 10);
+        for (int i = 0; i < 5; i++) {
+            cache.isImplied(user1, "hot");
+        }
+        for (int i = 0; i < 50; i++) {
+            cache.isImplied(user1, "cold" + i);
+        }
+        Assert.assertTrue("Maximum size exceeded", cache.getSize() <= 10);
+        Assert.assertEquals("Wrong number of evictions", 56 - 5 - cache.getSize(), cache.getEvictionCount());
+        long hits = cache.getHitCount();
+        cache.isImplied(user1, "hot");
+        Assert.assertEquals("Frequent decision evicted", hits + 1, cache.getHitCount());
+    }
+
+    @Test
+    public void disabledCacheDoesNotStore() {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        EasyMock.expect(userAdmin.getRole(GROUP_NAME1)).andReturn(null).times(2);
+        EasyMock.replay(userAdmin);
+        //
+        DecisionCache cache = new DecisionCache(userAdmin, 0);
+        Assert.assertFalse("Unknown role implied", cache.isImplied(user1, GROUP_NAME1));
+        Assert.assertFalse("Unknown role implied", cache.isImplied(user1, GROUP_NAME1));
+        Assert.assertEquals("Decision cached", 0, cache.getSize());
+        //
+        EasyMock.verify(userAdmin);
+    }
+}
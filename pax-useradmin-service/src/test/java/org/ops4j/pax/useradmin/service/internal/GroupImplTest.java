@@ -65,13 +65,16 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group, role1)).andReturn(true);
+            userAdmin.memberAdded(group, role1, false);
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group, role2)).andReturn(true);
+            userAdmin.memberAdded(group, role2, false);
             //
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.removeMember(group, role1)).andReturn(true);
+            userAdmin.memberRemoved(group, role1);
             //
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
@@ -136,6 +139,7 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group, role)).andReturn(true);
+            userAdmin.memberAdded(group, role, false);
         } catch (StorageException e) {
             Assert.fail("Unexpected exception: " + e.getMessage());
         }
@@ -176,9 +180,11 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group, role1)).andReturn(true);
+            userAdmin.memberAdded(group, role1, false);
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group, role2)).andReturn(true);
+            userAdmin.memberAdded(group, role2, false);
             //
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             Collection<Role> roles = new ArrayList<Role>();
@@ -248,6 +254,7 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addRequiredMember(group, role)).andReturn(true);
+            userAdmin.memberAdded(group, role, true);
         } catch (StorageException e) {
             Assert.fail("Unexpected exception: " + e.getMessage());
         }
@@ -288,9 +295,11 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addRequiredMember(group, role1)).andReturn(true);
+            userAdmin.memberAdded(group, role1, true);
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addRequiredMember(group, role2)).andReturn(true);
+            userAdmin.memberAdded(group, role2, true);
             //
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             Collection<Role> roles = new ArrayList<Role>();
@@ -342,16 +351,20 @@ public class GroupImplTest {
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group1, user1)).andReturn(true);
+            userAdmin.memberAdded(group1, user1, false);
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group1, user2)).andReturn(true);
+            userAdmin.memberAdded(group1, user2, false);
             //
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addMember(group2, user1)).andReturn(true);
+            userAdmin.memberAdded(group2, user1, false);
             userAdmin.checkAdminPermission();
             EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
             EasyMock.expect(sp.addRequiredMember(group2, group1)).andReturn(true);
+            userAdmin.memberAdded(group2, group1, true);
             //
             // User1 implies group1
             //
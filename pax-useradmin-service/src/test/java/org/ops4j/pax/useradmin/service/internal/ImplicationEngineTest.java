@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.spi.BatchMemberProvider;
+import org.ops4j.pax.useradmin.service.spi.SPIRole.ImplicationResult;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Testing the ImplicationEngine class.
+ */
+public class ImplicationEngineTest {
+
+    private static Collection<Role> roles(Role... roles) {
+        Collection<Role> result = new ArrayList<Role>();
+        for (Role role : roles) {
+            result.add(role);
+        }
+        return result;
+    }
+
+    /*
+     * Setup:
+     *
+     * top:
+     *     - required: left, right
+     *     - basic: user1
+     * left:
+     *     - basic: shared
+     * right:
+     *     - basic: shared
+     * shared:
+     *     - basic: user1
+     */
+    @Test
+    public void diamondIsImpliedAndEvaluatedOnce() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl("user1", userAdmin, null, null);
+        GroupImpl top = new GroupImpl("top", userAdmin, null, null);
+        GroupImpl left = new GroupImpl("left", userAdmin, null, null);
+        GroupImpl right = new GroupImpl("right", userAdmin, null, null);
+        GroupImpl shared = new GroupImpl("shared", userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, top)).andReturn(roles(left, right));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, left)).andReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, left)).andReturn(roles(shared));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, right)).andReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, right)).andReturn(roles(shared));
+        // shared is only expanded once
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, shared)).andReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, shared)).andReturn(roles(user1));
+        EasyMock.expect(sp.getMembers(userAdmin, top)).andReturn(roles(user1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        Assert.assertEquals("Diamond not implied", ImplicationResult.IMPLIEDBY_YES, top.isImpliedBy(user1, new ArrayList<String>()));
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    /*
+     * Setup:
+     *
+     * top:
+     *     - required: first, second
+     *     - basic: user1
+     * first:
+     *     - basic: user1
+     * second:
+     *     - required: first
+     *     - basic: user1
+     */
+    @Test
+    public void requiredDiamondIsLoop() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl("user1", userAdmin, null, null);
+        GroupImpl top = new GroupImpl("top", userAdmin, null, null);
+        GroupImpl first = new GroupImpl("first", userAdmin, null, null);
+        GroupImpl second = new GroupImpl("second", userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, top)).andStubReturn(roles(first, second));
+        EasyMock.expect(sp.getMembers(userAdmin, top)).andStubReturn(roles(user1));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, first)).andStubReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, first)).andStubReturn(roles(user1));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, second)).andStubReturn(roles(first));
+        EasyMock.expect(sp.getMembers(userAdmin, second)).andStubReturn(roles(user1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        // the required members share the checked roles: first is reached twice
+        Assert.assertEquals("Diamond of required members not denied", ImplicationResult.IMPLIEDBY_LOOPDETECTED,
+                            top.isImpliedBy(user1, new ArrayList<String>()));
+        ImplicationEngine engine = ImplicationEngine.open(user1, null);
+        try {
+            Assert.assertEquals("Diamond of required members not denied", ImplicationResult.IMPLIEDBY_LOOPDETECTED, engine.evaluate(top, null));
+            // on its own, the second group is implied
+            Assert.assertEquals("Second group not implied", ImplicationResult.IMPLIEDBY_YES, engine.evaluate(second, null));
+            Assert.assertEquals("Diamond of required members not denied", ImplicationResult.IMPLIEDBY_LOOPDETECTED, engine.evaluate(top, null));
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void evaluatedRoleIsAddedToCheckedRoles() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl("user1", userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl("group1", userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andStubReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andStubReturn(roles(user1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        Collection<String> checkedRoles = new ArrayList<String>();
+        Assert.assertEquals("Group not implied", ImplicationResult.IMPLIEDBY_YES, group1.isImpliedBy(user1, checkedRoles));
+        Assert.assertEquals("Wrong checked roles", Arrays.asList(group1.getName()), checkedRoles);
+        Assert.assertEquals("Checked group not reported as loop", ImplicationResult.IMPLIEDBY_LOOPDETECTED, group1.isImpliedBy(user1, checkedRoles));
+    }
+
+    /*
+     * Setup:
+     *
+     * group1:
+     *     - basic: group2, user1
+     * group2:
+     *     - basic: group1
+     */
+    @Test
+    public void loopIsNotMemoized() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl("user1", userAdmin, null, null);
+        UserImpl user2 = new UserImpl("user2", userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl("group1", userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl("group2", userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andStubReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andStubReturn(roles(group2, user1));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andStubReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group2)).andStubReturn(roles(group1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        ImplicationEngine engine = ImplicationEngine.open(user1, null);
+        try {
+            Assert.assertEquals("Group 1 not implied", ImplicationResult.IMPLIEDBY_YES, engine.evaluate(group1, null));
+            Assert.assertEquals("Group 2 not implied", ImplicationResult.IMPLIEDBY_YES, engine.evaluate(group2, null));
+        } finally {
+            engine.close();
+        }
+        engine = ImplicationEngine.open(user2, null);
+        try {
+            Assert.assertEquals("Group 2 implied", ImplicationResult.IMPLIEDBY_NO, engine.evaluate(group2, null));
+            Assert.assertEquals("Group 1 implied", ImplicationResult.IMPLIEDBY_NO, engine.evaluate(group1, null));
+        } finally {
+            engine.close();
+        }
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void deepHierarchy() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl("user1", userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        Role member = user1;
+        GroupImpl group = null;
+        for (int i = 0; i < 5000; i++) {
+            group = new GroupImpl("group" + i, userAdmin, null, null);
+            EasyMock.expect(sp.getRequiredMembers(userAdmin, group)).andStubReturn(roles());
+            EasyMock.expect(sp.getMembers(userAdmin, group)).andStubReturn(roles(member));
+            member = group;
+        }
+        EasyMock.replay(userAdmin, sp);
+        //
+        Assert.assertEquals("Deepest group not implied", ImplicationResult.IMPLIEDBY_YES, group.isImpliedBy(user1, new ArrayList<String>()));
+    }
+
+    @Test
+    public void blockingMemberIsReported() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl("user1", userAdmin, null, null);
+        UserImpl user2 = new UserImpl("user2", userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl("group1", userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl("group2", userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andStubReturn(roles(user2));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andStubReturn(roles(group1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        Collection<String> blockers = new ArrayList<String>();
+        ImplicationEngine engine = ImplicationEngine.open(user1, null);
+        try {
+            Assert.assertEquals("Group 2 implied", ImplicationResult.IMPLIEDBY_NO, engine.evaluate(group2, blockers));
+            // group 1 is memoized now, its blocker must still be reported
+            Assert.assertEquals("Group 1 implied", ImplicationResult.IMPLIEDBY_NO, engine.evaluate(group1, blockers));
+        } finally {
+            engine.close();
+        }
+        Assert.assertEquals("Wrong blocking members", Arrays.asList(group1.getName(), user2.getName()).toString(), blockers.toString());
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    /**
+     * A storage which can fetch the members of several groups at once.
+     */
+    public abstract static class BatchStorageProvider implements StorageProvider, BatchMemberProvider {
+    }
+
+    /*
+     * Setup: see diamondIsImpliedAndEvaluatedOnce()
+     */
+    @Test
+    public void membersArePrefetchedPerLevel() throws StorageException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl("user1", userAdmin, null, null);
+        GroupImpl top = new GroupImpl("top", userAdmin, null, null);
+        GroupImpl left = new GroupImpl("left", userAdmin, null, null);
+        GroupImpl right = new GroupImpl("right", userAdmin, null, null);
+        GroupImpl shared = new GroupImpl("shared", userAdmin, null, null);
+        Map<String, Collection<Role>> sharedMembers = members(left, roles(shared));
+        sharedMembers.put(right.getName(), roles(shared));
+        BatchStorageProvider sp = EasyMock.createMock(BatchStorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, Arrays.<Group> asList(top))).andReturn(members(top, roles(left, right)));
+        EasyMock.expect(sp.getMembers(userAdmin, Arrays.<Group> asList(top))).andReturn(members(top, roles(user1)));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, Arrays.<Group> asList(left, right))).andReturn(new HashMap<String, Collection<Role>>());
+        EasyMock.expect(sp.getMembers(userAdmin, Arrays.<Group> asList(left, right))).andReturn(sharedMembers);
+        // groups without members may be omitted by the storage
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, Arrays.<Group> asList(shared))).andReturn(null);
+        EasyMock.expect(sp.getMembers(userAdmin, Arrays.<Group> asList(shared))).andReturn(members(shared, roles(user1)));
+        EasyMock.replay(userAdmin, sp);
+        //
+        Assert.assertEquals("Diamond not implied", ImplicationResult.IMPLIEDBY_YES, top.isImpliedBy(user1, new ArrayList<String>()));
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    private static Map<String, Collection<Role>> members(Group group, Collection<Role> members) {
+        Map<String, Collection<Role>> result = new HashMap<String, Collection<Role>>();
+        result.put(group.getName(), members);
+        return result;
+    }
+}
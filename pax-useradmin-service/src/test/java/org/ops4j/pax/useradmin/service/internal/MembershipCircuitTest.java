@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.log.LogService;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Testing the MembershipCircuit class.
+ */
+public class MembershipCircuitTest {
+
+    private static final String USER_NAME1  = "user1";
+    private static final String USER_NAME2  = "user2";
+    private static final String GROUP_NAME1 = "someGroup1";
+    private static final String GROUP_NAME2 = "someGroup2";
+    private static final String GROUP_NAME3 = "someGroup3";
+    private static final String GROUP_NAME4 = "someGroup4";
+
+    /*
+     * Setup:
+     *
+     * group1:
+     *     - basic: user1
+     * group2:
+     *     - required: group1
+     *     - basic: user1, user2
+     * group3:
+     *     - basic: group4, user2
+     * group4:
+     *     - basic: group3
+     */
+
+    private static Collection<Role> roles(Role... roles) {
+        Collection<Role> result = new ArrayList<Role>();
+        for (Role role : roles) {
+            result.add(role);
+        }
+        return result;
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+    private PaxUserAdmin m_userAdmin;
+    private StorageProvider m_sp;
+    private UserImpl m_user1;
+    private UserImpl m_user2;
+    private GroupImpl m_group1;
+
+    private MembershipCircuit createCircuit() throws StorageException, InvalidSyntaxException {
+        m_userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl userAnyone = new UserImpl(Role.USER_ANYONE, m_userAdmin, null, null);
+        m_user1 = new UserImpl(USER_NAME1, m_userAdmin, null, null);
+        m_user2 = new UserImpl(USER_NAME2, m_userAdmin, null, null);
+        m_group1 = new GroupImpl(GROUP_NAME1, m_userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl(GROUP_NAME2, m_userAdmin, null, null);
+        GroupImpl group3 = new GroupImpl(GROUP_NAME3, m_userAdmin, null, null);
+        GroupImpl group4 = new GroupImpl(GROUP_NAME4, m_userAdmin, null, null);
+        m_sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(m_userAdmin.getRoles(null)).andReturn(new Role[] { userAnyone, m_user1, m_user2, m_group1, group2, group3, group4 });
+        EasyMock.expect(m_userAdmin.getStorageProvider()).andReturn(m_sp);
+        EasyMock.expect(m_sp.getRequiredMembers(m_userAdmin, m_group1)).andReturn(roles());
+        EasyMock.expect(m_sp.getMembers(m_userAdmin, m_group1)).andReturn(roles(m_user1));
+        EasyMock.expect(m_sp.getRequiredMembers(m_userAdmin, group2)).andReturn(roles(m_group1));
+        EasyMock.expect(m_sp.getMembers(m_userAdmin, group2)).andReturn(roles(m_user1, m_user2));
+        EasyMock.expect(m_sp.getRequiredMembers(m_userAdmin, group3)).andReturn(roles());
+        EasyMock.expect(m_sp.getMembers(m_userAdmin, group3)).andReturn(roles(group4, m_user2));
+        EasyMock.expect(m_sp.getRequiredMembers(m_userAdmin, group4)).andReturn(roles());
+        EasyMock.expect(m_sp.getMembers(m_userAdmin, group4)).andReturn(roles(group3));
+        EasyMock.replay(m_userAdmin, m_sp);
+        //
+        MembershipCircuit circuit = new MembershipCircuit(m_userAdmin);
+        circuit.setEnabled(true);
+        return circuit;
+    }
+
+    @Test
+    public void circuitIsCompiledOnce() throws StorageException, InvalidSyntaxException {
+        MembershipCircuit circuit = createCircuit();
+        Set<String> roles = new HashSet<String>();
+        Set<String> blockers = new HashSet<String>();
+        Assert.assertTrue("Circuit not used", circuit.evaluate(m_user1, roles, blockers));
+        Assert.assertEquals("Wrong roles of user 1", names(Role.USER_ANYONE, USER_NAME1, GROUP_NAME1, GROUP_NAME2), roles);
+        Assert.assertTrue("Wrong blockers of user 1", blockers.isEmpty());
+        //
+        roles.clear();
+        Assert.assertTrue("Circuit not used", circuit.evaluate(m_user2, roles, blockers));
+        Assert.assertEquals("Wrong roles of user 2", names(Role.USER_ANYONE, USER_NAME2, GROUP_NAME3, GROUP_NAME4), roles);
+        Assert.assertEquals("Wrong blockers of user 2", names(GROUP_NAME1), blockers);
+        //
+        EasyMock.verify(m_userAdmin, m_sp);
+    }
+
+    @Test
+    public void changesAreAppliedInPlace() throws StorageException, InvalidSyntaxException {
+        MembershipCircuit circuit = createCircuit();
+        Set<String> roles = new HashSet<String>();
+        circuit.evaluate(m_user2, roles, new HashSet<String>());
+        //
+        circuit.memberAdded(m_group1, m_user2, false);
+        roles.clear();
+        circuit.evaluate(m_user2, roles, new HashSet<String>());
+        Assert.assertEquals("Added member not applied", names(Role.USER_ANYONE, USER_NAME2, GROUP_NAME1, GROUP_NAME2, GROUP_NAME3, GROUP_NAME4), roles);
+        //
+        circuit.memberRemoved(m_group1, m_user1);
+        roles.clear();
+        circuit.evaluate(m_user1, roles, new HashSet<String>());
+        Assert.assertEquals("Removed member not applied", names(Role.USER_ANYONE, USER_NAME1), roles);
+        //
+        circuit.roleRemoved(m_group1);
+        roles.clear();
+        circuit.evaluate(m_user1, roles, new HashSet<String>());
+        Assert.assertEquals("Removed role not applied", names(Role.USER_ANYONE, USER_NAME1, GROUP_NAME2), roles);
+        //
+        EasyMock.verify(m_userAdmin, m_sp);
+    }
+
+    @Test
+    public void foreignGroupIsNotCompiled() throws InvalidSyntaxException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        Group group = EasyMock.createMock(Group.class);
+        EasyMock.expect(group.getName()).andStubReturn(GROUP_NAME1);
+        EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { user1, group });
+        userAdmin.logMessage(EasyMock.anyObject(), EasyMock.eq(LogService.LOG_INFO), (String) EasyMock.anyObject());
+        EasyMock.replay(userAdmin, group);
+        //
+        MembershipCircuit circuit = new MembershipCircuit(userAdmin);
+        circuit.setEnabled(true);
+        Set<String> roles = new HashSet<String>();
+        Assert.assertFalse("Circuit used", circuit.evaluate(user1, roles, new HashSet<String>()));
+        Assert.assertTrue("Roles reported", roles.isEmpty());
+        //
+        EasyMock.verify(userAdmin);
+    }
+
+    @Test
+    public void requiredDiamondIsLeftToEngine() throws StorageException, InvalidSyntaxException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl(GROUP_NAME2, userAdmin, null, null);
+        GroupImpl group3 = new GroupImpl(GROUP_NAME3, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { user1, group1, group2, group3 });
+        EasyMock.expect(userAdmin.getStorageProvider()).andReturn(sp);
+        // group1 requires group2 and group3, group3 requires group2
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(roles(group2, group3));
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(roles(user1));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(roles(user1));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group3)).andReturn(roles(group2));
+        EasyMock.expect(sp.getMembers(userAdmin, group3)).andReturn(roles(user1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        MembershipCircuit circuit = new MembershipCircuit(userAdmin);
+        circuit.setEnabled(true);
+        Set<String> roles = new HashSet<String>();
+        Assert.assertFalse("Circuit used", circuit.evaluate(user1, roles, new HashSet<String>()));
+        Assert.assertTrue("Roles reported", roles.isEmpty());
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.spi.ParentGroupProvider;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.useradmin.Group;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Testing the MembershipIndex class.
+ */
+public class MembershipIndexTest {
+
+    private static final String USER_NAME1  = "user1";
+    private static final String USER_NAME2  = "user2";
+    private static final String GROUP_NAME1 = "someGroup1";
+    private static final String GROUP_NAME2 = "someGroup2";
+
+    /*
+     * Setup:
+     *
+     * group1:
+     *     - basic: user1
+     * group2:
+     *     - required: group1
+     *     - basic: user1, user2
+     */
+
+    private static Collection<Role> roles(Role... roles) {
+        Collection<Role> result = new ArrayList<Role>();
+        for (Role role : roles) {
+            result.add(role);
+        }
+        return result;
+    }
+
+    @Test
+    public void entriesAreReused() throws StorageException, InvalidSyntaxException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { user1, group1 });
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(roles(user1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        MembershipIndex index = new MembershipIndex(userAdmin);
+        index.setEnabled(true);
+        Assert.assertEquals("Not exactly 2 implied roles found", 2, index.getImpliedRoles(user1).length);
+        Assert.assertTrue("Group 1 not implied", index.isImplied(user1, GROUP_NAME1));
+        Assert.assertEquals("Entry not materialized", 1, index.size());
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void disabledIndexDoesNotStore() throws StorageException, InvalidSyntaxException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { user1 }).times(2);
+        EasyMock.replay(userAdmin, sp);
+        //
+        MembershipIndex index = new MembershipIndex(userAdmin);
+        index.setEnabled(false);
+        Assert.assertTrue("User does not imply itself", index.isImplied(user1, USER_NAME1));
+        Assert.assertTrue("User does not imply itself", index.isImplied(user1, USER_NAME1));
+        Assert.assertEquals("Entry materialized", 0, index.size());
+        //
+        EasyMock.verify(userAdmin);
+    }
+
+    @Test
+    public void changesInvalidateAffectedUsersOnly() throws StorageException, InvalidSyntaxException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        UserImpl user2 = new UserImpl(USER_NAME2, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl(GROUP_NAME2, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(userAdmin.getRoles(null)).andStubReturn(new Role[] { user1, user2, group1, group2 });
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andStubReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andStubReturn(roles(user1));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andStubReturn(roles(group1));
+        EasyMock.expect(sp.getMembers(userAdmin, group2)).andStubReturn(roles(user1, user2));
+        EasyMock.replay(userAdmin, sp);
+        //
+        MembershipIndex index = new MembershipIndex(userAdmin);
+        index.setEnabled(true);
+        Assert.assertTrue("Group 2 not implied by user 1", index.isImplied(user1, GROUP_NAME2));
+        Assert.assertFalse("Group 2 implied by user 2", index.isImplied(user2, GROUP_NAME2));
+        Assert.assertEquals("Entries not materialized", 2, index.size());
+        //
+        // adding a basic member only affects users implying the new member
+        index.memberAdded(group1, group2, false);
+        Assert.assertEquals("Unaffected entry dropped", 1, index.size());
+        Assert.assertTrue("Group 2 not implied by user 1", index.isImplied(user1, GROUP_NAME2));
+        //
+        // adding a required member only affects users implying the group
+        index.memberAdded(group2, user2, true);
+        Assert.assertEquals("Unaffected entry dropped", 1, index.size());
+        Assert.assertFalse("Group 2 implied by user 2", index.isImplied(user2, GROUP_NAME2));
+        Assert.assertTrue("Group 2 not implied by user 1", index.isImplied(user1, GROUP_NAME2));
+        //
+        // removing the required member which blocked user 2 must drop its entry
+        index.memberRemoved(group2, group1);
+        Assert.assertEquals("Blocked entry not dropped", 0, index.size());
+        //
+        index.clear();
+        Assert.assertEquals("Entries not cleared", 0, index.size());
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void removedRoleInvalidatesHolders() throws StorageException, InvalidSyntaxException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        UserImpl user2 = new UserImpl(USER_NAME2, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(userAdmin.getRoles(null)).andStubReturn(new Role[] { user1, user2, group1 });
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andStubReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andStubReturn(roles(user1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        MembershipIndex index = new MembershipIndex(userAdmin);
+        index.setEnabled(true);
+        index.getImpliedRoles(user1);
+        index.getImpliedRoles(user2);
+        Assert.assertEquals("Entries not materialized", 2, index.size());
+        index.roleRemoved(group1);
+        Assert.assertEquals("Holder of removed role not dropped", 1, index.size());
+        index.roleCreated(user2);
+        Assert.assertEquals("Entry of created role not dropped", 0, index.size());
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    /**
+     * A storage which can look up parent groups.
+     */
+    public abstract static class ParentAwareStorageProvider implements StorageProvider, ParentGroupProvider {
+    }
+
+    @Test
+    public void parentGroupsAreWalkedUpward() throws StorageException, InvalidSyntaxException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl userAnyone = new UserImpl(Role.USER_ANYONE, userAdmin, null, null);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        GroupImpl group2 = new GroupImpl(GROUP_NAME2, userAdmin, null, null);
+        ParentAwareStorageProvider sp = EasyMock.createMock(ParentAwareStorageProvider.class);
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(userAdmin.getRole(Role.USER_ANYONE)).andReturn(userAnyone);
+        EasyMock.expect(sp.getParentGroups(userAdmin, user1)).andReturn(groups(group1, group2));
+        EasyMock.expect(sp.getParentGroups(userAdmin, userAnyone)).andReturn(groups());
+        EasyMock.expect(sp.getParentGroups(userAdmin, group1)).andReturn(groups(group2));
+        EasyMock.expect(sp.getParentGroups(userAdmin, group2)).andReturn(groups());
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(roles(user1));
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group2)).andReturn(roles(group1));
+        EasyMock.expect(sp.getMembers(userAdmin, group2)).andReturn(roles(user1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        MembershipIndex index = new MembershipIndex(userAdmin);
+        index.setEnabled(true);
+        Assert.assertEquals("Not exactly 3 implied roles found", 3, index.getImpliedRoles(user1).length);
+        Assert.assertTrue("Group 2 not implied", index.isImplied(user1, GROUP_NAME2));
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    private static Collection<Group> groups(Group... groups) {
+        Collection<Group> result = new ArrayList<Group>();
+        for (Group group : groups) {
+            result.add(group);
+        }
+        return result;
+    }
+}
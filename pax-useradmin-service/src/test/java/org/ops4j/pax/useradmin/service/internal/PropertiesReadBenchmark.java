@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.easymock.classextension.EasyMock;
+
+/**
+ * Measures the throughput of concurrent property reads on a shared role
+ * instance for an increasing number of reader threads. Not run as part of the
+ * build - start the main method manually.
+ */
+public class PropertiesReadBenchmark {
+
+    private static final int    KEYS           = 16;
+
+    private static final long   RUN_MILLIS     = 2000;
+
+    private static final String KEY_PREFIX     = "key";
+
+    public static void main(String[] args) throws InterruptedException {
+        PaxUserAdmin userAdmin = EasyMock.createNiceMock(PaxUserAdmin.class);
+        EasyMock.replay(userAdmin);
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (int i = 0; i < KEYS; i++) {
+            properties.put(KEY_PREFIX + i, "value" + i);
+        }
+        UserImpl user = new UserImpl("someUser", userAdmin, properties, null);
+        int cores = Runtime.getRuntime().availableProcessors();
+        // warm up
+        run(user.getProperties(), cores);
+        for (int threads = 1; threads <= 2 * cores; threads *= 2) {
+            long reads = run(user.getProperties(), threads);
+            System.out.println(threads + " reader(s): " + (reads * 1000 / RUN_MILLIS) + " reads/s");
+        }
+    }
+
+    private static long run(final Dictionary<String, Object> properties, int threads) throws InterruptedException {
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] end = new long[1];
+        for (int i = 0; i < threads; i++) {
+            Thread reader = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long count = 0;
+                    while (System.nanoTime() < end[0]) {
+                        for (int key = 0; key < KEYS; key++) {
+                            if (null == properties.get(KEY_PREFIX + key)) {
+                                throw new IllegalStateException("missing property");
+                            }
+                        }
+                        count += KEYS;
+                    }
+                    reads.addAndGet(count);
+                    done.countDown();
+                }
+            };
+            reader.start();
+        }
+        end[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS);
+        start.countDown();
+        done.await();
+        return reads.get();
+    }
+}
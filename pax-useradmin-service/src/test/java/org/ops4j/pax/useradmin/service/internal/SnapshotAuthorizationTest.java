@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.RefreshableAuthorization;
+import org.ops4j.pax.useradmin.service.spi.StorageException;
+import org.ops4j.pax.useradmin.service.spi.StorageProvider;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.useradmin.Role;
+
+/**
+ * Testing the SnapshotAuthorization class.
+ */
+public class SnapshotAuthorizationTest {
+
+    private static final String USER_NAME1  = "user1";
+    private static final String GROUP_NAME1 = "someGroup1";
+    private static final String GROUP_NAME2 = "someGroup2";
+
+    private static Collection<Role> roles(Role... roles) {
+        Collection<Role> result = new ArrayList<Role>();
+        for (Role role : roles) {
+            result.add(role);
+        }
+        return result;
+    }
+
+    @Test
+    public void snapshotIsTakenOnce() throws StorageException, InvalidSyntaxException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl userAnyone = new UserImpl(Role.USER_ANYONE, userAdmin, null, null);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        MembershipIndex index = new MembershipIndex(userAdmin);
+        index.setEnabled(false);
+        EasyMock.expect(userAdmin.getMembershipIndex()).andStubReturn(index);
+        EasyMock.expect(userAdmin.getRoleNameRegistry()).andStubReturn(new RoleNameRegistry());
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { userAnyone, user1, group1 });
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(roles(user1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        RefreshableAuthorization authorization = new SnapshotAuthorization(userAdmin, user1, 0);
+        Assert.assertEquals("Name mismatch", USER_NAME1, authorization.getName());
+        Assert.assertTrue("User does not imply itself", authorization.hasRole(USER_NAME1));
+        Assert.assertTrue("Group 1 not implied", authorization.hasRole(GROUP_NAME1));
+        Assert.assertFalse("Unknown role implied", authorization.hasRole(GROUP_NAME2));
+        Assert.assertTrue("user.anyone not implied", authorization.hasRole(""));
+        Assert.assertEquals("Wrong number of roles", 2, authorization.getRoles().length);
+        Assert.assertSame("Roles not shared", authorization.getRoles(), authorization.getRoles());
+        //
+        EasyMock.verify(userAdmin, sp);
+    }
+
+    @Test
+    public void refreshTakesNewSnapshot() throws StorageException, InvalidSyntaxException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        GroupImpl group1 = new GroupImpl(GROUP_NAME1, userAdmin, null, null);
+        StorageProvider sp = EasyMock.createMock(StorageProvider.class);
+        MembershipIndex index = new MembershipIndex(userAdmin);
+        index.setEnabled(false);
+        EasyMock.expect(userAdmin.getMembershipIndex()).andStubReturn(index);
+        EasyMock.expect(userAdmin.getRoleNameRegistry()).andStubReturn(new RoleNameRegistry());
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(sp);
+        EasyMock.expect(userAdmin.getRoles(null)).andStubReturn(new Role[] { user1, group1 });
+        EasyMock.expect(sp.getRequiredMembers(userAdmin, group1)).andStubReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andReturn(roles());
+        EasyMock.expect(sp.getMembers(userAdmin, group1)).andStubReturn(roles(user1));
+        EasyMock.replay(userAdmin, sp);
+        //
+        RefreshableAuthorization authorization = new SnapshotAuthorization(userAdmin, user1, 0);
+        Assert.assertFalse("Group 1 implied", authorization.hasRole(GROUP_NAME1));
+        authorization.refresh();
+        Assert.assertTrue("Group 1 not implied", authorization.hasRole(GROUP_NAME1));
+    }
+
+    @Test
+    public void staleSnapshotIsRefreshed() throws StorageException, InvalidSyntaxException, InterruptedException {
+        PaxUserAdmin userAdmin = EasyMock.createMock(PaxUserAdmin.class);
+        UserImpl user1 = new UserImpl(USER_NAME1, userAdmin, null, null);
+        MembershipIndex index = new MembershipIndex(userAdmin);
+        index.setEnabled(false);
+        EasyMock.expect(userAdmin.getMembershipIndex()).andStubReturn(index);
+        EasyMock.expect(userAdmin.getRoleNameRegistry()).andStubReturn(new RoleNameRegistry());
+        EasyMock.expect(userAdmin.getStorageProvider()).andStubReturn(EasyMock.createMock(StorageProvider.class));
+        EasyMock.expect(userAdmin.getRoles(null)).andReturn(new Role[] { user1 }).times(2);
+        EasyMock.replay(userAdmin);
+        //
+        RefreshableAuthorization authorization = new SnapshotAuthorization(userAdmin, user1, 1);
+        long timestamp = authorization.getTimestamp();
+        Thread.sleep(10);
+        Assert.assertTrue("User does not imply itself", authorization.hasRole(USER_NAME1));
+        Assert.assertTrue("Snapshot not refreshed", authorization.getTimestamp() > timestamp);
+        //
+        EasyMock.verify(userAdmin);
+    }
+}
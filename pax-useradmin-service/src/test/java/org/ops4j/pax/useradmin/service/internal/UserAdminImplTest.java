@@ -18,13 +18,17 @@
 package org.ops4j.pax.useradmin.service.internal;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Executors;
 
 import org.easymock.classextension.EasyMock;
 import org.junit.Assert;
 import org.junit.Test;
 import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+import org.ops4j.pax.useradmin.service.spi.RoleDataLoader;
 import org.ops4j.pax.useradmin.service.spi.StorageException;
 import org.ops4j.pax.useradmin.service.spi.StorageProvider;
 import org.osgi.framework.BundleContext;
@@ -32,6 +36,7 @@ import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.osgi.service.log.LogService;
@@ -150,6 +155,70 @@ public class UserAdminImplTest {
         Assert.assertEquals("Type mismatch", group.getType(), Role.GROUP);
     }
 
+    @Test
+    public void configurationUpdatedInvalidNumber() {
+        PaxUserAdmin userAdmin = createUserAdmin();
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_REHASH_RATE, "fast");
+        try {
+            userAdmin.configurationUpdated(properties);
+            Assert.fail("Invalid number accepted");
+        } catch (ConfigurationException e) {
+            Assert.assertEquals("Wrong property", PaxUserAdminConstants.PROPERTY_ENCRYPTION_REHASH_RATE, e.getProperty());
+        }
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_REHASH_RATE, "10");
+        properties.put(PaxUserAdminConstants.PROPERTY_AUTHORIZATION_CACHE_SIZE, "-1");
+        try {
+            userAdmin.configurationUpdated(properties);
+            Assert.fail("Negative size accepted");
+        } catch (ConfigurationException e) {
+            Assert.assertEquals("Wrong property", PaxUserAdminConstants.PROPERTY_AUTHORIZATION_CACHE_SIZE, e.getProperty());
+        }
+    }
+
+    @Test
+    public void factoryReturnsCanonicalRoles() {
+        PaxUserAdmin userAdmin = createUserAdmin();
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("key1", "value1");
+        User user = userAdmin.createUser("some name", properties, null);
+        properties.remove("key1");
+        properties.put("key2", "value2");
+        Assert.assertSame("Role not canonical", user, userAdmin.createUser("some name", properties, Collections.singleton("credential")));
+        Assert.assertEquals("Loaded data replaced", "value1", user.getProperties().get("key1"));
+        Assert.assertEquals("Loaded credential keys replaced", 0, user.getCredentials().size());
+        // an invalidated instance takes the data of the next lookup
+        userAdmin.fireEvent(UserAdminEvent.ROLE_CHANGED, user);
+        Assert.assertSame("Role not canonical", user, userAdmin.createUser("some name", properties, Collections.singleton("credential")));
+        Assert.assertNull("Removed property kept", user.getProperties().get("key1"));
+        Assert.assertEquals("Property not refreshed", "value2", user.getProperties().get("key2"));
+        Assert.assertEquals("Credential keys not refreshed", 1, user.getCredentials().size());
+        //
+        Group group = userAdmin.createGroup("some name", null, null);
+        Assert.assertNotSame("Type change ignored", user, group);
+        Assert.assertSame("Role not canonical", group, userAdmin.createGroup("some name", null, null));
+    }
+
+    @Test
+    public void factoryLoadsRoleDataOnFirstAccess() throws StorageException {
+        PaxUserAdmin userAdmin = createUserAdmin();
+        RoleDataLoader loader = EasyMock.createMock(RoleDataLoader.class);
+        EasyMock.replay(loader);
+        User user = userAdmin.createUser("some name", loader);
+        EasyMock.verify(loader);
+        //
+        EasyMock.reset(loader);
+        EasyMock.expect(loader.loadProperties()).andReturn(Collections.<String, Object> singletonMap("key1", "value1"));
+        EasyMock.expect(loader.loadCredentialKeys()).andReturn(Collections.singleton("credential"));
+        EasyMock.replay(loader);
+        Assert.assertEquals("Property not loaded", "value1", user.getProperties().get("key1"));
+        Assert.assertEquals("Property loaded twice", 1, user.getProperties().size());
+        Assert.assertEquals("Credential keys not loaded", 1, user.getCredentials().size());
+        Assert.assertSame("Role not canonical", user, userAdmin.createUser("some name", null, null));
+        Assert.assertEquals("Loaded data replaced", "value1", user.getProperties().get("key1"));
+        EasyMock.verify(loader);
+    }
+
     @Test
     public void getStorageProviderNoService() {
         PaxUserAdmin userAdmin = createUserAdmin();
@@ -79,4 +79,15 @@ public class UserAdminToolsTest {
         String value = UserAdminTools.getOptionalProperty((Map<String, Object>) m_properties, OPTIONAL_NOT_SPECIFIED, OPTIONAL_VALUE);
         Assert.assertEquals("Value mismatch", OPTIONAL_VALUE, value);
     }
+
+    @Test
+    public void hexToBytesDoesNotReportInput() {
+        try {
+            UserAdminTools.hexToBytes("00secret");
+            Assert.fail("No exception thrown");
+        } catch (IllegalArgumentException e) {
+            Assert.assertFalse("Input reported", e.getMessage().contains("secret"));
+            Assert.assertTrue("Position not reported", e.getMessage().contains("2"));
+        }
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal.encryption;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of credential verifications for an increasing
+ * number of threads. Not run as part of the build - start the main method
+ * manually.
+ */
+public class CredentialVerificationBenchmark {
+
+    private static final long   RUN_MILLIS = 2000;
+
+    private static final String KEY        = "password";
+
+    private static final String VALUE      = "secret";
+
+    public static void main(String[] args) throws Exception {
+        PaxUserAdminEncryptedValue value = new PaxUserAdminEncryptor(new EncryptorContext(new HashMap<String, Object>())).encrypt(KEY, VALUE);
+        PaxUserAdminDecryptor decryptor = new PaxUserAdminDecryptor();
+        int cores = Runtime.getRuntime().availableProcessors();
+        // warm up
+        run(decryptor, value, cores);
+        for (int threads = 1; threads <= 2 * cores; threads *= 2) {
+            long verifications = run(decryptor, value, threads);
+            System.out.println(threads + " thread(s): " + (verifications * 1000 / RUN_MILLIS) + " verifications/s");
+        }
+    }
+
+    private static long run(final PaxUserAdminDecryptor decryptor, PaxUserAdminEncryptedValue value, int threads) throws InterruptedException {
+        final byte[] verificationBytes = value.getVerificationBytes();
+        final byte[] salt = value.getSalt();
+        final byte[] algorithmParameter = value.getAlgorithmParameter();
+        final AtomicLong verifications = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] end = new long[1];
+        for (int i = 0; i < threads; i++) {
+            Thread verifier = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long count = 0;
+                    while (System.nanoTime() < end[0]) {
+                        if (!decryptor.verify(KEY, VALUE, verificationBytes, salt, algorithmParameter)) {
+                            throw new IllegalStateException("credential not verified");
+                        }
+                        count++;
+                    }
+                    verifications.addAndGet(count);
+                    done.countDown();
+                }
+            };
+            verifier.start();
+        }
+        end[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS);
+        start.countDown();
+        done.await();
+        return verifications.get();
+    }
+}
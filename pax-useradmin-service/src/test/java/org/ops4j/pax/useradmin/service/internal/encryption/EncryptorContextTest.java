@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal.encryption;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+
+/**
+ * Testing the EncryptorContext class.
+ */
+public class EncryptorContextTest {
+
+    private static final int SALT_LENGTH = 8;
+
+    /**
+     * Collects the tasks to run them on demand.
+     */
+    private static final class QueueingExecutor implements Executor {
+
+        private final List<Runnable> m_tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            m_tasks.add(command);
+        }
+
+        int runAll() {
+            int count = m_tasks.size();
+            for (Runnable task : m_tasks) {
+                task.run();
+            }
+            m_tasks.clear();
+            return count;
+        }
+    }
+
+    private static Map<String, Object> getProperties(int poolSize) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_SECURERANDOM_SALTLENGTH, String.valueOf(SALT_LENGTH));
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_SECURERANDOM_SALTPOOL, String.valueOf(poolSize));
+        return properties;
+    }
+
+    @Test
+    public void saltsAreTakenFromPool() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        EncryptorContext context = new EncryptorContext(getProperties(4), executor);
+        Assert.assertEquals("Pool not filled on creation", 1, executor.runAll());
+        // the pool is refilled when half of it is drained
+        Assert.assertEquals("Wrong salt length", SALT_LENGTH, context.generateRandomSalt().length);
+        Assert.assertEquals("Pool refilled too early", 0, executor.runAll());
+        Assert.assertFalse("Salt reused", Arrays.equals(context.generateRandomSalt(), context.generateRandomSalt()));
+        Assert.assertEquals("Pool not refilled", 1, executor.runAll());
+    }
+
+    @Test
+    public void saltsAreGeneratedIfPoolIsEmpty() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        EncryptorContext context = new EncryptorContext(getProperties(2), executor);
+        Assert.assertEquals("Wrong salt length", SALT_LENGTH, context.generateRandomSalt().length);
+        Assert.assertEquals("Pool refilled twice", 1, executor.runAll());
+    }
+
+    @Test
+    public void singleIterationKeepsParameterFormat() throws Exception {
+        EncryptorContext context = new EncryptorContext(new HashMap<String, Object>());
+        Assert.assertEquals("Wrong parameters", "MD5##SHA1PRNG##32##PAX_EMPTY", context.toStringValue());
+        byte[] key = "key".getBytes();
+        byte[] salt = context.generateRandomSalt();
+        byte[] value = "value".getBytes();
+        Assert.assertTrue("Hash changed", Arrays.equals(MessageDigest.getInstance("MD5").digest(concat(key, salt, value)), context.hashValues(key, salt, value)));
+    }
+
+    @Test
+    public void iterationsAreStoredWithParameters() throws Exception {
+        Map<String, Object> properties = getProperties(0);
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_HASH_ALGORITHM, "PBKDF2WithHmacSHA1");
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_HASH_ITERATIONS, "1000");
+        PaxUserAdminEncryptedValue value = new PaxUserAdminEncryptor(new EncryptorContext(properties)).encrypt("key", "value");
+        String parameters = new String(value.getAlgorithmParameter(), "UTF-8");
+        Assert.assertEquals("Wrong parameters", "PBKDF2WithHmacSHA1##SHA1PRNG##8##PAX_EMPTY##1000", parameters);
+        PaxUserAdminDecryptor decryptor = new PaxUserAdminDecryptor();
+        Assert.assertTrue("Value not verified", decryptor.verify("key", "value", value.getVerificationBytes(), value.getSalt(), value.getAlgorithmParameter()));
+        Assert.assertFalse("Wrong value verified", decryptor.verify("key", "other", value.getVerificationBytes(), value.getSalt(), value.getAlgorithmParameter()));
+    }
+
+    @Test
+    public void iterationsAreCalibrated() throws Exception {
+        int fast = HashScheme.calibrate("SHA-256", SALT_LENGTH, 1);
+        int slow = HashScheme.calibrate("SHA-256", SALT_LENGTH, 20);
+        Assert.assertTrue("No iterations", fast >= 1);
+        Assert.assertTrue("Iterations not scaled", slow > fast);
+        Assert.assertEquals("Not a power of two", Integer.highestOneBit(slow), slow);
+    }
+
+    @Test
+    public void calibrationIsReused() throws Exception {
+        Map<String, Object> properties = getProperties(0);
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_HASH_ALGORITHM, "SHA-256");
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_HASH_TARGETTIME, "5");
+        String parameters = new EncryptorContext(properties).toStringValue();
+        Assert.assertEquals("Parameters changed", parameters, new EncryptorContext(properties).toStringValue());
+    }
+
+    @Test
+    public void valuesAreEncryptedWithKey() throws Exception {
+        Map<String, Object> properties = getProperties(0);
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_ALGORITHM, "AES/GCM/NoPadding");
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_KEY, "000102030405060708090a0b0c0d0e0f");
+        PaxUserAdminEncryptor encryptor = new PaxUserAdminEncryptor(new EncryptorContext(properties));
+        PaxUserAdminEncryptedValue value = encryptor.encrypt("key", "value");
+        PaxUserAdminEncryptedValue same = encryptor.encrypt("key", "value");
+        Assert.assertFalse("IV reused", Arrays.equals(value.getEncryptedBytes(), same.getEncryptedBytes()));
+        PaxUserAdminDecryptor decryptor = new PaxUserAdminDecryptor(properties);
+        Assert.assertEquals("Wrong value decrypted", "value", decryptor.decrypt(value.getEncryptedBytes(), value.getVerificationBytes(), value.getSalt(),
+                value.getAlgorithmParameter()));
+        Assert.assertEquals("Wrong value decrypted", "value", decryptor.decrypt(same.getEncryptedBytes(), same.getVerificationBytes(), same.getSalt(),
+                same.getAlgorithmParameter()));
+        byte[] bytes = { 1, 2, 3 };
+        PaxUserAdminEncryptedValue bytesValue = encryptor.encrypt("key", bytes);
+        Assert.assertTrue("Wrong bytes decrypted", Arrays.equals(bytes, (byte[]) decryptor.decrypt(bytesValue.getEncryptedBytes(),
+                bytesValue.getVerificationBytes(), bytesValue.getSalt(), bytesValue.getAlgorithmParameter())));
+    }
+
+    @Test
+    public void valuesAreNotDecryptedWithOtherKey() throws Exception {
+        Map<String, Object> properties = getProperties(0);
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_ALGORITHM, "AES/GCM/NoPadding");
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_KEY, "000102030405060708090a0b0c0d0e0f");
+        PaxUserAdminEncryptedValue value = new PaxUserAdminEncryptor(new EncryptorContext(properties)).encrypt("key", "value");
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_KEY, "0f0e0d0c0b0a09080706050403020100");
+        try {
+            new PaxUserAdminDecryptor(properties).decrypt(value.getEncryptedBytes(), value.getVerificationBytes(), value.getSalt(),
+                    value.getAlgorithmParameter());
+            Assert.fail("Value decrypted with other key");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void valuesAreDecryptedWithPreviousKey() throws Exception {
+        Map<String, Object> properties = getProperties(0);
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_ALGORITHM, "AES/GCM/NoPadding");
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_KEY, "000102030405060708090a0b0c0d0e0f");
+        PaxUserAdminEncryptor encryptor = new PaxUserAdminEncryptor(new EncryptorContext(properties));
+        PaxUserAdminEncryptedValue value = encryptor.encrypt("key", "value");
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_KEY, "0f0e0d0c0b0a09080706050403020100");
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_PREVIOUSKEYS, "000102030405060708090a0b0c0d0e0f");
+        PaxUserAdminEncryptor rotated = new PaxUserAdminEncryptor(new EncryptorContext(properties));
+        Assert.assertFalse("Key id not stored", Arrays.equals(encryptor.getAlgorithmParameter(), rotated.getAlgorithmParameter()));
+        PaxUserAdminDecryptor decryptor = new PaxUserAdminDecryptor(properties);
+        Assert.assertEquals("Wrong value decrypted", "value", decryptor.decrypt(value.getEncryptedBytes(), value.getVerificationBytes(), value.getSalt(),
+                value.getAlgorithmParameter()));
+        Assert.assertTrue("Value not verified", decryptor.verify("key", "value", value.getVerificationBytes(), value.getSalt(), value.getAlgorithmParameter()));
+        PaxUserAdminEncryptedValue current = rotated.encrypt("key", "value");
+        Assert.assertEquals("Wrong value decrypted", "value", decryptor.decrypt(current.getEncryptedBytes(), current.getVerificationBytes(),
+                current.getSalt(), current.getAlgorithmParameter()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortValueIsRejected() throws Exception {
+        Map<String, Object> properties = getProperties(0);
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_ALGORITHM, "AES/GCM/NoPadding");
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_KEY, "000102030405060708090a0b0c0d0e0f");
+        PaxUserAdminEncryptedValue value = new PaxUserAdminEncryptor(new EncryptorContext(properties)).encrypt("key", "value");
+        new PaxUserAdminDecryptor(properties).decrypt(new byte[] { 0 }, value.getVerificationBytes(), value.getSalt(), value.getAlgorithmParameter());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cipherWithoutKeyIsRejected() throws Exception {
+        Map<String, Object> properties = getProperties(0);
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_ALGORITHM, "AES/GCM/NoPadding");
+        new EncryptorContext(properties);
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+}
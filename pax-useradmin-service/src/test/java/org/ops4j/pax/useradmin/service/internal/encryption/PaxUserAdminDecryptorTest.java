@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 OPS4J
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ops4j.pax.useradmin.service.internal.encryption;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ops4j.pax.useradmin.service.PaxUserAdminConstants;
+
+/**
+ * Testing the PaxUserAdminDecryptor class.
+ */
+public class PaxUserAdminDecryptorTest {
+
+    private static final String KEY   = "password";
+    private static final String VALUE = "secret";
+
+    private static PaxUserAdminEncryptedValue encrypt(String cipher) throws Exception {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(PaxUserAdminConstants.PROPERTY_ENCRYPTION_CIPHER_ALGORITHM, cipher);
+        return new PaxUserAdminEncryptor(new EncryptorContext(properties)).encrypt(KEY, VALUE);
+    }
+
+    @Test
+    public void contextsAreCached() throws Exception {
+        PaxUserAdminEncryptedValue value = encrypt("PAX_PLAIN");
+        PaxUserAdminDecryptor decryptor = new PaxUserAdminDecryptor();
+        byte[] parameter = value.getAlgorithmParameter();
+        Assert.assertSame("Context not cached", decryptor.getContext(parameter), decryptor.getContext(parameter.clone()));
+        //
+        Assert.assertTrue("Value not verified", decryptor.verify(KEY, VALUE, value.getVerificationBytes(), value.getSalt(), parameter));
+        Assert.assertFalse("Wrong value verified", decryptor.verify(KEY, "other", value.getVerificationBytes(), value.getSalt(), parameter));
+        Assert.assertEquals("Value not decrypted", VALUE, decryptor.decrypt(value.getEncryptedBytes(), value.getVerificationBytes(), value.getSalt(), parameter));
+    }
+
+    @Test
+    public void contextsAreThreadSafe() throws Exception {
+        final PaxUserAdminEncryptedValue value = encrypt("PAX_EMPTY");
+        final PaxUserAdminDecryptor decryptor = new PaxUserAdminDecryptor();
+        final boolean[] verified = new boolean[4];
+        Thread[] threads = new Thread[verified.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    boolean result = true;
+                    for (int j = 0; j < 1000; j++) {
+                        result &= decryptor.verify(KEY, VALUE, value.getVerificationBytes(), value.getSalt(), value.getAlgorithmParameter());
+                    }
+                    verified[index] = result;
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            Assert.assertTrue("Value not verified in thread " + i, verified[i]);
+        }
+    }
+}